@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import com.lmax.disruptor.ProducerBarrier;
+import com.lmax.disruptor.SequenceBatch;
+
+/**
+ * A producer barrier which simply counts the entries committed, isolating the
+ * cost of the producer from the ring buffer's claim and wait strategies. All
+ * claims return the same entry.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class CountingProducerBarrier implements ProducerBarrier<EventEntry> {
+    private volatile long    cursor = -1L;
+    private final EventEntry entry  = new EventEntry();
+
+    @Override
+    public void commit(EventEntry entry) {
+        cursor++;
+    }
+
+    @Override
+    public void commit(SequenceBatch sequenceBatch) {
+        cursor += sequenceBatch.getSize();
+    }
+
+    @Override
+    public long getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public EventEntry getEntry(long sequence) {
+        return entry;
+    }
+
+    /**
+     * The batch is not assigned sequences, as every sequence maps to the same
+     * entry
+     */
+    @Override
+    public SequenceBatch nextEntries(SequenceBatch sequenceBatch) {
+        return sequenceBatch;
+    }
+
+    @Override
+    public EventEntry nextEntry() {
+        return entry;
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the CRC and deserialization of {@link Event}s, with heap
+ * and pooled direct buffers.
+ * 
+ * @author hhildebrand
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EventBenchmark {
+    /**
+     * A readable channel over an in memory serialized event, which may be
+     * reread without allocation
+     */
+    private static class BufferChannel implements ReadableByteChannel {
+        private final ByteBuffer source;
+
+        BufferChannel(ByteBuffer source) {
+            this.source = source;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            int count = Math.min(dst.remaining(), source.remaining());
+            int limit = source.limit();
+            source.limit(source.position() + count);
+            dst.put(source);
+            source.limit(limit);
+            return count;
+        }
+
+        void reset() {
+            source.rewind();
+        }
+    }
+
+    @Param({ "1", "16" })
+    public int          batchCount;
+
+    @Param({ "64", "1024", "16384" })
+    public int          eventSize;
+
+    private BufferChannel channel;
+    private ByteBuffer   directPayload;
+    private ByteBuffer   heapPayload;
+    private final BufferPool pool = new BufferPool();
+
+    @Benchmark
+    public int crc32Direct(Throughput throughput) {
+        int crc = 0;
+        for (int i = 0; i < batchCount; i++) {
+            directPayload.rewind();
+            crc ^= Event.crc32(directPayload);
+        }
+        throughput.add(batchCount, (long) batchCount * eventSize);
+        return crc;
+    }
+
+    @Benchmark
+    public int crc32Heap(Throughput throughput) {
+        int crc = 0;
+        for (int i = 0; i < batchCount; i++) {
+            heapPayload.rewind();
+            crc ^= Event.crc32(heapPayload);
+        }
+        throughput.add(batchCount, (long) batchCount * eventSize);
+        return crc;
+    }
+
+    @Benchmark
+    public int readFrom(Throughput throughput) throws IOException {
+        int size = 0;
+        for (int i = 0; i < batchCount; i++) {
+            channel.reset();
+            size += Event.readFrom(channel).limit();
+        }
+        throughput.add(batchCount, size);
+        return size;
+    }
+
+    @Benchmark
+    public int readFromPooled(Throughput throughput) throws IOException {
+        int size = 0;
+        for (int i = 0; i < batchCount; i++) {
+            channel.reset();
+            ByteBuffer event = Event.readFrom(channel, pool);
+            size += event.limit();
+            pool.release(event);
+        }
+        throughput.add(batchCount, size);
+        return size;
+    }
+
+    @Setup
+    public void setup() {
+        byte[] payload = new byte[eventSize];
+        new Random(666).nextBytes(payload);
+        heapPayload = ByteBuffer.wrap(payload);
+        directPayload = ByteBuffer.allocateDirect(eventSize);
+        directPayload.put(payload);
+        heapPayload.rewind();
+        Event event = new Event(666, UUID.randomUUID(), heapPayload);
+        event.rewind();
+        ByteBuffer serialized = ByteBuffer.allocate(EventHeader.HEADER_BYTE_SIZE
+                                                    + eventSize);
+        event.bytes.rewind();
+        serialized.put(event.bytes);
+        serialized.flip();
+        channel = new BufferChannel(serialized);
+    }
+}
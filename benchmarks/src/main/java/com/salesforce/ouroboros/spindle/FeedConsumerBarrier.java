@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.util.concurrent.TimeUnit;
+
+import com.lmax.disruptor.AlertException;
+import com.lmax.disruptor.ConsumerBarrier;
+
+/**
+ * A consumer barrier fed directly by the benchmark, cycling through a fixed
+ * set of preallocated entries.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class FeedConsumerBarrier implements ConsumerBarrier<EventEntry> {
+    private volatile boolean   alerted;
+    private volatile long      cursor = -1L;
+    private final EventEntry[] entries;
+
+    public FeedConsumerBarrier(EventEntry[] entries) {
+        this.entries = entries;
+    }
+
+    @Override
+    public void alert() {
+        alerted = true;
+    }
+
+    @Override
+    public long getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public EventEntry getEntry(long sequence) {
+        return entries[(int) (sequence % entries.length)];
+    }
+
+    @Override
+    public boolean isAlerted() {
+        return alerted;
+    }
+
+    /**
+     * Make the next batch of sequences available to the consumer
+     * 
+     * @param count
+     *            - the number of sequences to publish
+     */
+    public void publish(int count) {
+        cursor += count;
+    }
+
+    @Override
+    public long waitFor(long sequence) throws AlertException,
+                                      InterruptedException {
+        while (cursor < sequence) {
+            if (alerted) {
+                throw AlertException.ALERT_EXCEPTION;
+            }
+            Thread.yield();
+        }
+        return cursor;
+    }
+
+    @Override
+    public long waitFor(long sequence, long timeout, TimeUnit units)
+                                                                    throws AlertException,
+                                                                    InterruptedException {
+        long deadline = System.nanoTime() + units.toNanos(timeout);
+        while (cursor < sequence) {
+            if (alerted) {
+                throw AlertException.ALERT_EXCEPTION;
+            }
+            if (System.nanoTime() > deadline) {
+                break;
+            }
+            Thread.yield();
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hellblazer.pinkie.CommunicationsHandler;
+import com.hellblazer.pinkie.CommunicationsHandlerFactory;
+import com.hellblazer.pinkie.ServerSocketChannelHandler;
+import com.hellblazer.pinkie.SocketChannelHandler;
+import com.hellblazer.pinkie.SocketOptions;
+
+/**
+ * Benchmark of the {@link Replicator} fan out path: batches of entries for
+ * events stored contiguously in a segment are published to the replicator,
+ * and each invocation completes when the replicated events have been fully
+ * received, and acknowledged, by the follower over a loopback socket. A
+ * window of 1 replicates stop and wait.
+ * 
+ * @author hhildebrand
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReplicatorBenchmark {
+    /**
+     * Adapts the replicator to the accepting side of the loopback connection
+     */
+    private static class Acceptor implements CommunicationsHandler {
+        private final Replicator replicator;
+
+        Acceptor(Replicator replicator) {
+            this.replicator = replicator;
+        }
+
+        @Override
+        public void closing(SocketChannel channel) {
+            replicator.closing(channel);
+        }
+
+        @Override
+        public void handleAccept(SocketChannel channel,
+                                 SocketChannelHandler handler) {
+            replicator.handleConnect(channel, handler);
+        }
+
+        @Override
+        public void handleConnect(SocketChannel channel,
+                                  SocketChannelHandler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void handleRead(SocketChannel channel) {
+            replicator.handleRead(channel);
+        }
+
+        @Override
+        public void handleWrite(SocketChannel channel) {
+            replicator.handleWrite(channel);
+        }
+    }
+
+    @Param({ "1", "16", "256" })
+    public int                         batchCount;
+
+    @Param({ "64", "1024", "16384" })
+    public int                         eventSize;
+
+    @Param({ "1", "1024" })
+    public int                         window;
+
+    private final ByteBuffer           acknowledgement = ByteBuffer.allocate(Replicator.ACKNOWLEDGEMENT_SIZE);
+    private FeedConsumerBarrier        barrier;
+    private long                       base;
+    private long                       batchBytes;
+    private final ByteBuffer           batchHeader     = ByteBuffer.allocate(Replicator.BATCH_HEADER_SIZE);
+    private EventEntry[]               entries;
+    private ExecutorService            executor;
+    private File                       file;
+    private SocketChannel              follower;
+    private ServerSocketChannelHandler handler;
+    private EventHeader[]              headers;
+    private long[]                     offsets;
+    private ByteBuffer                 received;
+    private Replicator                 replicator;
+    private FileChannel                segment;
+
+    @Benchmark
+    public long replicate(Throughput throughput) throws IOException {
+        // each batch follows the last in the channel, as if appended anew
+        base += batchBytes;
+        for (int i = 0; i < batchCount; i++) {
+            entries[i].set(headers[i], base, offsets[i]);
+        }
+        barrier.publish(batchCount);
+        long remaining = batchBytes;
+        while (remaining > 0) {
+            remaining -= follow();
+        }
+        throughput.add(batchCount, batchBytes);
+        return batchBytes;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("replicator-benchmark", ".segment");
+        segment = new RandomAccessFile(file, "rw").getChannel();
+        byte[] payload = new byte[eventSize];
+        new Random(666).nextBytes(payload);
+        UUID tag = UUID.randomUUID();
+        int crc32 = Event.crc32(payload);
+        entries = new EventEntry[batchCount];
+        headers = new EventHeader[batchCount];
+        offsets = new long[batchCount];
+        for (int i = 0; i < batchCount; i++) {
+            headers[i] = new EventHeader(eventSize, 666, tag, crc32);
+            offsets[i] = segment.position();
+            entries[i] = new EventEntry();
+            headers[i].rewind();
+            headers[i].write(segment);
+            segment.write(ByteBuffer.wrap(payload));
+        }
+        batchBytes = (long) batchCount
+                     * (EventHeader.HEADER_BYTE_SIZE + eventSize);
+        received = ByteBuffer.allocateDirect(64 * 1024);
+        barrier = new FeedConsumerBarrier(entries);
+        final Segment shared = new Segment(segment, 0);
+        final FileChannel replicated = segment;
+        Bundle bundle = new Bundle() {
+            @Override
+            public long endOf(UUID channel) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public long offsetOf(UUID channel, long ordinal) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void release(Segment segment) {
+            }
+
+            @Override
+            public Segment segmentFor(EventEntry entry) {
+                return new Segment(replicated, entry.getSegment());
+            }
+
+            @Override
+            public Segment segmentFor(EventHeader header) {
+                return shared;
+            }
+
+            @Override
+            public Segment segmentFor(UUID channel, long offset) {
+                return shared;
+            }
+        };
+        executor = Executors.newFixedThreadPool(4);
+        replicator = new Replicator(bundle, barrier, executor, window);
+
+        SocketOptions socketOptions = new SocketOptions();
+        socketOptions.setTimeout(100);
+        handler = new ServerSocketChannelHandler(
+                                                 "replicator-benchmark",
+                                                 socketOptions,
+                                                 new InetSocketAddress(
+                                                                       "127.0.0.1",
+                                                                       0),
+                                                 executor,
+                                                 new CommunicationsHandlerFactory() {
+                                                     @Override
+                                                     public CommunicationsHandler createCommunicationsHandler() {
+                                                         return new Acceptor(
+                                                                             replicator);
+                                                     }
+                                                 });
+        handler.start();
+        follower = SocketChannel.open();
+        follower.configureBlocking(true);
+        follower.connect(handler.getLocalAddress());
+    }
+
+    /**
+     * Receive the next replicated batch and acknowledge it as the follower's
+     * high water mark
+     * 
+     * @return the number of event bytes in the batch
+     */
+    private long follow() throws IOException {
+        batchHeader.clear();
+        while (batchHeader.hasRemaining()) {
+            if (follower.read(batchHeader) < 0) {
+                throw new IOException("Replication connection closed");
+            }
+        }
+        long length = batchHeader.getLong(32);
+        long remaining = length;
+        while (remaining > 0) {
+            received.clear();
+            if (remaining < received.capacity()) {
+                received.limit((int) remaining);
+            }
+            int read = follower.read(received);
+            if (read < 0) {
+                throw new IOException("Replication connection closed");
+            }
+            remaining -= read;
+        }
+        acknowledgement.clear();
+        acknowledgement.putLong(batchHeader.getLong(0));
+        acknowledgement.putLong(batchHeader.getLong(8));
+        acknowledgement.putLong(batchHeader.getLong(16));
+        acknowledgement.putLong(batchHeader.getLong(24) + length);
+        acknowledgement.flip();
+        while (acknowledgement.hasRemaining()) {
+            follower.write(acknowledgement);
+        }
+        return length;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        replicator.halt();
+        follower.close();
+        handler.terminate();
+        executor.shutdownNow();
+        segment.close();
+        file.delete();
+    }
+}
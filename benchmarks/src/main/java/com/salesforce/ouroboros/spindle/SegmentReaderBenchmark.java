@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of replaying the events of a segment, reading each event from the
+ * segment's channel versus iterating over flyweights of the memory mapped
+ * segment with a {@link SegmentReader}.
+ * 
+ * @author hhildebrand
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SegmentReaderBenchmark {
+    @Param({ "1024" })
+    public int            eventCount;
+
+    @Param({ "64", "1024", "16384" })
+    public int            eventSize;
+
+    private File          file;
+    private SegmentReader reader;
+    private FileChannel   segment;
+
+    @Benchmark
+    public long channelReplay(Throughput throughput) throws IOException {
+        long bytes = 0;
+        segment.position(0);
+        for (int i = 0; i < eventCount; i++) {
+            Event event = new Event(segment);
+            bytes += event.getMagic() + event.size();
+        }
+        throughput.add(eventCount, bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public long mappedReplay(Throughput throughput) throws IOException {
+        long bytes = 0;
+        reader.seek(0);
+        for (Event event = reader.next(); event != null; event = reader.next()) {
+            bytes += event.getMagic() + event.size();
+        }
+        throughput.add(eventCount, bytes);
+        return bytes;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("segment-reader-benchmark", ".segment");
+        segment = new RandomAccessFile(file, "rw").getChannel();
+        byte[] payload = new byte[eventSize];
+        new Random(666).nextBytes(payload);
+        UUID tag = UUID.randomUUID();
+        for (int i = 0; i < eventCount; i++) {
+            Event event = new Event(0, tag, ByteBuffer.wrap(payload));
+            event.rewind();
+            event.write(segment);
+        }
+        segment.force(false);
+        reader = new SegmentReader(segment);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        reader.release();
+        segment.close();
+        file.delete();
+    }
+}
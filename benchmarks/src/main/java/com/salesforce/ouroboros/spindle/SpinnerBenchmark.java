@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hellblazer.pinkie.CommunicationsHandler;
+import com.hellblazer.pinkie.CommunicationsHandlerFactory;
+import com.hellblazer.pinkie.ServerSocketChannelHandler;
+import com.hellblazer.pinkie.SocketOptions;
+
+/**
+ * Benchmark of the {@link Spinner} ingest path: batches of events are written
+ * by a client over a loopback socket, and each invocation completes when the
+ * Spinner has appended and committed every event of the batch.
+ * 
+ * @author hhildebrand
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SpinnerBenchmark {
+    @Param({ "1", "16", "256" })
+    public int                         batchCount;
+
+    /**
+     * The size of the Spinner's batch buffer, 0 for streaming mode
+     */
+    @Param({ "0", "65536" })
+    public int                         bufferSize;
+
+    @Param({ "64", "1024", "16384" })
+    public int                         eventSize;
+
+    /**
+     * The number of events forced as a group by a strict {@link Flusher}, 0
+     * to leave durability to the operating system
+     */
+    @Param({ "0" })
+    public int                         groupSize;
+
+    /**
+     * Verify the CRC of the payloads on ingest
+     */
+    @Param({ "false", "true" })
+    public boolean                     verify;
+
+    private ByteBuffer                 batch;
+    private CountingProducerBarrier    barrier;
+    private FileBundle                 bundle;
+    private long                       committed;
+    private File                       directory;
+    private ExecutorService            executor;
+    private Flusher                    flusher;
+    private ServerSocketChannelHandler handler;
+    private SocketChannel              outbound;
+    private UUID                       tag;
+
+    @Benchmark
+    public long append(Throughput throughput) throws IOException {
+        batch.rewind();
+        while (batch.hasRemaining()) {
+            outbound.write(batch);
+        }
+        committed += batchCount;
+        while (barrier.getCursor() + 1 < committed) {
+            Thread.yield();
+        }
+        throughput.add(batchCount, batch.limit());
+        return committed;
+    }
+
+    /**
+     * Prepare the batch of events written by the client
+     */
+    @Setup
+    public void setup() {
+        byte[] payload = new byte[eventSize];
+        new Random(666).nextBytes(payload);
+        tag = UUID.randomUUID();
+        int crc32 = Event.crc32(payload);
+        batch = ByteBuffer.allocateDirect(batchCount
+                                          * (EventHeader.HEADER_BYTE_SIZE + eventSize));
+        for (int i = 0; i < batchCount; i++) {
+            EventHeader header = new EventHeader(eventSize, 666, tag, crc32);
+            header.rewind();
+            batch.put(header.bytes);
+            batch.put(payload);
+        }
+        batch.flip();
+    }
+
+    /**
+     * Start each iteration with a new bundle, spinner and connection, so that
+     * the segment does not grow without bound across iterations, and no
+     * state of the bundle or spinner carries over from the last iteration
+     */
+    @Setup(Level.Iteration)
+    public void start() throws IOException {
+        directory = File.createTempFile("spinner-benchmark", ".dir");
+        directory.delete();
+        directory.mkdirs();
+        bundle = new FileBundle(directory, 16);
+        barrier = new CountingProducerBarrier();
+        committed = 0;
+        if (groupSize > 0) {
+            flusher = new Flusher(bundle, groupSize, 1, TimeUnit.MILLISECONDS,
+                                  true);
+            flusher.start();
+        }
+        SpinnerOptions options = new SpinnerOptions();
+        options.setBufferSize(bufferSize);
+        options.setMaximumBatchSize(1024);
+        options.setVerify(verify);
+        options.setFlusher(flusher);
+        final Spinner spinner = new Spinner(bundle, barrier, options);
+
+        SocketOptions socketOptions = new SocketOptions();
+        socketOptions.setTimeout(100);
+        executor = Executors.newFixedThreadPool(2);
+        handler = new ServerSocketChannelHandler(
+                                                 "spinner-benchmark",
+                                                 socketOptions,
+                                                 new InetSocketAddress(
+                                                                       "127.0.0.1",
+                                                                       0),
+                                                 executor,
+                                                 new CommunicationsHandlerFactory() {
+                                                     @Override
+                                                     public CommunicationsHandler createCommunicationsHandler() {
+                                                         return spinner;
+                                                     }
+                                                 });
+        handler.start();
+        outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(handler.getLocalAddress());
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() throws IOException {
+        outbound.close();
+        handler.terminate();
+        executor.shutdownNow();
+        if (flusher != null) {
+            flusher.terminate();
+            flusher = null;
+        }
+        bundle.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+}
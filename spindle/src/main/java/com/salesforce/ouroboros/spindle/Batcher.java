@@ -0,0 +1,425 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lmax.disruptor.ProducerBarrier;
+import com.lmax.disruptor.SequenceBatch;
+
+/**
+ * The batch mode of a {@link Spinner}. The batcher reads the socket into a
+ * buffer, and publishes the complete events in the buffer as a single claimed
+ * sequence batch. The entries of the batch are claimed before the events are
+ * appended to their segments - with contiguous events of the same channel
+ * appended in a single write - so the events of a throttled batch remain in
+ * the buffer, rather than in their segments, until the ring has capacity for
+ * them. Events which are larger than the buffer are handed to the spinner,
+ * which streams them to their segment through the idle buffer.
+ * 
+ * The batcher is driven by the IO thread of its spinner's connection.
+ * 
+ * @author hhildebrand
+ * 
+ */
+class Batcher {
+    private static final Logger               log = LoggerFactory.getLogger(Batcher.class);
+
+    private final SequenceBatch[]             batches;
+    private final ByteBuffer                  buffer;
+    private final Bundle                      bundle;
+    private final CrcAccumulator              crc;
+    private final Flusher                     flusher;
+    private final EventHeader                 header;
+    private final Latency                     latency;
+    private int                               pending;
+    private final long[]                      pendingOffsets;
+    private final long[]                      pendingSegments;
+    private final int[]                       pendingStarts;
+    private final ProducerBarrier<EventEntry> producerBarrier;
+    private long                              readStamp;
+    private final Spinner                     spinner;
+    private final Throttle                    throttle;
+
+    /**
+     * @param spinner
+     *            - the spinner operating in batch mode
+     * @param bundle
+     *            - the bundle of segments the events are appended to
+     * @param producerBarrier
+     *            - the barrier the appended events are committed to
+     * @param header
+     *            - the spinner's header, into which the header of each event
+     *            is loaded
+     * @param options
+     *            - the configuration of the spinner
+     */
+    Batcher(Spinner spinner, Bundle bundle,
+            ProducerBarrier<EventEntry> producerBarrier, EventHeader header,
+            SpinnerOptions options) {
+        if (options.getBufferSize() < EventHeader.HEADER_BYTE_SIZE) {
+            throw new IllegalArgumentException(
+                                               "Buffer size must be able to hold an event header: "
+                                                       + options.getBufferSize());
+        }
+        int maximumBatchSize = options.getMaximumBatchSize();
+        if (maximumBatchSize < 1) {
+            throw new IllegalArgumentException(
+                                               "Maximum batch size must be positive: "
+                                                       + maximumBatchSize);
+        }
+        throttle = options.getThrottle();
+        if (throttle != null && maximumBatchSize > throttle.getCapacity()) {
+            throw new IllegalArgumentException(
+                                               "Maximum batch size must not exceed the capacity of the ring buffer: "
+                                                       + maximumBatchSize);
+        }
+        this.spinner = spinner;
+        this.bundle = bundle;
+        this.producerBarrier = producerBarrier;
+        this.header = header;
+        flusher = options.getFlusher();
+        latency = options.getLatency();
+        buffer = ByteBuffer.allocateDirect(options.getBufferSize());
+        batches = new SequenceBatch[maximumBatchSize + 1];
+        pendingOffsets = new long[maximumBatchSize];
+        pendingSegments = new long[maximumBatchSize];
+        pendingStarts = new int[maximumBatchSize];
+        crc = options.isVerify() ? new CrcAccumulator() : null;
+    }
+
+    /**
+     * @return the buffer events are read into
+     */
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Append and publish the events of the connection handed over to the
+     * spinner, after the header of its first event has been read
+     * 
+     * @param channel
+     *            - the connection
+     * @param first
+     *            - the flipped bytes read from the connection
+     */
+    void handover(SocketChannel channel, ByteBuffer first) {
+        buffer.put(first);
+        read(channel);
+    }
+
+    /**
+     * @return true if events await the capacity of the ring buffer
+     */
+    boolean hasPending() {
+        return pending > 0;
+    }
+
+    /**
+     * Read the connection into the buffer, and append and publish the
+     * complete events read
+     * 
+     * @param channel
+     *            - the connection
+     */
+    void read(SocketChannel channel) {
+        try {
+            channel.read(buffer);
+        } catch (IOException e) {
+            log.error("Exception during batch read", e);
+            return;
+        }
+        readStamp = latency == null ? 0 : System.nanoTime();
+        buffer.flip();
+        drain();
+        compact();
+    }
+
+    /**
+     * Publish the events which awaited the capacity of the ring buffer, then
+     * the remaining events of the buffer, unless the spinner remains
+     * throttled
+     */
+    void resume() {
+        if (!publish()) {
+            return;
+        }
+        drain();
+        compact();
+    }
+
+    /**
+     * Append the pending events to their segments, appending each run of
+     * contiguous events of the same channel in a single write. The events of
+     * a run whose write fails are dropped.
+     * 
+     * @return the number of pending events appended, which have been moved
+     *         to the head of the pending events
+     */
+    private int append() {
+        int appended = 0;
+        int first = 0;
+        while (first < pending) {
+            int start = pendingStarts[first];
+            long tag1 = buffer.getLong(start + EventHeader.TAG1_OFFSET);
+            long tag2 = buffer.getLong(start + EventHeader.TAG2_OFFSET);
+            int end = start + buffer.getInt(start + EventHeader.SIZE_OFFSET);
+            int last = first + 1;
+            while (last < pending && pendingStarts[last] == end
+                   && buffer.getLong(end + EventHeader.TAG1_OFFSET) == tag1
+                   && buffer.getLong(end + EventHeader.TAG2_OFFSET) == tag2) {
+                end += buffer.getInt(end + EventHeader.SIZE_OFFSET);
+                last++;
+            }
+            appended += append(first, last, end, appended);
+            first = last;
+        }
+        return appended;
+    }
+
+    /**
+     * Append the run of contiguous pending events of a channel to its segment
+     * in a single write
+     * 
+     * @param first
+     *            - the index of the first pending event of the run
+     * @param last
+     *            - the index following the last pending event of the run
+     * @param end
+     *            - the index of the buffer following the run
+     * @param appended
+     *            - the number of pending events appended so far, and the
+     *            index the run's events are moved to
+     * @return the number of events of the run appended, or 0 if the write
+     *         failed
+     */
+    private int append(int first, int last, int end, int appended) {
+        int start = pendingStarts[first];
+        loadHeader(start);
+        Segment segment = bundle.segmentFor(header);
+        int limit = buffer.limit();
+        int current = buffer.position();
+        try {
+            long offset = segment.getChannel().size();
+            buffer.limit(end);
+            buffer.position(start);
+            long writePosition = offset;
+            while (buffer.hasRemaining()) {
+                writePosition += segment.getChannel().write(buffer,
+                                                            writePosition);
+            }
+            for (int i = first; i < last; i++) {
+                int eventStart = pendingStarts[i];
+                int next = i + 1 < last ? pendingStarts[i + 1] : end;
+                long eventOffset = offset + eventStart - start;
+                index(segment, eventOffset, next - eventStart);
+                pendingStarts[appended] = eventStart;
+                pendingSegments[appended] = segment.getBaseOffset();
+                pendingOffsets[appended] = eventOffset;
+                appended++;
+            }
+        } catch (IOException e) {
+            log.error(String.format("Exception during batch append on: %s",
+                                    segment), e);
+            bundle.release(segment);
+            return 0;
+        } finally {
+            buffer.limit(limit);
+            buffer.position(current);
+        }
+        if (flusher != null) {
+            flusher.append(segment, last - first);
+        } else {
+            bundle.release(segment);
+        }
+        return last - first;
+    }
+
+    /**
+     * Compact the unread remainder of the buffer, unless the buffer is in use
+     * streaming an oversized event, or the spinner is throttled or closed
+     */
+    private void compact() {
+        if (spinner.getState() == Spinner.State.ACCEPTED) {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Append and publish the complete events in the buffer, handing any event
+     * too large to fit in the buffer to the spinner to stream
+     */
+    private void drain() {
+        while (buffer.remaining() >= EventHeader.HEADER_BYTE_SIZE) {
+            int start = buffer.position();
+            int eventSize = buffer.getInt(start + EventHeader.SIZE_OFFSET);
+            if (eventSize < EventHeader.HEADER_BYTE_SIZE) {
+                // publish the events preceding the invalid event
+                publish();
+                spinner.invalid(eventSize);
+                return;
+            }
+            if (!spinner.admit(buffer.getLong(start + EventHeader.TAG1_OFFSET),
+                               buffer.getLong(start + EventHeader.TAG2_OFFSET))) {
+                publish();
+                spinner.close();
+                return;
+            }
+            if (eventSize > buffer.capacity()) {
+                if (!publish()) {
+                    return;
+                }
+                loadHeader(start);
+                spinner.stream(buffer, readStamp);
+                return;
+            }
+            if (buffer.remaining() < eventSize) {
+                break;
+            }
+            loadHeader(start);
+            if (crc != null && !verify(start, eventSize)) {
+                buffer.position(start + eventSize);
+                continue;
+            }
+            pendingStarts[pending++] = start;
+            buffer.position(start + eventSize);
+            if (pending == pendingStarts.length) {
+                if (!publish()) {
+                    return;
+                }
+            }
+        }
+        publish();
+    }
+
+    /**
+     * Record the event of the size appended at the offset in the segment's
+     * index
+     */
+    private void index(Segment segment, long offset, int size) {
+        SegmentIndex index = segment.getIndex();
+        if (index != null) {
+            index.append(offset, size);
+        }
+    }
+
+    /**
+     * Load the header of the event at the index of the buffer into the header
+     * 
+     * @param start
+     *            - the index of the event
+     */
+    private void loadHeader(int start) {
+        header.clear();
+        for (int i = 0; i < EventHeader.HEADER_BYTE_SIZE; i++) {
+            header.bytes.put(i, buffer.get(start + i));
+        }
+        header.bytes.position(EventHeader.HEADER_BYTE_SIZE);
+    }
+
+    /**
+     * Claim the entries of the pending events, append the events to their
+     * segments and publish them as a single sequence batch
+     * 
+     * @return false if the spinner has been throttled, and the events remain
+     *         pending in the buffer
+     */
+    private boolean publish() {
+        if (pending == 0) {
+            return true;
+        }
+        if (!spinner.claim(pending)) {
+            return false;
+        }
+        int appended = append();
+        if (appended < pending && throttle != null) {
+            // return the entries of the dropped events
+            throttle.release(pending - appended);
+        }
+        pending = appended;
+        if (pending == 0) {
+            return true;
+        }
+        SequenceBatch batch = batches[pending];
+        if (batch == null) {
+            batch = new SequenceBatch(pending);
+            batches[pending] = batch;
+        }
+        producerBarrier.nextEntries(batch);
+        long now = latency != null && readStamp != 0 ? System.nanoTime() : 0;
+        long sequence = batch.getStart();
+        long batchBytes = 0;
+        for (int i = 0; i < pending; i++) {
+            EventEntry entry = producerBarrier.getEntry(sequence++);
+            loadHeader(pendingStarts[i]);
+            entry.set(header, pendingSegments[i], pendingOffsets[i]);
+            if (now != 0) {
+                entry.stamp(readStamp, now);
+            }
+            batchBytes += header.size() + EventHeader.HEADER_BYTE_SIZE;
+        }
+        if (now != 0) {
+            latency.record(Latency.Stage.APPEND, now - readStamp, pending);
+        }
+        spinner.ingested(pending, batchBytes);
+        if (flusher != null && flusher.isStrict()) {
+            flusher.publish(producerBarrier, batch.getStart(),
+                            batch.getEnd(), spinner.failure());
+        } else {
+            producerBarrier.commit(batch);
+        }
+        pending = 0;
+        return true;
+    }
+
+    /**
+     * Verify the CRC of the payload of the event at the index of the buffer,
+     * whose header has been loaded into the header
+     * 
+     * @param start
+     *            - the index of the event
+     * @param eventSize
+     *            - the total size of the event
+     * @return true if the payload's CRC matches the CRC in the header
+     */
+    private boolean verify(int start, int eventSize) {
+        crc.reset();
+        crc.update(buffer, start + EventHeader.HEADER_BYTE_SIZE, eventSize
+                                                                 - EventHeader.HEADER_BYTE_SIZE);
+        int expected = buffer.getInt(start + EventHeader.CRC_OFFSET);
+        if (crc.getValue() == expected) {
+            return true;
+        }
+        spinner.reject(expected, crc.getValue());
+        return false;
+    }
+}
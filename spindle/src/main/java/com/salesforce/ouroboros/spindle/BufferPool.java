@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct byte buffers, segregated into power of two size classes.
+ * Buffers acquired from the pool live outside the heap, so they neither
+ * contribute to GC pressure nor incur the JDK's temporary direct buffer copy
+ * when written to sockets or files. Buffers must be explicitly released to
+ * the pool once they are no longer in use; a released buffer must not be
+ * used by the releasing party again.
+ * 
+ * Requests larger than the largest size class are satisfied with unpooled
+ * direct buffers, which are simply dropped on release.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class BufferPool {
+    public static final int            DEFAULT_MAXIMUM_RETAINED = 64;
+    public static final int            DEFAULT_MAXIMUM_SIZE     = 1024 * 1024;
+    public static final int            DEFAULT_MINIMUM_SIZE     = 64;
+
+    private final Queue<ByteBuffer>[]  free;
+    private final int                  maximumRetained;
+    private final int                  minimumShift;
+    private final AtomicInteger[]      retained;
+
+    public BufferPool() {
+        this(DEFAULT_MINIMUM_SIZE, DEFAULT_MAXIMUM_SIZE,
+             DEFAULT_MAXIMUM_RETAINED);
+    }
+
+    /**
+     * @param minimumSize
+     *            - the capacity of the smallest size class, rounded up to a
+     *            power of two
+     * @param maximumSize
+     *            - the capacity of the largest size class, rounded up to a
+     *            power of two
+     * @param maximumRetained
+     *            - the maximum number of free buffers retained per size class
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int minimumSize, int maximumSize, int maximumRetained) {
+        if (minimumSize <= 0 || maximumSize < minimumSize) {
+            throw new IllegalArgumentException(
+                                               String.format("Invalid size classes, minimum: %s, maximum: %s",
+                                                             minimumSize,
+                                                             maximumSize));
+        }
+        if (maximumRetained < 0) {
+            throw new IllegalArgumentException(
+                                               "Maximum retained must not be negative: "
+                                                       + maximumRetained);
+        }
+        this.maximumRetained = maximumRetained;
+        minimumShift = shiftFor(minimumSize);
+        int classes = shiftFor(maximumSize) - minimumShift + 1;
+        free = new Queue[classes];
+        retained = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            retained[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Acquire a direct buffer from the pool. The buffer's position is zero and
+     * its limit is the requested size; its capacity may be larger.
+     * 
+     * @param size
+     *            - the number of bytes required
+     * @return the direct buffer
+     */
+    public ByteBuffer acquire(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid buffer size: " + size);
+        }
+        int sizeClass = sizeClassOf(size);
+        if (sizeClass >= free.length) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer buffer = free[sizeClass].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << sizeClass + minimumShift);
+        } else {
+            retained[sizeClass].decrementAndGet();
+            buffer.clear();
+        }
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * @return the capacity of the largest size class
+     */
+    public int getMaximumSize() {
+        return 1 << free.length - 1 + minimumShift;
+    }
+
+    /**
+     * @return the capacity of the smallest size class
+     */
+    public int getMinimumSize() {
+        return 1 << minimumShift;
+    }
+
+    /**
+     * @return the number of free buffers currently retained by the pool
+     */
+    public int getRetained() {
+        int total = 0;
+        for (AtomicInteger count : retained) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * Release the buffer to the pool. Buffers which did not originate from a
+     * size class of the pool, or which would exceed the retention limit of
+     * their size class, are dropped.
+     * 
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.isReadOnly()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int sizeClass = Integer.numberOfTrailingZeros(capacity) - minimumShift;
+        if (sizeClass < 0 || sizeClass >= free.length) {
+            return;
+        }
+        if (retained[sizeClass].incrementAndGet() > maximumRetained) {
+            retained[sizeClass].decrementAndGet();
+            return;
+        }
+        free[sizeClass].offer(buffer);
+    }
+
+    private int shiftFor(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    private int sizeClassOf(int size) {
+        return Math.max(0, shiftFor(size) - minimumShift);
+    }
+}
@@ -25,13 +25,77 @@
  */
 package com.salesforce.ouroboros.spindle;
 
-import java.nio.channels.FileChannel;
+import java.util.UUID;
 
 /**
+ * The collection of segments which store the events of the channels.
+ * Segments are leased from the bundle and must be returned by the lessee
+ * rather than closed, allowing the bundle to pool the open segments.
  * 
  * @author hhildebrand
  * 
  */
 public interface Bundle {
-    FileChannel segmentFor(EventHeader header);
+    /**
+     * @param channel
+     *            - the tag of the channel
+     * @return the offset within the channel following the last event appended
+     *         to the channel, or -1 if the channel has not been appended to
+     */
+    long endOf(UUID channel);
+
+    /**
+     * Locate the event with the ordinal - its position in the sequence of the
+     * channel's events - using the index of the channel's segments
+     * 
+     * @param channel
+     *            - the tag of the channel
+     * @param ordinal
+     *            - the ordinal of the event
+     * @return the offset of the event within the channel, or -1 if the
+     *         channel has no event with the ordinal
+     */
+    long offsetOf(UUID channel, long ordinal);
+
+    /**
+     * Return the lease on a segment previously obtained from the receiver
+     * 
+     * @param segment
+     *            - the leased segment
+     */
+    void release(Segment segment);
+
+    /**
+     * Lease the segment containing the entry's event. The segment must be
+     * returned to the receiver via {@link #release(Segment)}
+     * 
+     * @param entry
+     *            - the entry of the event
+     * @return the segment containing the event
+     */
+    Segment segmentFor(EventEntry entry);
+
+    /**
+     * Lease the segment to which events of the header's channel are appended.
+     * The segment must be returned to the receiver via
+     * {@link #release(Segment)}
+     * 
+     * @param header
+     *            - the header of the event
+     * @return the segment for the event
+     */
+    Segment segmentFor(EventHeader header);
+
+    /**
+     * Lease the segment containing the offset of the channel. The segment
+     * must be returned to the receiver via {@link #release(Segment)}
+     * 
+     * @param channel
+     *            - the tag of the channel
+     * @param offset
+     *            - the offset within the channel
+     * @return the segment containing the offset. The position of the offset
+     *         within the segment is the offset less the segment's base offset
+     */
+    Segment segmentFor(UUID channel, long offset);
 }
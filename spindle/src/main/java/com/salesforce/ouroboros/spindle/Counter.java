@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which is striped across padded cells, so that threads updating
+ * the counter concurrently rarely contend for the same cache line. A thread
+ * updates the cell selected by its id; the value of the counter is the sum of
+ * the cells, and is only computed when the counter is read.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Counter {
+    public static final int       DEFAULT_STRIPES = 8;
+
+    /**
+     * The distance, in longs, between the cells, so that each cell occupies
+     * its own cache line
+     */
+    private static final int      PADDING         = 8;
+
+    private final AtomicLongArray cells;
+    private final int             mask;
+
+    public Counter() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes
+     *            - the number of cells of the counter, which must be a power
+     *            of 2
+     */
+    public Counter(int stripes) {
+        if (stripes < 1 || Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException(
+                                               String.format("Stripes must be a power of 2: %s",
+                                                             stripes));
+        }
+        cells = new AtomicLongArray(stripes * PADDING);
+        mask = stripes - 1;
+    }
+
+    /**
+     * Add the delta to the counter
+     * 
+     * @param delta
+     */
+    public void add(long delta) {
+        cells.addAndGet(((int) Thread.currentThread().getId() & mask)
+                        * PADDING, delta);
+    }
+
+    /**
+     * @return the value of the counter
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
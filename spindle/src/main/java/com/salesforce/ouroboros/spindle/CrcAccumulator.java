@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * An incremental CRC32 of event payloads, which may be fed chunk by chunk as
+ * the bytes of the payload become available. The CRC is computed by
+ * {@link CRC32}, which the JIT replaces with the hardware accelerated
+ * intrinsic where available. Direct buffers are fed to the CRC through a
+ * small scratch array, which remains resident in the cache.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class CrcAccumulator {
+    private static final int SCRATCH_SIZE = 4 * 1024;
+
+    private final CRC32      crc          = new CRC32();
+    private byte[]           scratch;
+
+    /**
+     * @return the CRC32 of the bytes accumulated since the last reset
+     */
+    public int getValue() {
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reset the receiver to the initial state
+     */
+    public void reset() {
+        crc.reset();
+    }
+
+    /**
+     * Accumulate the bytes
+     * 
+     * @param bytes
+     * @param offset
+     *            - the offset of the first byte to accumulate
+     * @param length
+     *            - the number of bytes to accumulate
+     */
+    public void update(byte[] bytes, int offset, int length) {
+        crc.update(bytes, offset, length);
+    }
+
+    /**
+     * Accumulate the remaining bytes of the buffer, leaving the buffer's
+     * position at its limit
+     * 
+     * @param buffer
+     */
+    public void update(ByteBuffer buffer) {
+        int position = buffer.position();
+        int length = buffer.remaining();
+        update(buffer, position, length);
+        buffer.position(position + length);
+    }
+
+    /**
+     * Accumulate a range of the bytes of the buffer, without altering the
+     * buffer's position
+     * 
+     * @param buffer
+     * @param index
+     *            - the index of the first byte to accumulate
+     * @param length
+     *            - the number of bytes to accumulate
+     */
+    public void update(ByteBuffer buffer, int index, int length) {
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + index, length);
+            return;
+        }
+        if (scratch == null) {
+            scratch = new byte[SCRATCH_SIZE];
+        }
+        ByteBuffer source = buffer.duplicate();
+        source.limit(index + length);
+        source.position(index);
+        while (source.hasRemaining()) {
+            int chunk = Math.min(scratch.length, source.remaining());
+            source.get(scratch, 0, chunk);
+            crc.update(scratch, 0, chunk);
+        }
+    }
+}
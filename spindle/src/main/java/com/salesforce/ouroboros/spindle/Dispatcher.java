@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The shared notification of the sequences available to the {@link Fanout}s
+ * of a node. Rather than each fanout blocking a thread of its own while it
+ * waits for events, the dispatcher's thread checks the cursors of the
+ * fanouts' rings, and dispatches the fanouts with events available to a
+ * shared executor, which plans and publishes the available events without
+ * waiting. The replicators of the fanouts run on the same executor, and
+ * consume no thread while they wait for batches, so a small pool drives any
+ * number of fanouts and replicators.
+ * 
+ * The dispatcher parks while no fanout can make progress, and is signalled
+ * when one may: by the {@link MultiProducerBarrier} of a ring when events are
+ * committed, by the followers of a gated fanout when they release its gate,
+ * and by a fanout which finishes draining with more to do. A gated fanout is
+ * not dispatched again until its gate has moved. The idle pause bounds the
+ * park, for rings whose producers commit without signalling.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Dispatcher implements Runnable {
+    public static final long                   DEFAULT_IDLE_PAUSE = 10;
+
+    private final Executor                     executor;
+    private final CopyOnWriteArrayList<Fanout> fanouts            = new CopyOnWriteArrayList<Fanout>();
+    private final long                         idlePause;
+    private volatile boolean                   running;
+    private final AtomicBoolean                signalled          = new AtomicBoolean();
+    private volatile Thread                    thread;
+
+    /**
+     * @param executor
+     *            - the executor which runs the fanouts and their replicators
+     */
+    public Dispatcher(Executor executor) {
+        this(executor, DEFAULT_IDLE_PAUSE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param executor
+     *            - the executor which runs the fanouts and their replicators
+     * @param idlePause
+     *            - the longest the dispatcher parks without a signal, or 0 to
+     *            park until signalled
+     * @param unit
+     *            - the unit of the idle pause
+     */
+    public Dispatcher(Executor executor, long idlePause, TimeUnit unit) {
+        if (idlePause < 0) {
+            throw new IllegalArgumentException(
+                                               "Idle pause must not be negative: "
+                                                       + idlePause);
+        }
+        this.executor = executor;
+        this.idlePause = unit.toNanos(idlePause);
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the number of fanouts dispatched
+     */
+    public int getFanouts() {
+        return fanouts.size();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            signalled.set(false);
+            boolean dispatched = false;
+            for (Fanout fanout : fanouts) {
+                dispatched |= fanout.dispatch();
+            }
+            if (dispatched || signalled.get()) {
+                continue;
+            }
+            if (idlePause == 0) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, idlePause);
+            }
+        }
+    }
+
+    /**
+     * Wake the dispatcher, as a fanout may be able to make progress
+     */
+    public void signal() {
+        if (!signalled.get() && signalled.compareAndSet(false, true)) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Start the dispatcher's thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "Dispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the dispatcher's thread
+     */
+    public void terminate() {
+        Thread current;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            current = thread;
+            thread = null;
+        }
+        LockSupport.unpark(current);
+        try {
+            current.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Add the started fanout
+     */
+    void add(Fanout fanout) {
+        fanouts.addIfAbsent(fanout);
+        signal();
+    }
+
+    /**
+     * Remove the halted fanout
+     */
+    void remove(Fanout fanout) {
+        fanouts.remove(fanout);
+    }
+}
@@ -25,19 +25,25 @@
  */
 package com.salesforce.ouroboros.spindle;
 
+import java.util.UUID;
+
 import com.lmax.disruptor.AbstractEntry;
 import com.lmax.disruptor.EntryFactory;
 
 /**
- * The ring buffer entry representing an event
+ * The ring buffer entry representing an event. The entry is a preallocated
+ * flyweight: the fields of the event's header are copied into the entry when
+ * the event is published, so that entries neither share nor allocate header
+ * buffers.
+ * 
+ * When latency is tracked, the entry also carries the {@link System#nanoTime()}
+ * stamps of the reading and the committing of the event, so that the stages of
+ * the event's progress are timed without allocation.
  * 
  * @author hhildebrand
  * 
  */
 public class EventEntry extends AbstractEntry {
-    private long                                 offset;
-    private EventHeader                          header;
-
     public final static EntryFactory<EventEntry> ENTRY_FACTORY = new EntryFactory<EventEntry>() {
                                                                    @Override
                                                                    public EventEntry create() {
@@ -45,19 +51,147 @@ public class EventEntry extends AbstractEntry {
                                                                    }
                                                                };
 
-    public EventHeader getHeader() {
-        return header;
+    private long                                 committed;
+    private int                                  crc32;
+    private int                                  magic;
+    private long                                 offset;
+    private long                                 read;
+    private long                                 segment;
+    private int                                  size;
+    private long                                 tag1;
+    private long                                 tag2;
+
+    /**
+     * @return the offset of the event within its channel
+     */
+    public long getChannelOffset() {
+        return segment + offset;
+    }
+
+    /**
+     * @return the nanosecond stamp of the event's commit to the ring, or 0 if
+     *         the event has not been stamped
+     */
+    public long getCommitted() {
+        return committed;
+    }
+
+    /**
+     * @return the CRC32 value of the payload
+     */
+    public int getCrc32() {
+        return crc32;
     }
 
+    /**
+     * @return the magic value of the event
+     */
+    public int getMagic() {
+        return magic;
+    }
+
+    /**
+     * @return the offset of the event within its segment
+     */
     public long getOffset() {
         return offset;
     }
 
-    public void setHeader(EventHeader header) {
-        this.header = header;
+    /**
+     * @return the nanosecond stamp of the reading of the event's header, or 0
+     *         if the event has not been stamped
+     */
+    public long getRead() {
+        return read;
+    }
+
+    /**
+     * @return the id of the segment containing the event - the base offset of
+     *         the segment within the channel
+     */
+    public long getSegment() {
+        return segment;
     }
 
-    public void setOffset(long offset) {
+    /**
+     * @return the size of the payload
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Note that this allocates the UUID
+     * 
+     * @return the value the event is tagged with
+     */
+    public UUID getTag() {
+        return new UUID(tag1, tag2);
+    }
+
+    /**
+     * @return the least significant bits of the event's tag
+     */
+    public long getTagLeastSignificantBits() {
+        return tag2;
+    }
+
+    /**
+     * @return the most significant bits of the event's tag
+     */
+    public long getTagMostSignificantBits() {
+        return tag1;
+    }
+
+    /**
+     * @param entry
+     * @return true if the receiver and the entry represent events in the same
+     *         segment of the same channel
+     */
+    public boolean isSameSegment(EventEntry entry) {
+        return tag1 == entry.tag1 && tag2 == entry.tag2
+               && segment == entry.segment;
+    }
+
+    /**
+     * @return the offset within the segment immediately following the event
+     */
+    public long nextOffset() {
+        return offset + EventHeader.HEADER_BYTE_SIZE + size;
+    }
+
+    /**
+     * Copy the fields of the event into the receiver
+     * 
+     * @param header
+     *            - the header of the event
+     * @param segment
+     *            - the id of the segment containing the event
+     * @param offset
+     *            - the offset of the event within the segment
+     */
+    public void set(EventHeader header, long segment, long offset) {
+        size = header.size();
+        magic = header.getMagic();
+        tag1 = header.getTagMostSignificantBits();
+        tag2 = header.getTagLeastSignificantBits();
+        crc32 = header.getCrc32();
+        this.segment = segment;
         this.offset = offset;
+        read = 0;
+        committed = 0;
+    }
+
+    /**
+     * Stamp the receiver with the times of the event's progress
+     * 
+     * @param read
+     *            - the nanosecond stamp of the reading of the event's header
+     * @param committed
+     *            - the nanosecond stamp of the event's commit to the ring
+     */
+    public void stamp(long read, long committed) {
+        this.read = read;
+        this.committed = committed;
     }
 }
@@ -54,10 +54,42 @@ public class EventHeader implements Cloneable {
     protected static final int CRC_OFFSET       = TAG2_OFFSET + 8;
     protected static final int HEADER_BYTE_SIZE = CRC_OFFSET + 4;
 
-    protected final ByteBuffer bytes;
+    /**
+     * Allocate a buffer from the pool, or from the heap if there is no pool
+     */
+    protected static ByteBuffer allocate(BufferPool pool, int size) {
+        return pool == null ? ByteBuffer.allocate(size) : pool.acquire(size);
+    }
+
+    protected ByteBuffer       bytes;
+    protected final BufferPool pool;
+    protected int              start;
+
+    /**
+     * Construct a header over the direct memory of the pool
+     * 
+     * @param pool
+     *            - the pool the header's bytes are acquired from and released
+     *            to
+     */
+    public EventHeader(BufferPool pool, int size, int magic, UUID tag,
+                       int crc32) {
+        this(pool.acquire(HEADER_BYTE_SIZE), pool);
+        initialize(size, magic, tag, crc32);
+    }
 
     public EventHeader(ByteBuffer bytes) {
+        this(bytes, null);
+    }
+
+    /**
+     * @param bytes
+     * @param pool
+     *            - the pool the bytes were acquired from, or null
+     */
+    public EventHeader(ByteBuffer bytes, BufferPool pool) {
         this.bytes = bytes;
+        this.pool = pool;
     }
 
     public EventHeader(int size, int magic, UUID tag, int crc32) {
@@ -72,33 +104,54 @@ public class EventHeader implements Cloneable {
         bytes.clear();
     }
 
+    /**
+     * Answer a copy of the receiver. The copy's bytes are acquired from the
+     * receiver's pool, if any.
+     */
     @Override
     public EventHeader clone() {
-        ByteBuffer duplicateBytes = ByteBuffer.allocate(HEADER_BYTE_SIZE);
-        bytes.rewind();
-        duplicateBytes.put(bytes);
-        return new EventHeader(duplicateBytes);
+        ByteBuffer duplicateBytes = allocate(pool, HEADER_BYTE_SIZE);
+        ByteBuffer source = bytes.duplicate();
+        source.limit(start + HEADER_BYTE_SIZE).position(start);
+        duplicateBytes.put(source);
+        return new EventHeader(duplicateBytes, pool);
     }
 
     /**
      * @return the CRC32 value of the payload
      */
     public int getCrc32() {
-        return bytes.getInt(CRC_OFFSET);
+        return bytes.getInt(start + CRC_OFFSET);
     }
 
     /**
      * @return the magic value of the header
      */
     public int getMagic() {
-        return bytes.getInt(MAGIC_OFFSET);
+        return bytes.getInt(start + MAGIC_OFFSET);
     }
 
     /**
      * @return the value the header is tagged with
      */
     public UUID getTag() {
-        return new UUID(bytes.getLong(TAG1_OFFSET), bytes.getLong(TAG2_OFFSET));
+        return new UUID(bytes.getLong(start + TAG1_OFFSET),
+                        bytes.getLong(start + TAG2_OFFSET));
+    }
+
+    /**
+     * @return the least significant bits of the value the header is tagged
+     *         with
+     */
+    public long getTagLeastSignificantBits() {
+        return bytes.getLong(start + TAG2_OFFSET);
+    }
+
+    /**
+     * @return the most significant bits of the value the header is tagged with
+     */
+    public long getTagMostSignificantBits() {
+        return bytes.getLong(start + TAG1_OFFSET);
     }
 
     protected void initialize(int size, int magic, UUID tag, int crc32) {
@@ -118,11 +171,21 @@ public class EventHeader implements Cloneable {
         return !bytes.hasRemaining();
     }
 
+    /**
+     * Release the bytes of the receiver to the pool they were acquired from.
+     * The receiver must not be used after it has been released.
+     */
+    public void release() {
+        if (pool != null) {
+            pool.release(bytes);
+        }
+    }
+
     /**
      * Rewind the byte content of the receiver
      */
     public void rewind() {
-        bytes.rewind();
+        bytes.position(start);
     }
 
     /**
@@ -143,7 +206,25 @@ public class EventHeader implements Cloneable {
      * @return the size of the payload
      */
     public int size() {
-        return bytes.getInt(SIZE_OFFSET) - HEADER_BYTE_SIZE;
+        return bytes.getInt(start + SIZE_OFFSET) - HEADER_BYTE_SIZE;
+    }
+
+    /**
+     * Position the receiver, as a flyweight, over the header at the index of
+     * the buffer. The bytes are not copied; the receiver's position and limit
+     * delimit the header within the buffer.
+     * 
+     * @param buffer
+     *            - the buffer containing the header
+     * @param index
+     *            - the index of the header in the buffer
+     */
+    protected void wrap(ByteBuffer buffer, int index) {
+        bytes = buffer;
+        start = index;
+        buffer.limit(buffer.capacity());
+        buffer.position(index);
+        buffer.limit(index + HEADER_BYTE_SIZE);
     }
 
     /**
@@ -160,4 +241,22 @@ public class EventHeader implements Cloneable {
         channel.write(bytes);
         return !bytes.hasRemaining();
     }
+
+    /**
+     * Write the byte contents of the receiver on the segment at the offset,
+     * without altering the position of the segment
+     * 
+     * @param offset
+     *            - the offset of the event in the segment
+     * @param segment
+     *            - the segment to write the contents of the receiver
+     * @return true if all the bytes of the receiver have been written to the
+     *         segment, false if bytes are still remaining
+     * @throws IOException
+     *             - if problems occur during write
+     */
+    public boolean write(long offset, FileChannel segment) throws IOException {
+        segment.write(bytes, offset);
+        return !bytes.hasRemaining();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,772 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lmax.disruptor.AlertException;
+import com.lmax.disruptor.Consumer;
+import com.lmax.disruptor.ConsumerBarrier;
+import com.lmax.disruptor.RingBuffer;
+
+/**
+ * The consumer of the ring which fans the event stream out to the
+ * {@link Replicator}s of the followers. The fanout is the single consumer of
+ * the ring for replication: it plans the batches of events which are
+ * contiguous in the same segment once, leasing the segment of each batch
+ * once, and publishes the planned batches to a bounded log. Each follower's
+ * replicator tails the log with its own cursor, and replicates the batches
+ * to its follower at its own pace.
+ * 
+ * A batch remains in the log until it is overwritten by a later batch. The
+ * fanout does not overwrite a batch until every follower has taken it, and
+ * so the slowest follower gates the fanout and, through
+ * {@link #getSequence()}, the producer. A follower which is disconnected, or
+ * which lags the fanout by more than the maximum lag, is ejected from the
+ * log rather than hold back the others: it no longer gates the fanout, and
+ * catches up from the segments before returning to the log.
+ * 
+ * The fanout either occupies a thread of its executor, blocking on the
+ * barrier for events and parking while the slowest follower gates it, or is
+ * driven by a {@link Dispatcher} shared with other fanouts, in which case the
+ * fanout consumes no thread while there are no events for it, and never waits
+ * for the slowest follower on a thread of the executor. Either way, the fanout
+ * is woken rather than polled: by the ring's wait strategy or by the
+ * producers' {@link MultiProducerBarrier} when events are committed, and by
+ * its followers when they release the gate by taking batches from the log or
+ * disconnecting.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Fanout implements Consumer {
+    /**
+     * A contiguous range of events of a channel in a segment, planned for
+     * replication. The segment lease of the batch is shared by the fanout and
+     * the replicators replicating the batch, and is released once the last of
+     * them has unpinned the batch.
+     */
+    static class Batch {
+        long                        committed;
+        final long                  end;
+        final int                   events;
+        final ByteBuffer            header = ByteBuffer.allocate(Replicator.BATCH_HEADER_SIZE);
+        final long                  last;
+        final long                  offset;
+        private final AtomicInteger pins   = new AtomicInteger(1);
+        long                        read;
+        final Segment               segment;
+        final long                  segmentId;
+        final long                  tag1;
+        final long                  tag2;
+
+        /**
+         * @param tag1
+         *            - the most significant bits of the channel tag
+         * @param tag2
+         *            - the least significant bits of the channel tag
+         * @param offset
+         *            - the offset of the batch within the segment
+         * @param end
+         *            - the offset within the segment following the batch
+         * @param events
+         *            - the number of events in the batch
+         * @param last
+         *            - the sequence of the last event of the ring replicated
+         *            by the time the batch is acknowledged
+         * @param segment
+         *            - the leased segment, pinned by the receiver
+         */
+        Batch(long tag1, long tag2, long offset, long end, int events,
+              long last, Segment segment) {
+            this.tag1 = tag1;
+            this.tag2 = tag2;
+            this.offset = offset;
+            this.end = end;
+            this.events = events;
+            this.last = last;
+            this.segment = segment;
+            segmentId = segment.getBaseOffset();
+            header.putLong(tag1).putLong(tag2).putLong(segmentId);
+            header.putLong(offset).putLong(end - offset);
+            header.putInt(events);
+            header.flip();
+        }
+
+        /**
+         * @return the offset within the channel following the batch
+         */
+        long getChannelEnd() {
+            return segmentId + end;
+        }
+
+        /**
+         * @return the offset of the batch within the channel
+         */
+        long getChannelOffset() {
+            return segmentId + offset;
+        }
+
+        UUID getTag() {
+            return new UUID(tag1, tag2);
+        }
+
+        /**
+         * @return true if the batch ends at the high water mark
+         */
+        boolean isAcknowledgedBy(long tag1, long tag2, long segmentId,
+                                 long offset) {
+            return this.tag1 == tag1 && this.tag2 == tag2
+                   && this.segmentId == segmentId && end == offset;
+        }
+
+        /**
+         * Pin the segment lease of the batch
+         * 
+         * @return false if the lease has already been released
+         */
+        boolean pin() {
+            while (true) {
+                int current = pins.get();
+                if (current == 0) {
+                    return false;
+                }
+                if (pins.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Unpin the segment lease of the batch, releasing the lease to the
+         * bundle if this is the last pin
+         */
+        void unpin(Bundle bundle) {
+            if (pins.decrementAndGet() == 0) {
+                bundle.release(segment);
+            }
+        }
+    }
+
+    /**
+     * The range of a channel's offsets which the fanout has published
+     */
+    static class ChannelMark {
+        /**
+         * The offset following the last event of the channel published
+         */
+        volatile long end;
+        /**
+         * The offset of the first event of the channel published
+         */
+        final long    first;
+
+        ChannelMark(long first) {
+            this.first = end = first;
+        }
+    }
+
+    public static final int                        DEFAULT_CAPACITY     = 1024;
+    public static final int                        MAXIMUM_BATCH_EVENTS = 1024;
+
+    private static final Logger                    log                  = LoggerFactory.getLogger(Fanout.class);
+
+    private final Batch[]                          batches;
+    private final Bundle                           bundle;
+    private final ConcurrentMap<UUID, ChannelMark> channels             = new ConcurrentHashMap<UUID, ChannelMark>();
+    private final ConsumerBarrier<EventEntry>      consumerBarrier;
+    private final AtomicBoolean                    dispatched           = new AtomicBoolean();
+    private final Dispatcher                       dispatcher;
+    private final Runnable                         drainer;
+    private final Executor                         executor;
+    private final CopyOnWriteArrayList<Replicator> followers            = new CopyOnWriteArrayList<Replicator>();
+    private volatile boolean                       gated;
+    private final int                              mask;
+    private final long                             maximumLag;
+    private Batch                                  pending;
+    private final AtomicLong                       published            = new AtomicLong(RingBuffer.INITIAL_CURSOR_VALUE);
+    private final AtomicBoolean                    released             = new AtomicBoolean();
+    private final AtomicBoolean                    running              = new AtomicBoolean();
+    private final AtomicLong                       sequence             = new AtomicLong(RingBuffer.INITIAL_CURSOR_VALUE);
+    private volatile Thread                        waiter;
+
+    /**
+     * @param bundle
+     *            - the bundle of segments the events are replicated from
+     * @param consumerBarrier
+     *            - the barrier the fanout is waiting on
+     * @param executor
+     *            - the executor which runs the fanout and the replicators
+     */
+    public Fanout(Bundle bundle, ConsumerBarrier<EventEntry> consumerBarrier,
+                  Executor executor) {
+        this(bundle, consumerBarrier, executor, DEFAULT_CAPACITY,
+             Long.MAX_VALUE);
+    }
+
+    /**
+     * @param bundle
+     *            - the bundle of segments the events are replicated from
+     * @param consumerBarrier
+     *            - the barrier the fanout is waiting on
+     * @param executor
+     *            - the executor which runs the fanout and the replicators
+     * @param capacity
+     *            - the number of batches retained in the log, which must be
+     *            a power of 2
+     * @param maximumLag
+     *            - the maximum number of events of the ring a follower may lag
+     *            behind the fanout before it is ejected, and catches up from
+     *            the segments
+     */
+    public Fanout(Bundle bundle, ConsumerBarrier<EventEntry> consumerBarrier,
+                  Executor executor, int capacity, long maximumLag) {
+        this(bundle, consumerBarrier, executor, null, capacity, maximumLag);
+    }
+
+    /**
+     * @param bundle
+     *            - the bundle of segments the events are replicated from
+     * @param consumerBarrier
+     *            - the barrier the fanout is polled on
+     * @param dispatcher
+     *            - the dispatcher which drives the fanout, and whose executor
+     *            runs the fanout and the replicators
+     */
+    public Fanout(Bundle bundle, ConsumerBarrier<EventEntry> consumerBarrier,
+                  Dispatcher dispatcher) {
+        this(bundle, consumerBarrier, dispatcher, DEFAULT_CAPACITY,
+             Long.MAX_VALUE);
+    }
+
+    /**
+     * @param bundle
+     *            - the bundle of segments the events are replicated from
+     * @param consumerBarrier
+     *            - the barrier the fanout is polled on
+     * @param dispatcher
+     *            - the dispatcher which drives the fanout, and whose executor
+     *            runs the fanout and the replicators
+     * @param capacity
+     *            - the number of batches retained in the log, which must be
+     *            a power of 2
+     * @param maximumLag
+     *            - the maximum number of events of the ring a follower may lag
+     *            behind the fanout before it is ejected, and catches up from
+     *            the segments
+     */
+    public Fanout(Bundle bundle, ConsumerBarrier<EventEntry> consumerBarrier,
+                  Dispatcher dispatcher, int capacity, long maximumLag) {
+        this(bundle, consumerBarrier, dispatcher.getExecutor(), dispatcher,
+             capacity, maximumLag);
+    }
+
+    private Fanout(Bundle bundle, ConsumerBarrier<EventEntry> consumerBarrier,
+                   Executor executor, Dispatcher dispatcher, int capacity,
+                   long maximumLag) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(
+                                               String.format("Capacity must be a power of 2: %s",
+                                                             capacity));
+        }
+        if (maximumLag < 1) {
+            throw new IllegalArgumentException(
+                                               String.format("Maximum lag must be at least 1 event: %s",
+                                                             maximumLag));
+        }
+        this.bundle = bundle;
+        this.consumerBarrier = consumerBarrier;
+        this.executor = executor;
+        this.dispatcher = dispatcher;
+        this.maximumLag = maximumLag;
+        batches = new Batch[capacity];
+        mask = capacity - 1;
+        drainer = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (running.get()) {
+                        drain();
+                    }
+                } finally {
+                    dispatched.set(false);
+                }
+                if (!running.get()) {
+                    terminate();
+                } else if (isDispatchable()) {
+                    // the ring or the gate moved while the fanout was draining
+                    dispatcher.signal();
+                }
+            }
+        };
+    }
+
+    /**
+     * Add the follower's replicator to the receiver. The replicator tails the
+     * batches published after it has been added.
+     */
+    public void add(Replicator follower) {
+        followers.add(follower);
+    }
+
+    public Bundle getBundle() {
+        return bundle;
+    }
+
+    /**
+     * @return the number of batches retained in the log
+     */
+    public int getCapacity() {
+        return batches.length;
+    }
+
+    public ConsumerBarrier<EventEntry> getConsumerBarrier() {
+        return consumerBarrier;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the sequence of the last event of the ring planned by the
+     *         fanout
+     */
+    public long getPlanned() {
+        return sequence.get();
+    }
+
+    /**
+     * @return the index of the last batch published to the log
+     */
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * The gating sequence of the fanout is that of the slowest follower,
+     * ignoring the followers which are disconnected or have been ejected
+     * 
+     * @return the sequence of the last event of the ring taken by every
+     *         follower
+     */
+    @Override
+    public long getSequence() {
+        long minimum = sequence.get();
+        for (Replicator follower : followers) {
+            if (follower.isGating()) {
+                minimum = Math.min(minimum, follower.getSequence());
+            }
+        }
+        return minimum;
+    }
+
+    @Override
+    public void halt() {
+        if (running.compareAndSet(true, false)) {
+            if (dispatcher == null) {
+                consumerBarrier.alert();
+                LockSupport.unpark(waiter);
+            } else {
+                dispatcher.remove(this);
+                terminate();
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Register the receiver's metrics, qualified by the name. The occupancy of
+     * the ring is the number of events published to the ring but not yet
+     * taken by every follower.
+     * 
+     * @param metrics
+     *            - the registry of the metrics
+     * @param name
+     *            - the name qualifying the receiver's metrics
+     */
+    public void register(Metrics metrics, String name) {
+        metrics.gauge(name + ".occupancy", new Gauge() {
+            @Override
+            public long value() {
+                return consumerBarrier.getCursor() - getSequence();
+            }
+        });
+        metrics.gauge(name + ".planned", new Gauge() {
+            @Override
+            public long value() {
+                return sequence.get();
+            }
+        });
+        metrics.gauge(name + ".published", new Gauge() {
+            @Override
+            public long value() {
+                return published.get();
+            }
+        });
+    }
+
+    /**
+     * Remove the follower's replicator from the receiver. The replicator no
+     * longer gates the fanout.
+     */
+    public void remove(Replicator follower) {
+        followers.remove(follower);
+        released();
+    }
+
+    /**
+     * Plan the batches of the events available in the ring, and publish them
+     * to the log
+     */
+    @Override
+    public void run() {
+        waiter = Thread.currentThread();
+        try {
+            while (running.get()) {
+                long nextSequence = sequence.get() + 1;
+                long available;
+                try {
+                    try {
+                        available = consumerBarrier.waitFor(nextSequence);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                } catch (final AlertException ex) {
+                    // Wake up from blocking wait
+                    return;
+                }
+                if (!publish(available, true)) {
+                    return;
+                }
+            }
+        } finally {
+            waiter = null;
+            release();
+        }
+    }
+
+    /**
+     * Start the fanout, if it is not already running
+     */
+    public void start() {
+        if (running.compareAndSet(false, true)) {
+            if (dispatcher == null) {
+                executor.execute(this);
+            } else {
+                dispatched.set(false);
+                dispatcher.add(this);
+            }
+        }
+    }
+
+    /**
+     * The producers have committed events to the ring; wake the dispatcher
+     * driving the receiver. A fanout with a thread of its own is woken by the
+     * ring's wait strategy.
+     */
+    void committed() {
+        if (dispatcher != null) {
+            dispatcher.signal();
+        }
+    }
+
+    /**
+     * Dispatch the fanout to its executor if there are events available to
+     * plan, or a planned batch waiting for the slowest follower whose gate has
+     * moved since the fanout last tried to publish it, and the fanout is not
+     * already running on the executor
+     * 
+     * @return true if the fanout has been dispatched with events to publish
+     */
+    boolean dispatch() {
+        if (!running.get() || !isDispatchable()) {
+            return false;
+        }
+        if (!dispatched.compareAndSet(false, true)) {
+            return false;
+        }
+        executor.execute(drainer);
+        return true;
+    }
+
+    /**
+     * @return the batch published at the index of the log
+     */
+    Batch get(long index) {
+        return batches[(int) (index & mask)];
+    }
+
+    /**
+     * @return the ranges of the channels' offsets which have been published
+     */
+    Collection<Map.Entry<UUID, ChannelMark>> getChannels() {
+        return channels.entrySet();
+    }
+
+    /**
+     * A follower has taken batches from the log, or has disconnected, and may
+     * have released the gate of the slowest follower; wake the receiver if it
+     * is gated
+     */
+    void released() {
+        released.set(true);
+        if (gated) {
+            if (dispatcher == null) {
+                LockSupport.unpark(waiter);
+            } else {
+                dispatcher.signal();
+            }
+        }
+    }
+
+    /**
+     * Answer whether the batch at the index of the log may be overwritten,
+     * ejecting the followers which are disconnected or lag too far behind
+     * 
+     * @return true if no follower still needs the batch
+     */
+    private boolean admits(long index) {
+        boolean admitted = true;
+        for (Replicator follower : followers) {
+            if (follower.getCursor() < index && !follower.isLapped()) {
+                if (!follower.isConnected()
+                    || sequence.get() - follower.getSequence() > maximumLag) {
+                    eject(follower);
+                } else {
+                    admitted = false;
+                }
+            }
+        }
+        return admitted;
+    }
+
+    /**
+     * Claim the slot of the log for the next batch, unpinning the batch it
+     * overwrites once the slowest follower has taken it
+     * 
+     * @param wait
+     *            - true if the claim waits for the slowest follower
+     * @return true if the slot has been claimed
+     */
+    private boolean claim(boolean wait) {
+        long overwritten = published.get() + 1 - batches.length;
+        if (overwritten < 0) {
+            return true;
+        }
+        released.set(false);
+        while (!admits(overwritten)) {
+            if (!wait || !running.get()
+                || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            if (!gated) {
+                // the followers wake the fanout once it is marked gated, so
+                // check the gate again before parking
+                gated = true;
+                continue;
+            }
+            LockSupport.park(this);
+        }
+        int slot = (int) (overwritten & mask);
+        if (batches[slot] != null) {
+            batches[slot].unpin(bundle);
+            batches[slot] = null;
+        }
+        return true;
+    }
+
+    /**
+     * Publish the events available in the ring without waiting, either for
+     * the ring or for the slowest follower
+     */
+    private void drain() {
+        long available;
+        try {
+            try {
+                available = consumerBarrier.waitFor(sequence.get() + 1, 0,
+                                                    TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        } catch (final AlertException ex) {
+            return;
+        }
+        publish(available, false);
+    }
+
+    private void eject(Replicator follower) {
+        if (follower.isConnected()) {
+            log.warn(String.format("Follower lagging by %s events, catching up from segments",
+                                   sequence.get() - follower.getSequence()));
+        }
+        follower.lap();
+    }
+
+    /**
+     * @return true if there are events available to plan, or if the gate of
+     *         the slowest follower has moved since the fanout was gated
+     */
+    private boolean isDispatchable() {
+        if (gated) {
+            return released.get();
+        }
+        return consumerBarrier.getCursor() > sequence.get();
+    }
+
+    /**
+     * Plan the batch of the events contiguous in the same segment, starting
+     * at the next sequence
+     */
+    private Batch plan(long nextSequence, long available) {
+        EventEntry first = consumerBarrier.getEntry(nextSequence);
+        long limit = nextSequence + MAXIMUM_BATCH_EVENTS - 1;
+        long end = first.nextOffset();
+        long last = nextSequence;
+        while (last < available && last < limit) {
+            EventEntry next = consumerBarrier.getEntry(last + 1);
+            if (next.getOffset() != end || !first.isSameSegment(next)) {
+                break;
+            }
+            end = next.nextOffset();
+            last++;
+        }
+        Batch batch = new Batch(first.getTagMostSignificantBits(),
+                                first.getTagLeastSignificantBits(),
+                                first.getOffset(), end,
+                                (int) (last - nextSequence + 1), last,
+                                bundle.segmentFor(first));
+        // the batch is timed from its oldest event
+        batch.read = first.getRead();
+        batch.committed = first.getCommitted();
+        return batch;
+    }
+
+    /**
+     * Plan the batches of the events available in the ring, and publish them
+     * to the log. A batch waiting for the slowest follower to take the batch
+     * it overwrites remains pending until the follower has taken it.
+     * 
+     * @param available
+     *            - the sequence of the last event available in the ring
+     * @param wait
+     *            - true if the fanout waits for the slowest follower
+     * @return false if the fanout has been halted
+     */
+    private boolean publish(long available, boolean wait) {
+        while (running.get()) {
+            if (pending == null) {
+                long nextSequence = sequence.get() + 1;
+                if (nextSequence > available) {
+                    return true;
+                }
+                pending = plan(nextSequence, available);
+                sequence.set(pending.last);
+            }
+            if (!claim(wait)) {
+                gated = true;
+                return running.get();
+            }
+            gated = false;
+            publish(pending);
+            pending = null;
+        }
+        return false;
+    }
+
+    /**
+     * Publish the batch to the claimed slot of the log
+     */
+    private void publish(Batch batch) {
+        long index = published.get() + 1;
+        UUID tag = batch.getTag();
+        ChannelMark mark = channels.get(tag);
+        if (mark == null) {
+            mark = new ChannelMark(batch.getChannelOffset());
+            ChannelMark existing = channels.putIfAbsent(tag, mark);
+            if (existing != null) {
+                mark = existing;
+            }
+        }
+        mark.end = batch.getChannelEnd();
+        batches[(int) (index & mask)] = batch;
+        published.set(index);
+        for (Replicator follower : followers) {
+            if (follower.isGating()
+                && batch.last - follower.getSequence() > maximumLag) {
+                eject(follower);
+            } else {
+                follower.available();
+            }
+        }
+    }
+
+    /**
+     * Release the leases of the pending batch and of the batches in the log
+     */
+    private void release() {
+        if (pending != null) {
+            pending.unpin(bundle);
+            pending = null;
+        }
+        gated = false;
+        for (int i = 0; i < batches.length; i++) {
+            if (batches[i] != null) {
+                batches[i].unpin(bundle);
+                batches[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Release the leases of the halted fanout, unless the fanout is still
+     * running on the executor, which then releases them as it finishes
+     */
+    private void terminate() {
+        if (dispatched.compareAndSet(false, true)) {
+            release();
+        }
+    }
+}
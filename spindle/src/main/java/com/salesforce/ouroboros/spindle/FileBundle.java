@@ -0,0 +1,406 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bundle which stores the events of each channel as a single segment file
+ * in a directory, named by the channel's tag, alongside the segment's
+ * {@link SegmentIndex}. The open segments are pooled in
+ * a bounded cache, with the least recently used segments closed when the bound
+ * is exceeded. Segments which are evicted while leased remain open until their
+ * last lease is released, and are reinstated in the cache if the channel is
+ * leased again in the meantime, so that a segment is never opened twice.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class FileBundle implements Bundle {
+    private static class Handle {
+        boolean       evicted;
+        int           leases;
+        final Segment segment;
+        final Tag     tag;
+
+        Handle(Segment segment, Tag tag) {
+            this.segment = segment;
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * The key of a channel's segment, which is reused for lookups so that
+     * resolving a segment does not allocate
+     */
+    private static class Tag {
+        long msb;
+        long lsb;
+
+        Tag(long msb, long lsb) {
+            this.msb = msb;
+            this.lsb = lsb;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Tag)) {
+                return false;
+            }
+            Tag other = (Tag) obj;
+            return msb == other.msb && lsb == other.lsb;
+        }
+
+        @Override
+        public int hashCode() {
+            long hilo = msb ^ lsb;
+            return (int) (hilo >> 32) ^ (int) hilo;
+        }
+    }
+
+    private static final Logger              log     = LoggerFactory.getLogger(FileBundle.class);
+
+    private final Map<Tag, Handle>           evicted = new HashMap<Tag, Handle>();
+    private final Map<Segment, Handle>       handles;
+    private final int                        indexInterval;
+    private final Tag                        lookup  = new Tag(0, 0);
+    private final int                        maxOpenSegments;
+    private final Counter                    opened  = new Counter();
+    private final File                       root;
+    private final LinkedHashMap<Tag, Handle> segments;
+
+    /**
+     * Recover the segments stored in the root after a crash, then open the
+     * bundle over the recovered segments
+     * 
+     * @param root
+     *            - the directory containing the segments
+     * @param maxOpenSegments
+     *            - the maximum number of unleased segments kept open
+     * @param indexInterval
+     *            - the minimum distance in bytes between indexed events
+     * @param executor
+     *            - the executor which recovers the segments in parallel
+     * @return the bundle of the recovered segments
+     * @throws IOException
+     *             - if a segment cannot be recovered
+     */
+    public static FileBundle recover(File root, int maxOpenSegments,
+                                     int indexInterval,
+                                     ExecutorService executor)
+                                                              throws IOException {
+        FileBundle bundle = new FileBundle(root, maxOpenSegments,
+                                           indexInterval);
+        new Recovery(root, executor).recover(bundle.getSegmentFiles());
+        return bundle;
+    }
+
+    /**
+     * @param root
+     *            - the directory containing the segments
+     * @param maxOpenSegments
+     *            - the maximum number of unleased segments kept open
+     */
+    public FileBundle(File root, int maxOpenSegments) {
+        this(root, maxOpenSegments, SegmentIndex.DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param root
+     *            - the directory containing the segments
+     * @param maxOpenSegments
+     *            - the maximum number of unleased segments kept open
+     * @param indexInterval
+     *            - the minimum distance in bytes between indexed events
+     */
+    public FileBundle(File root, int maxOpenSegments, int indexInterval) {
+        if (maxOpenSegments < 1) {
+            throw new IllegalArgumentException(
+                                               "Maximum open segments must be positive: "
+                                                       + maxOpenSegments);
+        }
+        this.root = root;
+        this.maxOpenSegments = maxOpenSegments;
+        this.indexInterval = indexInterval;
+        handles = new IdentityHashMap<Segment, Handle>();
+        segments = new LinkedHashMap<Tag, Handle>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Tag, Handle> eldest) {
+                if (size() <= FileBundle.this.maxOpenSegments) {
+                    return false;
+                }
+                evict(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Close all the open segments of the receiver
+     */
+    public synchronized void close() {
+        for (Handle handle : handles.values()) {
+            close(handle);
+        }
+        handles.clear();
+        segments.clear();
+        evicted.clear();
+    }
+
+    /**
+     * @return the number of segments currently held open by the receiver
+     */
+    public synchronized int getOpenSegments() {
+        return handles.size();
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the segment files stored in the root, for {@link Recovery}
+     */
+    public List<File> getSegmentFiles() {
+        List<File> files = new ArrayList<File>();
+        File[] candidates = root.listFiles();
+        if (candidates == null) {
+            return files;
+        }
+        for (File file : candidates) {
+            if (!file.isFile()) {
+                continue;
+            }
+            try {
+                UUID.fromString(file.getName());
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    @Override
+    public synchronized long endOf(UUID channel) {
+        long msb = channel.getMostSignificantBits();
+        long lsb = channel.getLeastSignificantBits();
+        if (!exists(msb, lsb)) {
+            return -1;
+        }
+        Segment segment = lease(msb, lsb);
+        try {
+            return segment.getBaseOffset() + segment.getChannel().size();
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                                            String.format("Unable to determine the size of segment: %s",
+                                                          segment), e);
+        } finally {
+            release(segment);
+        }
+    }
+
+    @Override
+    public synchronized long offsetOf(UUID channel, long ordinal) {
+        long msb = channel.getMostSignificantBits();
+        long lsb = channel.getLeastSignificantBits();
+        if (!exists(msb, lsb)) {
+            return -1;
+        }
+        Segment segment = lease(msb, lsb);
+        try {
+            return segment.getIndex().locate(ordinal);
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                                            String.format("Unable to locate event: %s in segment: %s",
+                                                          ordinal, segment), e);
+        } finally {
+            release(segment);
+        }
+    }
+
+    /**
+     * Register the receiver's metrics, qualified by the name
+     * 
+     * @param metrics
+     *            - the registry of the metrics
+     * @param name
+     *            - the name qualifying the receiver's metrics
+     */
+    public void register(Metrics metrics, String name) {
+        metrics.register(name + ".segments.opened", opened);
+        metrics.gauge(name + ".segments.open", new Gauge() {
+            @Override
+            public long value() {
+                return getOpenSegments();
+            }
+        });
+    }
+
+    @Override
+    public synchronized void release(Segment segment) {
+        Handle handle = handles.get(segment);
+        if (handle == null) {
+            throw new IllegalArgumentException(
+                                               String.format("Segment: %s is not leased from this bundle",
+                                                             segment));
+        }
+        assert handle.leases > 0 : "Segment is not leased";
+        handle.leases--;
+        if (handle.evicted && handle.leases == 0) {
+            handles.remove(segment);
+            evicted.remove(handle.tag);
+            close(handle);
+        }
+    }
+
+    @Override
+    public synchronized Segment segmentFor(EventEntry entry) {
+        return lease(entry.getTagMostSignificantBits(),
+                     entry.getTagLeastSignificantBits());
+    }
+
+    @Override
+    public synchronized Segment segmentFor(EventHeader header) {
+        return lease(header.getTagMostSignificantBits(),
+                     header.getTagLeastSignificantBits());
+    }
+
+    /**
+     * Lease the segment of the channel, which contains every offset of the
+     * channel. Reading a channel never creates it.
+     */
+    @Override
+    public synchronized Segment segmentFor(UUID channel, long offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Invalid offset: " + offset);
+        }
+        long msb = channel.getMostSignificantBits();
+        long lsb = channel.getLeastSignificantBits();
+        if (!exists(msb, lsb)) {
+            throw new IllegalArgumentException("No such channel: " + channel);
+        }
+        return lease(msb, lsb);
+    }
+
+    private void close(Handle handle) {
+        handle.segment.getIndex().close();
+        try {
+            handle.segment.getChannel().close();
+        } catch (IOException e) {
+            log.error(String.format("Error closing segment: %s",
+                                    handle.segment), e);
+        }
+    }
+
+    private void evict(Handle handle) {
+        handle.evicted = true;
+        if (handle.leases == 0) {
+            handles.remove(handle.segment);
+            close(handle);
+        } else {
+            evicted.put(handle.tag, handle);
+        }
+    }
+
+    /**
+     * @return true if the channel has been appended to, and so has a segment
+     */
+    private boolean exists(long msb, long lsb) {
+        lookup.msb = msb;
+        lookup.lsb = lsb;
+        if (segments.containsKey(lookup) || evicted.containsKey(lookup)) {
+            return true;
+        }
+        return new File(root, new UUID(msb, lsb).toString()).exists();
+    }
+
+    private Segment lease(long msb, long lsb) {
+        lookup.msb = msb;
+        lookup.lsb = lsb;
+        Handle handle = segments.get(lookup);
+        if (handle == null) {
+            // a segment evicted while leased is still open, and is reinstated
+            handle = evicted.remove(lookup);
+            if (handle != null) {
+                handle.evicted = false;
+            } else {
+                handle = open(msb, lsb);
+                opened.increment();
+                handles.put(handle.segment, handle);
+            }
+            segments.put(handle.tag, handle);
+        }
+        handle.leases++;
+        return handle.segment;
+    }
+
+    private Handle open(long msb, long lsb) {
+        String name = new UUID(msb, lsb).toString();
+        File file = new File(root, name);
+        FileChannel channel;
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        } catch (FileNotFoundException e) {
+            throw new IllegalStateException(
+                                            String.format("Unable to open segment: %s",
+                                                          file), e);
+        }
+        File indexFile = new File(root, name + SegmentIndex.INDEX_SUFFIX);
+        try {
+            return new Handle(new Segment(channel, 0L,
+                                          SegmentIndex.open(indexFile, channel,
+                                                            0L, indexInterval)),
+                              new Tag(msb, lsb));
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException e1) {
+                log.error(String.format("Error closing segment: %s", file), e1);
+            }
+            throw new IllegalStateException(
+                                            String.format("Unable to open segment index: %s",
+                                                          indexFile), e);
+        }
+    }
+}
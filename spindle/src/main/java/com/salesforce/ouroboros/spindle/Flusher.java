@@ -0,0 +1,474 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lmax.disruptor.ProducerBarrier;
+
+/**
+ * The durability policy of the segments of a bundle. The flusher is a
+ * dedicated thread which forces the segments dirtied by appends to the
+ * storage device in groups, so that a single force covers many events. A
+ * group is forced once it contains the configured number of events, or once
+ * the oldest event of the group has waited the maximum delay. A group size of
+ * one forces every event individually.
+ * 
+ * The appending spinner hands its lease on the dirtied segment to the
+ * flusher, which releases the segment to the bundle once it has been forced.
+ * In strict mode, the spinner also hands over the publication of the
+ * appended events, which the flusher commits to the ring buffer only after
+ * the group containing them is durable. Otherwise the events are published
+ * immediately and forced in the background. A replica likewise hands over the
+ * acknowledgement of each replicated batch, so that the leader learns of the
+ * batch only once it is durable, and the replica's IO thread never forces.
+ * 
+ * If a segment of a group cannot be forced, the flusher fails. A failed force
+ * may discard the dirty pages of the segment and clear the error, so a later
+ * force succeeding would not mean the group is durable: none of the group's
+ * publications are ever committed, nor are those of any group handed over
+ * after the failure. The failure action of each publication is run instead,
+ * closing the connection of its spinner or replica, and the failure is
+ * exposed by {@link #getFailure()}.
+ * 
+ * A spinner without a flusher leaves durability to the operating system.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Flusher implements Runnable {
+    private static class Commit implements Runnable {
+        final ProducerBarrier<EventEntry> barrier;
+        final long                        first;
+        final long                        last;
+
+        Commit(ProducerBarrier<EventEntry> barrier, long first, long last) {
+            this.barrier = barrier;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        public void run() {
+            for (long sequence = first; sequence <= last; sequence++) {
+                barrier.commit(barrier.getEntry(sequence));
+            }
+        }
+    }
+
+    private static class Publication {
+        final Runnable action;
+        final Runnable failure;
+
+        Publication(Runnable action, Runnable failure) {
+            this.action = action;
+            this.failure = failure;
+        }
+    }
+
+    private static final Logger         log              = LoggerFactory.getLogger(Flusher.class);
+
+    private final Bundle                bundle;
+    private List<Segment>               dirty            = new ArrayList<Segment>();
+    private IOException                 failure;
+    private long                        failures;
+    private long                        flushes;
+    private final Map<Segment, Segment> forced           = new IdentityHashMap<Segment, Segment>();
+    private final int                   groupSize;
+    private final ReentrantLock         lock             = new ReentrantLock();
+    private final long                  maximumDelay;
+    private final Condition             pending          = lock.newCondition();
+    private int                         pendingEvents;
+    private List<Publication>           publications     = new ArrayList<Publication>();
+    private boolean                     running;
+    private long                        since;
+    private final boolean               strict;
+    private List<Segment>               swapDirty        = new ArrayList<Segment>();
+    private List<Publication>           swapPublications = new ArrayList<Publication>();
+    private Thread                      thread;
+
+    /**
+     * @param bundle
+     *            - the bundle the forced segments are released to
+     * @param groupSize
+     *            - the number of events which triggers a force
+     * @param maximumDelay
+     *            - the maximum time an appended event waits to be forced
+     * @param unit
+     *            - the unit of the maximum delay
+     * @param strict
+     *            - true if events are published only once they are durable
+     */
+    public Flusher(Bundle bundle, int groupSize, long maximumDelay,
+                   TimeUnit unit, boolean strict) {
+        if (groupSize < 1) {
+            throw new IllegalArgumentException(
+                                               "Group size must be positive: "
+                                                       + groupSize);
+        }
+        if (maximumDelay < 0) {
+            throw new IllegalArgumentException(
+                                               "Maximum delay must not be negative: "
+                                                       + maximumDelay);
+        }
+        this.bundle = bundle;
+        this.groupSize = groupSize;
+        this.maximumDelay = unit.toNanos(maximumDelay);
+        this.strict = strict;
+    }
+
+    /**
+     * Hand over the lease on a segment to which events have been appended. The
+     * flusher releases the segment once it has been forced.
+     * 
+     * @param segment
+     *            - the leased segment
+     * @param events
+     *            - the number of events appended to the segment
+     */
+    public void append(Segment segment, int events) {
+        lock.lock();
+        try {
+            boolean first = dirty.isEmpty();
+            if (first) {
+                since = System.nanoTime();
+            }
+            dirty.add(segment);
+            pendingEvents += events;
+            // wake the flusher to time the new group, or to force a full one
+            if (first || pendingEvents >= groupSize) {
+                pending.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the error which failed the receiver, or null if every group has
+     *         been forced
+     */
+    public IOException getFailure() {
+        lock.lock();
+        try {
+            return failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of groups which have been failed
+     */
+    public long getFailures() {
+        lock.lock();
+        try {
+            return failures;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of groups forced by the receiver
+     */
+    public long getFlushes() {
+        lock.lock();
+        try {
+            return flushes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of appended events which have yet to be forced
+     */
+    public int getPendingEvents() {
+        lock.lock();
+        try {
+            return pendingEvents;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if events are published only once they are durable
+     */
+    public boolean isStrict() {
+        return strict;
+    }
+
+    /**
+     * Hand over the publication of the claimed entries of the ring buffer.
+     * The entries are committed once the segments appended before the call
+     * have been forced.
+     * 
+     * @param barrier
+     *            - the barrier the entries were claimed from
+     * @param first
+     *            - the sequence of the first claimed entry
+     * @param last
+     *            - the sequence of the last claimed entry
+     * @param failure
+     *            - the action run instead if the segments cannot be forced,
+     *            or null
+     */
+    public void publish(ProducerBarrier<EventEntry> barrier, long first,
+                        long last, Runnable failure) {
+        publish(new Commit(barrier, first, last), failure);
+    }
+
+    /**
+     * Hand over an action, such as the acknowledgement of replicated events,
+     * which is run by the flusher once the segments appended before the call
+     * have been forced. If the segments cannot be forced, the action is never
+     * run, and the failure action is run instead.
+     * 
+     * @param action
+     *            - the action awaiting durability
+     * @param failure
+     *            - the action run instead if the segments cannot be forced,
+     *            or null
+     */
+    public void publish(Runnable action, Runnable failure) {
+        lock.lock();
+        try {
+            publications.add(new Publication(action, failure));
+            if (dirty.isEmpty()) {
+                // the segments of the entries have already been forced
+                pending.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            boolean failed;
+            lock.lock();
+            try {
+                if (!awaitGroup()) {
+                    return;
+                }
+                List<Segment> segments = dirty;
+                dirty = swapDirty;
+                swapDirty = segments;
+                List<Publication> group = publications;
+                publications = swapPublications;
+                swapPublications = group;
+                pendingEvents = 0;
+                failed = failure != null;
+            } finally {
+                lock.unlock();
+            }
+            if (!failed && force()) {
+                commit();
+            } else {
+                fail();
+            }
+        }
+    }
+
+    /**
+     * Start the flusher's thread
+     */
+    public void start() {
+        lock.lock();
+        try {
+            if (running) {
+                return;
+            }
+            running = true;
+            thread = new Thread(this, "Flusher");
+            thread.setDaemon(true);
+            thread.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Force the remaining dirty segments and stop the flusher's thread
+     */
+    public void terminate() {
+        Thread current;
+        lock.lock();
+        try {
+            if (!running) {
+                return;
+            }
+            running = false;
+            current = thread;
+            thread = null;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            current.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait until a group is ready to be forced. Called with the lock held.
+     * 
+     * @return false if the flusher has been terminated and no events remain
+     *         to be forced
+     */
+    private boolean awaitGroup() {
+        while (true) {
+            boolean ready = !dirty.isEmpty() || !publications.isEmpty();
+            if (!running) {
+                return ready;
+            }
+            if (ready && (dirty.isEmpty() || failure != null)) {
+                // their segments were forced by a previous group, or will
+                // never be
+                return true;
+            }
+            if (ready) {
+                long wait = maximumDelay - (System.nanoTime() - since);
+                if (pendingEvents >= groupSize || wait <= 0) {
+                    return true;
+                }
+                try {
+                    pending.awaitNanos(wait);
+                } catch (InterruptedException e) {
+                    return true;
+                }
+            } else {
+                try {
+                    pending.await();
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the leases of the forced group's segments, and commit the
+     * publications which awaited the group
+     */
+    private void commit() {
+        for (Segment segment : swapDirty) {
+            bundle.release(segment);
+        }
+        swapDirty.clear();
+        for (Publication publication : swapPublications) {
+            try {
+                publication.action.run();
+            } catch (RuntimeException e) {
+                log.error(String.format("Error publishing: %s",
+                                        publication.action), e);
+            }
+        }
+        swapPublications.clear();
+        lock.lock();
+        try {
+            flushes++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The swapped group could not be forced, or the receiver has already
+     * failed; release the leases of the group's segments, and run the
+     * failure actions of its publications rather than the publications
+     */
+    private void fail() {
+        for (Segment segment : swapDirty) {
+            bundle.release(segment);
+        }
+        swapDirty.clear();
+        for (Publication publication : swapPublications) {
+            if (publication.failure == null) {
+                continue;
+            }
+            try {
+                publication.failure.run();
+            } catch (RuntimeException e) {
+                log.error(String.format("Error failing: %s",
+                                        publication.action), e);
+            }
+        }
+        swapPublications.clear();
+        lock.lock();
+        try {
+            failures++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Force the swapped group of dirty segments, failing the receiver if a
+     * segment cannot be forced
+     * 
+     * @return true if every segment of the group has been forced
+     */
+    private boolean force() {
+        try {
+            for (Segment segment : swapDirty) {
+                if (forced.put(segment, segment) == null) {
+                    try {
+                        segment.getChannel().force(false);
+                    } catch (IOException e) {
+                        log.error(String.format("Unable to force segment: %s, failing all subsequent publications",
+                                                segment), e);
+                        lock.lock();
+                        try {
+                            failure = e;
+                        } finally {
+                            lock.unlock();
+                        }
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } finally {
+            forced.clear();
+        }
+    }
+}
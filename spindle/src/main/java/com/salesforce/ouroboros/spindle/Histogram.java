@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed memory, log linear histogram of non negative values. Values are
+ * counted in buckets which double in width with each power of 2, each bucket
+ * divided into 2^precision linear sub buckets, so that every value is
+ * recorded with a relative error of at most 2^-precision, and the histogram
+ * covers the entire range of long values in (64 - precision) * 2^precision
+ * counts. Recording a value neither allocates nor locks.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Histogram {
+    /**
+     * A consistent copy of the counts of a histogram, from which percentiles
+     * are computed
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final int    precision;
+        private final long   total;
+
+        Snapshot(long[] counts, int precision) {
+            this.counts = counts;
+            this.precision = precision;
+            long sum = 0;
+            for (long count : counts) {
+                sum += count;
+            }
+            total = sum;
+        }
+
+        /**
+         * @return the number of values recorded
+         */
+        public long getCount() {
+            return total;
+        }
+
+        /**
+         * @return the highest value equivalent to the largest value recorded,
+         *         or 0 if no value has been recorded
+         */
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] != 0) {
+                    return highestValue(i, precision);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return the mean of the values recorded, taking each value as the
+         *         midpoint of its sub bucket
+         */
+        public double getMean() {
+            if (total == 0) {
+                return 0;
+            }
+            double sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    double low = lowestValue(i, precision);
+                    double high = highestValue(i, precision);
+                    sum += counts[i] * (low + high) / 2;
+                }
+            }
+            return sum / total;
+        }
+
+        /**
+         * @param percentile
+         *            - the percentile, from 0 to 100
+         * @return the highest value equivalent to the value at the percentile
+         *         of the values recorded, or 0 if no value has been recorded
+         */
+        public long getPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException(
+                                                   String.format("Invalid percentile: %s",
+                                                                 percentile));
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestValue(i, precision);
+                }
+            }
+            return getMax();
+        }
+    }
+
+    public static final int DEFAULT_PRECISION = 4;
+
+    /**
+     * @return the highest value counted at the index
+     */
+    static long highestValue(int index, int precision) {
+        int bucket = index >>> precision;
+        if (bucket == 0) {
+            return index;
+        }
+        return lowestValue(index, precision) + (1L << (bucket - 1)) - 1;
+    }
+
+    /**
+     * @return the index of the counts at which the value is counted
+     */
+    static int indexOf(long value, int precision) {
+        if (value < (1L << precision)) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - precision;
+        return ((shift + 1) << precision)
+               + (int) ((value >>> shift) - (1L << precision));
+    }
+
+    /**
+     * @return the lowest value counted at the index
+     */
+    static long lowestValue(int index, int precision) {
+        int bucket = index >>> precision;
+        if (bucket == 0) {
+            return index;
+        }
+        int sub = index & ((1 << precision) - 1);
+        return ((1L << precision) + sub) << (bucket - 1);
+    }
+
+    private final AtomicLongArray counts;
+    private final int             precision;
+
+    public Histogram() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision
+     *            - the number of bits of each value recorded exactly, from 1
+     *            to 16
+     */
+    public Histogram(int precision) {
+        if (precision < 1 || precision > 16) {
+            throw new IllegalArgumentException(
+                                               String.format("Precision must be between 1 and 16 bits: %s",
+                                                             precision));
+        }
+        this.precision = precision;
+        counts = new AtomicLongArray((64 - precision) << precision);
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Record the value
+     * 
+     * @param value
+     *            - the value, negative values being recorded as 0
+     */
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(value, precision));
+    }
+
+    /**
+     * Record the value a number of times
+     * 
+     * @param value
+     *            - the value, negative values being recorded as 0
+     * @param count
+     *            - the number of times the value is recorded
+     */
+    public void record(long value, long count) {
+        counts.addAndGet(indexOf(value, precision), count);
+    }
+
+    /**
+     * Clear the recorded values
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    /**
+     * @return a copy of the counts of the receiver
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, precision);
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hellblazer.pinkie.CommunicationsHandler;
+import com.hellblazer.pinkie.CommunicationsHandlerFactory;
+import com.lmax.disruptor.ClaimStrategy;
+import com.lmax.disruptor.Consumer;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.WaitStrategy;
+
+/**
+ * The multi producer ingest topology of a node: the spinners of every
+ * accepted connection publish concurrently to a single ring buffer, so that
+ * the fanout and the replicators - and any other consumer of the ring -
+ * consume a single sequenced stream of the events of all connections, rather
+ * than a ring per connection.
+ * 
+ * The spinners share a {@link MultiProducerBarrier} over the ring, and a
+ * {@link Throttle} gated by the same consumers, so that a spinner neither
+ * blocks its IO thread claiming entries from a full ring, nor waits on the
+ * commits of the other connections. The events of each connection are
+ * published in the order they were read from the connection.
+ * 
+ * Each channel is appended to by a single connection at a time: the spinners
+ * take ownership of the channels they append to through the {@link Writers}
+ * of the ingest, and a connection carrying an event of a channel owned by
+ * another connection is closed, rather than interleave its events with the
+ * owner's.
+ * 
+ * The ring is constructed with {@link #createRing(int, WaitStrategy.Option)}
+ * before its consumers, which are created from the ring's consumer barrier,
+ * and then gate the ingest.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Ingest implements CommunicationsHandlerFactory {
+
+    /**
+     * @param capacity
+     *            - the capacity of the ring, a power of 2
+     * @param waitStrategy
+     *            - the strategy of the consumers waiting on the ring
+     * @return a ring buffer of event entries with the multi threaded claim
+     *         strategy the ingest requires
+     */
+    public static RingBuffer<EventEntry> createRing(int capacity,
+                                                    WaitStrategy.Option waitStrategy) {
+        return new RingBuffer<EventEntry>(EventEntry.ENTRY_FACTORY, capacity,
+                                          ClaimStrategy.Option.MULTI_THREADED,
+                                          waitStrategy);
+    }
+
+    private final MultiProducerBarrier barrier;
+    private final int                  bufferSize;
+    private final Bundle               bundle;
+    private final AtomicInteger        connections = new AtomicInteger();
+    private final Flusher              flusher;
+    private volatile Latency           latency;
+    private final int                  maximumBatchSize;
+    private volatile Metrics           metrics;
+    private volatile String            name;
+    private final Throttle             throttle;
+    private final boolean              verify;
+    private final Writers              writers     = new Writers();
+
+    /**
+     * Construct the ingest of spinners operating in streaming mode
+     * 
+     * @param bundle
+     *            - the bundle of segments the events are appended to
+     * @param ring
+     *            - the ring buffer the events are published to, constructed
+     *            with the multi threaded claim strategy
+     * @param scheduler
+     *            - the scheduler which wakes throttled spinners
+     * @param verify
+     *            - true if the CRC of event payloads is verified on ingest
+     * @param flusher
+     *            - the durability policy of the appended events, shared by
+     *            the spinners, or null to leave durability to the operating
+     *            system
+     * @param consumers
+     *            - the consumers gating the producers of the ring
+     */
+    public Ingest(Bundle bundle, RingBuffer<EventEntry> ring,
+                  ScheduledExecutorService scheduler, boolean verify,
+                  Flusher flusher, Consumer... consumers) {
+        this(bundle, ring, scheduler, 0, 0, verify, flusher, consumers);
+    }
+
+    /**
+     * Construct the ingest of spinners operating in batch mode
+     * 
+     * @param bundle
+     *            - the bundle of segments the events are appended to
+     * @param ring
+     *            - the ring buffer the events are published to, constructed
+     *            with the multi threaded claim strategy
+     * @param scheduler
+     *            - the scheduler which wakes throttled spinners
+     * @param bufferSize
+     *            - the size of the buffer each spinner reads events into
+     * @param maximumBatchSize
+     *            - the maximum number of events a spinner publishes in a
+     *            single batch, which must not exceed the capacity of the ring
+     * @param verify
+     *            - true if the CRC of event payloads is verified on ingest
+     * @param flusher
+     *            - the durability policy of the appended events, shared by
+     *            the spinners, or null to leave durability to the operating
+     *            system
+     * @param consumers
+     *            - the consumers gating the producers of the ring
+     */
+    public Ingest(Bundle bundle, RingBuffer<EventEntry> ring,
+                  ScheduledExecutorService scheduler, int bufferSize,
+                  int maximumBatchSize, boolean verify, Flusher flusher,
+                  Consumer... consumers) {
+        if (maximumBatchSize > ring.getCapacity()) {
+            throw new IllegalArgumentException(
+                                               String.format("Maximum batch size must not exceed the capacity of the ring buffer: %s",
+                                                             maximumBatchSize));
+        }
+        this.bundle = bundle;
+        this.bufferSize = bufferSize;
+        this.maximumBatchSize = maximumBatchSize;
+        this.verify = verify;
+        this.flusher = flusher;
+        barrier = new MultiProducerBarrier(ring, consumers);
+        throttle = new Throttle(ring.getCapacity(), scheduler, consumers);
+    }
+
+    /**
+     * Answer the spinner of a newly accepted connection, publishing to the
+     * shared ring
+     */
+    @Override
+    public CommunicationsHandler createCommunicationsHandler() {
+        SpinnerOptions options = new SpinnerOptions();
+        options.setBufferSize(bufferSize);
+        options.setMaximumBatchSize(maximumBatchSize);
+        options.setVerify(verify);
+        options.setFlusher(flusher);
+        options.setThrottle(throttle);
+        options.setLatency(latency);
+        options.setWriters(writers);
+        Spinner spinner = new Spinner(bundle, barrier, options);
+        int connection = connections.incrementAndGet();
+        Metrics registry = metrics;
+        if (registry != null) {
+            spinner.register(registry, name + ".spinner." + connection);
+        }
+        return spinner;
+    }
+
+    /**
+     * @return the producer barrier shared by the spinners
+     */
+    public MultiProducerBarrier getBarrier() {
+        return barrier;
+    }
+
+    /**
+     * @return the number of connections accepted by the receiver
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * @return the backpressure of the ring, shared by the spinners
+     */
+    public Throttle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * @return the owners of the channels appended to by the spinners
+     */
+    public Writers getWriters() {
+        return writers;
+    }
+
+    /**
+     * Register the metrics of the spinners of subsequently accepted
+     * connections, qualified by the name and the number of the connection
+     * 
+     * @param metrics
+     *            - the registry of the metrics
+     * @param name
+     *            - the name qualifying the metrics of the spinners
+     */
+    public void register(Metrics metrics, String name) {
+        this.name = name;
+        this.metrics = metrics;
+        metrics.gauge(name + ".throttle.parked", new Gauge() {
+            @Override
+            public long value() {
+                return throttle.getParked();
+            }
+        });
+        metrics.gauge(name + ".throttle.throttled", new Gauge() {
+            @Override
+            public long value() {
+                return throttle.getThrottled();
+            }
+        });
+    }
+
+    /**
+     * Track the latency of the events of subsequently accepted connections
+     * 
+     * @param latency
+     *            - the latency tracking, or null to stop tracking
+     */
+    public void setLatency(Latency latency) {
+        this.latency = latency;
+    }
+}
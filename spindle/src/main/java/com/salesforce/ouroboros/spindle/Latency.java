@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+/**
+ * The latency of the stages of an event's progress through the node, from
+ * the reading of its header off the socket, through its commit to the ring
+ * buffer, to the write of its payload to a replica. Tracking is opt in: the
+ * {@link Spinner} stamps the {@link EventEntry} of each event it commits, and
+ * the {@link Replicator} records the stages of each batch it completes, from
+ * the stamps of the batch's oldest event, weighted by the events of the
+ * batch. The latencies are recorded in nanoseconds, in a fixed memory
+ * {@link Histogram} per stage, and may be shared by any number of spinners
+ * and replicators.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Latency {
+    public static enum Stage {
+        /**
+         * From the reading of the event's header to its commit to the ring
+         */
+        APPEND,
+        /**
+         * From the reading of the event's header to the write of its payload
+         * to a replica
+         */
+        END_TO_END,
+        /**
+         * From the commit of the event to the ring to the write of its
+         * payload to a replica
+         */
+        REPLICATE;
+    }
+
+    private static final String[] PERCENTILE_NAMES = { "p50", "p99", "p999" };
+    private static final double[] PERCENTILES      = { 50, 99, 99.9 };
+
+    private final Histogram[]     histograms;
+
+    public Latency() {
+        this(Histogram.DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision
+     *            - the number of bits of each latency recorded exactly
+     */
+    public Latency(int precision) {
+        histograms = new Histogram[Stage.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram(precision);
+        }
+    }
+
+    /**
+     * @param stage
+     * @return the histogram of the latencies of the stage
+     */
+    public Histogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Record the latency of a stage
+     * 
+     * @param stage
+     *            - the stage
+     * @param nanos
+     *            - the latency, in nanoseconds
+     */
+    public void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Record the latency of a stage, shared by a number of events
+     * 
+     * @param stage
+     *            - the stage
+     * @param nanos
+     *            - the latency, in nanoseconds
+     * @param events
+     *            - the number of events
+     */
+    public void record(Stage stage, long nanos, long events) {
+        histograms[stage.ordinal()].record(nanos, events);
+    }
+
+    /**
+     * Register the percentiles of the stages as gauges, named
+     * <code>name.latency.stage.percentile</code>, along with the count and the
+     * maximum of each stage
+     * 
+     * @param metrics
+     *            - the registry of the metrics
+     * @param name
+     *            - the name qualifying the receiver's metrics
+     */
+    public void register(Metrics metrics, String name) {
+        for (Stage stage : Stage.values()) {
+            final Histogram histogram = getHistogram(stage);
+            String prefix = name + ".latency." + stage;
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                final double percentile = PERCENTILES[i];
+                metrics.gauge(prefix + "." + PERCENTILE_NAMES[i], new Gauge() {
+                    @Override
+                    public long value() {
+                        return histogram.snapshot().getPercentile(percentile);
+                    }
+                });
+            }
+            metrics.gauge(prefix + ".max", new Gauge() {
+                @Override
+                public long value() {
+                    return histogram.snapshot().getMax();
+                }
+            });
+            metrics.gauge(prefix + ".count", new Gauge() {
+                @Override
+                public long value() {
+                    return histogram.snapshot().getCount();
+                }
+            });
+        }
+    }
+
+    /**
+     * Clear the latencies recorded
+     */
+    public void reset() {
+        for (Histogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * @param stage
+     * @return a snapshot of the latencies of the stage
+     */
+    public Histogram.Snapshot snapshot(Stage stage) {
+        return histograms[stage.ordinal()].snapshot();
+    }
+}
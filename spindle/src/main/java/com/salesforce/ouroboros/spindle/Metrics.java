@@ -0,0 +1,336 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The registry of the metrics of a node. Components maintain their own
+ * {@link Counter}s on their hot paths, and register the counters, along with
+ * {@link Gauge}s which are sampled only when the metrics are read, under
+ * names qualified by the component's name. The metrics are read as a
+ * snapshot, which is answered directly, pushed to the registered
+ * {@link Reporter}s, or exposed as the read only attributes of a dynamic
+ * MBean.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Metrics {
+    /**
+     * The receiver of the periodic snapshots of the metrics
+     */
+    public interface Reporter {
+        /**
+         * @param timestamp
+         *            - the time of the snapshot, in milliseconds
+         * @param snapshot
+         *            - the values of the metrics, by name
+         */
+        void report(long timestamp, SortedMap<String, Long> snapshot);
+    }
+
+    /**
+     * Exposes the metrics as the read only attributes of an MBean
+     */
+    private class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute)
+                                                    throws AttributeNotFoundException {
+            Long value = read(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Long value = read(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            SortedMap<String, Long> snapshot = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+            int i = 0;
+            for (String name : snapshot.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name,
+                                                         Long.class.getName(),
+                                                         name, true, false,
+                                                         false);
+            }
+            return new MBeanInfo(Metrics.class.getName(),
+                                 "Spindle metrics", attributes, null,
+                                 new MBeanOperationInfo[0],
+                                 new MBeanNotificationInfo[0]);
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params,
+                             String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException(attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+    }
+
+    private static final Logger                  log       = LoggerFactory.getLogger(Metrics.class);
+
+    private final ConcurrentMap<String, Counter> counters  = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Gauge>   gauges    = new ConcurrentHashMap<String, Gauge>();
+    private final List<ObjectName>               names     = new CopyOnWriteArrayList<ObjectName>();
+    private final List<Reporter>                 reporters = new CopyOnWriteArrayList<Reporter>();
+
+    /**
+     * Add the reporter of the snapshots of the receiver
+     */
+    public void addReporter(Reporter reporter) {
+        reporters.add(reporter);
+    }
+
+    /**
+     * Answer the counter registered under the name, registering a new counter
+     * if the name is not registered
+     * 
+     * @param name
+     *            - the name of the counter
+     * @return the counter registered under the name
+     */
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            Counter existing = counters.putIfAbsent(name, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Register the gauge under the name, replacing any gauge registered under
+     * the name
+     * 
+     * @param name
+     *            - the name of the gauge
+     * @param gauge
+     *            - the gauge
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Register the counter under the name, replacing any counter registered
+     * under the name
+     * 
+     * @param name
+     *            - the name of the counter
+     * @param counter
+     *            - the counter
+     */
+    public void register(String name, Counter counter) {
+        counters.put(name, counter);
+    }
+
+    /**
+     * Expose the receiver's metrics as an MBean of the platform MBean server
+     * 
+     * @param name
+     *            - the object name of the MBean
+     * @throws JMException
+     *             - if the MBean cannot be registered
+     */
+    public void register(ObjectName name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+                                                                 name);
+        names.add(name);
+    }
+
+    public void removeReporter(Reporter reporter) {
+        reporters.remove(reporter);
+    }
+
+    /**
+     * Push a snapshot of the receiver's metrics to the reporters
+     */
+    public void report() {
+        if (reporters.isEmpty()) {
+            return;
+        }
+        long timestamp = System.currentTimeMillis();
+        SortedMap<String, Long> snapshot = Collections.unmodifiableSortedMap(snapshot());
+        for (Reporter reporter : reporters) {
+            try {
+                reporter.report(timestamp, snapshot);
+            } catch (RuntimeException e) {
+                log.error(String.format("Error reporting metrics to: %s",
+                                        reporter), e);
+            }
+        }
+    }
+
+    /**
+     * Push snapshots of the receiver's metrics to the reporters periodically
+     * 
+     * @param scheduler
+     *            - the scheduler of the reports
+     * @param period
+     *            - the period between the reports
+     * @param unit
+     *            - the unit of the period
+     * @return the future of the scheduled reports, which cancels the reports
+     */
+    public ScheduledFuture<?> schedule(ScheduledExecutorService scheduler,
+                                       long period, TimeUnit unit) {
+        return scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * @return the current values of the receiver's metrics, by name
+     */
+    public SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> snapshot = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            Long value = sample(entry.getKey(), entry.getValue());
+            if (value != null) {
+                snapshot.put(entry.getKey(), value);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Remove the metrics registered under the name, and under names qualified
+     * by the name
+     * 
+     * @param name
+     *            - the name of the metrics
+     */
+    public void unregister(String name) {
+        String prefix = name + ".";
+        for (String key : new ArrayList<String>(counters.keySet())) {
+            if (key.equals(name) || key.startsWith(prefix)) {
+                counters.remove(key);
+            }
+        }
+        for (String key : new ArrayList<String>(gauges.keySet())) {
+            if (key.equals(name) || key.startsWith(prefix)) {
+                gauges.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Remove the MBeans of the receiver from the platform MBean server
+     */
+    public void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : names) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                log.warn(String.format("Unable to unregister metrics MBean: %s",
+                                       name), e);
+            }
+        }
+        names.clear();
+    }
+
+    /**
+     * @return the value of the metric registered under the name, or null if
+     *         no metric is registered under the name
+     */
+    private Long read(String name) {
+        Counter counter = counters.get(name);
+        if (counter != null) {
+            return counter.get();
+        }
+        Gauge gauge = gauges.get(name);
+        return gauge == null ? null : sample(name, gauge);
+    }
+
+    private Long sample(String name, Gauge gauge) {
+        try {
+            return gauge.value();
+        } catch (RuntimeException e) {
+            log.warn(String.format("Unable to sample gauge: %s", name), e);
+            return null;
+        }
+    }
+}
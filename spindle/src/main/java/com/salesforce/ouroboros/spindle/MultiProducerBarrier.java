@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.lmax.disruptor.Consumer;
+import com.lmax.disruptor.ProducerBarrier;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.SequenceBatch;
+
+/**
+ * The producer barrier shared by the spinners of many connections publishing
+ * to a single ring buffer. Entries are claimed from the ring's own barrier,
+ * whose multi threaded claim strategy sequences the claims of the producers
+ * with a CAS on the claim sequence. The ring's barrier, however, busy spins
+ * on commit until every earlier claim has been committed, which would stall
+ * the IO thread of a spinner behind the slowest producer, and deadlock a
+ * strict {@link Flusher} handed the publications of several spinners out of
+ * sequence.
+ * 
+ * The receiver instead accepts commits in any order. A committed sequence is
+ * marked available in a slot of the ring's size, and whichever producer
+ * finds the sequence following the cursor available advances the cursor of
+ * the ring through the contiguous available sequences. Consumers of the ring
+ * therefore see the entries in sequence order, and the events of each
+ * connection - claimed and committed in the order they were read - in the
+ * order they were committed.
+ * 
+ * The {@link Fanout}s among the consumers gating the ring are signalled
+ * whenever the cursor advances, so that a fanout driven by a
+ * {@link Dispatcher} is dispatched without polling the ring.
+ * 
+ * The ring buffer must be constructed with
+ * {@link com.lmax.disruptor.ClaimStrategy.Option#MULTI_THREADED}, and its
+ * entries committed only through the receiver.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class MultiProducerBarrier implements ProducerBarrier<EventEntry> {
+    private final AtomicBoolean               advancing = new AtomicBoolean();
+    private final AtomicLongArray             available;
+    private final ProducerBarrier<EventEntry> barrier;
+    private final Fanout[]                    fanouts;
+    private final int                         mask;
+
+    /**
+     * @param ring
+     *            - the ring buffer, constructed with the multi threaded claim
+     *            strategy
+     * @param consumers
+     *            - the consumers gating the producers of the ring
+     */
+    public MultiProducerBarrier(RingBuffer<EventEntry> ring,
+                                Consumer... consumers) {
+        this(ring.createProducerBarrier(consumers), ring.getCapacity(),
+             fanouts(consumers));
+    }
+
+    /**
+     * @param barrier
+     *            - the multi threaded producer barrier of the ring
+     * @param capacity
+     *            - the capacity of the ring, a power of 2
+     * @param fanouts
+     *            - the fanouts signalled when the cursor advances
+     */
+    MultiProducerBarrier(ProducerBarrier<EventEntry> barrier, int capacity,
+                         Fanout... fanouts) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(
+                                               String.format("Capacity must be a power of 2: %s",
+                                                             capacity));
+        }
+        this.barrier = barrier;
+        this.fanouts = fanouts;
+        mask = capacity - 1;
+        available = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            available.set(i, RingBuffer.INITIAL_CURSOR_VALUE);
+        }
+    }
+
+    /**
+     * Mark the entry available, and advance the cursor of the ring through
+     * the sequences available following it. The commit never waits for the
+     * commits of the other producers.
+     */
+    @Override
+    public void commit(EventEntry entry) {
+        long sequence = entry.getSequence();
+        available.set(index(sequence), sequence);
+        advance();
+    }
+
+    /**
+     * Mark the entries of the batch available, and advance the cursor of the
+     * ring through the sequences available following it. The commit never
+     * waits for the commits of the other producers.
+     */
+    @Override
+    public void commit(SequenceBatch sequenceBatch) {
+        for (long sequence = sequenceBatch.getStart(); sequence <= sequenceBatch.getEnd(); sequence++) {
+            available.set(index(sequence), sequence);
+        }
+        advance();
+    }
+
+    /**
+     * @return the cursor of the ring - the sequence of the last entry visible
+     *         to its consumers
+     */
+    @Override
+    public long getCursor() {
+        return barrier.getCursor();
+    }
+
+    @Override
+    public EventEntry getEntry(long sequence) {
+        return barrier.getEntry(sequence);
+    }
+
+    @Override
+    public SequenceBatch nextEntries(SequenceBatch sequenceBatch) {
+        return barrier.nextEntries(sequenceBatch);
+    }
+
+    @Override
+    public EventEntry nextEntry() {
+        return barrier.nextEntry();
+    }
+
+    /**
+     * Advance the cursor of the ring through the contiguous available
+     * sequences. A single producer advances the cursor at a time, committing
+     * each entry to the ring's barrier in sequence, so the ring's barrier
+     * never spins. A producer which loses the race to advance leaves its
+     * sequences to the winner, which checks for them before giving up.
+     */
+    private void advance() {
+        while (advancing.compareAndSet(false, true)) {
+            long next;
+            boolean advanced = false;
+            try {
+                next = barrier.getCursor() + 1;
+                while (available.get(index(next)) == next) {
+                    barrier.commit(barrier.getEntry(next));
+                    next++;
+                    advanced = true;
+                }
+            } finally {
+                advancing.set(false);
+            }
+            if (advanced) {
+                for (Fanout fanout : fanouts) {
+                    fanout.committed();
+                }
+            }
+            // a producer marking its sequence while the cursor was advanced
+            // may have lost the race to advance, so check on its behalf
+            if (available.get(index(next)) != next) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the fanouts among the consumers
+     */
+    private static Fanout[] fanouts(Consumer... consumers) {
+        List<Fanout> fanouts = new ArrayList<Fanout>();
+        for (Consumer consumer : consumers) {
+            if (consumer instanceof Fanout) {
+                fanouts.add((Fanout) consumer);
+            }
+        }
+        return fanouts.toArray(new Fanout[fanouts.size()]);
+    }
+
+    private int index(long sequence) {
+        return (int) sequence & mask;
+    }
+}
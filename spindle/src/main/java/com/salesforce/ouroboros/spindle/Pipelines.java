@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hellblazer.pinkie.CommunicationsHandler;
+import com.hellblazer.pinkie.CommunicationsHandlerFactory;
+import com.hellblazer.pinkie.SocketChannelHandler;
+
+/**
+ * The partitioned ingest of a node: a number of independent pipelines, each
+ * an {@link Ingest} with its own ring buffer, its own consumers - the fanout
+ * and replicators of the pipeline - and its own bundle of segments. Channels
+ * are assigned to the pipelines by the hash of their tag, so the pipelines
+ * share neither sequencing nor state, and ingest and replication scale with
+ * the number of pipelines, typically one per core.
+ * 
+ * An accepted connection is steered to the pipeline owning the channel of
+ * the first event the connection carries: the header of the event is read,
+ * and the connection is handed over, along with the header, to a spinner of
+ * the owning pipeline, which serves the connection from then on. A producer
+ * therefore publishes the channels of a single pipeline on a connection -
+ * typically a single channel - as the events of every channel are appended to
+ * the segments of the pipeline the connection was steered to. The spinner
+ * checks the channel of every event the connection carries, and closes the
+ * connection on an event of a channel owned by another pipeline.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Pipelines implements CommunicationsHandlerFactory {
+    /**
+     * Reads the header of the first event of the accepted connection, and
+     * hands the connection over to a spinner of the owning pipeline
+     */
+    private class Steering implements CommunicationsHandler {
+        private final ByteBuffer     first = ByteBuffer.allocate(EventHeader.HEADER_BYTE_SIZE);
+        private SocketChannelHandler handler;
+        private Spinner              spinner;
+
+        @Override
+        public void closing(SocketChannel channel) {
+            if (spinner != null) {
+                spinner.closing(channel);
+            }
+        }
+
+        @Override
+        public void handleAccept(SocketChannel channel,
+                                 SocketChannelHandler handler) {
+            this.handler = handler;
+            handler.selectForRead();
+        }
+
+        @Override
+        public void handleConnect(SocketChannel channel,
+                                  SocketChannelHandler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void handleRead(SocketChannel channel) {
+            if (spinner != null) {
+                spinner.handleRead(channel);
+                return;
+            }
+            try {
+                if (channel.read(first) < 0) {
+                    handler.close();
+                    return;
+                }
+            } catch (IOException e) {
+                log.error("Exception during header read", e);
+                return;
+            }
+            if (first.hasRemaining()) {
+                handler.selectForRead();
+                return;
+            }
+            int partition = partition(first.getLong(EventHeader.TAG1_OFFSET),
+                                      first.getLong(EventHeader.TAG2_OFFSET),
+                                      pipelines.length);
+            steered[partition].increment();
+            spinner = (Spinner) pipelines[partition].createCommunicationsHandler();
+            first.flip();
+            spinner.handover(channel, handler, first, partition,
+                             pipelines.length);
+        }
+
+        @Override
+        public void handleWrite(SocketChannel channel) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(Pipelines.class);
+
+    /**
+     * @param tag1
+     *            - the most significant bits of the channel's tag
+     * @param tag2
+     *            - the least significant bits of the channel's tag
+     * @param partitions
+     *            - the number of partitions
+     * @return the partition of the channel, the bits of the tag mixed so that
+     *         channels are spread evenly regardless of the tag's structure
+     */
+    public static int partition(long tag1, long tag2, int partitions) {
+        long hash = tag1 ^ tag2;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) ((hash >>> 1) % partitions);
+    }
+
+    /**
+     * @param tag
+     *            - the channel's tag
+     * @param partitions
+     *            - the number of partitions
+     * @return the partition of the channel
+     */
+    public static int partition(UUID tag, int partitions) {
+        return partition(tag.getMostSignificantBits(),
+                         tag.getLeastSignificantBits(), partitions);
+    }
+
+    private final Ingest[]  pipelines;
+    private final Counter[] steered;
+
+    /**
+     * @param pipelines
+     *            - the pipelines, each over its own ring and bundle
+     */
+    public Pipelines(Ingest... pipelines) {
+        if (pipelines.length == 0) {
+            throw new IllegalArgumentException(
+                                               "There must be at least one pipeline");
+        }
+        this.pipelines = pipelines;
+        steered = new Counter[pipelines.length];
+        for (int i = 0; i < steered.length; i++) {
+            steered[i] = new Counter(1);
+        }
+    }
+
+    /**
+     * Answer the handler of a newly accepted connection, which steers the
+     * connection to the pipeline owning the channel of its first event
+     */
+    @Override
+    public CommunicationsHandler createCommunicationsHandler() {
+        return new Steering();
+    }
+
+    /**
+     * @param partition
+     * @return the pipeline of the partition
+     */
+    public Ingest getPipeline(int partition) {
+        return pipelines[partition];
+    }
+
+    /**
+     * @return the number of pipelines
+     */
+    public int getPipelines() {
+        return pipelines.length;
+    }
+
+    /**
+     * @param partition
+     * @return the number of connections steered to the pipeline of the
+     *         partition
+     */
+    public long getSteered(int partition) {
+        return steered[partition].get();
+    }
+
+    /**
+     * @param channel
+     * @return the pipeline owning the channel
+     */
+    public Ingest pipelineFor(EventChannel channel) {
+        return pipelineFor(channel.getTag());
+    }
+
+    /**
+     * @param tag
+     *            - the tag of the channel
+     * @return the pipeline owning the channel
+     */
+    public Ingest pipelineFor(UUID tag) {
+        return pipelines[partition(tag, pipelines.length)];
+    }
+
+    /**
+     * Register the metrics of the pipelines, qualified by the name and the
+     * partition of each pipeline
+     * 
+     * @param metrics
+     *            - the registry of the metrics
+     * @param name
+     *            - the name qualifying the metrics of the pipelines
+     */
+    public void register(Metrics metrics, String name) {
+        for (int i = 0; i < pipelines.length; i++) {
+            String qualified = name + "." + i;
+            metrics.register(qualified + ".steered", steered[i]);
+            pipelines[i].register(metrics, qualified);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hellblazer.pinkie.CommunicationsHandler;
+import com.hellblazer.pinkie.SocketChannelHandler;
+
+/**
+ * Serves the events of channels to a consumer. The consumer sends requests of
+ * the form:
+ * 
+ * <pre>
+ *      8 byte channel tag most significant bits
+ *      8 byte channel tag least significant bits
+ *      8 byte start offset within the channel
+ *      4 byte maximum bytes
+ * </pre>
+ * 
+ * The reader answers each request with a 4 byte length, followed by that many
+ * bytes of whole events read from the start offset, which must be the offset
+ * of an event. The events are transferred directly from the segment to the
+ * socket. A response holds no more than the maximum bytes of events, unless
+ * the first event alone is larger, in which case that event is sent alone. A
+ * response never spans segments, and is empty if no complete event is
+ * available at the start offset. Events are available once they have been
+ * indexed by their segment. A length of -1 indicates that the channel does
+ * not exist, or has no segment containing the start offset. A length of -2
+ * indicates an invalid request: a negative start offset or maximum bytes, or
+ * a start offset beyond the events available in its segment.
+ * 
+ * The reader closes the connection once the consumer closes its end, or the
+ * connection fails.
+ * 
+ * The offset of the consumer's next request is the start offset plus the
+ * length of the response.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Reader implements CommunicationsHandler {
+    public enum State {
+        ACCEPTED, CLOSED, INITIALIZED, READ_REQUEST, WRITE_EVENTS,
+        WRITE_LENGTH;
+    }
+
+    public static final int     INVALID_OFFSET  = -1;
+    public static final int     INVALID_REQUEST = -2;
+    public static final int     REQUEST_SIZE    = 28;
+
+    private static final Logger log             = LoggerFactory.getLogger(Reader.class);
+
+    private final Bundle         bundle;
+    private SocketChannelHandler handler;
+    private final ByteBuffer     length  = ByteBuffer.allocateDirect(4);
+    private long                 position;
+    private long                 remaining;
+    private final ByteBuffer     request = ByteBuffer.allocateDirect(REQUEST_SIZE);
+    private final ByteBuffer     size    = ByteBuffer.allocate(4);
+    private Segment              segment;
+    private State                state   = State.INITIALIZED;
+
+    /**
+     * @param bundle
+     *            - the bundle of segments the events are read from
+     */
+    public Reader(Bundle bundle) {
+        this.bundle = bundle;
+    }
+
+    @Override
+    public void closing(SocketChannel channel) {
+        state = State.CLOSED;
+        releaseSegment();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    @Override
+    public void handleAccept(SocketChannel channel, SocketChannelHandler handler) {
+        assert state == State.INITIALIZED;
+        state = State.ACCEPTED;
+        this.handler = handler;
+        this.handler.selectForRead();
+    }
+
+    @Override
+    public void handleConnect(SocketChannel channel,
+                              SocketChannelHandler handler) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void handleRead(SocketChannel channel) {
+        switch (state) {
+            case ACCEPTED: {
+                request.clear();
+                state = State.READ_REQUEST;
+                readRequest(channel);
+                break;
+            }
+            case READ_REQUEST: {
+                readRequest(channel);
+                break;
+            }
+            default: {
+                log.error("Invalid read state: " + state);
+            }
+        }
+    }
+
+    @Override
+    public void handleWrite(SocketChannel channel) {
+        switch (state) {
+            case WRITE_LENGTH: {
+                writeLength(channel);
+                break;
+            }
+            case WRITE_EVENTS: {
+                writeEvents(channel);
+                break;
+            }
+            default: {
+                log.error("Invalid write state: " + state);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Reader [state=" + state + ", segment=" + segment
+               + ", remaining=" + remaining + ", position=" + position + "]";
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        releaseSegment();
+        handler.close();
+    }
+
+    /**
+     * Determine the extent of the whole events available from the position of
+     * the segment, up to the maximum bytes. Only the events which have been
+     * indexed are available, so that events still being appended, or torn by
+     * a failed append, are never served.
+     * 
+     * @return the number of bytes of whole events, or -1 if the position is
+     *         beyond the events available
+     */
+    private long extent(long maximumBytes) throws IOException {
+        SegmentIndex index = segment.getIndex();
+        long limit = index == null ? segment.getChannel().size()
+                                  : index.getLimit();
+        if (position > limit) {
+            return -1;
+        }
+        long available = limit - position;
+        long extent = 0;
+        while (extent + EventHeader.HEADER_BYTE_SIZE <= available) {
+            size.clear();
+            long at = position + extent;
+            while (size.hasRemaining()) {
+                if (segment.getChannel().read(size, at + size.position()) < 0) {
+                    return extent;
+                }
+            }
+            int eventSize = size.getInt(0);
+            if (eventSize < EventHeader.HEADER_BYTE_SIZE) {
+                log.error(String.format("Invalid event size: %s at: %s in: %s",
+                                        eventSize, at, segment));
+                return extent;
+            }
+            if (extent + eventSize > available
+                || (extent > 0 && extent + eventSize > maximumBytes)) {
+                return extent;
+            }
+            extent += eventSize;
+        }
+        return extent;
+    }
+
+    /**
+     * Lease the segment containing the requested offset and determine the
+     * events to send
+     */
+    private void prepare() {
+        UUID tag = new UUID(request.getLong(0), request.getLong(8));
+        long offset = request.getLong(16);
+        int maximumBytes = request.getInt(24);
+        length.clear();
+        remaining = 0;
+        if (offset < 0 || maximumBytes < 0) {
+            invalid(String.format("Invalid request of %s bytes at: %s in channel: %s",
+                                  maximumBytes, offset, tag));
+            return;
+        }
+        try {
+            segment = bundle.segmentFor(tag, offset);
+        } catch (IllegalArgumentException e) {
+            if (log.isDebugEnabled()) {
+                log.debug(String.format("No segment contains offset: %s in channel: %s",
+                                        offset, tag));
+            }
+            length.putInt(0, INVALID_OFFSET);
+            return;
+        }
+        position = offset - segment.getBaseOffset();
+        long extent;
+        try {
+            extent = extent(maximumBytes);
+        } catch (IOException e) {
+            log.error(String.format("Unable to read events at: %s from: %s",
+                                    position, segment), e);
+            extent = 0;
+        }
+        if (extent < 0) {
+            invalid(String.format("Request at: %s is beyond the events available in: %s of channel: %s",
+                                  offset, segment, tag));
+            return;
+        }
+        remaining = extent;
+        length.putInt(0, (int) remaining);
+        if (remaining == 0) {
+            releaseSegment();
+        }
+    }
+
+    /**
+     * Answer the invalid request with an error response
+     */
+    private void invalid(String reason) {
+        if (log.isDebugEnabled()) {
+            log.debug(reason);
+        }
+        releaseSegment();
+        remaining = 0;
+        length.putInt(0, INVALID_REQUEST);
+    }
+
+    private void readRequest(SocketChannel channel) {
+        try {
+            if (channel.read(request) < 0) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Consumer closed the connection");
+                }
+                close();
+                return;
+            }
+        } catch (IOException e) {
+            log.error("Exception during request read", e);
+            close();
+            return;
+        }
+        if (request.hasRemaining()) {
+            handler.selectForRead();
+            return;
+        }
+        prepare();
+        state = State.WRITE_LENGTH;
+        writeLength(channel);
+    }
+
+    private void releaseSegment() {
+        if (segment != null) {
+            bundle.release(segment);
+            segment = null;
+        }
+    }
+
+    private void writeEvents(SocketChannel channel) {
+        try {
+            long written = segment.getChannel().transferTo(position, remaining,
+                                                           channel);
+            position += written;
+            remaining -= written;
+        } catch (IOException e) {
+            log.error(String.format("Unable to transfer events at: %s from: %s",
+                                    position, segment), e);
+            close();
+            return;
+        }
+        if (remaining > 0) {
+            handler.selectForWrite();
+            return;
+        }
+        releaseSegment();
+        state = State.ACCEPTED;
+        handler.selectForRead();
+    }
+
+    private void writeLength(SocketChannel channel) {
+        try {
+            channel.write(length);
+        } catch (IOException e) {
+            log.error("Exception during response write", e);
+            close();
+            return;
+        }
+        if (length.hasRemaining()) {
+            handler.selectForWrite();
+            return;
+        }
+        if (remaining > 0) {
+            state = State.WRITE_EVENTS;
+            writeEvents(channel);
+            return;
+        }
+        state = State.ACCEPTED;
+        handler.selectForRead();
+    }
+}
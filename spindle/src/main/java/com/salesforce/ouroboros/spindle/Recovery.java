@@ -0,0 +1,351 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The recovery of the segments of a bundle after a crash. An append which is
+ * interrupted leaves a partial event at the end of its segment, and as events
+ * are appended at the end of the segment, the partial event would otherwise
+ * remain in the segment forever. Recovery walks the events of each segment,
+ * validating their sizes and CRCs, and truncates the torn tail of the segment
+ * following the last valid event.
+ * <p>
+ * Only a tail which contains no valid event is torn. An event which fails
+ * validation but is followed by valid events is not the residue of an
+ * interrupted append: the segment is corrupt, and recovery fails rather than
+ * discard the valid events following it. As recovery validates the CRCs of
+ * the events, a bundle whose events are not verified on ingest relies on its
+ * producers for the CRCs of their events.
+ * <p>
+ * The segments are validated in parallel, and only the tail of each segment is
+ * validated: the extent of each segment which has been validated is recorded
+ * in a checkpoint file in the root of the bundle, and validation of the
+ * segment resumes from the checkpoint, so that the time to recover is bounded
+ * by the events appended since the last recovery rather than the size of the
+ * bundle. Segments which are shorter than their checkpoint are validated in
+ * their entirety.
+ * <p>
+ * Recovery must complete before the bundle opens the segments, which the
+ * bundles ensure by recovering before they are opened, in
+ * {@link FileBundle#recover} and {@link RollingBundle#recover}.
+ * 
+ * <pre>
+ *      4 byte magic
+ *      4 byte count
+ *      entries of UTF path relative to the root, 8 byte validated extent
+ * </pre>
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Recovery {
+    public static final String  CHECKPOINT_FILE = "recovery.checkpoint";
+
+    private static final Logger log             = LoggerFactory.getLogger(Recovery.class);
+    private static final int    MAGIC           = 0x5ca1ab1e;
+
+    /**
+     * Validate the events of the segment following the position
+     * 
+     * @param segment
+     *            - the segment to validate
+     * @param position
+     *            - the position of an event in the segment, from which the
+     *            segment is validated
+     * @return the position following the last valid event of the segment,
+     *         from which the tail of the segment is torn
+     * @throws IOException
+     *             - if the segment cannot be read, or an invalid event is
+     *             followed by valid events, and the segment is corrupt
+     */
+    public static long validate(FileChannel segment, long position)
+                                                                  throws IOException {
+        SegmentReader reader = new SegmentReader(segment);
+        reader.seek(position);
+        long valid = position;
+        try {
+            Event event;
+            while ((event = reader.next()) != null) {
+                if (!event.validate()) {
+                    if (followed(reader)) {
+                        throw new IOException(
+                                              String.format("Corrupt event at: %s is followed by valid events",
+                                                            valid));
+                    }
+                    break;
+                }
+                valid = reader.getPosition();
+            }
+        } catch (IllegalStateException e) {
+            // the size of the event at the end of the valid events is torn
+        } finally {
+            reader.release();
+        }
+        return valid;
+    }
+
+    /**
+     * @param reader
+     *            - the reader positioned following an invalid event
+     * @return true if a valid event follows the invalid event
+     */
+    private static boolean followed(SegmentReader reader) throws IOException {
+        try {
+            Event event;
+            while ((event = reader.next()) != null) {
+                if (event.validate()) {
+                    return true;
+                }
+            }
+        } catch (IllegalStateException e) {
+            // the events following the invalid event cannot be walked
+        }
+        return false;
+    }
+
+    private final File            checkpoint;
+    private final ExecutorService executor;
+    private final File            root;
+    private final AtomicLong      truncated = new AtomicLong();
+    private final AtomicLong      validated = new AtomicLong();
+
+    /**
+     * @param root
+     *            - the root directory of the bundle
+     * @param executor
+     *            - the executor which validates the segments in parallel
+     */
+    public Recovery(File root, ExecutorService executor) {
+        this.root = root;
+        this.executor = executor;
+        checkpoint = new File(root, CHECKPOINT_FILE);
+    }
+
+    /**
+     * @return the checkpoint file of the validated extents of the segments
+     */
+    public File getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return the number of bytes truncated from the segments
+     */
+    public long getTruncated() {
+        return truncated.get();
+    }
+
+    /**
+     * @return the number of bytes of events validated, excluding the extents
+     *         of the segments validated by earlier recoveries
+     */
+    public long getValidated() {
+        return validated.get();
+    }
+
+    /**
+     * Validate the tails of the segments in parallel, truncating the torn tail
+     * of each segment following its last valid event, and record the
+     * validated extents of the segments in the checkpoint
+     * 
+     * @param segments
+     *            - the segment files of the bundle
+     * @return the number of bytes truncated from the segments
+     * @throws IOException
+     *             - if a segment cannot be recovered or is corrupt, or the
+     *             checkpoint cannot be written
+     */
+    public long recover(Collection<File> segments) throws IOException {
+        final Map<String, Long> extents = readCheckpoint();
+        final Map<String, Long> recovered = new HashMap<String, Long>();
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        List<String> names = new ArrayList<String>();
+        long before = truncated.get();
+        for (final File segment : segments) {
+            final String name = nameOf(segment);
+            final Long extent = extents.get(name);
+            names.add(name);
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    return recover(segment, extent == null ? 0L : extent);
+                }
+            }));
+        }
+        IOException failure = null;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                recovered.put(names.get(i), futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted recovering segments", e);
+            } catch (ExecutionException e) {
+                log.error(String.format("Unable to recover segment: %s",
+                                        names.get(i)), e.getCause());
+                if (failure == null) {
+                    failure = new IOException(
+                                              String.format("Unable to recover segment: %s",
+                                                            names.get(i)),
+                                              e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        writeCheckpoint(recovered);
+        return truncated.get() - before;
+    }
+
+    /**
+     * @return the name of the segment within the root of the bundle
+     */
+    private String nameOf(File segment) {
+        return root.toURI().relativize(segment.toURI()).getPath();
+    }
+
+    private Map<String, Long> readCheckpoint() {
+        Map<String, Long> extents = new HashMap<String, Long>();
+        if (!checkpoint.exists()) {
+            return extents;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                                                     new BufferedInputStream(
+                                                                             new FileInputStream(
+                                                                                                 checkpoint)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    log.warn(String.format("Ignoring invalid recovery checkpoint: %s",
+                                           checkpoint));
+                    return extents;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String name = in.readUTF();
+                    extents.put(name, in.readLong());
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            log.warn(String.format("Ignoring truncated recovery checkpoint: %s",
+                                   checkpoint));
+            extents.clear();
+        } catch (IOException e) {
+            log.warn(String.format("Unable to read recovery checkpoint: %s",
+                                   checkpoint), e);
+            extents.clear();
+        }
+        return extents;
+    }
+
+    /**
+     * Validate the segment from its validated extent, truncating the torn tail
+     * of the segment following the last valid event
+     * 
+     * @return the validated extent of the segment
+     */
+    private long recover(File file, long extent) throws IOException {
+        FileChannel segment = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            long size = segment.size();
+            if (extent > size) {
+                log.warn(String.format("Segment: %s is shorter than its checkpoint: %s, validating the entire segment",
+                                       file, extent));
+                extent = 0;
+            }
+            long valid = validate(segment, extent);
+            validated.addAndGet(valid - extent);
+            if (valid < size) {
+                log.warn(String.format("Truncating %s torn bytes following the last valid event at: %s of segment: %s",
+                                       size - valid, valid, file));
+                segment.truncate(valid);
+                segment.force(true);
+                truncated.addAndGet(size - valid);
+            }
+            return valid;
+        } finally {
+            segment.close();
+        }
+    }
+
+    /**
+     * Replace the checkpoint with the validated extents of the segments
+     */
+    private void writeCheckpoint(Map<String, Long> extents) throws IOException {
+        File next = new File(root, CHECKPOINT_FILE + ".tmp");
+        FileOutputStream stream = new FileOutputStream(next);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                                                        new BufferedOutputStream(
+                                                                                 stream));
+            out.writeInt(MAGIC);
+            out.writeInt(extents.size());
+            for (Map.Entry<String, Long> entry : extents.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!next.renameTo(checkpoint)) {
+            checkpoint.delete();
+            if (!next.renameTo(checkpoint)) {
+                throw new IOException(
+                                      String.format("Unable to replace recovery checkpoint: %s",
+                                                    checkpoint));
+            }
+        }
+    }
+}
@@ -0,0 +1,587 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hellblazer.pinkie.CommunicationsHandler;
+import com.hellblazer.pinkie.SocketChannelHandler;
+
+/**
+ * The follower side of replication, which ingests the stream of batches
+ * replicated by a {@link Replicator}. Each batch is a contiguous run of events
+ * of a channel, and is appended to the replica's segment for the channel in
+ * bulk, transferring the batch directly from the socket to the segment. Only
+ * the header of the first event of a batch is read and validated against the
+ * batch framing; the remaining events of the batch are neither read nor
+ * copied.
+ * 
+ * Offsets within a channel are the same on the leader and its replicas. A
+ * batch which starts beyond the end of the replica's channel - the replica
+ * joined late, or lost events - is discarded without acknowledgement, and the
+ * replica reports the end of its channel to the leader, which replicates the
+ * channel again from that end. Each end is reported once. Events which
+ * the replica has already stored, such as those replicated again after a
+ * reconnection, are discarded: either the whole batch, or the leading events
+ * of the batch.
+ * 
+ * The segment of each appended batch is handed over to the replica's
+ * {@link Flusher}, along with the batch's acknowledgement. Once the segment
+ * has been forced, the flusher advances the replica's high water mark for the
+ * channel and acknowledges the batch to the leader, so that the replica's IO
+ * thread never waits on the storage device. A replica without a flusher
+ * leaves durability to the operating system, and acknowledges each batch as
+ * soon as it is appended. If the flusher fails, the replica closes its
+ * connection without acknowledging the unforced batches. Acknowledgements are cumulative, so while an
+ * acknowledgement is being written only the latest high water mark is kept
+ * for acknowledgement.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Replica implements CommunicationsHandler {
+    public enum State {
+        APPEND, CLOSED, DISCARD, GAP, INITIALIZED, READ_BATCH_HEADER,
+        READ_EVENT_HEADER, SKIP;
+    }
+
+    /**
+     * The acknowledgement of a batch, run once the batch is durable
+     */
+    private class Acknowledgement implements Runnable {
+        private final SocketChannel channel;
+        private final long          mark;
+        private final long          segmentId;
+        private final long          tag1;
+        private final long          tag2;
+
+        Acknowledgement(SocketChannel channel, long tag1, long tag2,
+                        long segmentId, long mark) {
+            this.channel = channel;
+            this.tag1 = tag1;
+            this.tag2 = tag2;
+            this.segmentId = segmentId;
+            this.mark = mark;
+        }
+
+        @Override
+        public void run() {
+            acknowledge(channel, tag1, tag2, segmentId, mark);
+        }
+
+        @Override
+        public String toString() {
+            return "Acknowledgement [channel=" + new UUID(tag1, tag2)
+                   + ", mark=" + mark + "]";
+        }
+    }
+
+    /**
+     * Closes the connection once the flusher fails to force the appended
+     * batches, which are therefore never acknowledged
+     */
+    private class Failure implements Runnable {
+        @Override
+        public void run() {
+            log.error("Replicated batches could not be forced, closing connection");
+            state = State.CLOSED;
+            handler.close();
+        }
+    }
+
+    private static final int                DISCARD_BUFFER_SIZE = 8 * 1024;
+    private static final Logger             log                 = LoggerFactory.getLogger(Replica.class);
+
+    private final ByteBuffer                acknowledgement     = ByteBuffer.allocate(Replicator.ACKNOWLEDGEMENT_SIZE);
+    private final ByteBuffer                batchHeader         = ByteBuffer.allocate(Replicator.BATCH_HEADER_SIZE);
+    private final Bundle                    bundle;
+    private ByteBuffer                      discard;
+    private int                             events;
+    private final Runnable                  failure             = new Failure();
+    private final Flusher                   flusher;
+    private SocketChannelHandler            handler;
+    private final EventHeader               header              = new EventHeader(
+                                                                                  ByteBuffer.allocate(EventHeader.HEADER_BYTE_SIZE));
+    private final ByteBuffer                highWaterMark       = ByteBuffer.allocate(Replicator.ACKNOWLEDGEMENT_SIZE);
+    private final ConcurrentMap<UUID, Long> highWaterMarks      = new ConcurrentHashMap<UUID, Long>();
+    private long                            length;
+    private long                            offset;
+    private boolean                         pending;
+    private long                            position;
+    private long                            remaining;
+    private final Map<UUID, Long>           reportedEnds        = new HashMap<UUID, Long>();
+    private final Queue<ByteBuffer>         reports             = new ArrayDeque<ByteBuffer>();
+    private Segment                         segment;
+    private long                            segmentId;
+    private long                            start;
+    private volatile State                  state               = State.INITIALIZED;
+    private long                            tag1;
+    private long                            tag2;
+
+    /**
+     * @param bundle
+     *            - the bundle of segments the replicated events are appended
+     *            to
+     */
+    public Replica(Bundle bundle) {
+        this(bundle, null);
+    }
+
+    /**
+     * @param bundle
+     *            - the bundle of segments the replicated events are appended
+     *            to
+     * @param flusher
+     *            - the flusher which forces the appended batches before they
+     *            are acknowledged, or null
+     */
+    public Replica(Bundle bundle, Flusher flusher) {
+        this.bundle = bundle;
+        this.flusher = flusher;
+        acknowledgement.limit(0);
+    }
+
+    @Override
+    public void closing(SocketChannel channel) {
+        state = State.CLOSED;
+        releaseSegment();
+    }
+
+    /**
+     * @param channel
+     *            - the tag of the channel
+     * @return the offset within the channel following the last event
+     *         replicated to the receiver, or 0 if no events of the channel
+     *         have been replicated
+     */
+    public long getHighWaterMark(UUID channel) {
+        Long mark = highWaterMarks.get(channel);
+        return mark == null ? 0L : mark;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    @Override
+    public void handleAccept(SocketChannel channel, SocketChannelHandler handler) {
+        assert state == State.INITIALIZED;
+        this.handler = handler;
+        batchHeader.clear();
+        state = State.READ_BATCH_HEADER;
+        handler.selectForRead();
+    }
+
+    @Override
+    public void handleConnect(SocketChannel channel,
+                              SocketChannelHandler handler) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void handleRead(SocketChannel channel) {
+        boolean more = true;
+        try {
+            while (more) {
+                switch (state) {
+                    case READ_BATCH_HEADER: {
+                        more = readBatchHeader(channel);
+                        break;
+                    }
+                    case READ_EVENT_HEADER: {
+                        more = readEventHeader(channel);
+                        break;
+                    }
+                    case APPEND: {
+                        more = append(channel);
+                        break;
+                    }
+                    case DISCARD: {
+                        more = discard(channel);
+                        break;
+                    }
+                    case GAP: {
+                        more = gap(channel);
+                        break;
+                    }
+                    case SKIP: {
+                        more = skip(channel);
+                        break;
+                    }
+                    default: {
+                        log.error("Invalid read state: " + state);
+                        return;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error(String.format("Exception during replication of batch: %s in segment: %s of channel: %s",
+                                    offset, segmentId, new UUID(tag1, tag2)),
+                      e);
+            close();
+            return;
+        }
+        if (state != State.CLOSED) {
+            handler.selectForRead();
+        }
+    }
+
+    @Override
+    public void handleWrite(SocketChannel channel) {
+        writeAcknowledgements(channel);
+    }
+
+    @Override
+    public String toString() {
+        return "Replica [state=" + state + ", segment=" + segment
+               + ", remaining=" + remaining + ", position=" + position + "]";
+    }
+
+    /**
+     * Advance the high water mark of the channel past the durable batch,
+     * record it for acknowledgement, and write the pending acknowledgements
+     */
+    private synchronized void acknowledge(SocketChannel channel, long tag1,
+                                          long tag2, long segmentId,
+                                          long mark) {
+        UUID tag = new UUID(tag1, tag2);
+        Long current = highWaterMarks.get(tag);
+        if (current == null || current < segmentId + mark) {
+            highWaterMarks.put(tag, segmentId + mark);
+        }
+        if (state == State.CLOSED) {
+            return;
+        }
+        highWaterMark.clear();
+        highWaterMark.putLong(tag1).putLong(tag2).putLong(segmentId);
+        highWaterMark.putLong(mark);
+        highWaterMark.flip();
+        pending = true;
+        writeAcknowledgements(channel);
+    }
+
+    /**
+     * Transfer the events of the batch from the socket to the segment
+     * 
+     * @return true if the batch has been completely appended
+     */
+    private boolean append(SocketChannel channel) throws IOException {
+        long transferred = segment.getChannel().transferFrom(channel,
+                                                             position,
+                                                             remaining);
+        if (transferred == 0) {
+            return false;
+        }
+        position += transferred;
+        remaining -= transferred;
+        if (remaining > 0) {
+            return true;
+        }
+        if (events == 0) {
+            events = count();
+        }
+        SegmentIndex index = segment.getIndex();
+        if (index != null) {
+            index.append(start, events, position - start);
+        }
+        if (flusher == null) {
+            releaseSegment();
+        } else {
+            flusher.append(segment, events);
+            segment = null;
+        }
+        replicated(channel);
+        return true;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        releaseSegment();
+        handler.close();
+    }
+
+    /**
+     * Count the events appended to the segment from the start of the batch
+     */
+    private int count() throws IOException {
+        SegmentReader reader = new SegmentReader(segment.getChannel());
+        reader.seek(start);
+        int count = 0;
+        while (reader.getPosition() < position && reader.next() != null) {
+            count++;
+        }
+        reader.release();
+        return count;
+    }
+
+    /**
+     * Discard the events of a batch which has already been stored
+     */
+    private boolean discard(SocketChannel channel) throws IOException {
+        if (remaining > 0 && !drain(channel)) {
+            return false;
+        }
+        if (remaining == 0) {
+            replicated(channel);
+        }
+        return true;
+    }
+
+    private boolean disconnected() {
+        if (log.isDebugEnabled()) {
+            log.debug("Leader closed the replication connection");
+        }
+        close();
+        return false;
+    }
+
+    /**
+     * Read and drop the remaining bytes
+     * 
+     * @return true if bytes were read
+     */
+    private boolean drain(SocketChannel channel) throws IOException {
+        if (discard == null) {
+            discard = ByteBuffer.allocate(DISCARD_BUFFER_SIZE);
+        }
+        discard.clear();
+        if (remaining < discard.capacity()) {
+            discard.limit((int) remaining);
+        }
+        int read = channel.read(discard);
+        if (read < 0) {
+            return disconnected();
+        }
+        if (read == 0) {
+            return false;
+        }
+        remaining -= read;
+        return true;
+    }
+
+    /**
+     * Discard the events of a batch which does not follow the events stored,
+     * without acknowledging the batch
+     */
+    private boolean gap(SocketChannel channel) throws IOException {
+        if (remaining > 0 && !drain(channel)) {
+            return false;
+        }
+        if (remaining == 0) {
+            batchHeader.clear();
+            state = State.READ_BATCH_HEADER;
+        }
+        return true;
+    }
+
+    private boolean invalid(String reason) {
+        log.error(String.format("%s, batch: %s in segment: %s of channel: %s",
+                                reason, offset, segmentId,
+                                new UUID(tag1, tag2)));
+        close();
+        return false;
+    }
+
+    private boolean readBatchHeader(SocketChannel channel) throws IOException {
+        if (channel.read(batchHeader) < 0) {
+            return disconnected();
+        }
+        if (batchHeader.hasRemaining()) {
+            return false;
+        }
+        tag1 = batchHeader.getLong(0);
+        tag2 = batchHeader.getLong(8);
+        segmentId = batchHeader.getLong(16);
+        offset = batchHeader.getLong(24);
+        length = batchHeader.getLong(32);
+        events = batchHeader.getInt(40);
+        if (length < EventHeader.HEADER_BYTE_SIZE || events < 1) {
+            return invalid(String.format("Invalid batch of %s events in %s bytes",
+                                         events, length));
+        }
+        header.clear();
+        state = State.READ_EVENT_HEADER;
+        return true;
+    }
+
+    /**
+     * Read and validate the header of the batch's first event, and lease the
+     * segment the batch is appended to
+     */
+    private boolean readEventHeader(SocketChannel channel) throws IOException {
+        if (!header.read(channel)) {
+            return false;
+        }
+        if (header.size() < 0
+            || header.size() + EventHeader.HEADER_BYTE_SIZE > length
+            || header.getTagMostSignificantBits() != tag1
+            || header.getTagLeastSignificantBits() != tag2) {
+            return invalid("Invalid event header framing");
+        }
+        segment = bundle.segmentFor(header);
+        start = segment.getChannel().size();
+        long stored = segment.getBaseOffset() + start;
+        long batchOffset = segmentId + offset;
+        remaining = length - EventHeader.HEADER_BYTE_SIZE;
+        if (stored == batchOffset) {
+            header.rewind();
+            if (!header.write(start, segment.getChannel())) {
+                return invalid("Unable to write complete header");
+            }
+            position = start + EventHeader.HEADER_BYTE_SIZE;
+            state = State.APPEND;
+            return true;
+        }
+        if (batchOffset + length <= stored) {
+            releaseSegment();
+            state = State.DISCARD;
+            return true;
+        }
+        if (batchOffset + EventHeader.HEADER_BYTE_SIZE <= stored
+            && stored < batchOffset + length) {
+            // the leading events of the batch have already been stored
+            remaining = stored - batchOffset - EventHeader.HEADER_BYTE_SIZE;
+            position = start;
+            state = State.SKIP;
+            return true;
+        }
+        // the batch does not follow the events stored
+        releaseSegment();
+        UUID tag = new UUID(tag1, tag2);
+        Long reported = reportedEnds.get(tag);
+        if (reported == null || reported != stored) {
+            reportedEnds.put(tag, stored);
+            report(channel, stored);
+        }
+        state = State.GAP;
+        return true;
+    }
+
+    private void releaseSegment() {
+        if (segment != null) {
+            bundle.release(segment);
+            segment = null;
+        }
+    }
+
+    /**
+     * Acknowledge the batch once it is durable, and prepare for the next. A
+     * discarded batch was appended earlier, but may still await its force.
+     */
+    private void replicated(SocketChannel channel) {
+        Acknowledgement batch = new Acknowledgement(channel, tag1, tag2,
+                                                    segmentId, offset + length);
+        if (flusher == null) {
+            batch.run();
+        } else {
+            flusher.publish(batch, failure);
+        }
+        batchHeader.clear();
+        state = State.READ_BATCH_HEADER;
+    }
+
+    /**
+     * Report the end of the channel to the leader, ahead of the pending high
+     * water mark
+     */
+    private synchronized void report(SocketChannel channel, long stored) {
+        if (log.isInfoEnabled()) {
+            log.info(String.format("Batch: %s in segment: %s does not follow the replicated events of channel: %s ending at: %s, reporting the end",
+                                   offset, segmentId, new UUID(tag1, tag2),
+                                   stored));
+        }
+        ByteBuffer report = ByteBuffer.allocate(Replicator.ACKNOWLEDGEMENT_SIZE);
+        report.putLong(tag1).putLong(tag2).putLong(Replicator.END_REPORT);
+        report.putLong(stored);
+        report.flip();
+        reports.add(report);
+        writeAcknowledgements(channel);
+    }
+
+    /**
+     * Skip the leading events of the batch which have already been stored,
+     * then append the remainder of the batch. As the number of events in the
+     * remainder is unknown, they are counted once appended.
+     */
+    private boolean skip(SocketChannel channel) throws IOException {
+        if (remaining > 0 && !drain(channel)) {
+            return false;
+        }
+        if (remaining == 0) {
+            remaining = segmentId + offset + length - segment.getBaseOffset()
+                        - start;
+            events = 0;
+            state = State.APPEND;
+        }
+        return true;
+    }
+
+    /**
+     * Write the acknowledgement in progress, followed by the reports of channel
+     * ends and the latest high water mark, if any
+     */
+    private synchronized void writeAcknowledgements(SocketChannel channel) {
+        try {
+            while (true) {
+                if (!acknowledgement.hasRemaining()) {
+                    ByteBuffer report = reports.poll();
+                    if (report != null) {
+                        acknowledgement.clear();
+                        acknowledgement.put(report);
+                        acknowledgement.flip();
+                    } else {
+                        if (!pending) {
+                            return;
+                        }
+                        acknowledgement.clear();
+                        acknowledgement.put(highWaterMark);
+                        acknowledgement.flip();
+                        pending = false;
+                    }
+                }
+                channel.write(acknowledgement);
+                if (acknowledgement.hasRemaining()) {
+                    handler.selectForWrite();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            log.error("Unable to write acknowledgement", e);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The persistent record of the events of each channel replicated to a
+ * follower, so that a restarted {@link Replicator} resumes replicating each
+ * channel from the follower's last acknowledgement, rather than replicating
+ * the channel again from its start.
+ * <p>
+ * The checkpoint is an append only log of the follower's acknowledgements,
+ * each followed by the CRC32 of the acknowledgement:
+ * 
+ * <pre>
+ *      8 byte channel tag most significant bits
+ *      8 byte channel tag least significant bits
+ *      8 byte segment - the base offset of the segment within the channel
+ *      8 byte offset within the segment following the acknowledged events
+ *      4 byte CRC32
+ * </pre>
+ * 
+ * The last record of a channel is its replicated position. Once the log holds
+ * more than the compaction threshold of records beyond one per channel, the
+ * log is compacted to the last record of each channel, in a new file which
+ * replaces the log. On open, the log is read up to the first incomplete or
+ * invalid record, and truncated there.
+ * <p>
+ * Records are not forced to the storage device as they are appended, so a
+ * checkpoint recovered after a crash of the host may trail the follower's
+ * acknowledgements; the events following the checkpoint are then replicated
+ * again, which the follower tolerates.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class ReplicationCheckpoint {
+    public static final int         DEFAULT_COMPACTION_THRESHOLD = 4096;
+    public static final int         RECORD_SIZE                  = 36;
+
+    private static final Logger     log                          = LoggerFactory.getLogger(ReplicationCheckpoint.class);
+
+    private FileChannel             channel;
+    private final int               compactionThreshold;
+    private final File              file;
+    private final Map<UUID, long[]> positions                    = new HashMap<UUID, long[]>();
+    private final ByteBuffer        record                       = ByteBuffer.allocate(RECORD_SIZE);
+    private int                     records;
+
+    /**
+     * @param file
+     *            - the file of the checkpoint, which is created if it does
+     *            not exist
+     * @throws IOException
+     */
+    public ReplicationCheckpoint(File file) throws IOException {
+        this(file, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @param file
+     *            - the file of the checkpoint, which is created if it does
+     *            not exist
+     * @param compactionThreshold
+     *            - the number of records beyond one per channel at which the
+     *            checkpoint is compacted
+     * @throws IOException
+     */
+    public ReplicationCheckpoint(File file, int compactionThreshold)
+                                                                    throws IOException {
+        if (compactionThreshold < 1) {
+            throw new IllegalArgumentException(
+                                               String.format("Compaction threshold must be at least 1 record: %s",
+                                                             compactionThreshold));
+        }
+        this.file = file;
+        this.compactionThreshold = compactionThreshold;
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            load();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Close the checkpoint file
+     */
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error(String.format("Error closing replication checkpoint: %s",
+                                    file), e);
+        }
+    }
+
+    /**
+     * Replace the log with the last record of each channel. The compacted log
+     * is written to a new file, which is renamed over the log while both
+     * files are open, so that the checkpoint remains usable if the
+     * compaction fails.
+     * 
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        File next = new File(file.getPath() + ".tmp");
+        FileChannel compacted = new RandomAccessFile(next, "rw").getChannel();
+        boolean replaced = false;
+        try {
+            compacted.truncate(0);
+            for (Map.Entry<UUID, long[]> entry : positions.entrySet()) {
+                UUID tag = entry.getKey();
+                long[] position = entry.getValue();
+                write(compacted, tag.getMostSignificantBits(),
+                      tag.getLeastSignificantBits(), position[0], position[1]);
+            }
+            compacted.force(true);
+            if (!next.renameTo(file)) {
+                throw new IOException(
+                                      String.format("Unable to replace replication checkpoint: %s",
+                                                    file));
+            }
+            replaced = true;
+        } finally {
+            if (!replaced) {
+                // the log is intact, and remains open
+                compacted.close();
+                next.delete();
+            }
+        }
+        FileChannel previous = channel;
+        channel = compacted;
+        records = positions.size();
+        try {
+            previous.close();
+        } catch (IOException e) {
+            log.error(String.format("Error closing replaced replication checkpoint: %s",
+                                    file), e);
+        }
+    }
+
+    /**
+     * Force the records of the checkpoint to the storage device
+     * 
+     * @throws IOException
+     */
+    public synchronized void force() throws IOException {
+        channel.force(false);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param tag
+     *            - the tag of the channel
+     * @return the offset within the channel following the events replicated
+     *         to the follower, or -1 if the checkpoint has no record of the
+     *         channel
+     */
+    public synchronized long getPosition(UUID tag) {
+        long[] position = positions.get(tag);
+        return position == null ? -1 : position[0] + position[1];
+    }
+
+    /**
+     * @return the offsets within the channels following the events replicated
+     *         to the follower, by channel tag
+     */
+    public synchronized Map<UUID, Long> getPositions() {
+        Map<UUID, Long> offsets = new HashMap<UUID, Long>();
+        for (Map.Entry<UUID, long[]> entry : positions.entrySet()) {
+            offsets.put(entry.getKey(),
+                        entry.getValue()[0] + entry.getValue()[1]);
+        }
+        return offsets;
+    }
+
+    /**
+     * @return the number of records in the log
+     */
+    public synchronized int getRecords() {
+        return records;
+    }
+
+    /**
+     * Record the acknowledgement of the follower, compacting the log if the
+     * log has grown beyond the compaction threshold
+     * 
+     * @param tag1
+     *            - the most significant bits of the channel tag
+     * @param tag2
+     *            - the least significant bits of the channel tag
+     * @param segment
+     *            - the base offset of the segment within the channel
+     * @param offset
+     *            - the offset within the segment following the acknowledged
+     *            events
+     * @throws IOException
+     */
+    public synchronized void record(long tag1, long tag2, long segment,
+                                    long offset) throws IOException {
+        UUID tag = new UUID(tag1, tag2);
+        long[] position = positions.get(tag);
+        if (position == null) {
+            position = new long[2];
+            positions.put(tag, position);
+        }
+        position[0] = segment;
+        position[1] = offset;
+        write(channel, tag1, tag2, segment, offset);
+        records++;
+        if (records - positions.size() >= compactionThreshold) {
+            compact();
+        }
+    }
+
+    /**
+     * Read the records of the log, truncating the log at the first incomplete
+     * or invalid record
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+        long position = 0;
+        while (position + RECORD_SIZE <= size) {
+            record.clear();
+            while (record.hasRemaining()) {
+                if (channel.read(record, position + record.position()) < 0) {
+                    break;
+                }
+            }
+            record.flip();
+            int crc = record.getInt(RECORD_SIZE - 4);
+            record.limit(RECORD_SIZE - 4);
+            if (crc != Event.crc32(record)) {
+                break;
+            }
+            UUID tag = new UUID(record.getLong(0), record.getLong(8));
+            positions.put(tag, new long[] { record.getLong(16),
+                    record.getLong(24) });
+            records++;
+            position += RECORD_SIZE;
+        }
+        if (position < size) {
+            log.warn(String.format("Truncating %s bytes of invalid records of replication checkpoint: %s",
+                                   size - position, file));
+            channel.truncate(position);
+        }
+        channel.position(position);
+    }
+
+    private void write(FileChannel target, long tag1, long tag2, long segment,
+                       long offset) throws IOException {
+        record.clear();
+        record.putLong(tag1).putLong(tag2).putLong(segment).putLong(offset);
+        record.flip();
+        int crc = Event.crc32(record);
+        record.limit(RECORD_SIZE);
+        record.putInt(crc);
+        record.flip();
+        while (record.hasRemaining()) {
+            target.write(record);
+        }
+    }
+}
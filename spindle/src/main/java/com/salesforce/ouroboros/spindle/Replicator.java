@@ -26,8 +26,18 @@
 package com.salesforce.ouroboros.spindle;
 
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -39,111 +49,432 @@ import org.slf4j.LoggerFactory;
 
 import com.hellblazer.pinkie.CommunicationsHandler;
 import com.hellblazer.pinkie.SocketChannelHandler;
-import com.lmax.disruptor.AbstractEntry;
-import com.lmax.disruptor.AlertException;
-import com.lmax.disruptor.BatchHandler;
-import com.lmax.disruptor.Consumer;
 import com.lmax.disruptor.ConsumerBarrier;
 import com.lmax.disruptor.RingBuffer;
+import com.salesforce.ouroboros.spindle.Fanout.Batch;
+import com.salesforce.ouroboros.spindle.Fanout.ChannelMark;
 
 /**
- * A replicator of event streams
+ * A replicator of event streams to a follower. Events are replicated to the
+ * follower in batches of events which are contiguous in the same segment,
+ * each batch preceded by a batch header:
+ * 
+ * <pre>
+ *      8 byte channel tag most significant bits
+ *      8 byte channel tag least significant bits
+ *      8 byte segment - the base offset of the segment within the channel
+ *      8 byte offset of the batch within the segment
+ *      8 byte length of the batch
+ *      4 byte number of events in the batch
+ * </pre>
+ * 
+ * The follower acknowledges the events it has durably stored with
+ * acknowledgements of the form:
+ * 
+ * <pre>
+ *      8 byte channel tag most significant bits
+ *      8 byte channel tag least significant bits
+ *      8 byte segment
+ *      8 byte offset within the segment following the stored events
+ * </pre>
+ * 
+ * An acknowledgement is the high water mark of the follower, acknowledging
+ * the batch ending at that offset along with every batch replicated before
+ * it. A follower which receives a batch starting beyond the end of its
+ * channel - a follower which joins late, or which lost events - discards the
+ * batch, and reports the end of its channel instead: a report is an
+ * acknowledgement whose segment is {@link #END_REPORT}, and whose offset is
+ * the offset within the channel following the follower's last stored event.
+ * The replicator drops the batches of the channel in flight beyond the
+ * reported end, and catches the channel up from the reported end.
+ * 
+ * The replicator keeps a window of unacknowledged events in flight,
+ * replicating batches without waiting for the acknowledgement of the batches
+ * preceding them, and stalls only when the window is full.
+ * 
+ * The batches are planned by a {@link Fanout}, which is shared by the
+ * replicators of all the followers of the event stream. The replicator tails
+ * the fanout's log of batches with its own cursor while the follower keeps
+ * up. The replicator tracks, for each channel, the offset following the last
+ * event replicated to the follower, and whenever the next batch of a channel
+ * does not follow that offset, the replicator catches up by replicating the
+ * missing events directly from the channel's segments, in large sequential
+ * transfers, before returning to the log. The replicator falls behind when
+ * the fanout ejects it for lagging by more than the maximum lag, in which
+ * case it skips to the head of the log rather than hold back the producer,
+ * or when the follower reconnects, in which case the unacknowledged events
+ * are replicated again.
+ * 
+ * The acknowledgements of the follower may be recorded in a
+ * {@link ReplicationCheckpoint}, from which a restarted replicator resumes
+ * each channel: a channel whose segments extend beyond its checkpointed
+ * offset catches up from the segments as soon as the follower connects,
+ * whether or not further events of the channel are published.
  * 
  * @author hhildebrand
  * 
  */
 public final class Replicator implements CommunicationsHandler {
-    private class ReplicatedState {
-        final EventHeader   header;
-
-        final long          offset;
-        final AtomicInteger payloadRemaining;
-        final AtomicLong position;
-        final FileChannel   segment;
+    /**
+     * The replication progress of a channel
+     */
+    private static class ReplicatedChannel {
+        boolean lagging;
+        /**
+         * The offset following the last event of the channel available for
+         * replication
+         */
+        long    observed;
+        /**
+         * The offset following the last event of the channel replicated to the
+         * follower
+         */
+        long    replicated;
 
-        public ReplicatedState(long offset, EventHeader header,
-                               FileChannel segment) {
-            this.offset = offset;
-            this.header = header;
-            this.segment = segment;
-            payloadRemaining = new AtomicInteger(header.size());
-            position = new AtomicLong(Event.HEADER_BYTE_SIZE + offset);
+        ReplicatedChannel(long offset) {
+            observed = replicated = offset;
         }
+    }
 
-        public void seekToPayload() throws IOException {
-            header.seekToPayload(offset, segment);
-        }
+    /**
+     * The state of a batch being replicated to the follower
+     */
+    private static class ReplicatedState {
+        final Batch      batch;
+        final ByteBuffer header;
+        final AtomicLong position;
+        final AtomicLong remaining;
 
-        public boolean writeHeader(SocketChannel channel) throws IOException {
-            return header.write(channel);
+        /**
+         * @param batch
+         *            - the batch, pinned by the replicator
+         */
+        public ReplicatedState(Batch batch) {
+            this.batch = batch;
+            header = batch.header.duplicate();
+            position = new AtomicLong(batch.offset);
+            remaining = new AtomicLong(batch.end - batch.offset);
         }
 
-        public boolean writePayload(SocketChannel channel) throws IOException {
-            int remaining = payloadRemaining.get();
+        /**
+         * @param channel
+         *            - the connection to the follower
+         * @param transfers
+         *            - the count of transfers to the connection
+         * @param transferred
+         *            - the count of the bytes transferred
+         * @return true if the batch has been completely written
+         */
+        public boolean write(SocketChannel channel, Counter transfers,
+                             Counter transferred) throws IOException {
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining()) {
+                    return false;
+                }
+            }
             long p = position.get();
-            int written = (int) segment.transferTo(p, remaining, channel);
-            payloadRemaining.set(remaining - written);
+            long written = batch.segment.getChannel().transferTo(p,
+                                                                 remaining.get(),
+                                                                 channel);
+            transfers.increment();
+            transferred.add(written);
             position.set(p + written);
-            if (payloadRemaining.get() == 0) {
-                return true;
-            }
-            return false;
+            return remaining.addAndGet(-written) == 0;
+        }
+    }
+
+    /**
+     * The end of a channel reported by the follower
+     */
+    private static class ReportedEnd {
+        final long end;
+        final UUID tag;
+
+        ReportedEnd(UUID tag, long end) {
+            this.tag = tag;
+            this.end = end;
         }
     }
 
     public enum State {
-        WAITING, WRITE_HEADER, WRITE_PAYLOAD;
+        WAITING, WRITE_BATCH;
     }
 
-    private static final Logger                         log             = LoggerFactory.getLogger(Replicator.class);
-    private final Bundle                                bundle;
-    private final ConsumerBarrier<EventEntry>           consumerBarrier;
-    private final Executor                              executor;
-    private final AtomicReference<SocketChannelHandler> handler         = new AtomicReference<SocketChannelHandler>();
-    private final AtomicReference<ReplicatedState>      replicatedState = new AtomicReference<Replicator.ReplicatedState>();
-    private final AtomicBoolean                         running         = new AtomicBoolean();
-    private final AtomicLong                            sequence        = new AtomicLong(
-                                                                                         RingBuffer.INITIAL_CURSOR_VALUE);
-    private final AtomicReference<State>                state           = new AtomicReference<State>(
-                                                                                                     State.WAITING);
+    public static final int                              ACKNOWLEDGEMENT_SIZE = 32;
+    public static final int                              BATCH_HEADER_SIZE    = 44;
+    public static final long                             CATCH_UP_BATCH_BYTES = 8 * 1024 * 1024;
+    public static final int                              DEFAULT_WINDOW       = 1024;
+    public static final long                             END_REPORT           = -1L;
+
+    private static final Logger                          log                  = LoggerFactory.getLogger(Replicator.class);
+    private final AtomicLong                             acknowledged         = new AtomicLong(RingBuffer.INITIAL_CURSOR_VALUE);
+    private final ConcurrentMap<UUID, Long>              acknowledgedOffsets  = new ConcurrentHashMap<UUID, Long>();
+    private final ByteBuffer                             acknowledgement      = ByteBuffer.allocate(ACKNOWLEDGEMENT_SIZE);
+    private final Bundle                                 bundle;
+    private final Map<UUID, ReplicatedChannel>           channels             = new HashMap<UUID, ReplicatedChannel>();
+    private final ReplicationCheckpoint                  checkpoint;
+    private final AtomicLong                             cursor               = new AtomicLong(RingBuffer.INITIAL_CURSOR_VALUE);
+    private final Executor                               executor;
+    private final Fanout                                 fanout;
+    private final AtomicReference<SocketChannelHandler>  handler              = new AtomicReference<SocketChannelHandler>();
+    private final ConcurrentLinkedQueue<ReplicatedState> inFlight             = new ConcurrentLinkedQueue<ReplicatedState>();
+    private final ArrayDeque<UUID>                       lagging              = new ArrayDeque<UUID>();
+    private final AtomicBoolean                          lapped               = new AtomicBoolean();
+    private volatile Latency                             latency;
+    private final boolean                                ownsFanout;
+    private final AtomicBoolean                          planning             = new AtomicBoolean();
+    private final Runnable                               processor;
+    private final AtomicBoolean                          reconnected          = new AtomicBoolean();
+    private final AtomicReference<ReplicatedState>       replicatedState      = new AtomicReference<Replicator.ReplicatedState>();
+    private final ConcurrentLinkedQueue<ReportedEnd>     reportedEnds         = new ConcurrentLinkedQueue<ReportedEnd>();
+    private final AtomicBoolean                          running              = new AtomicBoolean();
+    private final AtomicLong                             sequence             = new AtomicLong(RingBuffer.INITIAL_CURSOR_VALUE);
+    private final AtomicBoolean                          stalled              = new AtomicBoolean();
+    private final AtomicReference<State>                 state                = new AtomicReference<State>(State.WAITING);
+    private final Counter                                transferred          = new Counter(1);
+    private final Counter                                transfers            = new Counter(1);
+    private final AtomicInteger                          unacknowledged       = new AtomicInteger();
+    private final AtomicBoolean                          waiting              = new AtomicBoolean();
+    private final int                                    window;
 
     /**
-     * Construct a batch consumer that will automatically track the progress by
-     * updating its sequence when the
-     * {@link BatchHandler#onAvailable(AbstractEntry)} method returns.
+     * Construct the replicator of a single follower, consuming the ring with
+     * its own {@link Fanout}
      * 
+     * @param bundle
+     *            - the bundle of segments the events are replicated from
      * @param consumerBarrier
-     *            on which it is waiting.
+     *            - the barrier the replicator is waiting on
+     * @param executor
+     *            - the executor which runs the fanout and the replicator
      */
     public Replicator(final Bundle bundle,
                       final ConsumerBarrier<EventEntry> consumerBarrier,
                       final Executor executor) {
-        this.bundle = bundle;
-        this.consumerBarrier = consumerBarrier;
-        this.executor = executor;
+        this(bundle, consumerBarrier, executor, DEFAULT_WINDOW);
     }
 
+    /**
+     * Construct the replicator of a single follower, consuming the ring with
+     * its own {@link Fanout}
+     * 
+     * @param bundle
+     *            - the bundle of segments the events are replicated from
+     * @param consumerBarrier
+     *            - the barrier the replicator is waiting on
+     * @param executor
+     *            - the executor which runs the fanout and the replicator
+     * @param window
+     *            - the maximum number of events which have been replicated
+     *            but not yet acknowledged by the follower
+     */
+    public Replicator(final Bundle bundle,
+                      final ConsumerBarrier<EventEntry> consumerBarrier,
+                      final Executor executor, int window) {
+        this(bundle, consumerBarrier, executor, window, Long.MAX_VALUE);
+    }
+
+    /**
+     * Construct the replicator of a single follower, consuming the ring with
+     * its own {@link Fanout}
+     * 
+     * @param bundle
+     *            - the bundle of segments the events are replicated from
+     * @param consumerBarrier
+     *            - the barrier the replicator is waiting on
+     * @param executor
+     *            - the executor which runs the fanout and the replicator
+     * @param window
+     *            - the maximum number of events which have been replicated
+     *            but not yet acknowledged by the follower
+     * @param maximumLag
+     *            - the maximum number of events of the ring the replicator
+     *            may lag behind before skipping to the head of the ring and
+     *            catching up from the segments
+     */
+    public Replicator(final Bundle bundle,
+                      final ConsumerBarrier<EventEntry> consumerBarrier,
+                      final Executor executor, int window, long maximumLag) {
+        this(new Fanout(bundle, consumerBarrier, executor,
+                        Fanout.DEFAULT_CAPACITY, maximumLag), window, null,
+             true);
+    }
+
+    /**
+     * Construct the replicator of one of the followers of the fanout
+     * 
+     * @param fanout
+     *            - the fanout planning the batches to replicate
+     * @param window
+     *            - the maximum number of events which have been replicated
+     *            but not yet acknowledged by the follower
+     */
+    public Replicator(Fanout fanout, int window) {
+        this(fanout, window, null, false);
+    }
+
+    /**
+     * Construct the replicator of one of the followers of the fanout, which
+     * resumes replicating each channel recorded in the checkpoint from the
+     * follower's last acknowledgement, and records the follower's
+     * acknowledgements in the checkpoint
+     * 
+     * @param fanout
+     *            - the fanout planning the batches to replicate
+     * @param window
+     *            - the maximum number of events which have been replicated
+     *            but not yet acknowledged by the follower
+     * @param checkpoint
+     *            - the checkpoint of the follower's acknowledgements, or null
+     */
+    public Replicator(Fanout fanout, int window,
+                      ReplicationCheckpoint checkpoint) {
+        this(fanout, window, checkpoint, false);
+    }
+
+    private Replicator(Fanout fanout, int window,
+                       ReplicationCheckpoint checkpoint, boolean ownsFanout) {
+        if (window < 1) {
+            throw new IllegalArgumentException(
+                                               String.format("Window must be at least 1 event: %s",
+                                                             window));
+        }
+        this.fanout = fanout;
+        this.window = window;
+        this.ownsFanout = ownsFanout;
+        this.checkpoint = checkpoint;
+        bundle = fanout.getBundle();
+        executor = fanout.getExecutor();
+        processor = new Runnable() {
+            @Override
+            public void run() {
+                processNext();
+            }
+        };
+        if (checkpoint != null) {
+            for (Map.Entry<UUID, Long> entry : checkpoint.getPositions().entrySet()) {
+                UUID tag = entry.getKey();
+                ReplicatedChannel channel = new ReplicatedChannel(
+                                                                  entry.getValue());
+                channels.put(tag, channel);
+                acknowledgedOffsets.put(tag, entry.getValue());
+                // events appended, but not acknowledged, before the restart
+                lag(channel, tag, bundle.endOf(tag));
+            }
+        }
+        fanout.add(this);
+        cursor.set(fanout.getPublished());
+    }
+
+    /**
+     * The connection to the follower has been closed. The unacknowledged
+     * events will be replicated again if the follower reconnects.
+     */
     @Override
     public void closing(SocketChannel channel) {
-        // TODO Auto-generated method stub
+        running.set(false);
+        stalled.set(false);
+        if (state.compareAndSet(State.WRITE_BATCH, State.WAITING)) {
+            replicatedState.get().batch.unpin(bundle);
+        }
+        fanout.released();
     }
 
     /**
-     * Get the {@link ConsumerBarrier} the {@link Consumer} is waiting on.
-     * 
-     * @return the barrier this {@link Consumer} is using.
+     * @return the sequence of the last event of the ring acknowledged by the
+     *         follower. Events the replicator skipped while lagging are not
+     *         reflected in the sequence.
+     */
+    public long getAcknowledged() {
+        return acknowledged.get();
+    }
+
+    /**
+     * @return the barrier the replicator's fanout is waiting on
      */
     public ConsumerBarrier<EventEntry> getConsumerBarrier() {
-        return consumerBarrier;
+        return fanout.getConsumerBarrier();
+    }
+
+    /**
+     * @return the index of the last batch of the fanout's log taken by the
+     *         replicator
+     */
+    public long getCursor() {
+        return cursor.get();
+    }
+
+    public Fanout getFanout() {
+        return fanout;
+    }
+
+    /**
+     * @return the number of bytes of the events published by the fanout, but
+     *         not yet acknowledged by the follower
+     */
+    public long getLagBytes() {
+        long lag = 0;
+        for (Map.Entry<UUID, ChannelMark> entry : fanout.getChannels()) {
+            ChannelMark mark = entry.getValue();
+            Long offset = acknowledgedOffsets.get(entry.getKey());
+            lag += Math.max(0, mark.end
+                               - (offset == null ? mark.first : offset));
+        }
+        return lag;
+    }
+
+    /**
+     * @return the number of events of the ring planned by the fanout, but not
+     *         yet acknowledged by the follower
+     */
+    public long getLagEvents() {
+        return Math.max(0, fanout.getPlanned() - acknowledged.get());
+    }
+
+    /**
+     * @return the latency tracking of the events replicated by the receiver,
+     *         or null if latency is not tracked
+     */
+    public Latency getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the sequence of the last event of the ring consumed by the
+     *         replicator
+     */
+    public long getSequence() {
+        return sequence.get();
     }
 
     public State getState() {
         return state.get();
     }
 
+    /**
+     * @return the number of events replicated, but not yet acknowledged by the
+     *         follower
+     */
+    public int getUnacknowledged() {
+        return unacknowledged.get();
+    }
+
+    /**
+     * @return the maximum number of unacknowledged events in flight
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Halt the replicator, and the fanout if the fanout is the replicator's
+     * own
+     */
     public void halt() {
-        if (running.compareAndSet(true, false)) {
-            consumerBarrier.alert();
+        running.set(false);
+        if (ownsFanout) {
+            fanout.halt();
         }
     }
 
@@ -155,41 +486,69 @@ public final class Replicator implements CommunicationsHandler {
     @Override
     public void handleConnect(SocketChannel channel,
                               final SocketChannelHandler handler) {
-        this.handler.set(handler);
+        if (this.handler.getAndSet(handler) != null) {
+            reconnected.set(true);
+        }
+        acknowledgement.clear();
         running.set(true);
+        fanout.start();
+        handler.selectForRead();
         evaluate();
     }
 
+    /**
+     * Read the acknowledgements of the follower
+     */
     @Override
     public void handleRead(SocketChannel channel) {
-        throw new UnsupportedOperationException();
+        try {
+            while (true) {
+                if (channel.read(acknowledgement) < 0) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Follower closed the replication connection");
+                    }
+                    return;
+                }
+                if (acknowledgement.hasRemaining()) {
+                    break;
+                }
+                if (acknowledgement.getLong(16) == END_REPORT) {
+                    reported(acknowledgement.getLong(0),
+                             acknowledgement.getLong(8),
+                             acknowledgement.getLong(24));
+                } else {
+                    acknowledge(acknowledgement.getLong(0),
+                                acknowledgement.getLong(8),
+                                acknowledgement.getLong(16),
+                                acknowledgement.getLong(24));
+                }
+                acknowledgement.clear();
+            }
+        } catch (IOException e) {
+            log.error("Unable to read acknowledgements", e);
+            return;
+        }
+        handler.get().selectForRead();
     }
 
     @Override
     public void handleWrite(SocketChannel channel) {
         switch (state.get()) {
-            case WRITE_HEADER: {
-                try {
-                    if (replicatedState.get().writeHeader(channel)) {
-                        state.set(State.WRITE_PAYLOAD);
-                    }
-                } catch (IOException e) {
-                    ReplicatedState rs = replicatedState.get();
-                    log.error(String.format("Unable to replicate header for event: %s from: %s",
-                                            rs.offset, rs.segment), e);
-                }
-                break;
-            }
-            case WRITE_PAYLOAD: {
+            case WRITE_BATCH: {
+                ReplicatedState rs = replicatedState.get();
                 try {
-                    if (replicatedState.get().writePayload(channel)) {
+                    if (rs.write(channel, transfers, transferred)) {
+                        replicated(rs.batch);
+                        rs.batch.unpin(bundle);
                         state.set(State.WAITING);
-                        evaluate();
+                        next();
+                    } else {
+                        handler.get().selectForWrite();
                     }
                 } catch (IOException e) {
-                    ReplicatedState rs = replicatedState.get();
-                    log.error(String.format("Unable to replicate payload for event: %s from: %s",
-                                            rs.offset, rs.segment), e);
+                    log.error(String.format("Unable to replicate events: %s from: %s",
+                                            rs.batch.offset, rs.batch.segment),
+                              e);
                 }
                 break;
             }
@@ -198,45 +557,467 @@ public final class Replicator implements CommunicationsHandler {
         }
     }
 
-    private void evaluate() {
-        if (running.get()) {
-            executor.execute(new Runnable() {
-                public void run() {
-                    processNext();
-                }
-            });
+    /**
+     * @return true if the follower is connected
+     */
+    public boolean isConnected() {
+        return running.get();
+    }
+
+    /**
+     * @return true if the replicator gates the fanout - the follower is
+     *         connected, and the replicator has not been ejected
+     */
+    public boolean isGating() {
+        return running.get() && !lapped.get();
+    }
+
+    /**
+     * @return true if the replicator has been ejected from the fanout's log,
+     *         and has yet to skip to its head
+     */
+    public boolean isLapped() {
+        return lapped.get();
+    }
+
+    /**
+     * Register the receiver's metrics, qualified by the name
+     * 
+     * @param metrics
+     *            - the registry of the metrics
+     * @param name
+     *            - the name qualifying the receiver's metrics
+     */
+    public void register(Metrics metrics, String name) {
+        metrics.register(name + ".transferTo.calls", transfers);
+        metrics.register(name + ".transferTo.bytes", transferred);
+        metrics.gauge(name + ".lag.events", new Gauge() {
+            @Override
+            public long value() {
+                return getLagEvents();
+            }
+        });
+        metrics.gauge(name + ".lag.bytes", new Gauge() {
+            @Override
+            public long value() {
+                return getLagBytes();
+            }
+        });
+        metrics.gauge(name + ".unacknowledged", new Gauge() {
+            @Override
+            public long value() {
+                return unacknowledged.get();
+            }
+        });
+    }
+
+    /**
+     * Track the latency of the events replicated by the receiver. The stages
+     * of each batch written to the follower are recorded from the stamps of
+     * the batch's oldest event; batches caught up from the segments carry no
+     * stamps, and are not recorded.
+     * 
+     * @param latency
+     *            - the latency tracking, or null to stop tracking
+     */
+    public void setLatency(Latency latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * The fanout has published the next batch
+     */
+    void available() {
+        if (waiting.get()) {
+            evaluate();
         }
     }
 
+    /**
+     * The fanout has ejected the replicator from its log; the replicator
+     * skips to the head of the log, and catches up from the segments
+     */
+    void lap() {
+        lapped.set(true);
+        available();
+    }
+
+    /**
+     * Plan and replicate the next batch
+     */
     void processNext() {
-        long nextSequence = sequence.get() + 1;
+        ReplicatedState batch;
         try {
-            try {
-                consumerBarrier.waitFor(nextSequence);
-            } catch (InterruptedException e) {
+            batch = plan();
+        } finally {
+            planning.set(false);
+        }
+        if (batch != null) {
+            replicate(batch);
+        } else if (!reportedEnds.isEmpty()
+                   || (waiting.get() && cursor.get() < fanout.getPublished())) {
+            // the follower reported, or the fanout published, while the
+            // replicator was planning
+            evaluate();
+        }
+    }
+
+    /**
+     * Replication of a channel cannot proceed. The connection to the follower
+     * is closed, rather than skip the channel's missing events, and the
+     * channel catches up once the follower reconnects.
+     */
+    private void abort(String reason) {
+        log.error(String.format("%s, closing connection", reason));
+        running.set(false);
+        handler.get().close();
+    }
+
+    /**
+     * Retire the batches acknowledged by the follower's high water mark, and
+     * resume replication if the window has been opened. Runs on the IO thread,
+     * serialized with the planner's changes to the batches in flight.
+     */
+    private void acknowledge(long tag1, long tag2, long segmentId, long offset) {
+        ReplicatedState acknowledgedBatch = null;
+        synchronized (inFlight) {
+            for (ReplicatedState rs : inFlight) {
+                if (rs.batch.isAcknowledgedBy(tag1, tag2, segmentId, offset)) {
+                    acknowledgedBatch = rs;
+                    break;
+                }
+            }
+            if (acknowledgedBatch == null) {
+                log.error(String.format("Acknowledgement of unreplicated events: %s in segment: %s of channel: %s",
+                                        offset, segmentId, new UUID(tag1, tag2)));
                 return;
             }
-            EventEntry entry = consumerBarrier.getEntry(nextSequence);
-            sequence.set(entry.getSequence());
-            replicate(entry);
-        } catch (final AlertException ex) {
-            // Wake up from blocking wait
+            int events = 0;
+            ReplicatedState rs;
+            do {
+                rs = inFlight.poll();
+                if (rs == null) {
+                    break;
+                }
+                events += rs.batch.events;
+            } while (rs != acknowledgedBatch);
+            unacknowledged.addAndGet(-events);
+        }
+        acknowledged.set(acknowledgedBatch.batch.last);
+        acknowledgedOffsets.put(acknowledgedBatch.batch.getTag(),
+                                acknowledgedBatch.batch.getChannelEnd());
+        if (checkpoint != null) {
+            try {
+                checkpoint.record(tag1, tag2, segmentId, offset);
+            } catch (IOException e) {
+                log.error(String.format("Unable to checkpoint acknowledgement: %s in segment: %s of channel: %s",
+                                        offset, segmentId, new UUID(tag1, tag2)),
+                          e);
+            }
+        }
+        if (unacknowledged.get() < window && stalled.compareAndSet(true, false)) {
+            evaluate();
         }
     }
 
-    private void replicate(EventEntry entry) {
-        EventHeader header = entry.getHeader().clone();
-        header.rewind();
-        ReplicatedState rs = new ReplicatedState(entry.getOffset(), header,
-                                                 bundle.segmentFor(header));
-        replicatedState.set(rs);
-        try {
-            rs.seekToPayload();
-        } catch (IOException e) {
-            log.error(String.format("Unable to seek to event payload on: %s, offset: %s",
-                                    rs.segment, rs.offset));
+    /**
+     * Plan the next batch of the channels which have fallen behind, replicating
+     * their missing events from the segments
+     * 
+     * @return the next batch, or null if no channel has fallen behind
+     */
+    private Batch catchUp() {
+        while (!lagging.isEmpty()) {
+            UUID tag = lagging.peek();
+            ReplicatedChannel channel = channels.get(tag);
+            if (channel.replicated >= channel.observed) {
+                lagging.poll();
+                channel.lagging = false;
+                continue;
+            }
+            Segment segment;
+            try {
+                segment = bundle.segmentFor(tag, channel.replicated);
+            } catch (IllegalArgumentException e) {
+                abort(String.format("No segment contains offset: %s in channel: %s, unable to catch up",
+                                    channel.replicated, tag));
+                return null;
+            }
+            long base = segment.getBaseOffset();
+            long offset = channel.replicated - base;
+            int admitted = Math.max(1, window - unacknowledged.get());
+            int events = 0;
+            SegmentReader reader = new SegmentReader(segment.getChannel());
+            reader.seek(offset);
+            boolean failed = false;
+            try {
+                while (events < admitted
+                       && base + reader.getPosition() < channel.observed
+                       && reader.getPosition() - offset < CATCH_UP_BATCH_BYTES
+                       && reader.next() != null) {
+                    events++;
+                }
+            } catch (IOException e) {
+                log.error(String.format("Unable to read events at: %s from: %s",
+                                        reader.getPosition(), segment), e);
+                failed = true;
+            } catch (IllegalStateException e) {
+                log.error(String.format("Unable to read events at: %s from: %s",
+                                        reader.getPosition(), segment), e);
+                failed = true;
+            }
+            reader.release();
+            if (events == 0) {
+                bundle.release(segment);
+                if (failed) {
+                    abort(String.format("No events at: %s in segment: %s, unable to catch up channel: %s",
+                                        offset, segment, tag));
+                    return null;
+                }
+                // the event at the offset has yet to be completely appended
+                channel.observed = channel.replicated;
+                continue;
+            }
+            channel.replicated = base + reader.getPosition();
+            return new Batch(tag.getMostSignificantBits(),
+                             tag.getLeastSignificantBits(), offset,
+                             reader.getPosition(), events, sequence.get(),
+                             segment);
+        }
+        return null;
+    }
+
+    /**
+     * @return the replication progress of the channel, starting at the offset
+     *         if the channel has not been replicated
+     */
+    private ReplicatedChannel channel(UUID tag, long offset) {
+        ReplicatedChannel channel = channels.get(tag);
+        if (channel == null) {
+            channel = new ReplicatedChannel(offset);
+            channels.put(tag, channel);
+        }
+        return channel;
+    }
+
+    private void evaluate() {
+        if (running.get() && planning.compareAndSet(false, true)) {
+            executor.execute(processor);
+        }
+    }
+
+    /**
+     * Note that the events of the channel up to the offset are available for
+     * replication, scheduling the channel to catch up if it has fallen behind
+     */
+    private void lag(ReplicatedChannel channel, UUID tag, long offset) {
+        channel.observed = Math.max(channel.observed, offset);
+        if (channel.replicated < channel.observed && !channel.lagging) {
+            channel.lagging = true;
+            lagging.add(tag);
+        }
+    }
+
+    /**
+     * Replicate the next batch if the window admits more events, otherwise
+     * stall until the follower's acknowledgements open the window
+     */
+    private void next() {
+        if (unacknowledged.get() < window) {
+            evaluate();
+            return;
+        }
+        stalled.set(true);
+        if ((unacknowledged.get() < window || !reportedEnds.isEmpty())
+            && stalled.compareAndSet(true, false)) {
+            evaluate();
+        }
+    }
+
+    /**
+     * Plan the next batch to replicate. Channels which have fallen behind catch
+     * up first; otherwise the replicator takes the next batch published by
+     * the fanout, waiting for the fanout if the replicator has taken every
+     * batch published.
+     * 
+     * @return the next batch, or null if there is no batch to replicate
+     */
+    private ReplicatedState plan() {
+        waiting.set(false);
+        if (!running.get()) {
+            return null;
+        }
+        if (reconnected.compareAndSet(true, false)) {
+            rewind();
+        }
+        ReportedEnd reportedEnd;
+        while ((reportedEnd = reportedEnds.poll()) != null) {
+            rewind(reportedEnd.tag, reportedEnd.end);
         }
-        state.set(State.WRITE_HEADER);
+        while (true) {
+            if (lapped.get()) {
+                skip();
+            }
+            Batch batch = catchUp();
+            if (batch != null) {
+                return new ReplicatedState(batch);
+            }
+            if (!running.get()) {
+                return null;
+            }
+            long index = cursor.get() + 1;
+            if (index > fanout.getPublished()) {
+                waiting.set(true);
+                if (index > fanout.getPublished()) {
+                    return null;
+                }
+                waiting.set(false);
+                continue;
+            }
+            batch = fanout.get(index);
+            if (batch == null || !batch.pin()) {
+                // the batch has been overwritten, and its lease released
+                lapped.set(true);
+                continue;
+            }
+            if (lapped.get()) {
+                batch.unpin(bundle);
+                continue;
+            }
+            UUID tag = batch.getTag();
+            ReplicatedChannel channel = channel(tag, batch.getChannelOffset());
+            if (batch.getChannelOffset() > channel.replicated) {
+                // the channel has fallen behind the fanout
+                batch.unpin(bundle);
+                lag(channel, tag, batch.getChannelOffset());
+                continue;
+            }
+            cursor.set(index);
+            sequence.set(batch.last);
+            fanout.released();
+            if (batch.getChannelEnd() <= channel.replicated) {
+                // the events have already been replicated from the segments
+                batch.unpin(bundle);
+                continue;
+            }
+            channel.replicated = batch.getChannelEnd();
+            channel.observed = Math.max(channel.observed, channel.replicated);
+            return new ReplicatedState(batch);
+        }
+    }
+
+    /**
+     * The batch has been written to the follower; record the latency of its
+     * events, if tracked
+     */
+    private void replicated(Batch batch) {
+        Latency tracking = latency;
+        if (tracking == null || batch.committed == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        tracking.record(Latency.Stage.REPLICATE, now - batch.committed,
+                        batch.events);
+        tracking.record(Latency.Stage.END_TO_END, now - batch.read,
+                        batch.events);
+    }
+
+    /**
+     * Replicate the batch to the follower
+     */
+    private void replicate(ReplicatedState rs) {
+        synchronized (inFlight) {
+            inFlight.add(rs);
+            unacknowledged.addAndGet(rs.batch.events);
+        }
+        replicatedState.set(rs);
+        state.set(State.WRITE_BATCH);
         handler.get().selectForWrite();
     }
+
+    /**
+     * The follower has reported the end of the channel, having discarded a
+     * batch beyond it. Runs on the IO thread; the channel is rewound by the
+     * planner.
+     */
+    private void reported(long tag1, long tag2, long end) {
+        UUID tag = new UUID(tag1, tag2);
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Follower reported the end: %s of channel: %s",
+                                    end, tag));
+        }
+        reportedEnds.add(new ReportedEnd(tag, end));
+        stalled.set(false);
+        evaluate();
+    }
+
+    /**
+     * The follower has reconnected; the events replicated but unacknowledged
+     * are replicated again from the segments. Runs on the planner thread,
+     * serialized with the acknowledgements read on the IO thread, so that an
+     * acknowledgement racing the rewind either retires its batches before
+     * they are rewound, or finds them gone.
+     */
+    private void rewind() {
+        Set<UUID> rewound = new HashSet<UUID>();
+        synchronized (inFlight) {
+            for (ReplicatedState rs : inFlight) {
+                UUID tag = rs.batch.getTag();
+                if (rewound.add(tag)) {
+                    ReplicatedChannel channel = channels.get(tag);
+                    channel.replicated = rs.batch.getChannelOffset();
+                    lag(channel, tag, channel.observed);
+                }
+            }
+            inFlight.clear();
+            unacknowledged.set(0);
+        }
+    }
+
+    /**
+     * Rewind the channel to the end reported by the follower. The batches of
+     * the channel in flight beyond the end are discarded by the follower, and
+     * will never be acknowledged, so they are dropped from the window.
+     */
+    private void rewind(UUID tag, long end) {
+        ReplicatedChannel channel = channels.get(tag);
+        if (channel == null || end >= channel.replicated) {
+            return;
+        }
+        synchronized (inFlight) {
+            Iterator<ReplicatedState> batches = inFlight.iterator();
+            while (batches.hasNext()) {
+                ReplicatedState rs = batches.next();
+                if (rs.batch.getChannelOffset() > end
+                    && rs.batch.getTag().equals(tag)) {
+                    batches.remove();
+                    unacknowledged.addAndGet(-rs.batch.events);
+                }
+            }
+        }
+        channel.replicated = end;
+        lag(channel, tag, channel.observed);
+    }
+
+    /**
+     * The replicator has been ejected from the fanout's log. Note the events
+     * of the channels published by the fanout as available for replication,
+     * so that the channels catch up from the segments, and skip to the head of
+     * the log.
+     */
+    private void skip() {
+        lapped.set(false);
+        long head = fanout.getPublished();
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Replication skipping %s batches, catching up from segments",
+                                    head - cursor.get()));
+        }
+        cursor.set(head);
+        sequence.set(Math.max(sequence.get(), fanout.getPlanned()));
+        fanout.released();
+        for (Map.Entry<UUID, ChannelMark> entry : fanout.getChannels()) {
+            ChannelMark mark = entry.getValue();
+            lag(channel(entry.getKey(), mark.first), entry.getKey(), mark.end);
+        }
+    }
 }
@@ -0,0 +1,667 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bundle which stores the events of each channel in a sequence of bounded
+ * segment files. Each channel has a directory in the root, named by the
+ * channel's tag, containing the channel's segments. A segment file is named by
+ * its base offset - the offset within the channel of the segment's first byte
+ * - so that the event at an offset of the channel resolves to the segment with
+ * the greatest base offset not exceeding the offset, at the position of the
+ * offset less the base offset.
+ * 
+ * Events are appended to the last segment of the channel. When the last
+ * segment has reached the maximum segment size, or has been appended to for
+ * longer than the maximum segment age, the next append lease rolls the channel
+ * to a new segment. As a run of events is appended under a single lease, a
+ * segment may exceed the maximum size by at most one run. The age of the last
+ * segment of a channel loaded from disk is taken from the modification time of
+ * the segment preceding it, which stopped taking appends when the channel
+ * rolled to the last segment, or from the last segment's own modification
+ * time if it is the channel's first.
+ * 
+ * Each segment is indexed by a {@link SegmentIndex}, which records the ordinal
+ * of the segment's first event, so that the event with an ordinal of the
+ * channel resolves to the segment with the greatest base ordinal not exceeding
+ * the ordinal.
+ * 
+ * As with the {@link FileBundle}, the open segments are pooled in a bounded
+ * cache, and segments which are evicted while leased remain open until their
+ * last lease is released.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class RollingBundle implements Bundle {
+    public static final String SEGMENT_SUFFIX = ".segment";
+
+    private static class Channel {
+        long                      activeBase;
+        long                      activeSince;
+        final File                directory;
+        /**
+         * The base offsets of the segments, by base ordinal
+         */
+        final TreeMap<Long, Long> ordinals = new TreeMap<Long, Long>();
+        /**
+         * The base ordinals of the segments, by base offset
+         */
+        final TreeMap<Long, Long> segments = new TreeMap<Long, Long>();
+
+        Channel(File directory) {
+            this.directory = directory;
+        }
+    }
+
+    private static class Handle {
+        boolean       evicted;
+        final Key     key;
+        int           leases;
+        final Segment segment;
+
+        Handle(Segment segment, Key key) {
+            this.segment = segment;
+            this.key = key;
+        }
+    }
+
+    /**
+     * The key of a channel, or of a segment within a channel, which is reused
+     * for lookups so that resolving a segment does not allocate
+     */
+    private static class Key {
+        long base;
+        long lsb;
+        long msb;
+
+        Key(long msb, long lsb, long base) {
+            this.msb = msb;
+            this.lsb = lsb;
+            this.base = base;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return msb == other.msb && lsb == other.lsb && base == other.base;
+        }
+
+        @Override
+        public int hashCode() {
+            long hilo = msb ^ lsb ^ base;
+            return (int) (hilo >> 32) ^ (int) hilo;
+        }
+    }
+
+    private static final long                CHANNEL = -1L;
+    private static final Logger              log     = LoggerFactory.getLogger(RollingBundle.class);
+
+    private final Map<Key, Channel>          channels;
+    private final Map<Key, Handle>           evicted = new HashMap<Key, Handle>();
+    private final Map<Segment, Handle>       handles;
+    private final int                        indexInterval;
+    private final Key                        lookup  = new Key(0, 0, 0);
+    private final int                        maxOpenSegments;
+    private final Counter                    opened  = new Counter();
+    private final long                       maxSegmentAge;
+    private final long                       maxSegmentSize;
+    private final File                       root;
+    private final LinkedHashMap<Key, Handle> segments;
+
+    /**
+     * @param baseOffset
+     * @return the name of the index file of the segment with the base offset
+     */
+    public static String indexName(long baseOffset) {
+        return String.format("%020d%s", baseOffset, SegmentIndex.INDEX_SUFFIX);
+    }
+
+    /**
+     * Recover the segments of the channels stored in the root after a crash,
+     * then open the bundle over the recovered segments
+     * 
+     * @param root
+     *            - the directory containing the channels
+     * @param maxOpenSegments
+     *            - the maximum number of unleased segments kept open
+     * @param maxSegmentSize
+     *            - the size in bytes at which a channel rolls to a new segment
+     * @param maxSegmentAge
+     *            - the time after which a channel rolls to a new segment
+     * @param unit
+     *            - the unit of the maximum segment age
+     * @param indexInterval
+     *            - the minimum distance in bytes between indexed events
+     * @param executor
+     *            - the executor which recovers the segments in parallel
+     * @return the bundle of the recovered segments
+     * @throws IOException
+     *             - if a segment cannot be recovered
+     */
+    public static RollingBundle recover(File root, int maxOpenSegments,
+                                        long maxSegmentSize,
+                                        long maxSegmentAge, TimeUnit unit,
+                                        int indexInterval,
+                                        ExecutorService executor)
+                                                                 throws IOException {
+        RollingBundle bundle = new RollingBundle(root, maxOpenSegments,
+                                                 maxSegmentSize,
+                                                 maxSegmentAge, unit,
+                                                 indexInterval);
+        new Recovery(root, executor).recover(bundle.getSegmentFiles());
+        return bundle;
+    }
+
+    /**
+     * @param baseOffset
+     * @return the name of the segment file with the base offset
+     */
+    public static String segmentName(long baseOffset) {
+        return String.format("%020d%s", baseOffset, SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @return the modification time of the file on the clock of
+     *         {@link System#nanoTime()}, or the current time if the file does
+     *         not exist
+     */
+    private static long since(File file) {
+        long now = System.nanoTime();
+        long modified = file.lastModified();
+        if (modified == 0L) {
+            return now;
+        }
+        long age = Math.max(0L, System.currentTimeMillis() - modified);
+        return now - TimeUnit.MILLISECONDS.toNanos(age);
+    }
+
+    /**
+     * @param root
+     *            - the directory containing the channels
+     * @param maxOpenSegments
+     *            - the maximum number of unleased segments kept open
+     * @param maxSegmentSize
+     *            - the size in bytes at which a channel rolls to a new segment
+     * @param maxSegmentAge
+     *            - the time after which a channel rolls to a new segment
+     * @param unit
+     *            - the unit of the maximum segment age
+     */
+    public RollingBundle(File root, int maxOpenSegments, long maxSegmentSize,
+                         long maxSegmentAge, TimeUnit unit) {
+        this(root, maxOpenSegments, maxSegmentSize, maxSegmentAge, unit,
+             SegmentIndex.DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param root
+     *            - the directory containing the channels
+     * @param maxOpenSegments
+     *            - the maximum number of unleased segments kept open
+     * @param maxSegmentSize
+     *            - the size in bytes at which a channel rolls to a new segment
+     * @param maxSegmentAge
+     *            - the time after which a channel rolls to a new segment
+     * @param unit
+     *            - the unit of the maximum segment age
+     * @param indexInterval
+     *            - the minimum distance in bytes between indexed events
+     */
+    public RollingBundle(File root, int maxOpenSegments, long maxSegmentSize,
+                         long maxSegmentAge, TimeUnit unit, int indexInterval) {
+        if (maxOpenSegments < 1) {
+            throw new IllegalArgumentException(
+                                               "Maximum open segments must be positive: "
+                                                       + maxOpenSegments);
+        }
+        if (maxSegmentSize < 1) {
+            throw new IllegalArgumentException(
+                                               "Maximum segment size must be positive: "
+                                                       + maxSegmentSize);
+        }
+        if (maxSegmentAge < 1) {
+            throw new IllegalArgumentException(
+                                               "Maximum segment age must be positive: "
+                                                       + maxSegmentAge);
+        }
+        this.root = root;
+        this.maxOpenSegments = maxOpenSegments;
+        this.maxSegmentSize = maxSegmentSize;
+        this.maxSegmentAge = unit.toNanos(maxSegmentAge);
+        this.indexInterval = indexInterval;
+        channels = new HashMap<Key, Channel>();
+        handles = new IdentityHashMap<Segment, Handle>();
+        segments = new LinkedHashMap<Key, Handle>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Handle> eldest) {
+                if (size() <= RollingBundle.this.maxOpenSegments) {
+                    return false;
+                }
+                evict(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Close all the open segments of the receiver
+     */
+    public synchronized void close() {
+        for (Handle handle : handles.values()) {
+            close(handle);
+        }
+        handles.clear();
+        segments.clear();
+        evicted.clear();
+    }
+
+    @Override
+    public synchronized long endOf(UUID channel) {
+        long msb = channel.getMostSignificantBits();
+        long lsb = channel.getLeastSignificantBits();
+        Channel state = existing(msb, lsb);
+        if (state == null) {
+            return -1;
+        }
+        Segment segment = lease(state, msb, lsb, state.activeBase).segment;
+        try {
+            return state.activeBase + segment.getChannel().size();
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                                            String.format("Unable to determine the size of segment: %s",
+                                                          segment), e);
+        } finally {
+            release(segment);
+        }
+    }
+
+    /**
+     * @param channel
+     *            - the tag of the channel
+     * @return the base offsets of the channel's segments, in ascending order
+     */
+    public synchronized List<Long> getBaseOffsets(UUID channel) {
+        return new ArrayList<Long>(
+                                   channel(channel.getMostSignificantBits(),
+                                           channel.getLeastSignificantBits()).segments.keySet());
+    }
+
+    /**
+     * @return the number of segments currently held open by the receiver
+     */
+    public synchronized int getOpenSegments() {
+        return handles.size();
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the segment files of the channels stored in the root, for
+     *         {@link Recovery}
+     */
+    public List<File> getSegmentFiles() {
+        List<File> files = new ArrayList<File>();
+        File[] directories = root.listFiles();
+        if (directories == null) {
+            return files;
+        }
+        for (File directory : directories) {
+            if (!directory.isDirectory()) {
+                continue;
+            }
+            try {
+                UUID.fromString(directory.getName());
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            File[] segments = directory.listFiles();
+            if (segments == null) {
+                continue;
+            }
+            for (File segment : segments) {
+                if (segment.getName().endsWith(SEGMENT_SUFFIX)) {
+                    files.add(segment);
+                }
+            }
+        }
+        return files;
+    }
+
+    @Override
+    public synchronized long offsetOf(UUID channel, long ordinal) {
+        long msb = channel.getMostSignificantBits();
+        long lsb = channel.getLeastSignificantBits();
+        Channel state = existing(msb, lsb);
+        if (state == null) {
+            return -1;
+        }
+        Map.Entry<Long, Long> floor = state.ordinals.floorEntry(ordinal);
+        if (floor == null) {
+            return -1;
+        }
+        Segment segment = lease(state, msb, lsb, floor.getValue()).segment;
+        try {
+            long position = segment.getIndex().locate(ordinal);
+            return position < 0 ? -1 : segment.getBaseOffset() + position;
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                                            String.format("Unable to locate event: %s in segment: %s",
+                                                          ordinal, segment), e);
+        } finally {
+            release(segment);
+        }
+    }
+
+    /**
+     * Register the receiver's metrics, qualified by the name
+     * 
+     * @param metrics
+     *            - the registry of the metrics
+     * @param name
+     *            - the name qualifying the receiver's metrics
+     */
+    public void register(Metrics metrics, String name) {
+        metrics.register(name + ".segments.opened", opened);
+        metrics.gauge(name + ".segments.open", new Gauge() {
+            @Override
+            public long value() {
+                return getOpenSegments();
+            }
+        });
+    }
+
+    @Override
+    public synchronized void release(Segment segment) {
+        Handle handle = handles.get(segment);
+        if (handle == null) {
+            throw new IllegalArgumentException(
+                                               String.format("Segment: %s is not leased from this bundle",
+                                                             segment));
+        }
+        assert handle.leases > 0 : "Segment is not leased";
+        handle.leases--;
+        if (handle.evicted && handle.leases == 0) {
+            handles.remove(segment);
+            evicted.remove(handle.key);
+            close(handle);
+        }
+    }
+
+    @Override
+    public synchronized Segment segmentFor(EventEntry entry) {
+        long msb = entry.getTagMostSignificantBits();
+        long lsb = entry.getTagLeastSignificantBits();
+        Channel channel = channel(msb, lsb);
+        if (!channel.segments.containsKey(entry.getSegment())) {
+            throw new IllegalArgumentException(
+                                               String.format("No segment: %s in channel: %s",
+                                                             entry.getSegment(),
+                                                             entry.getTag()));
+        }
+        return lease(channel, msb, lsb, entry.getSegment()).segment;
+    }
+
+    @Override
+    public synchronized Segment segmentFor(EventHeader header) {
+        long msb = header.getTagMostSignificantBits();
+        long lsb = header.getTagLeastSignificantBits();
+        Channel channel = channel(msb, lsb);
+        Handle handle = lease(channel, msb, lsb, channel.activeBase);
+        long size;
+        try {
+            size = handle.segment.getChannel().size();
+        } catch (IOException e) {
+            release(handle.segment);
+            throw new IllegalStateException(
+                                            String.format("Unable to determine the size of segment: %s",
+                                                          handle.segment), e);
+        }
+        long now = System.nanoTime();
+        if (size == 0
+            || (size < maxSegmentSize && now - channel.activeSince < maxSegmentAge)) {
+            return handle.segment;
+        }
+        long baseOrdinal = handle.segment.getIndex().getNextOrdinal();
+        release(handle.segment);
+        long base = channel.activeBase + size;
+        channel.segments.put(base, baseOrdinal);
+        channel.ordinals.put(baseOrdinal, base);
+        channel.activeBase = base;
+        channel.activeSince = now;
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Rolling channel: %s to segment: %s",
+                                    header.getTag(), base));
+        }
+        return lease(channel, msb, lsb, base).segment;
+    }
+
+    @Override
+    public synchronized Segment segmentFor(UUID channel, long offset) {
+        long msb = channel.getMostSignificantBits();
+        long lsb = channel.getLeastSignificantBits();
+        Channel state = existing(msb, lsb);
+        if (state == null) {
+            throw new IllegalArgumentException("No such channel: " + channel);
+        }
+        Long base = state.segments.floorKey(offset);
+        if (base == null) {
+            throw new IllegalArgumentException(
+                                               String.format("No segment contains offset: %s in channel: %s",
+                                                             offset, channel));
+        }
+        return lease(state, msb, lsb, base).segment;
+    }
+
+    private Channel channel(long msb, long lsb) {
+        lookup.msb = msb;
+        lookup.lsb = lsb;
+        lookup.base = CHANNEL;
+        Channel channel = channels.get(lookup);
+        if (channel == null) {
+            channel = load(msb, lsb);
+            channels.put(new Key(msb, lsb, CHANNEL), channel);
+        }
+        return channel;
+    }
+
+    private void close(Handle handle) {
+        handle.segment.getIndex().close();
+        try {
+            handle.segment.getChannel().close();
+        } catch (IOException e) {
+            log.error(String.format("Error closing segment: %s",
+                                    handle.segment), e);
+        }
+    }
+
+    private void evict(Handle handle) {
+        handle.evicted = true;
+        if (handle.leases == 0) {
+            handles.remove(handle.segment);
+            close(handle);
+        } else {
+            evicted.put(handle.key, handle);
+        }
+    }
+
+    /**
+     * @return the channel, or null if the channel has never been appended to.
+     *         Reading a channel never creates it.
+     */
+    private Channel existing(long msb, long lsb) {
+        lookup.msb = msb;
+        lookup.lsb = lsb;
+        lookup.base = CHANNEL;
+        if (channels.containsKey(lookup)
+            || new File(root, new UUID(msb, lsb).toString()).isDirectory()) {
+            return channel(msb, lsb);
+        }
+        return null;
+    }
+
+    private Handle lease(Channel channel, long msb, long lsb, long base) {
+        lookup.msb = msb;
+        lookup.lsb = lsb;
+        lookup.base = base;
+        Handle handle = segments.get(lookup);
+        if (handle == null) {
+            // a segment evicted while leased is still open, and is reinstated
+            handle = evicted.remove(lookup);
+            if (handle != null) {
+                handle.evicted = false;
+            } else {
+                handle = open(channel, new Key(msb, lsb, base));
+                opened.increment();
+                handles.put(handle.segment, handle);
+            }
+            segments.put(handle.key, handle);
+        }
+        handle.leases++;
+        return handle;
+    }
+
+    /**
+     * Load the segments of the channel's directory, creating the directory and
+     * the channel's first segment if the channel is new
+     */
+    private Channel load(long msb, long lsb) {
+        File directory = new File(root, new UUID(msb, lsb).toString());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException(
+                                            String.format("Unable to create channel directory: %s",
+                                                          directory));
+        }
+        Channel channel = new Channel(directory);
+        TreeSet<Long> bases = new TreeSet<Long>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    bases.add(Long.parseLong(name.substring(0,
+                                                            name.length()
+                                                                    - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    log.warn(String.format("Ignoring invalid segment file: %s in: %s",
+                                           name, directory));
+                }
+            }
+        }
+        if (bases.isEmpty()) {
+            bases.add(0L);
+        }
+        long previous = -1;
+        for (long base : bases) {
+            long baseOrdinal = SegmentIndex.readBaseOrdinal(new File(
+                                                                     directory,
+                                                                     indexName(base)));
+            if (baseOrdinal < 0) {
+                // the index is missing, so continue from the previous segment
+                if (previous < 0) {
+                    baseOrdinal = 0;
+                } else {
+                    Handle handle = lease(channel, msb, lsb, previous);
+                    baseOrdinal = handle.segment.getIndex().getNextOrdinal();
+                    release(handle.segment);
+                }
+            }
+            channel.segments.put(base, baseOrdinal);
+            channel.ordinals.put(baseOrdinal, base);
+            previous = base;
+        }
+        channel.activeBase = bases.last();
+        Long preceding = bases.lower(channel.activeBase);
+        channel.activeSince = since(new File(
+                                             directory,
+                                             segmentName(preceding == null ? channel.activeBase
+                                                                           : preceding)));
+        return channel;
+    }
+
+    private Handle open(Channel channel, Key key) {
+        long base = key.base;
+        File file = new File(channel.directory, segmentName(base));
+        FileChannel segment;
+        try {
+            segment = new RandomAccessFile(file, "rw").getChannel();
+        } catch (FileNotFoundException e) {
+            throw new IllegalStateException(
+                                            String.format("Unable to open segment: %s",
+                                                          file), e);
+        }
+        File indexFile = new File(channel.directory, indexName(base));
+        try {
+            return new Handle(
+                              new Segment(
+                                          segment,
+                                          base,
+                                          SegmentIndex.open(indexFile,
+                                                            segment,
+                                                            channel.segments.get(base),
+                                                            indexInterval)),
+                              key);
+        } catch (IOException e) {
+            try {
+                segment.close();
+            } catch (IOException e1) {
+                log.error(String.format("Error closing segment: %s", file), e1);
+            }
+            throw new IllegalStateException(
+                                            String.format("Unable to open segment index: %s",
+                                                          indexFile), e);
+        }
+    }
+}
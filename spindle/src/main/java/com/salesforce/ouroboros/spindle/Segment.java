@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * A segment of the events of a channel, stored in a file. Segments are
+ * identified within their channel by their base offset, the offset within the
+ * channel of the segment's first byte.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Segment {
+    private final long         baseOffset;
+    private final FileChannel  channel;
+    private final SegmentIndex index;
+
+    public Segment(FileChannel channel, long baseOffset) {
+        this(channel, baseOffset, null);
+    }
+
+    /**
+     * @param channel
+     *            - the file channel storing the segment
+     * @param baseOffset
+     *            - the offset within the channel of the segment's first byte
+     * @param index
+     *            - the index of the segment's events, or null
+     */
+    public Segment(FileChannel channel, long baseOffset, SegmentIndex index) {
+        this.channel = channel;
+        this.baseOffset = baseOffset;
+        this.index = index;
+    }
+
+    /**
+     * @return the offset within the channel of the segment's first byte
+     */
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * @return the file channel storing the segment
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the index of the segment's events, or null if the segment is not
+     *         indexed
+     */
+    public SegmentIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return "Segment [baseOffset=" + baseOffset + ", channel=" + channel
+               + "]";
+    }
+}
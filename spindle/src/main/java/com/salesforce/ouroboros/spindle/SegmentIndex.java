@@ -0,0 +1,399 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A sparse index of the events of a segment, stored in a memory mapped file
+ * alongside the segment. The index maps the ordinal of an event - its
+ * position in the sequence of the channel's events - to the event's position
+ * within the segment. An entry is recorded for the first event of the
+ * segment, and for the first event appended at least the index interval bytes
+ * after the previously indexed event, so that locating an event requires a
+ * binary search of the index followed by a scan of at most an interval's worth
+ * of event headers.
+ * 
+ * The index is a cache of the segment's structure: on open, entries which do
+ * not describe the segment are discarded, and any events appended after the
+ * last entry are indexed by scanning their headers. The index is appended to
+ * by a single thread, and may be concurrently searched by others.
+ * 
+ * <pre>
+ *      8 byte base ordinal
+ *      4 byte magic
+ *      4 byte interval
+ *      entries of 8 byte ordinal, 8 byte position
+ * </pre>
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class SegmentIndex {
+    public static final int                      DEFAULT_INTERVAL = 4096;
+    public static final String                   INDEX_SUFFIX     = ".index";
+
+    private static final int                     ENTRY_SIZE       = 16;
+    private static final int                     HEADER_SIZE      = 16;
+    private static final int                     INITIAL_ENTRIES  = 256;
+    private static final int                     INTERVAL_OFFSET  = 12;
+    private static final int                     MAGIC            = 0x1d3c5e9a;
+    private static final int                     MAGIC_OFFSET     = 8;
+    private static final Logger                  log              = LoggerFactory.getLogger(SegmentIndex.class);
+    private static final ThreadLocal<ByteBuffer> SIZE             = new ThreadLocal<ByteBuffer>() {
+                                                                      @Override
+                                                                      protected ByteBuffer initialValue() {
+                                                                          return ByteBuffer.allocate(4);
+                                                                      }
+                                                                };
+
+    /**
+     * Open the index of the segment, creating the index file if necessary
+     * 
+     * @param file
+     *            - the index file
+     * @param segment
+     *            - the segment the index describes
+     * @param baseOrdinal
+     *            - the ordinal of the segment's first event, used if the index
+     *            file does not exist or is invalid
+     * @param interval
+     *            - the minimum distance in bytes between indexed events
+     * @return the index of the segment
+     * @throws IOException
+     */
+    public static SegmentIndex open(File file, FileChannel segment,
+                                    long baseOrdinal, int interval)
+                                                                   throws IOException {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Index interval must be positive: "
+                                               + interval);
+        }
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            SegmentIndex index = new SegmentIndex(channel, segment,
+                                                  baseOrdinal, interval);
+            index.recover();
+            return index;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Answer the base ordinal recorded in the index file
+     * 
+     * @param file
+     *            - the index file
+     * @return the base ordinal of the index, or -1 if the file does not exist
+     *         or is not a valid index
+     */
+    public static long readBaseOrdinal(File file) {
+        if (!file.exists()) {
+            return -1;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                if (raf.length() < HEADER_SIZE) {
+                    return -1;
+                }
+                long baseOrdinal = raf.readLong();
+                return raf.readInt() == MAGIC ? baseOrdinal : -1;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private final long                baseOrdinal;
+    private final FileChannel         channel;
+    private volatile int              entries;
+    private final int                 interval;
+    private long                      lastIndexed;
+    private volatile long             limit;
+    private volatile MappedByteBuffer map;
+    private volatile long             nextOrdinal;
+    private final FileChannel         segment;
+
+    private SegmentIndex(FileChannel channel, FileChannel segment,
+                         long baseOrdinal, int interval) throws IOException {
+        this.channel = channel;
+        this.segment = segment;
+        this.interval = interval;
+        long size = channel.size();
+        map = channel.map(MapMode.READ_WRITE, 0,
+                          Math.max(size, HEADER_SIZE + INITIAL_ENTRIES
+                                         * ENTRY_SIZE));
+        if (size >= HEADER_SIZE && map.getInt(MAGIC_OFFSET) == MAGIC
+            && map.getInt(INTERVAL_OFFSET) == interval) {
+            this.baseOrdinal = map.getLong(0);
+        } else {
+            this.baseOrdinal = baseOrdinal;
+            map.putLong(0, baseOrdinal);
+            map.putInt(MAGIC_OFFSET, MAGIC);
+            map.putInt(INTERVAL_OFFSET, interval);
+            clear(HEADER_SIZE);
+        }
+        nextOrdinal = this.baseOrdinal;
+    }
+
+    /**
+     * Index the event appended at the position of the segment. Events must be
+     * indexed in the order they are appended, once they have been completely
+     * written to the segment.
+     * 
+     * @param position
+     *            - the position of the event within the segment
+     * @param size
+     *            - the size of the event, including its header
+     */
+    public void append(long position, int size) {
+        append(position, 1, size);
+    }
+
+    /**
+     * Index the run of events appended contiguously at the position of the
+     * segment. Only the first event of the run is eligible for an entry, so
+     * that a run may be indexed without reading its headers; locating an event
+     * within the run scans the headers from the run's first event.
+     * 
+     * @param position
+     *            - the position of the first event of the run within the
+     *            segment
+     * @param events
+     *            - the number of events in the run
+     * @param length
+     *            - the number of bytes in the run
+     */
+    public void append(long position, int events, long length) {
+        long ordinal = nextOrdinal;
+        int count = entries;
+        if (count == 0 || position - lastIndexed >= interval) {
+            int index = HEADER_SIZE + count * ENTRY_SIZE;
+            MappedByteBuffer current = map;
+            if (index + ENTRY_SIZE > current.capacity()) {
+                current = grow();
+            }
+            current.putLong(index, ordinal);
+            current.putLong(index + 8, position);
+            lastIndexed = position;
+            entries = count + 1;
+        }
+        limit = position + length;
+        nextOrdinal = ordinal + events;
+    }
+
+    /**
+     * Close the index file
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("Error closing segment index", e);
+        }
+    }
+
+    /**
+     * @return the ordinal of the segment's first event
+     */
+    public long getBaseOrdinal() {
+        return baseOrdinal;
+    }
+
+    /**
+     * @return the number of entries in the index
+     */
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the minimum distance in bytes between indexed events
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return the position following the last indexed event, below which the
+     *         events of the segment are complete
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the ordinal of the next event appended to the segment
+     */
+    public long getNextOrdinal() {
+        return nextOrdinal;
+    }
+
+    /**
+     * Locate the event with the ordinal within the segment
+     * 
+     * @param ordinal
+     *            - the ordinal of the event
+     * @return the position of the event within the segment, or -1 if the
+     *         event is not in the segment
+     * @throws IOException
+     */
+    public long locate(long ordinal) throws IOException {
+        // read in the reverse of the order the appender writes, so that the
+        // entries and the map are at least as recent as the ordinal
+        if (ordinal < baseOrdinal || ordinal >= nextOrdinal) {
+            return -1;
+        }
+        int high = entries - 1;
+        MappedByteBuffer current = map;
+        int low = 0;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (current.getLong(HEADER_SIZE + mid * ENTRY_SIZE) <= ordinal) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int index = HEADER_SIZE + low * ENTRY_SIZE;
+        long position = current.getLong(index + 8);
+        ByteBuffer buffer = SIZE.get();
+        for (long i = current.getLong(index); i < ordinal; i++) {
+            int eventSize = readSize(position, buffer);
+            if (eventSize < EventHeader.HEADER_BYTE_SIZE) {
+                // the segment no longer holds the event
+                return -1;
+            }
+            position += eventSize;
+        }
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentIndex [baseOrdinal=" + baseOrdinal + ", entries="
+               + entries + ", limit=" + limit + ", nextOrdinal="
+               + nextOrdinal + "]";
+    }
+
+    private void clear(int from) {
+        MappedByteBuffer current = map;
+        for (int i = from; i < current.capacity(); i++) {
+            current.put(i, (byte) 0);
+        }
+    }
+
+    private MappedByteBuffer grow() {
+        MappedByteBuffer current = map;
+        try {
+            map = channel.map(MapMode.READ_WRITE, 0,
+                              (long) current.capacity() * 2);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to grow segment index", e);
+        }
+        return map;
+    }
+
+    private int readSize(long position, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (segment.read(buffer, position + buffer.position()) < 0) {
+                return -1;
+            }
+        }
+        return buffer.getInt(0);
+    }
+
+    /**
+     * Discard the entries which do not describe the segment, and index the
+     * events appended after the last valid entry
+     */
+    private void recover() throws IOException {
+        long size = segment.size();
+        MappedByteBuffer current = map;
+        int count = 0;
+        long lastOrdinal = baseOrdinal - 1;
+        long lastPosition = -1;
+        while (HEADER_SIZE + (count + 1) * ENTRY_SIZE <= current.capacity()) {
+            int index = HEADER_SIZE + count * ENTRY_SIZE;
+            long ordinal = current.getLong(index);
+            long position = current.getLong(index + 8);
+            boolean valid = count == 0 ? ordinal == baseOrdinal
+                                         && position == 0
+                                      : ordinal > lastOrdinal
+                                        && position > lastPosition;
+            if (!valid || position + EventHeader.HEADER_BYTE_SIZE > size) {
+                break;
+            }
+            lastOrdinal = ordinal;
+            lastPosition = position;
+            count++;
+        }
+        ByteBuffer buffer = SIZE.get();
+        long position = 0;
+        while (count > 0) {
+            int index = HEADER_SIZE + (count - 1) * ENTRY_SIZE;
+            lastOrdinal = current.getLong(index);
+            lastPosition = current.getLong(index + 8);
+            int eventSize = readSize(lastPosition, buffer);
+            if (eventSize >= EventHeader.HEADER_BYTE_SIZE
+                && lastPosition + eventSize <= size) {
+                lastIndexed = lastPosition;
+                nextOrdinal = lastOrdinal + 1;
+                position = lastPosition + eventSize;
+                break;
+            }
+            // the last indexed event is incomplete
+            count--;
+        }
+        clear(HEADER_SIZE + count * ENTRY_SIZE);
+        entries = count;
+        while (position + EventHeader.HEADER_BYTE_SIZE <= size) {
+            int eventSize = readSize(position, buffer);
+            if (eventSize < EventHeader.HEADER_BYTE_SIZE
+                || position + eventSize > size) {
+                break;
+            }
+            append(position, eventSize);
+            position += eventSize;
+        }
+        limit = position;
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A reader of the events in a segment for in process consumers. The segment is
+ * memory mapped in windows, and each event is answered as a flyweight
+ * positioned directly over the mapped bytes, so that iterating over the events
+ * of the segment neither copies the events nor makes a system call per event.
+ * <p>
+ * Closed segments are mapped in their entirety, up to the window size. The
+ * active segment is mapped in windows which grow as events are appended; the
+ * size of the segment is only queried when the reader reaches the end of the
+ * bytes it knows of, and only complete events are ever answered.
+ * <p>
+ * The event answered by the reader is reused on each call to {@link #next()}
+ * and must not be retained; clone the event to retain it.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class SegmentReader {
+    public static final int   DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final Event       event               = new Event(
+                                                              ByteBuffer.allocate(0));
+    private long              length;
+    private long              position;
+    private final FileChannel segment;
+    private ByteBuffer        view;
+    private MappedByteBuffer  window;
+    private long              windowEnd;
+    private final int         windowSize;
+    private long              windowStart;
+
+    /**
+     * @param segment
+     *            - the segment to read
+     */
+    public SegmentReader(FileChannel segment) {
+        this(segment, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param segment
+     *            - the segment to read
+     * @param windowSize
+     *            - the preferred size of the mapped windows of the segment.
+     *            Events larger than the window size are mapped individually
+     */
+    public SegmentReader(FileChannel segment, int windowSize) {
+        if (windowSize < EventHeader.HEADER_BYTE_SIZE) {
+            throw new IllegalArgumentException(
+                                               String.format("Window size must be at least %s bytes: %s",
+                                                             EventHeader.HEADER_BYTE_SIZE,
+                                                             windowSize));
+        }
+        this.segment = segment;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @return the position in the segment of the next event to be read
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Answer the next complete event of the segment. The event is a flyweight
+     * over the mapped bytes of the segment, and is only valid until the next
+     * invocation of this method.
+     * 
+     * @return the next event, or null if no complete event is available
+     * @throws IOException
+     *             - if the segment cannot be mapped
+     * @throws IllegalStateException
+     *             - if the segment does not contain a valid event at the
+     *             position of the reader
+     */
+    public Event next() throws IOException {
+        if (!available(EventHeader.HEADER_BYTE_SIZE)) {
+            return null;
+        }
+        map(EventHeader.HEADER_BYTE_SIZE);
+        int size = window.getInt((int) (position - windowStart));
+        if (size < EventHeader.HEADER_BYTE_SIZE) {
+            throw new IllegalStateException(
+                                            String.format("Invalid event size: %s at: %s",
+                                                          size, position));
+        }
+        if (!available(size)) {
+            return null;
+        }
+        map(size);
+        event.wrap(view, (int) (position - windowStart));
+        position += size;
+        return event;
+    }
+
+    /**
+     * Drop the mapped window of the segment. The segment itself is not closed.
+     */
+    public void release() {
+        window = null;
+        view = null;
+        windowStart = windowEnd = 0;
+    }
+
+    /**
+     * Position the reader at the event starting at the position in the segment
+     * 
+     * @param position
+     *            - the position of an event in the segment
+     */
+    public void seek(long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException(
+                                               String.format("Invalid position: %s",
+                                                             position));
+        }
+        this.position = position;
+    }
+
+    /**
+     * Answer true if the bytes following the position of the reader are
+     * present in the segment, querying the size of the segment only when the
+     * known length has been exhausted
+     */
+    private boolean available(int bytes) throws IOException {
+        if (position + bytes <= length) {
+            return true;
+        }
+        length = segment.size();
+        return position + bytes <= length;
+    }
+
+    /**
+     * Ensure the window maps the bytes following the position of the reader
+     */
+    private void map(int bytes) throws IOException {
+        if (window != null && position >= windowStart
+            && position + bytes <= windowEnd) {
+            return;
+        }
+        long size = Math.max(bytes, Math.min(windowSize, length - position));
+        window = segment.map(MapMode.READ_ONLY, position, size);
+        view = window.duplicate();
+        windowStart = position;
+        windowEnd = position + size;
+    }
+}
@@ -27,8 +27,10 @@ package com.salesforce.ouroboros.spindle;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,47 +40,256 @@ import com.hellblazer.pinkie.SocketChannelHandler;
 import com.lmax.disruptor.ProducerBarrier;
 
 /**
- * An append sink for a channel.
+ * An append sink for a channel, configured by {@link SpinnerOptions}.
+ * 
+ * The spinner operates in one of two modes. In the default streaming mode,
+ * each event is read and appended individually, and committed to the ring
+ * buffer one entry at a time. In batch mode, the spinner delegates to a
+ * {@link Batcher}, which reads the socket into a buffer and publishes the
+ * complete events in the buffer as a single claimed sequence batch. Events
+ * which are larger than the batch buffer are streamed to their segment.
+ * 
+ * When verifying, the CRC of each payload is computed over the bytes as they
+ * are read from the socket, and events whose CRC does not match their header
+ * are removed from the segment and are not published.
+ * 
+ * Appended events are recorded in the {@link SegmentIndex} of their segment,
+ * if the segment is indexed.
+ * 
+ * When configured with a {@link Flusher}, the leases of the segments appended
+ * to are handed to the flusher, which forces them in groups. If the flusher is
+ * strict, the appended events are published by the flusher once their group
+ * is durable, rather than by the spinner. If the flusher fails to force the
+ * appended events, the connection is closed.
+ * 
+ * When configured with a {@link Throttle}, the spinner claims the entries of
+ * the ring through the throttle before publishing. If the ring has no
+ * capacity for the events, the spinner parks its connection rather than block
+ * the IO thread: it stops selecting for reads until the throttle wakes it,
+ * once the consumers of the ring have freed the entries. The throttle wakes
+ * the spinner by selecting its connection for writes, and the spinner
+ * resumes on its IO thread.
+ * 
+ * The spinners of many connections may publish to a single ring through the
+ * shared barrier and throttle of an {@link Ingest}. When configured with the
+ * {@link Writers} of the ingest, the spinner takes ownership of each channel
+ * it appends to, and closes its connection rather than append an event of a
+ * channel owned by another connection. A spinner serving a connection steered
+ * to its pipeline by the {@link Pipelines} likewise closes its connection
+ * rather than append an event of a channel of another pipeline.
+ * 
+ * The spinner counts the events and bytes it ingests, and the bytes of each
+ * transfer from the socket. The counts are plain fields, updated only by the
+ * connection's IO thread, and are exposed as gauges through a {@link Metrics}
+ * registry once the spinner is registered. The time the spinner spends in
+ * each state is only tracked once the spinner is registered.
  * 
  * @author hhildebrand
  * 
  */
 public class Spinner implements CommunicationsHandler {
     public enum State {
-        ACCEPTED, APPEND, INITIALIZED, READ_HEADER;
+        ACCEPTED, APPEND, CLOSED, INITIALIZED, READ_HEADER, THROTTLED;
     }
 
-    private static final Logger               log   = LoggerFactory.getLogger(Spinner.class);
+    /**
+     * Wakes the IO thread of the connection to close it, once the flusher
+     * fails the publication of the appended events
+     */
+    private class Failure implements Runnable {
+        @Override
+        public void run() {
+            failed = true;
+            handler.selectForWrite();
+        }
+    }
 
+    private static final Logger               log                = LoggerFactory.getLogger(Spinner.class);
+    private static final int                  STREAM_BUFFER_SIZE = 16 * 1024;
+
+    private final Batcher                     batcher;
     private final Bundle                      bundle;
+    private long                              bytes;
+    private int                               claiming;
+    private final CrcAccumulator              crc;
+    private long                              events;
+    private volatile boolean                  failed;
+    private final Runnable                    failure            = new Failure();
+    private final Flusher                     flusher;
     private SocketChannelHandler              handler;
     private final EventHeader                 header;
+    private final Latency                     latency;
+    private Metrics                           metrics;
+    private String                            name;
     private long                              offset;
+    private final Set<UUID>                   owned              = new HashSet<UUID>();
+    private long                              ownedTag1;
+    private long                              ownedTag2;
+    private boolean                           owning;
+    private int                               partition;
+    private int                               partitions;
     private long                              position;
     private final ProducerBarrier<EventEntry> producerBarrier;
+    private long                              readStamp;
+    private long                              rejected;
     private long                              remaining;
-    private FileChannel                       segment;
-    private State                             state = State.INITIALIZED;
+    private Segment                           segment;
+    private State                             state              = State.INITIALIZED;
+    private final long[]                      stateNanos         = new long[State.values().length];
+    private long                              stateSince;
+    private final ByteBuffer                  streamBuffer;
+    private final Throttle                    throttle;
+    private long                              throttled;
+    private long                              throttledNanos;
+    private long                              throttledSince;
+    private long                              transferred;
+    private long                              transfers;
+    private volatile boolean                  woken;
+    private final Writers                     writers;
 
+    /**
+     * Construct a spinner operating in streaming mode, with the default
+     * options
+     * 
+     * @param bundle
+     *            - the bundle of segments the events are appended to
+     * @param producerBarrier
+     *            - the barrier the appended events are committed to
+     */
     public Spinner(Bundle bundle, ProducerBarrier<EventEntry> producerBarrier) {
+        this(bundle, producerBarrier, new SpinnerOptions());
+    }
+
+    /**
+     * @param bundle
+     *            - the bundle of segments the events are appended to
+     * @param producerBarrier
+     *            - the barrier the appended events are committed to
+     * @param options
+     *            - the configuration of the spinner
+     */
+    public Spinner(Bundle bundle, ProducerBarrier<EventEntry> producerBarrier,
+                   SpinnerOptions options) {
         this.bundle = bundle;
         this.producerBarrier = producerBarrier;
+        flusher = options.getFlusher();
+        throttle = options.getThrottle();
+        latency = options.getLatency();
+        writers = options.getWriters();
         header = new EventHeader(
-                                 ByteBuffer.allocate(EventHeader.HEADER_BYTE_SIZE));
+                                 ByteBuffer.allocateDirect(EventHeader.HEADER_BYTE_SIZE));
+        crc = options.isVerify() ? new CrcAccumulator() : null;
+        if (options.getBufferSize() == 0) {
+            batcher = null;
+            streamBuffer = crc == null ? null
+                                      : ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+        } else {
+            batcher = new Batcher(this, bundle, producerBarrier, header,
+                                  options);
+            // oversized events are streamed through the idle batch buffer
+            streamBuffer = crc == null ? null : batcher.getBuffer();
+        }
     }
 
     @Override
     public void closing(SocketChannel channel) {
+        if (throttle != null) {
+            throttle.unpark(this);
+        }
+        if (segment != null) {
+            // the event being appended is torn, or was never published
+            discard();
+        }
+        if (writers != null) {
+            for (UUID tag : owned) {
+                writers.release(tag, this);
+            }
+            owned.clear();
+            owning = false;
+        }
+        if (metrics != null) {
+            metrics.unregister(name);
+        }
+    }
+
+    /**
+     * @return the number of bytes of the events ingested by the receiver
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of events ingested by the receiver
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * @return the durability policy of the receiver, or null if durability is
+     *         left to the operating system
+     */
+    public Flusher getFlusher() {
+        return flusher;
+    }
+
+    /**
+     * @return the latency tracking of the events ingested by the receiver, or
+     *         null if latency is not tracked
+     */
+    public Latency getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the number of events rejected due to a CRC mismatch
+     */
+    public long getRejected() {
+        return rejected;
     }
 
     public State getState() {
         return state;
     }
 
+    /**
+     * @param state
+     *            - the state
+     * @return the total time, in nanoseconds, the receiver has spent in the
+     *         state since it was registered, up to its last transition out of
+     *         the state
+     */
+    public long getStateNanos(State state) {
+        return stateNanos[state.ordinal()];
+    }
+
+    /**
+     * @return the backpressure of the ring buffer, or null if the receiver
+     *         blocks while the ring buffer is full
+     */
+    public Throttle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * @return the number of times the receiver has been throttled
+     */
+    public long getThrottled() {
+        return throttled;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, the receiver has spent throttled
+     */
+    public long getThrottledNanos() {
+        return throttledNanos;
+    }
+
     @Override
     public void handleAccept(SocketChannel channel, SocketChannelHandler handler) {
         assert state == State.INITIALIZED;
-        state = State.ACCEPTED;
+        transition(State.ACCEPTED);
         this.handler = handler;
         this.handler.selectForRead();
     }
@@ -91,10 +302,18 @@ public class Spinner implements CommunicationsHandler {
 
     @Override
     public void handleRead(SocketChannel channel) {
+        if (failed) {
+            failed();
+            return;
+        }
         switch (state) {
             case ACCEPTED: {
+                if (batcher != null) {
+                    batcher.read(channel);
+                    break;
+                }
                 header.clear();
-                state = State.READ_HEADER;
+                transition(State.READ_HEADER);
                 readHeader(channel);
                 break;
             }
@@ -106,16 +325,115 @@ public class Spinner implements CommunicationsHandler {
                 append(channel);
                 break;
             }
+            case CLOSED: {
+                return;
+            }
             default: {
                 log.error("Invalid read state: " + state);
             }
         }
-        handler.selectForRead();
+        awaitRead();
     }
 
+    /**
+     * The receiver selects its connection for writes only to be woken on its
+     * IO thread, to close the connection once the flusher has failed, or to
+     * resume once the throttle has freed the entries it claims
+     */
     @Override
     public void handleWrite(SocketChannel channel) {
-        throw new UnsupportedOperationException();
+        if (failed) {
+            failed();
+            return;
+        }
+        if (!woken) {
+            return;
+        }
+        woken = false;
+        try {
+            resume();
+        } catch (RuntimeException e) {
+            log.error(String.format("Unable to resume %s, closing connection",
+                                    this), e);
+            close();
+            return;
+        }
+        awaitRead();
+    }
+
+    /**
+     * @return true if the receiver operates in batch mode
+     */
+    public boolean isBatching() {
+        return batcher != null;
+    }
+
+    /**
+     * @return true if the receiver verifies the CRC of event payloads
+     */
+    public boolean isVerifying() {
+        return crc != null;
+    }
+
+    /**
+     * Register the receiver's metrics, qualified by the name, and track the
+     * time the receiver spends in each state. The metrics are unregistered
+     * when the receiver's connection is closed.
+     * 
+     * @param metrics
+     *            - the registry of the metrics
+     * @param name
+     *            - the name qualifying the receiver's metrics
+     */
+    public void register(Metrics metrics, final String name) {
+        this.name = name;
+        metrics.gauge(name + ".events", new Gauge() {
+            @Override
+            public long value() {
+                return events;
+            }
+        });
+        metrics.gauge(name + ".bytes", new Gauge() {
+            @Override
+            public long value() {
+                return bytes;
+            }
+        });
+        metrics.gauge(name + ".transferFrom.calls", new Gauge() {
+            @Override
+            public long value() {
+                return transfers;
+            }
+        });
+        metrics.gauge(name + ".transferFrom.bytes", new Gauge() {
+            @Override
+            public long value() {
+                return transferred;
+            }
+        });
+        for (final State s : State.values()) {
+            metrics.gauge(name + ".state." + s + ".nanos", new Gauge() {
+                @Override
+                public long value() {
+                    return stateNanos[s.ordinal()];
+                }
+            });
+        }
+        metrics.gauge(name + ".rejected", new Gauge() {
+            @Override
+            public long value() {
+                return rejected;
+            }
+        });
+        metrics.gauge(name + ".throttled", new Gauge() {
+            @Override
+            public long value() {
+                return throttled;
+            }
+        });
+        // the time spent in each state is tracked from registration
+        stateSince = System.nanoTime();
+        this.metrics = metrics;
     }
 
     @Override
@@ -124,29 +442,415 @@ public class Spinner implements CommunicationsHandler {
                + ", remaining=" + remaining + ", position=" + position + "]";
     }
 
+    /**
+     * Admit an event of the channel to the receiver's connection. The channel
+     * must belong to the partition of the receiver's pipeline, if the
+     * connection was steered, and must not be owned by another connection.
+     * 
+     * @param tag1
+     *            - the most significant bits of the channel's tag
+     * @param tag2
+     *            - the least significant bits of the channel's tag
+     * @return false if the event cannot be appended, and the connection must
+     *         be closed
+     */
+    boolean admit(long tag1, long tag2) {
+        if (!steered(tag1, tag2)) {
+            log.error(String.format("Channel: %s does not belong to partition: %s, closing connection",
+                                    new UUID(tag1, tag2), partition));
+            return false;
+        }
+        if (!own(tag1, tag2)) {
+            log.error(String.format("Channel: %s is owned by another connection, closing connection",
+                                    new UUID(tag1, tag2)));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Claim the entries of the ring buffer through the throttle, throttling
+     * the receiver if the ring buffer has no capacity for the entries
+     * 
+     * @return true if the entries have been claimed
+     */
+    boolean claim(int entries) {
+        if (throttle == null) {
+            return true;
+        }
+        if (throttle.tryClaim(entries)) {
+            if (state == State.THROTTLED) {
+                long nanos = System.nanoTime() - throttledSince;
+                throttledNanos += nanos;
+                throttle.resumed(nanos);
+                transition(State.ACCEPTED);
+            }
+            return true;
+        }
+        claiming = entries;
+        if (state != State.THROTTLED) {
+            throttled++;
+            throttledSince = System.nanoTime();
+            transition(State.THROTTLED);
+        }
+        return false;
+    }
+
+    /**
+     * Close the receiver's connection, which can make no further progress
+     */
+    void close() {
+        transition(State.CLOSED);
+        handler.close();
+    }
+
+    /**
+     * @return the action which closes the receiver's connection once the
+     *         flusher fails to force its events
+     */
+    Runnable failure() {
+        return failure;
+    }
+
+    /**
+     * @return the number of entries of the ring buffer the throttled receiver
+     *         awaits
+     */
+    int getClaiming() {
+        return claiming;
+    }
+
+    /**
+     * Accept the connection handed over by the {@link Pipelines} which
+     * steered it to the receiver, after reading the header of its first
+     * event. Every event of the connection must belong to the partition of
+     * the receiver's pipeline.
+     * 
+     * @param channel
+     *            - the accepted connection
+     * @param handler
+     *            - the handler of the connection
+     * @param first
+     *            - the flipped bytes read from the connection, the header of
+     *            its first event
+     * @param partition
+     *            - the partition of the receiver's pipeline
+     * @param partitions
+     *            - the number of partitions
+     */
+    void handover(SocketChannel channel, SocketChannelHandler handler,
+                  ByteBuffer first, int partition, int partitions) {
+        assert state == State.INITIALIZED;
+        transition(State.ACCEPTED);
+        this.handler = handler;
+        this.partition = partition;
+        this.partitions = partitions;
+        if (batcher != null) {
+            batcher.handover(channel, first);
+        } else {
+            header.clear();
+            header.bytes.put(first);
+            transition(State.READ_HEADER);
+            readHeader(channel);
+        }
+        awaitRead();
+    }
+
+    /**
+     * Count the events published by the receiver
+     * 
+     * @param count
+     *            - the number of events
+     * @param size
+     *            - the total size of the events, including their headers
+     */
+    void ingested(int count, long size) {
+        events += count;
+        bytes += size;
+    }
+
+    /**
+     * The size of an event read from the connection is smaller than its
+     * header. The stream cannot be resynchronized, so the connection is
+     * closed.
+     * 
+     * @param eventSize
+     *            - the size of the event, including its header
+     */
+    void invalid(int eventSize) {
+        log.error(String.format("Invalid event size: %s, closing connection",
+                                eventSize));
+        close();
+    }
+
+    /**
+     * Count the event whose CRC does not match its header, which is not
+     * published
+     */
+    void reject(int expected, int actual) {
+        rejected++;
+        log.warn(String.format("Rejecting event on channel: %s, CRC: %s does not match header CRC: %s",
+                               header.getTag(), actual, expected));
+    }
+
+    /**
+     * Begin streaming the event at the head of the batch buffer, whose header
+     * has been loaded into the receiver's header, to its segment
+     * 
+     * @param buffer
+     *            - the batch buffer
+     * @param readStamp
+     *            - the time the read containing the event's header completed,
+     *            or 0 if latency is not tracked
+     */
+    void stream(ByteBuffer buffer, long readStamp) {
+        this.readStamp = readStamp;
+        if (!lease()) {
+            return;
+        }
+        buffer.position(buffer.position() + EventHeader.HEADER_BYTE_SIZE);
+        if (crc != null) {
+            crc.reset();
+            crc.update(buffer, buffer.position(), buffer.remaining());
+        }
+        try {
+            while (buffer.hasRemaining()) {
+                position += segment.getChannel().write(buffer, position);
+            }
+        } catch (IOException e) {
+            log.error(String.format("Exception during append on: %s",
+                                    segment), e);
+            discard();
+            close();
+            return;
+        }
+        remaining = header.size() - (position - offset)
+                    + EventHeader.HEADER_BYTE_SIZE;
+        buffer.clear();
+    }
+
+    /**
+     * Wake the throttled receiver, once the entries it claims have been
+     * freed. The receiver resumes on the IO thread of its connection.
+     */
+    void wake() {
+        woken = true;
+        handler.selectForWrite();
+    }
+
     private void append(SocketChannel channel) {
+        if (crc != null) {
+            appendVerified(channel);
+            return;
+        }
         long written;
         try {
-            written = segment.transferFrom(channel, position, remaining);
+            written = segment.getChannel().transferFrom(channel, position,
+                                                        remaining);
         } catch (IOException e) {
             log.error("Exception during append", e);
             return;
         }
+        transfers++;
+        transferred += written;
         position += written;
         remaining -= written;
         if (remaining == 0) {
-            try {
-                segment.close();
-            } catch (IOException e) {
-                log.error("Exception closing segment", e);
+            commit();
+        }
+    }
+
+    /**
+     * Append the payload through the stream buffer, accumulating the CRC of
+     * the payload as it is read from the socket
+     * 
+     * @param channel
+     */
+    private void appendVerified(SocketChannel channel) {
+        try {
+            while (remaining > 0) {
+                streamBuffer.clear();
+                if (remaining < streamBuffer.capacity()) {
+                    streamBuffer.limit((int) remaining);
+                }
+                int read = channel.read(streamBuffer);
+                if (read <= 0) {
+                    return;
+                }
+                streamBuffer.flip();
+                crc.update(streamBuffer, 0, read);
+                while (streamBuffer.hasRemaining()) {
+                    position += segment.getChannel().write(streamBuffer,
+                                                           position);
+                }
+                remaining -= read;
+            }
+        } catch (IOException e) {
+            log.error("Exception during append", e);
+            return;
+        }
+        streamBuffer.clear();
+        if (crc.getValue() == header.getCrc32()) {
+            commit();
+            return;
+        }
+        reject(header.getCrc32(), crc.getValue());
+        try {
+            segment.getChannel().truncate(offset);
+        } catch (IOException e) {
+            log.error(String.format("Unable to truncate rejected event at: %s on: %s",
+                                    offset, segment), e);
+        }
+        bundle.release(segment);
+        segment = null;
+        transition(State.ACCEPTED);
+    }
+
+    /**
+     * Select the connection for reads, unless the receiver has been
+     * throttled, in which case the receiver is parked until the throttle
+     * wakes it
+     */
+    private void awaitRead() {
+        switch (state) {
+            case CLOSED: {
+                return;
+            }
+            case THROTTLED: {
+                throttle.park(this);
+                return;
+            }
+            default: {
+                handler.selectForRead();
             }
+        }
+    }
+
+    /**
+     * Commit the streamed event to the ring buffer
+     */
+    private void commit() {
+        if (!claim(1)) {
+            return;
+        }
+        index(segment, offset, header.size() + EventHeader.HEADER_BYTE_SIZE);
+        EventEntry entry = producerBarrier.nextEntry();
+        entry.set(header, segment.getBaseOffset(), offset);
+        Latency tracking = latency;
+        if (tracking != null && readStamp != 0) {
+            long now = System.nanoTime();
+            entry.stamp(readStamp, now);
+            tracking.record(Latency.Stage.APPEND, now - readStamp);
+        }
+        transition(State.ACCEPTED);
+        events++;
+        bytes += header.size() + EventHeader.HEADER_BYTE_SIZE;
+        if (flusher == null) {
+            bundle.release(segment);
             segment = null;
-            state = State.ACCEPTED;
-            EventEntry entry = producerBarrier.nextEntry();
-            entry.setHeader(header);
-            entry.setOffset(offset);
             producerBarrier.commit(entry);
+            return;
+        }
+        flusher.append(segment, 1);
+        segment = null;
+        if (flusher.isStrict()) {
+            flusher.publish(producerBarrier, entry.getSequence(),
+                            entry.getSequence(), failure);
+        } else {
+            producerBarrier.commit(entry);
+        }
+    }
+
+    /**
+     * Remove the unpublished event from the end of its segment, and release
+     * the lease of the segment
+     */
+    private void discard() {
+        try {
+            segment.getChannel().truncate(offset);
+        } catch (IOException e) {
+            log.error(String.format("Unable to truncate unpublished event at: %s on: %s",
+                                    offset, segment), e);
+        }
+        bundle.release(segment);
+        segment = null;
+    }
+
+    /**
+     * The flusher has failed to force appended events, whose publications
+     * will never be committed. The connection is closed.
+     */
+    private void failed() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        log.error(String.format("Appended events could not be forced, closing connection: %s",
+                                this));
+        close();
+    }
+
+    /**
+     * Record the event of the size appended at the offset in the segment's
+     * index
+     */
+    private void index(Segment segment, long offset, int size) {
+        SegmentIndex index = segment.getIndex();
+        if (index != null) {
+            index.append(offset, size);
+        }
+    }
+
+    /**
+     * Lease the segment of the event, and write the event's header to its
+     * end. If the segment cannot be appended to, the lease is released and
+     * the connection is closed, as the stream cannot be resynchronized.
+     * 
+     * @return true if the header has been written
+     */
+    private boolean lease() {
+        segment = bundle.segmentFor(header);
+        try {
+            offset = segment.getChannel().size();
+        } catch (IOException e) {
+            log.error(String.format("Exception during append on: %s",
+                                    segment), e);
+            bundle.release(segment);
+            segment = null;
+            close();
+            return false;
+        }
+        if (!writeHeader()) {
+            discard();
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Take ownership of the channel of the tag, if the receiver appends
+     * through writers
+     * 
+     * @param tag1
+     *            - the most significant bits of the channel's tag
+     * @param tag2
+     *            - the least significant bits of the channel's tag
+     * @return false if the channel is owned by another spinner
+     */
+    private boolean own(long tag1, long tag2) {
+        if (writers == null || owning && tag1 == ownedTag1
+            && tag2 == ownedTag2) {
+            return true;
+        }
+        UUID tag = new UUID(tag1, tag2);
+        if (!writers.acquire(tag, this)) {
+            return false;
         }
+        owned.add(tag);
+        ownedTag1 = tag1;
+        ownedTag2 = tag2;
+        owning = true;
+        return true;
     }
 
     private void readHeader(SocketChannel channel) {
@@ -158,37 +862,86 @@ public class Spinner implements CommunicationsHandler {
             return;
         }
         if (read) {
-            segment = bundle.segmentFor(header);
-            try {
-                offset = position = segment.size();
-            } catch (IOException e) {
-                log.error("Exception during header read", e);
+            if (header.size() < 0) {
+                invalid(header.size() + EventHeader.HEADER_BYTE_SIZE);
+                return;
+            }
+            if (!admit(header.getTagMostSignificantBits(),
+                       header.getTagLeastSignificantBits())) {
+                close();
+                return;
+            }
+            readStamp = latency == null ? 0 : System.nanoTime();
+            if (!lease()) {
                 return;
             }
-            writeHeader();
             remaining = header.size();
+            if (crc != null) {
+                crc.reset();
+            }
             append(channel);
         }
     }
 
-    private void writeHeader() {
+    /**
+     * Resume the woken receiver, publishing the events which awaited the
+     * capacity of the ring buffer. The receiver remains throttled if the
+     * entries have since been claimed by another receiver.
+     */
+    private void resume() {
+        if (batcher != null && batcher.hasPending()) {
+            batcher.resume();
+        } else {
+            commit();
+        }
+    }
+
+    /**
+     * @param tag1
+     *            - the most significant bits of the channel's tag
+     * @param tag2
+     *            - the least significant bits of the channel's tag
+     * @return false if the receiver's connection was steered to its pipeline,
+     *         and the channel belongs to the partition of another pipeline
+     */
+    private boolean steered(long tag1, long tag2) {
+        return partitions == 0
+               || Pipelines.partition(tag1, tag2, partitions) == partition;
+    }
+
+    /**
+     * Transition to the next state, accounting the time spent in the current
+     * state if the receiver has been registered
+     */
+    private void transition(State next) {
+        if (metrics != null) {
+            long now = System.nanoTime();
+            stateNanos[state.ordinal()] += now - stateSince;
+            stateSince = now;
+        }
+        state = next;
+    }
+
+    /**
+     * Write the event's header to the end of its segment
+     * 
+     * @return false if the header could not be written
+     */
+    private boolean writeHeader() {
         header.rewind();
         try {
-            if (!header.write(segment)) {
+            if (!header.write(offset, segment.getChannel())) {
                 log.error(String.format("Unable to write complete header on: %s",
                                         segment));
+                return false;
             }
         } catch (IOException e) {
-            log.error("Exception during header read", e);
-            return;
+            log.error(String.format("Exception during header write on: %s",
+                                    segment), e);
+            return false;
         }
-        try {
-            position = segment.position();
-        } catch (IOException e) {
-            log.error("Exception during reading of segment position", e);
-            return;
-        }
-        state = State.APPEND;
+        position = offset + EventHeader.HEADER_BYTE_SIZE;
+        transition(State.APPEND);
+        return true;
     }
-
 }
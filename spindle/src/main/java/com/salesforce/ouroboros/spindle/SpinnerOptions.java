@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+/**
+ * The configuration of a {@link Spinner}. By default, a spinner streams each
+ * event to its segment, and commits it to the ring buffer one entry at a
+ * time, without verifying the CRC of the payload, forcing the segment, or
+ * claiming the entries of the ring through a throttle.
+ * 
+ * The options are read when the spinner is constructed, so a single instance
+ * may configure many spinners.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class SpinnerOptions {
+    private int      bufferSize;
+    private Flusher  flusher;
+    private Latency  latency;
+    private int      maximumBatchSize;
+    private Throttle throttle;
+    private boolean  verify;
+    private Writers  writers;
+
+    /**
+     * @return the size of the buffer events are read into in batch mode, or 0
+     *         if events are streamed
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the durability policy of the appended events, or null if
+     *         durability is left to the operating system
+     */
+    public Flusher getFlusher() {
+        return flusher;
+    }
+
+    /**
+     * @return the latency tracking of the ingested events, or null if latency
+     *         is not tracked
+     */
+    public Latency getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the maximum number of events published in a single batch in
+     *         batch mode
+     */
+    public int getMaximumBatchSize() {
+        return maximumBatchSize;
+    }
+
+    /**
+     * @return the backpressure of the ring buffer, or null if the spinner
+     *         blocks while the ring buffer is full
+     */
+    public Throttle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * @return the owners of the channels appended to, or null if channels are
+     *         appended to regardless of ownership
+     */
+    public Writers getWriters() {
+        return writers;
+    }
+
+    /**
+     * @return true if the CRC of event payloads is verified on ingest
+     */
+    public boolean isVerify() {
+        return verify;
+    }
+
+    /**
+     * Operate the spinner in batch mode, reading events into a buffer of the
+     * size, or in streaming mode if the size is 0
+     * 
+     * @param bufferSize
+     *            - the size of the buffer, which must be able to hold an
+     *            event header
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param flusher
+     *            - the durability policy of the appended events, or null to
+     *            leave durability to the operating system
+     */
+    public void setFlusher(Flusher flusher) {
+        this.flusher = flusher;
+    }
+
+    /**
+     * Track the latency of the ingested events. Each event is stamped when its
+     * header is read - in batch mode, when the read containing its header
+     * completes - and when it is committed to the ring buffer, and the stamps
+     * are carried to the replicators in the event's entry.
+     * 
+     * @param latency
+     *            - the latency tracking, or null to not track latency
+     */
+    public void setLatency(Latency latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param maximumBatchSize
+     *            - the maximum number of events published in a single batch
+     *            in batch mode, which must not exceed the capacity of the
+     *            ring buffer
+     */
+    public void setMaximumBatchSize(int maximumBatchSize) {
+        this.maximumBatchSize = maximumBatchSize;
+    }
+
+    /**
+     * @param throttle
+     *            - the backpressure of the ring buffer, or null to block
+     *            while the ring buffer is full
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @param verify
+     *            - true if the CRC of event payloads is verified on ingest
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Take ownership of the channels appended to through the writers, closing
+     * the connection on an event of a channel owned by another connection
+     * 
+     * @param writers
+     *            - the owners of the channels, or null to append to channels
+     *            regardless of ownership
+     */
+    public void setWriters(Writers writers) {
+        this.writers = writers;
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lmax.disruptor.Consumer;
+import com.lmax.disruptor.RingBuffer;
+
+/**
+ * The backpressure of the ring buffer on the spinners producing to it. The
+ * spinners claim the entries of the ring through the throttle before claiming
+ * them from the producer barrier, which would otherwise block the spinner's
+ * IO thread until the consumers of the ring free the entries. A spinner whose
+ * claim cannot be satisfied parks its connection instead: it stops selecting
+ * its socket for reads, so its producer is held back by TCP flow control
+ * while the IO thread continues to serve the other connections. The throttle
+ * polls the consumers of the ring while spinners are parked, and wakes the
+ * parked spinners in the order they were parked once the entries they claim
+ * are free. A woken spinner claims its entries and publishes on its own IO
+ * thread, and is parked again if its entries have since been claimed.
+ * 
+ * Every producer of the ring must claim its entries through the throttle.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Throttle {
+    public static final long                     DEFAULT_POLL_INTERVAL = 1;
+
+    private static final Logger                  log                   = LoggerFactory.getLogger(Throttle.class);
+
+    private final int                            capacity;
+    private final AtomicLong                     claimed               = new AtomicLong(RingBuffer.INITIAL_CURSOR_VALUE);
+    private final Consumer[]                     consumers;
+    private final ConcurrentLinkedQueue<Spinner> parked                = new ConcurrentLinkedQueue<Spinner>();
+    private final long                           pollInterval;
+    private final Runnable                       poller;
+    private final AtomicBoolean                  polling               = new AtomicBoolean();
+    private final ScheduledExecutorService       scheduler;
+    private final AtomicLong                     throttled             = new AtomicLong();
+    private final AtomicLong                     throttledNanos        = new AtomicLong();
+    private final TimeUnit                       unit;
+
+    /**
+     * @param capacity
+     *            - the capacity of the ring buffer, which has yet to be
+     *            claimed from
+     * @param scheduler
+     *            - the scheduler which polls the consumers while spinners are
+     *            parked
+     * @param consumers
+     *            - the consumers gating the producers of the ring
+     */
+    public Throttle(int capacity, ScheduledExecutorService scheduler,
+                    Consumer... consumers) {
+        this(capacity, scheduler, DEFAULT_POLL_INTERVAL, TimeUnit.MILLISECONDS,
+             consumers);
+    }
+
+    /**
+     * @param capacity
+     *            - the capacity of the ring buffer, which has yet to be
+     *            claimed from
+     * @param scheduler
+     *            - the scheduler which polls the consumers while spinners are
+     *            parked
+     * @param pollInterval
+     *            - the interval between polls of the consumers
+     * @param unit
+     *            - the unit of the poll interval
+     * @param consumers
+     *            - the consumers gating the producers of the ring
+     */
+    public Throttle(int capacity, ScheduledExecutorService scheduler,
+                    long pollInterval, TimeUnit unit, Consumer... consumers) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                                               String.format("Capacity must be at least 1 entry: %s",
+                                                             capacity));
+        }
+        if (consumers.length == 0) {
+            throw new IllegalArgumentException(
+                                               "The ring must be gated by at least one consumer");
+        }
+        this.capacity = capacity;
+        this.scheduler = scheduler;
+        this.pollInterval = pollInterval;
+        this.unit = unit;
+        this.consumers = consumers;
+        poller = new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        };
+    }
+
+    /**
+     * @return the number of entries of the ring which are free to be claimed
+     */
+    public long getAvailable() {
+        return capacity - (claimed.get() - minimumSequence());
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of spinners currently parked
+     */
+    public int getParked() {
+        return parked.size();
+    }
+
+    /**
+     * @return the number of times spinners have been parked
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * @return the total time, in nanoseconds, spinners have spent parked
+     */
+    public long getThrottledNanos() {
+        return throttledNanos.get();
+    }
+
+    /**
+     * Claim the entries of the ring, if they are free
+     * 
+     * @param entries
+     *            - the number of entries to claim, which must not exceed the
+     *            capacity of the ring
+     * @return true if the entries have been claimed, and may be claimed from
+     *         the producer barrier without blocking
+     */
+    public boolean tryClaim(int entries) {
+        while (true) {
+            long current = claimed.get();
+            long next = current + entries;
+            if (next - capacity > minimumSequence()) {
+                return false;
+            }
+            if (claimed.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Park the spinner until the entries it claims are free. The spinner no
+     * longer selects its socket for reads.
+     */
+    void park(Spinner spinner) {
+        throttled.incrementAndGet();
+        parked.add(spinner);
+        schedule();
+    }
+
+    /**
+     * Return claimed entries which will not be claimed from the producer
+     * barrier
+     * 
+     * @param entries
+     *            - the number of entries
+     */
+    void release(int entries) {
+        claimed.addAndGet(-entries);
+    }
+
+    /**
+     * The spinner has been resumed
+     * 
+     * @param nanos
+     *            - the time the spinner spent parked
+     */
+    void resumed(long nanos) {
+        throttledNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Remove the closed spinner, if it is parked
+     */
+    void unpark(Spinner spinner) {
+        parked.remove(spinner);
+    }
+
+    private long minimumSequence() {
+        long minimum = Long.MAX_VALUE;
+        for (Consumer consumer : consumers) {
+            minimum = Math.min(minimum, consumer.getSequence());
+        }
+        return minimum;
+    }
+
+    /**
+     * Wake the parked spinners, in the order they were parked, until the
+     * free entries cannot satisfy a spinner's claim
+     */
+    private void poll() {
+        long available = getAvailable();
+        Spinner spinner;
+        while ((spinner = parked.peek()) != null) {
+            int entries = spinner.getClaiming();
+            if (entries > available) {
+                break;
+            }
+            available -= entries;
+            parked.remove(spinner);
+            try {
+                spinner.wake();
+            } catch (RuntimeException e) {
+                log.error(String.format("Unable to wake %s", spinner), e);
+            }
+        }
+        polling.set(false);
+        if (!parked.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (polling.compareAndSet(false, true)) {
+            scheduler.schedule(poller, pollInterval, unit);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The exclusive ownership of channels by the spinners appending to them. A
+ * spinner appends each event at the end of its channel's segment, so two
+ * spinners appending to the same channel would interleave or overwrite each
+ * other's events, and the truncation of an event torn or rejected by one
+ * would cut the events appended by the other.
+ * 
+ * A spinner takes ownership of a channel with the first event of the channel
+ * it reads, and holds it until its connection is closed. An event of a
+ * channel owned by another spinner is not appended, and the connection
+ * carrying it is closed.
+ * 
+ * Every spinner appending to the segments of a bundle must take ownership of
+ * the channels it appends to through the same writers.
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class Writers {
+    private final ConcurrentMap<UUID, Spinner> owners = new ConcurrentHashMap<UUID, Spinner>();
+
+    /**
+     * Take ownership of the channel for the spinner
+     * 
+     * @param tag
+     *            - the tag of the channel
+     * @param spinner
+     *            - the spinner appending to the channel
+     * @return true if the spinner owns the channel, false if the channel is
+     *         owned by another spinner
+     */
+    public boolean acquire(UUID tag, Spinner spinner) {
+        Spinner owner = owners.putIfAbsent(tag, spinner);
+        return owner == null || owner == spinner;
+    }
+
+    /**
+     * @param tag
+     *            - the tag of the channel
+     * @return the spinner owning the channel, or null if the channel is not
+     *         owned
+     */
+    public Spinner getOwner(UUID tag) {
+        return owners.get(tag);
+    }
+
+    /**
+     * @return the number of owned channels
+     */
+    public int getOwned() {
+        return owners.size();
+    }
+
+    /**
+     * Release the spinner's ownership of the channel
+     * 
+     * @param tag
+     *            - the tag of the channel
+     * @param spinner
+     *            - the spinner owning the channel
+     */
+    public void release(UUID tag, Spinner spinner) {
+        owners.remove(tag, spinner);
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import java.util.concurrent.TimeUnit;
+
+import com.lmax.disruptor.AlertException;
+import com.lmax.disruptor.ConsumerBarrier;
+import com.lmax.disruptor.RingBuffer;
+
+/**
+ * A consumer barrier over a fixed array of entries, whose cursor is advanced
+ * by the test
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class CBarrier implements ConsumerBarrier<EventEntry> {
+    private boolean            alerted;
+    private long               cursor = RingBuffer.INITIAL_CURSOR_VALUE;
+    private final EventEntry[] entries;
+
+    public CBarrier(EventEntry[] entries) {
+        this.entries = entries;
+    }
+
+    @Override
+    public synchronized void alert() {
+        alerted = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized long getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public EventEntry getEntry(long sequence) {
+        return entries[(int) sequence];
+    }
+
+    @Override
+    public synchronized boolean isAlerted() {
+        return alerted;
+    }
+
+    /**
+     * Make the entries up to and including the sequence available
+     */
+    public synchronized void publish(long sequence) {
+        cursor = sequence;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized long waitFor(long sequence) throws AlertException,
+                                                   InterruptedException {
+        while (cursor < sequence) {
+            if (alerted) {
+                throw AlertException.ALERT_EXCEPTION;
+            }
+            wait();
+        }
+        return cursor;
+    }
+
+    @Override
+    public synchronized long waitFor(long sequence, long timeout,
+                                     TimeUnit units) throws AlertException,
+                                                    InterruptedException {
+        long deadline = System.currentTimeMillis() + units.toMillis(timeout);
+        while (cursor < sequence) {
+            if (alerted) {
+                throw AlertException.ALERT_EXCEPTION;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            wait(remaining);
+        }
+        return cursor;
+    }
+}
@@ -20,12 +20,12 @@ public class PBarrier implements ProducerBarrier<EventEntry> {
 
     @Override
     public EventEntry getEntry(long sequence) {
-        return null;
+        return new EventEntry();
     }
 
     @Override
     public SequenceBatch nextEntries(SequenceBatch sequenceBatch) {
-        return null;
+        return sequenceBatch;
     }
 
     @Override
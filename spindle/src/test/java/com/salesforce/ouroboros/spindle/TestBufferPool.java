@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestBufferPool {
+    @Test
+    public void testAcquire() {
+        BufferPool pool = new BufferPool(64, 1024, 4);
+        ByteBuffer buffer = pool.acquire(100);
+        assertTrue(buffer.isDirect());
+        assertEquals(0, buffer.position());
+        assertEquals(100, buffer.limit());
+        assertEquals(128, buffer.capacity());
+
+        assertEquals(64, pool.acquire(0).capacity());
+        assertEquals(64, pool.acquire(64).capacity());
+        assertEquals(1024, pool.acquire(1024).capacity());
+        assertEquals(4096, pool.acquire(4096).capacity());
+    }
+
+    @Test
+    public void testRelease() {
+        BufferPool pool = new BufferPool(64, 1024, 4);
+        ByteBuffer buffer = pool.acquire(100);
+        buffer.putInt(1);
+        pool.release(buffer);
+        assertEquals(1, pool.getRetained());
+
+        ByteBuffer reused = pool.acquire(65);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(65, reused.limit());
+        assertEquals(0, pool.getRetained());
+
+        assertNotSame(buffer, pool.acquire(100));
+    }
+
+    @Test
+    public void testRetentionLimit() {
+        BufferPool pool = new BufferPool(64, 1024, 2);
+        for (int i = 0; i < 4; i++) {
+            pool.release(ByteBuffer.allocateDirect(256));
+        }
+        assertEquals(2, pool.getRetained());
+
+        // heap, oversized and odd sized buffers are not retained
+        pool.release(ByteBuffer.allocate(128));
+        pool.release(ByteBuffer.allocateDirect(4096));
+        pool.release(ByteBuffer.allocateDirect(100));
+        assertEquals(2, pool.getRetained());
+    }
+}
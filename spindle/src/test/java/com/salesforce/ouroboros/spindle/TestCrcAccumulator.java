@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestCrcAccumulator {
+
+    /**
+     * The bitwise CRC32 of the bytes, the reference for the accumulator
+     */
+    private static int reference(byte[] bytes, int offset, int length) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= bytes[i] & 0xff;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc >>> 1) ^ (0xedb88320 & -(crc & 1));
+            }
+        }
+        return crc ^ 0xffffffff;
+    }
+
+    @Test
+    public void testDirectBuffer() {
+        byte[] bytes = new byte[10 * 1024 + 7];
+        new Random(666).nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+
+        CrcAccumulator crc = new CrcAccumulator();
+        crc.update(buffer);
+        assertEquals(reference(bytes, 0, bytes.length), crc.getValue());
+        assertEquals(bytes.length, buffer.position());
+
+        crc.reset();
+        crc.update(buffer, 13, 5000);
+        assertEquals(reference(bytes, 13, 5000), crc.getValue());
+        assertEquals(bytes.length, buffer.position());
+    }
+
+    @Test
+    public void testEventCrcCompatibility() {
+        byte[] bytes = "Give me Slack, or give me Food, or Kill me".getBytes();
+        assertEquals(reference(bytes, 0, bytes.length), Event.crc32(bytes));
+        assertEquals(reference(bytes, 0, bytes.length),
+                     Event.crc32(ByteBuffer.wrap(bytes)));
+        assertEquals(0, Event.crc32(new byte[0]));
+    }
+
+    @Test
+    public void testHeapBuffer() {
+        byte[] bytes = new byte[1024];
+        new Random(666).nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 100, 600).slice();
+
+        CrcAccumulator crc = new CrcAccumulator();
+        crc.update(buffer);
+        assertEquals(reference(bytes, 100, 600), crc.getValue());
+        assertEquals(600, buffer.position());
+    }
+
+    @Test
+    public void testIncremental() {
+        byte[] bytes = new byte[3 * 1024 + 11];
+        new Random(666).nextBytes(bytes);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+
+        CrcAccumulator crc = new CrcAccumulator();
+        int fed = 0;
+        int chunk = 1;
+        while (fed < bytes.length) {
+            int length = Math.min(chunk, bytes.length - fed);
+            if (chunk % 2 == 0) {
+                crc.update(bytes, fed, length);
+            } else {
+                crc.update(direct, fed, length);
+            }
+            fed += length;
+            chunk += 17;
+        }
+        assertEquals(reference(bytes, 0, bytes.length), crc.getValue());
+    }
+}
@@ -58,6 +58,41 @@ public class TestEvent {
         assertTrue(event.validate());
     }
 
+    @Test
+    public void testPooled() throws Exception {
+        BufferPool pool = new BufferPool();
+        byte[] payload = "Give me Slack, or give me Food, or Kill me".getBytes();
+        UUID tag = UUID.randomUUID();
+        Event written = new Event(pool, 666, tag, ByteBuffer.wrap(payload));
+        assertTrue(written.getPayload().isDirect());
+        assertEquals(payload.length, written.size());
+        assertTrue(written.validate());
+
+        Event copy = written.clone();
+        assertEquals(tag, copy.getTag());
+        assertTrue(copy.validate());
+        copy.release();
+
+        File tmpFile = File.createTempFile("pooled", ".tst");
+        tmpFile.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        FileChannel segment = fos.getChannel();
+        written.rewind();
+        assertTrue(written.write(segment));
+        segment.close();
+        written.release();
+
+        FileInputStream fis = new FileInputStream(tmpFile);
+        segment = fis.getChannel();
+        Event read = new Event(segment, pool);
+        segment.close();
+        assertEquals(tag, read.getTag());
+        assertEquals(payload.length, read.size());
+        assertTrue(read.validate());
+        read.release();
+        assertEquals(3, pool.getRetained());
+    }
+
     @Test
     public void testReadWrite() throws Exception {
         int magic = 666;
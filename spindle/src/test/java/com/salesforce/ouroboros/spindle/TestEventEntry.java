@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestEventEntry {
+    @Test
+    public void testSet() {
+        UUID tag = UUID.randomUUID();
+        EventHeader header = new EventHeader(25, 777, tag, 23456);
+        EventEntry entry = new EventEntry();
+        entry.set(header, 1024, 64);
+
+        // the entry must not alias the header
+        header.clear();
+        header.initialize(1, 2, UUID.randomUUID(), 3);
+
+        assertEquals(25, entry.getSize());
+        assertEquals(777, entry.getMagic());
+        assertEquals(tag, entry.getTag());
+        assertEquals(23456, entry.getCrc32());
+        assertEquals(1024, entry.getSegment());
+        assertEquals(64, entry.getOffset());
+        assertEquals(64 + EventHeader.HEADER_BYTE_SIZE + 25, entry.nextOffset());
+    }
+
+    @Test
+    public void testStamp() {
+        EventEntry entry = new EventEntry();
+        entry.set(new EventHeader(25, 777, UUID.randomUUID(), 23456), 0, 0);
+        assertEquals(0, entry.getRead());
+        assertEquals(0, entry.getCommitted());
+        entry.stamp(100, 250);
+        assertEquals(100, entry.getRead());
+        assertEquals(250, entry.getCommitted());
+
+        // reusing the entry clears its stamps
+        entry.set(new EventHeader(25, 777, UUID.randomUUID(), 23456), 0, 0);
+        assertEquals(0, entry.getRead());
+        assertEquals(0, entry.getCommitted());
+    }
+
+    @Test
+    public void testSameSegment() {
+        UUID tag = UUID.randomUUID();
+        EventEntry a = new EventEntry();
+        a.set(new EventHeader(25, 777, tag, 23456), 0, 0);
+        EventEntry b = new EventEntry();
+        b.set(new EventHeader(10, 777, tag, 23456), 0, a.nextOffset());
+        EventEntry c = new EventEntry();
+        c.set(new EventHeader(10, 777, tag, 23456), 4096, 0);
+        EventEntry d = new EventEntry();
+        d.set(new EventHeader(10, 777, UUID.randomUUID(), 23456), 0, 0);
+        assertTrue(a.isSameSegment(b));
+        assertFalse(a.isSameSegment(c));
+        assertFalse(a.isSameSegment(d));
+    }
+}
@@ -0,0 +1,443 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.hellblazer.pinkie.SocketChannelHandler;
+import com.salesforce.ouroboros.spindle.Replicator.State;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestFanout {
+
+    /**
+     * A follower of the fanout, replicating to a replica over a loopback
+     * connection
+     */
+    private static class Follower {
+        final FileBundle    bundle;
+        final SocketChannel inbound;
+        final SocketChannel outbound;
+        final Replica       replica;
+        final Replicator    replicator;
+
+        Follower(Fanout fanout, FileBundle bundle,
+                 ReplicationCheckpoint checkpoint) throws IOException {
+            this.bundle = bundle;
+            replicator = new Replicator(fanout, Replicator.DEFAULT_WINDOW,
+                                        checkpoint);
+            replica = new Replica(bundle);
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.configureBlocking(true);
+            server.socket().bind(new InetSocketAddress(0));
+            outbound = SocketChannel.open();
+            outbound.connect(server.socket().getLocalSocketAddress());
+            outbound.configureBlocking(false);
+            inbound = server.accept();
+            inbound.configureBlocking(false);
+            server.close();
+            SocketChannelHandler handler = mock(SocketChannelHandler.class);
+            replica.handleAccept(inbound, handler);
+            replicator.handleConnect(outbound, handler);
+        }
+
+        Follower(Fanout fanout, String name) throws IOException {
+            this(fanout, new FileBundle(tempDirectory(name), 4), null);
+        }
+
+        void close() throws IOException {
+            disconnect();
+            bundle.close();
+        }
+
+        void disconnect() throws IOException {
+            outbound.close();
+            inbound.close();
+        }
+
+        /**
+         * Drive the replicator and the replica through a single step
+         * 
+         * @return true if the follower has stored the events up to the offset
+         *         in each channel
+         */
+        boolean drive(UUID[] tags, long offset) {
+            if (State.WRITE_BATCH == replicator.getState()) {
+                replicator.handleWrite(outbound);
+            }
+            replica.handleRead(inbound);
+            replicator.handleRead(outbound);
+            for (UUID tag : tags) {
+                if (replica.getHighWaterMark(tag) != offset) {
+                    return false;
+                }
+            }
+            return replicator.getUnacknowledged() == 0;
+        }
+
+        /**
+         * Assert the follower has stored the events in order
+         */
+        void verify(UUID[] tags, int count, long eventSize) throws IOException {
+            for (int i = 0; i < count; i++) {
+                UUID tag = tags[i % tags.length];
+                Segment segment = bundle.segmentFor(tag, 0);
+                segment.getChannel().position((i / tags.length) * eventSize);
+                Event replicated = new Event(segment.getChannel());
+                bundle.release(segment);
+                assertEquals(i, replicated.getMagic());
+                assertEquals(tag, replicated.getTag());
+                assertTrue(replicated.validate());
+            }
+        }
+    }
+
+    /**
+     * Drive the followers until each has stored the events up to the offset
+     * in each channel
+     */
+    private static void synchronize(final UUID[] tags, final long offset,
+                                    final Follower... followers)
+                                                                throws InterruptedException {
+        Util.waitFor("Never synchronized", new Util.Condition() {
+            @Override
+            public boolean value() {
+                boolean stored = true;
+                for (Follower follower : followers) {
+                    stored &= follower.drive(tags, offset);
+                }
+                return stored;
+            }
+        }, 4000L, 10L);
+    }
+
+    private static File tempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, ".dir");
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    private CBarrier        consumerBarrier;
+    private EventEntry[]    entries;
+    private long            eventSize;
+    private ExecutorService executor;
+    private FileBundle      leader;
+    private UUID[]          tags;
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        Fanout fanout = initialize(4, Long.MAX_VALUE);
+        File file = File.createTempFile("fanout", ".checkpoint");
+        file.deleteOnExit();
+        ReplicationCheckpoint checkpoint = new ReplicationCheckpoint(file);
+        Follower follower = new Follower(fanout,
+                                         new FileBundle(
+                                                        tempDirectory("checkpoint"),
+                                                        4), checkpoint);
+        consumerBarrier.publish(3);
+        synchronize(tags, 2 * eventSize, follower);
+        fanout.halt();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        follower.disconnect();
+        checkpoint.close();
+
+        // the leader restarts with a new ring, having appended the next two
+        // events, which were never replicated, before the restart
+        checkpoint = new ReplicationCheckpoint(file);
+        assertEquals(2 * eventSize, checkpoint.getPosition(tags[0]));
+        assertEquals(2 * eventSize, checkpoint.getPosition(tags[1]));
+        consumerBarrier = new CBarrier(new EventEntry[] { entries[6],
+                entries[7] });
+        executor = Executors.newCachedThreadPool();
+        fanout = new Fanout(leader, consumerBarrier, executor, 4,
+                            Long.MAX_VALUE);
+        Follower restarted = new Follower(fanout, follower.bundle, checkpoint);
+        consumerBarrier.publish(1);
+        synchronize(tags, 4 * eventSize, restarted);
+        restarted.verify(tags, 8, eventSize);
+        assertEquals(4 * eventSize, checkpoint.getPosition(tags[0]));
+
+        fanout.halt();
+        checkpoint.close();
+        terminate(restarted);
+    }
+
+    @Test
+    public void testCheckpointWithoutTraffic() throws Exception {
+        Fanout fanout = initialize(4, Long.MAX_VALUE);
+        File file = File.createTempFile("fanout", ".checkpoint");
+        file.deleteOnExit();
+        ReplicationCheckpoint checkpoint = new ReplicationCheckpoint(file);
+        Follower follower = new Follower(fanout,
+                                         new FileBundle(
+                                                        tempDirectory("idle-checkpoint"),
+                                                        4), checkpoint);
+        consumerBarrier.publish(3);
+        synchronize(tags, 2 * eventSize, follower);
+        fanout.halt();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        follower.disconnect();
+        checkpoint.close();
+
+        // the leader restarts having appended the remaining events before the
+        // restart, and publishes nothing further
+        checkpoint = new ReplicationCheckpoint(file);
+        consumerBarrier = new CBarrier(new EventEntry[0]);
+        executor = Executors.newCachedThreadPool();
+        fanout = new Fanout(leader, consumerBarrier, executor, 4,
+                            Long.MAX_VALUE);
+        Follower restarted = new Follower(fanout, follower.bundle, checkpoint);
+        synchronize(tags, 4 * eventSize, restarted);
+        restarted.verify(tags, 8, eventSize);
+        assertEquals(4 * eventSize, checkpoint.getPosition(tags[0]));
+        assertEquals(4 * eventSize, checkpoint.getPosition(tags[1]));
+
+        fanout.halt();
+        checkpoint.close();
+        terminate(restarted);
+    }
+
+    @Test
+    public void testDispatch() throws Exception {
+        append();
+        // a single thread drives both fanouts and their replicators, and the
+        // dispatcher parks until signalled
+        executor = Executors.newSingleThreadExecutor();
+        Dispatcher dispatcher = new Dispatcher(executor, 0,
+                                               TimeUnit.MILLISECONDS);
+        dispatcher.start();
+        Fanout[] fanouts = new Fanout[] {
+                new Fanout(leader, consumerBarrier, dispatcher, 2,
+                           Long.MAX_VALUE),
+                new Fanout(leader, consumerBarrier, dispatcher, 2,
+                           Long.MAX_VALUE) };
+        Follower first = new Follower(fanouts[0], "dispatch-first");
+        Follower second = new Follower(fanouts[1], "dispatch-second");
+        assertEquals(2, dispatcher.getFanouts());
+        Latency latency = new Latency();
+        first.replicator.setLatency(latency);
+        long now = System.nanoTime();
+        for (EventEntry entry : entries) {
+            entry.stamp(now, now);
+        }
+
+        // the fanouts are signalled as the producers' barrier would signal
+        // them, and are woken by their followers while gated
+        consumerBarrier.publish(3);
+        for (Fanout fanout : fanouts) {
+            fanout.committed();
+        }
+        synchronize(tags, 2 * eventSize, first, second);
+        consumerBarrier.publish(7);
+        for (Fanout fanout : fanouts) {
+            fanout.committed();
+        }
+        synchronize(tags, 4 * eventSize, first, second);
+        for (Fanout fanout : fanouts) {
+            assertEquals(7L, fanout.getSequence());
+        }
+        first.verify(tags, 8, eventSize);
+        second.verify(tags, 8, eventSize);
+        // only the first follower's replication is timed
+        assertEquals(8,
+                     latency.snapshot(Latency.Stage.REPLICATE).getCount());
+        assertEquals(8,
+                     latency.snapshot(Latency.Stage.END_TO_END).getCount());
+        assertEquals(0, latency.snapshot(Latency.Stage.APPEND).getCount());
+
+        for (Fanout fanout : fanouts) {
+            fanout.halt();
+        }
+        assertEquals(0, dispatcher.getFanouts());
+        dispatcher.terminate();
+        terminate(first, second);
+    }
+
+    @Test
+    public void testEject() throws Exception {
+        Fanout fanout = initialize(2, 2);
+        Follower first = new Follower(fanout, "eject-first");
+        Follower second = new Follower(fanout, "eject-second");
+
+        consumerBarrier.publish(1);
+        synchronize(tags, eventSize, first, second);
+
+        // the second follower stalls, and is ejected rather than gate the
+        // fanout, as the log retains only two batches
+        consumerBarrier.publish(7);
+        synchronize(tags, 4 * eventSize, first);
+        assertEquals(7L, fanout.getPlanned());
+
+        // the ejected follower catches up from the segments
+        synchronize(tags, 4 * eventSize, second);
+        assertEquals(7L, second.replicator.getSequence());
+        first.verify(tags, 8, eventSize);
+        second.verify(tags, 8, eventSize);
+
+        fanout.halt();
+        terminate(first, second);
+    }
+
+    @Test
+    public void testGating() throws Exception {
+        Fanout fanout = initialize(2, Long.MAX_VALUE);
+        Follower first = new Follower(fanout, "gating-first");
+        Follower second = new Follower(fanout, "gating-second");
+        Metrics metrics = new Metrics();
+        fanout.register(metrics, "fanout");
+        first.replicator.register(metrics, "first");
+        second.replicator.register(metrics, "second");
+
+        consumerBarrier.publish(3);
+        synchronize(tags, 2 * eventSize, first, second);
+        assertEquals(3L, fanout.getSequence());
+
+        // the second follower stalls writing the first of the next batches,
+        // and the fanout stalls once the log is full
+        consumerBarrier.publish(7);
+        synchronize(new UUID[] { tags[0] }, 4 * eventSize, first);
+        Thread.sleep(100);
+        assertEquals(6L, fanout.getPublished());
+        assertEquals(4L, second.replicator.getSequence());
+        assertEquals(4L, fanout.getSequence());
+        assertEquals(3 * eventSize,
+                     first.replica.getHighWaterMark(tags[1]));
+        assertEquals(4L, second.replicator.getLagEvents());
+        assertEquals(Long.valueOf(3),
+                     metrics.snapshot().get("fanout.occupancy"));
+
+        // the second follower releases the fanout
+        synchronize(tags, 4 * eventSize, first, second);
+        assertEquals(7L, fanout.getSequence());
+        SortedMap<String, Long> snapshot = metrics.snapshot();
+        assertEquals(Long.valueOf(0), snapshot.get("fanout.occupancy"));
+        assertEquals(Long.valueOf(0), snapshot.get("second.lag.events"));
+        assertEquals(Long.valueOf(0), snapshot.get("second.lag.bytes"));
+        assertEquals(Long.valueOf(8 * eventSize),
+                     snapshot.get("first.transferTo.bytes"));
+        first.verify(tags, 8, eventSize);
+        second.verify(tags, 8, eventSize);
+
+        fanout.halt();
+        terminate(first, second);
+    }
+
+    @Test
+    public void testLateFollower() throws Exception {
+        Fanout fanout = initialize(4, Long.MAX_VALUE);
+        Follower first = new Follower(fanout, "late-first");
+        consumerBarrier.publish(3);
+        synchronize(tags, 2 * eventSize, first);
+
+        // the late follower's first batches start beyond the end of its empty
+        // channels; it reports the ends, and is caught up from them
+        Follower late = new Follower(fanout, "late-second");
+        consumerBarrier.publish(7);
+        synchronize(tags, 4 * eventSize, first, late);
+        first.verify(tags, 8, eventSize);
+        late.verify(tags, 8, eventSize);
+        assertEquals(0, late.replicator.getLagEvents());
+
+        fanout.halt();
+        terminate(first, late);
+    }
+
+    /**
+     * Append the events, alternating between two channels, to the leader's
+     * segments
+     */
+    private void append() throws IOException {
+        leader = new FileBundle(tempDirectory("fanout-leader"), 4);
+        tags = new UUID[] { UUID.randomUUID(), UUID.randomUUID() };
+        entries = new EventEntry[8];
+        for (int i = 0; i < entries.length; i++) {
+            byte[] payload = ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+            EventHeader header = new EventHeader(payload.length, i,
+                                                 tags[i % tags.length],
+                                                 Event.crc32(payload));
+            Segment segment = leader.segmentFor(header);
+            long offset = segment.getChannel().size();
+            header.rewind();
+            header.write(offset, segment.getChannel());
+            segment.getChannel().write(ByteBuffer.wrap(payload),
+                                       offset + EventHeader.HEADER_BYTE_SIZE);
+            leader.release(segment);
+            entries[i] = new EventEntry();
+            entries[i].set(header, 0, offset);
+        }
+        eventSize = entries[0].nextOffset();
+        consumerBarrier = new CBarrier(entries);
+    }
+
+    /**
+     * Append the events to the leader's segments
+     * 
+     * @return the fanout of the events
+     */
+    private Fanout initialize(int capacity, long maximumLag) throws IOException {
+        append();
+        executor = Executors.newCachedThreadPool();
+        return new Fanout(leader, consumerBarrier, executor, capacity,
+                          maximumLag);
+    }
+
+    /**
+     * Wait for the fanout to return the leases of its batches, and close the
+     * followers
+     */
+    private void terminate(Follower... followers) throws Exception {
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        for (Follower follower : followers) {
+            follower.close();
+        }
+        leader.close();
+    }
+}
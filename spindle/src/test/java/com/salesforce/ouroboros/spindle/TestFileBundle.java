@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestFileBundle {
+
+    private static File tempDirectory() throws Exception {
+        File directory = File.createTempFile("file-bundle", ".dir");
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        FileBundle bundle = new FileBundle(tempDirectory(), 2);
+        Metrics metrics = new Metrics();
+        bundle.register(metrics, "bundle");
+        EventHeader a = new EventHeader(0, 0, UUID.randomUUID(), 0);
+        EventHeader b = new EventHeader(0, 0, UUID.randomUUID(), 0);
+        EventHeader c = new EventHeader(0, 0, UUID.randomUUID(), 0);
+
+        Segment segmentA = bundle.segmentFor(a);
+        bundle.release(segmentA);
+        Segment segmentB = bundle.segmentFor(b);
+        bundle.release(segmentB);
+        assertEquals(2, bundle.getOpenSegments());
+
+        // touch a, making b the least recently used
+        assertSame(segmentA, bundle.segmentFor(a));
+        bundle.release(segmentA);
+
+        Segment segmentC = bundle.segmentFor(c);
+        bundle.release(segmentC);
+        assertEquals(2, bundle.getOpenSegments());
+        assertTrue(segmentA.getChannel().isOpen());
+        assertFalse(segmentB.getChannel().isOpen());
+        assertTrue(segmentC.getChannel().isOpen());
+
+        Segment reopenedB = bundle.segmentFor(b);
+        assertNotSame(segmentB, reopenedB);
+        assertTrue(reopenedB.getChannel().isOpen());
+        bundle.release(reopenedB);
+        assertEquals(Long.valueOf(4),
+                     metrics.snapshot().get("bundle.segments.opened"));
+        assertEquals(Long.valueOf(2),
+                     metrics.snapshot().get("bundle.segments.open"));
+        bundle.close();
+        assertEquals(0, bundle.getOpenSegments());
+        assertFalse(reopenedB.getChannel().isOpen());
+    }
+
+    @Test
+    public void testLeasedSegmentsSurviveEviction() throws Exception {
+        FileBundle bundle = new FileBundle(tempDirectory(), 1);
+        EventHeader a = new EventHeader(0, 0, UUID.randomUUID(), 0);
+        EventHeader b = new EventHeader(0, 0, UUID.randomUUID(), 0);
+
+        Segment segmentA = bundle.segmentFor(a);
+        Segment segmentB = bundle.segmentFor(b);
+        assertTrue(segmentA.getChannel().isOpen());
+        assertEquals(2, bundle.getOpenSegments());
+
+        bundle.release(segmentA);
+        assertFalse(segmentA.getChannel().isOpen());
+        assertTrue(segmentB.getChannel().isOpen());
+        assertEquals(1, bundle.getOpenSegments());
+        bundle.release(segmentB);
+        bundle.close();
+    }
+
+    @Test
+    public void testLeaseOfEvictedSegment() throws Exception {
+        FileBundle bundle = new FileBundle(tempDirectory(), 1);
+        Metrics metrics = new Metrics();
+        bundle.register(metrics, "bundle");
+        EventHeader a = new EventHeader(0, 0, UUID.randomUUID(), 0);
+        EventHeader b = new EventHeader(0, 0, UUID.randomUUID(), 0);
+
+        // a is evicted while leased
+        Segment segmentA = bundle.segmentFor(a);
+        Segment segmentB = bundle.segmentFor(b);
+        bundle.release(segmentB);
+
+        // leasing a again reinstates the open segment, rather than opening a
+        // second channel and index over the same files
+        assertSame(segmentA, bundle.segmentFor(a));
+        assertEquals(Long.valueOf(2),
+                     metrics.snapshot().get("bundle.segments.opened"));
+        bundle.release(segmentA);
+        bundle.release(segmentA);
+        assertTrue(segmentA.getChannel().isOpen());
+        assertFalse(segmentB.getChannel().isOpen());
+        assertEquals(1, bundle.getOpenSegments());
+        bundle.close();
+        assertFalse(segmentA.getChannel().isOpen());
+    }
+
+    @Test
+    public void testSegmentReuse() throws Exception {
+        File root = tempDirectory();
+        FileBundle bundle = new FileBundle(root, 4);
+        EventHeader header = new EventHeader(0, 0, UUID.randomUUID(), 0);
+        Segment segment = bundle.segmentFor(header);
+        assertSame(segment, bundle.segmentFor(header));
+        bundle.release(segment);
+        bundle.release(segment);
+        assertTrue(segment.getChannel().isOpen());
+        assertTrue(new File(root, header.getTag().toString()).exists());
+        assertEquals(1, bundle.getOpenSegments());
+        bundle.close();
+        assertFalse(segment.getChannel().isOpen());
+    }
+}
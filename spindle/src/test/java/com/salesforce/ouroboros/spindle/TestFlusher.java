@@ -0,0 +1,227 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestFlusher {
+    private static class CountingBarrier extends PBarrier {
+        final AtomicInteger committed = new AtomicInteger();
+
+        @Override
+        public void commit(EventEntry entry) {
+            committed.incrementAndGet();
+        }
+    }
+
+    private static class CountingBundle implements Bundle {
+        final AtomicInteger released = new AtomicInteger();
+
+        @Override
+        public long endOf(UUID channel) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long offsetOf(UUID channel, long ordinal) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void release(Segment segment) {
+            released.incrementAndGet();
+        }
+
+        @Override
+        public Segment segmentFor(EventEntry entry) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Segment segmentFor(EventHeader header) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Segment segmentFor(UUID channel, long offset) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Test
+    public void testForceFailure() throws Exception {
+        CountingBundle bundle = new CountingBundle();
+        CountingBarrier barrier = new CountingBarrier();
+        final AtomicInteger failed = new AtomicInteger();
+        Runnable failure = new Runnable() {
+            @Override
+            public void run() {
+                failed.incrementAndGet();
+            }
+        };
+        Segment segment = segment();
+        // the segment cannot be forced
+        segment.getChannel().close();
+        final Flusher flusher = new Flusher(bundle, 1, 1,
+                                            TimeUnit.MILLISECONDS, true);
+        flusher.start();
+        try {
+            flusher.append(segment, 1);
+            flusher.publish(barrier, 0, 0, failure);
+            Util.waitFor("Group has not been failed", new Util.Condition() {
+                @Override
+                public boolean value() {
+                    return failed.get() == 1;
+                }
+            }, 1000, 10);
+
+            // the events are never published, and the segment is released.
+            // The segment and its publication may be failed in separate
+            // groups.
+            assertNotNull(flusher.getFailure());
+            assertTrue(flusher.getFailures() >= 1);
+            assertEquals(0, flusher.getFlushes());
+            assertEquals(0, barrier.committed.get());
+            assertEquals(1, bundle.released.get());
+
+            // nor are the events of a later group, which could be forced
+            Segment next = segment();
+            flusher.append(next, 1);
+            flusher.publish(barrier, 1, 1, failure);
+            Util.waitFor("Later group has not been failed",
+                         new Util.Condition() {
+                             @Override
+                             public boolean value() {
+                                 return failed.get() == 2;
+                             }
+                         }, 1000, 10);
+            Thread.sleep(50);
+            assertEquals(0, flusher.getFlushes());
+            assertEquals(0, barrier.committed.get());
+            assertEquals(2, bundle.released.get());
+            next.getChannel().close();
+        } finally {
+            flusher.terminate();
+        }
+        assertEquals(0, barrier.committed.get());
+    }
+
+    @Test
+    public void testGroupSize() throws Exception {
+        CountingBundle bundle = new CountingBundle();
+        final CountingBarrier barrier = new CountingBarrier();
+        Segment segment = segment();
+        final Flusher flusher = new Flusher(bundle, 3, 1, TimeUnit.HOURS, true);
+        flusher.start();
+        try {
+            flusher.append(segment, 1);
+            flusher.publish(barrier, 0, 0, null);
+            flusher.append(segment, 1);
+            flusher.publish(barrier, 1, 1, null);
+            Thread.sleep(100);
+            assertEquals(0, flusher.getFlushes());
+            assertEquals(0, barrier.committed.get());
+            assertEquals(0, bundle.released.get());
+
+            flusher.append(segment, 1);
+            flusher.publish(barrier, 2, 2, null);
+            Util.waitFor("Group has not been published", new Util.Condition() {
+                @Override
+                public boolean value() {
+                    return barrier.committed.get() == 3;
+                }
+            }, 1000, 10);
+            assertEquals(0, flusher.getPendingEvents());
+            assertEquals(3, barrier.committed.get());
+            assertEquals(3, bundle.released.get());
+        } finally {
+            flusher.terminate();
+            segment.getChannel().close();
+        }
+    }
+
+    @Test
+    public void testMaximumDelay() throws Exception {
+        CountingBundle bundle = new CountingBundle();
+        CountingBarrier barrier = new CountingBarrier();
+        Segment segment = segment();
+        final Flusher flusher = new Flusher(bundle, 1000, 50,
+                                            TimeUnit.MILLISECONDS, true);
+        flusher.start();
+        try {
+            flusher.append(segment, 4);
+            flusher.publish(barrier, 0, 3, null);
+            Util.waitFor("Group has not been forced", new Util.Condition() {
+                @Override
+                public boolean value() {
+                    return flusher.getFlushes() == 1;
+                }
+            }, 1000, 10);
+            assertEquals(4, barrier.committed.get());
+            assertEquals(1, bundle.released.get());
+        } finally {
+            flusher.terminate();
+            segment.getChannel().close();
+        }
+    }
+
+    @Test
+    public void testTerminateForcesRemaining() throws Exception {
+        CountingBundle bundle = new CountingBundle();
+        CountingBarrier barrier = new CountingBarrier();
+        Segment segment = segment();
+        Flusher flusher = new Flusher(bundle, 1000, 1, TimeUnit.HOURS, true);
+        flusher.start();
+        flusher.append(segment, 2);
+        flusher.publish(barrier, 0, 1, null);
+        flusher.terminate();
+        segment.getChannel().close();
+        assertEquals(1, flusher.getFlushes());
+        assertEquals(2, barrier.committed.get());
+        assertEquals(1, bundle.released.get());
+    }
+
+    private Segment segment() throws Exception {
+        File file = File.createTempFile("flusher", ".tst");
+        file.deleteOnExit();
+        return new Segment(new RandomAccessFile(file, "rw").getChannel(), 0);
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestHistogram {
+
+    @Test
+    public void testIndex() {
+        int precision = 4;
+        // values below 2^precision are exact
+        for (long value = 0; value < 16; value++) {
+            int index = Histogram.indexOf(value, precision);
+            assertEquals(value, Histogram.lowestValue(index, precision));
+            assertEquals(value, Histogram.highestValue(index, precision));
+        }
+        assertEquals(0, Histogram.indexOf(-5, precision));
+        long[] values = { 16, 17, 31, 32, 33, 1000, 123456789,
+                Long.MAX_VALUE };
+        for (long value : values) {
+            int index = Histogram.indexOf(value, precision);
+            long low = Histogram.lowestValue(index, precision);
+            long high = Histogram.highestValue(index, precision);
+            assertTrue(low <= value && value <= high);
+            // the relative error is bounded by the precision
+            assertTrue((high - low) <= low / 16);
+        }
+        assertEquals((64 - precision) * 16 - 1,
+                     Histogram.indexOf(Long.MAX_VALUE, precision));
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        histogram.record(1000000, 10);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1010, snapshot.getCount());
+        assertWithin(500, snapshot.getPercentile(50));
+        assertWithin(1000, snapshot.getPercentile(99));
+        assertWithin(1000000, snapshot.getPercentile(99.9));
+        assertWithin(1000000, snapshot.getMax());
+        assertWithin(1, snapshot.getPercentile(0));
+        double mean = (500500 + 10000000) / 1010.0;
+        assertTrue(Math.abs(snapshot.getMean() - mean) <= mean / 16);
+
+        histogram.reset();
+        snapshot = histogram.snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getPercentile(99));
+    }
+
+    private void assertWithin(long expected, long actual) {
+        assertTrue(String.format("%s is not within the precision of %s",
+                                 actual, expected),
+                   actual >= expected && actual - expected <= expected / 16);
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.hellblazer.pinkie.SocketChannelHandler;
+import com.lmax.disruptor.Consumer;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.WaitStrategy;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestIngest {
+    private static class Gate implements Consumer {
+        final AtomicLong sequence = new AtomicLong(
+                                                   RingBuffer.INITIAL_CURSOR_VALUE);
+
+        @Override
+        public long getSequence() {
+            return sequence.get();
+        }
+
+        @Override
+        public void halt() {
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+
+    @Test
+    public void testSharedRing() throws Exception {
+        File root = File.createTempFile("ingest", ".dir");
+        root.delete();
+        root.mkdirs();
+        root.deleteOnExit();
+        FileBundle bundle = new FileBundle(root, 4);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        RingBuffer<EventEntry> ring = Ingest.createRing(64,
+                                                        WaitStrategy.Option.YIELDING);
+        Gate gate = new Gate();
+        Ingest ingest = new Ingest(bundle, ring, scheduler, 1024, 8, false,
+                                   null, gate);
+        Metrics metrics = new Metrics();
+        ingest.register(metrics, "ingest");
+
+        final int connections = 2;
+        final int eventCount = 30;
+        UUID[] tags = new UUID[connections];
+        SocketChannel[] outbound = new SocketChannel[connections];
+        final SocketChannel[] inbound = new SocketChannel[connections];
+        final Spinner[] spinners = new Spinner[connections];
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        for (int c = 0; c < connections; c++) {
+            tags[c] = UUID.randomUUID();
+            outbound[c] = SocketChannel.open();
+            outbound[c].configureBlocking(true);
+            outbound[c].connect(server.socket().getLocalSocketAddress());
+            inbound[c] = server.accept();
+            inbound[c].configureBlocking(false);
+            spinners[c] = (Spinner) ingest.createCommunicationsHandler();
+            spinners[c].handleAccept(inbound[c],
+                                     mock(SocketChannelHandler.class));
+        }
+        assertEquals(connections, ingest.getConnections());
+        assertEquals(0L, metrics.snapshot().get("ingest.spinner.1.events").longValue());
+
+        for (int c = 0; c < connections; c++) {
+            ByteBuffer stream = ByteBuffer.allocate(16 * 1024);
+            for (int i = 0; i < eventCount; i++) {
+                byte[] payload = ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+                EventHeader header = new EventHeader(payload.length, i,
+                                                     tags[c],
+                                                     Event.crc32(payload));
+                header.rewind();
+                stream.put(header.bytes);
+                stream.put(payload);
+            }
+            stream.flip();
+            while (stream.hasRemaining()) {
+                outbound[c].write(stream);
+            }
+        }
+
+        // the connections publish to the ring concurrently
+        Thread[] threads = new Thread[connections];
+        for (int c = 0; c < connections; c++) {
+            final int connection = c;
+            threads[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Util.waitFor("Events have not been committed",
+                                     new Util.Condition() {
+                                         @Override
+                                         public boolean value() {
+                                             spinners[connection].handleRead(inbound[connection]);
+                                             return spinners[connection].getEvents() == eventCount;
+                                         }
+                                     }, 2000, 1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "Connection " + c);
+            threads[c].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(connections * eventCount - 1, ring.getCursor());
+
+        // the events of each connection are sequenced in the order read
+        int[] expected = new int[connections];
+        for (long s = 0; s <= ring.getCursor(); s++) {
+            EventEntry entry = ring.getEntry(s);
+            int c = entry.getTag().equals(tags[0]) ? 0 : 1;
+            assertEquals(tags[c], entry.getTag());
+            assertEquals(expected[c]++, entry.getMagic());
+        }
+        for (int c = 0; c < connections; c++) {
+            assertEquals(eventCount, expected[c]);
+            assertEquals((long) eventCount,
+                         metrics.snapshot().get("ingest.spinner."
+                                                        + (c + 1)
+                                                        + ".events").longValue());
+        }
+
+        for (int c = 0; c < connections; c++) {
+            spinners[c].closing(inbound[c]);
+            outbound[c].close();
+            inbound[c].close();
+        }
+        server.close();
+        scheduler.shutdownNow();
+        bundle.close();
+    }
+
+    @Test
+    public void testSingleWriter() throws Exception {
+        File root = File.createTempFile("ingest", ".dir");
+        root.delete();
+        root.mkdirs();
+        root.deleteOnExit();
+        FileBundle bundle = new FileBundle(root, 4);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        RingBuffer<EventEntry> ring = Ingest.createRing(64,
+                                                        WaitStrategy.Option.YIELDING);
+        Ingest ingest = new Ingest(bundle, ring, scheduler, 1024, 8, false,
+                                   null, new Gate());
+        UUID tag = UUID.randomUUID();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+
+        final int connections = 3;
+        SocketChannel[] outbound = new SocketChannel[connections];
+        SocketChannel[] inbound = new SocketChannel[connections];
+        Spinner[] spinners = new Spinner[connections];
+        for (int c = 0; c < connections; c++) {
+            outbound[c] = SocketChannel.open();
+            outbound[c].configureBlocking(true);
+            outbound[c].connect(server.socket().getLocalSocketAddress());
+            inbound[c] = server.accept();
+            inbound[c].configureBlocking(false);
+            spinners[c] = (Spinner) ingest.createCommunicationsHandler();
+            spinners[c].handleAccept(inbound[c],
+                                     mock(SocketChannelHandler.class));
+        }
+
+        // the first connection takes ownership of the channel
+        write(outbound[0], tag, 0);
+        read(spinners[0], inbound[0], 1);
+        assertEquals(spinners[0], ingest.getWriters().getOwner(tag));
+        long size = bundle.segmentFor(tag, 0).getChannel().size();
+
+        // the second connection is closed without appending to the channel
+        write(outbound[1], tag, 1);
+        final Spinner contending = spinners[1];
+        final SocketChannel contended = inbound[1];
+        Util.waitFor("Contending connection has not been closed",
+                     new Util.Condition() {
+                         @Override
+                         public boolean value() {
+                             contending.handleRead(contended);
+                             return contending.getState() == Spinner.State.CLOSED;
+                         }
+                     }, 2000, 1);
+        assertEquals(0L, spinners[1].getEvents());
+        assertEquals(size, bundle.segmentFor(tag, 0).getChannel().size());
+        assertEquals(spinners[0], ingest.getWriters().getOwner(tag));
+
+        // the ownership is released once the owner's connection is closed
+        spinners[0].closing(inbound[0]);
+        assertEquals(0, ingest.getWriters().getOwned());
+        write(outbound[2], tag, 2);
+        read(spinners[2], inbound[2], 1);
+        assertEquals(spinners[2], ingest.getWriters().getOwner(tag));
+        assertEquals(1L, ring.getCursor());
+        assertEquals(0, ring.getEntry(0).getMagic());
+        assertEquals(2, ring.getEntry(1).getMagic());
+
+        for (int c = 0; c < connections; c++) {
+            spinners[c].closing(inbound[c]);
+            outbound[c].close();
+            inbound[c].close();
+        }
+        assertEquals(0, ingest.getWriters().getOwned());
+        server.close();
+        scheduler.shutdownNow();
+        bundle.close();
+    }
+
+    private void read(final Spinner spinner, final SocketChannel inbound,
+                      final long events) throws InterruptedException {
+        Util.waitFor("Events have not been committed", new Util.Condition() {
+            @Override
+            public boolean value() {
+                spinner.handleRead(inbound);
+                return spinner.getEvents() == events;
+            }
+        }, 2000, 1);
+    }
+
+    private void write(SocketChannel outbound, UUID tag, int magic)
+                                                                   throws IOException {
+        byte[] payload = ("Give me Slack, or give me Food, or Kill me #" + magic).getBytes();
+        EventHeader header = new EventHeader(payload.length, magic, tag,
+                                             Event.crc32(payload));
+        header.rewind();
+        ByteBuffer stream = ByteBuffer.allocate(header.bytes.remaining()
+                                                + payload.length);
+        stream.put(header.bytes);
+        stream.put(payload);
+        stream.flip();
+        while (stream.hasRemaining()) {
+            outbound.write(stream);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestMetrics {
+
+    @Test
+    public void testMBean() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.counter("spinner.events").add(42);
+        final AtomicLong open = new AtomicLong(3);
+        metrics.gauge("bundle.segments.open", new Gauge() {
+            @Override
+            public long value() {
+                return open.get();
+            }
+        });
+        ObjectName name = new ObjectName(
+                                         "com.salesforce.ouroboros:type=Metrics,name=test");
+        metrics.register(name);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(2, server.getMBeanInfo(name).getAttributes().length);
+        assertEquals(42L, server.getAttribute(name, "spinner.events"));
+        open.set(4);
+        assertEquals(4L, server.getAttribute(name, "bundle.segments.open"));
+        metrics.unregisterMBeans();
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testSnapshot() {
+        Metrics metrics = new Metrics();
+        Counter events = metrics.counter("spinner.events");
+        assertSame(events, metrics.counter("spinner.events"));
+        events.add(10);
+        Counter bytes = new Counter();
+        bytes.add(100);
+        metrics.register("spinner.bytes", bytes);
+        metrics.register("spinners", new Counter());
+        metrics.gauge("replicator.lag.events", new Gauge() {
+            @Override
+            public long value() {
+                return 5;
+            }
+        });
+        metrics.gauge("replicator.broken", new Gauge() {
+            @Override
+            public long value() {
+                throw new IllegalStateException();
+            }
+        });
+
+        final AtomicReference<SortedMap<String, Long>> reported = new AtomicReference<SortedMap<String, Long>>();
+        metrics.addReporter(new Metrics.Reporter() {
+            @Override
+            public void report(long timestamp,
+                               SortedMap<String, Long> snapshot) {
+                reported.set(snapshot);
+            }
+        });
+        metrics.report();
+        SortedMap<String, Long> snapshot = reported.get();
+        assertEquals(4, snapshot.size());
+        assertEquals("replicator.lag.events", snapshot.firstKey());
+        assertEquals(Long.valueOf(5), snapshot.get("replicator.lag.events"));
+        assertEquals(Long.valueOf(100), snapshot.get("spinner.bytes"));
+        assertEquals(Long.valueOf(10), snapshot.get("spinner.events"));
+        assertNull(snapshot.get("replicator.broken"));
+
+        // only the metrics qualified by the name are unregistered
+        metrics.unregister("spinner");
+        snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.size());
+        assertTrue(snapshot.containsKey("spinners"));
+    }
+}
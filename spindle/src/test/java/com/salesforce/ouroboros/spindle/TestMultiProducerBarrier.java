@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.lmax.disruptor.Consumer;
+import com.lmax.disruptor.ConsumerBarrier;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.SequenceBatch;
+import com.lmax.disruptor.WaitStrategy;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestMultiProducerBarrier {
+    /**
+     * A consumer gating the producers of the ring at the sequence it has
+     * consumed
+     */
+    private static class Gate implements Consumer {
+        final AtomicLong sequence = new AtomicLong(
+                                                   RingBuffer.INITIAL_CURSOR_VALUE);
+
+        @Override
+        public long getSequence() {
+            return sequence.get();
+        }
+
+        @Override
+        public void halt() {
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        // a batch of two events, and a single event, in turn
+        final int events = 3 * 3333;
+        final RingBuffer<EventEntry> ring = Ingest.createRing(64,
+                                                              WaitStrategy.Option.YIELDING);
+        final Gate gate = new Gate();
+        final ConsumerBarrier<EventEntry> consumerBarrier = ring.createConsumerBarrier();
+        final MultiProducerBarrier barrier = new MultiProducerBarrier(ring,
+                                                                      gate);
+        final UUID[] tags = new UUID[producers];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            tags[i] = UUID.randomUUID();
+            final EventHeader header = new EventHeader(0, i, tags[i], 0);
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int offset = 0; offset < events;) {
+                        if (offset % 3 == 0) {
+                            SequenceBatch batch = barrier.nextEntries(new SequenceBatch(
+                                                                                        2));
+                            for (long s = batch.getStart(); s <= batch.getEnd(); s++) {
+                                barrier.getEntry(s).set(header, 0, offset++);
+                            }
+                            barrier.commit(batch);
+                        } else {
+                            EventEntry entry = barrier.nextEntry();
+                            entry.set(header, 0, offset++);
+                            barrier.commit(entry);
+                        }
+                    }
+                }
+            }, "Producer " + i);
+            threads[i].start();
+        }
+
+        // the events of each producer are consumed in the order committed
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final long total = producers * (long) events;
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long[] expected = new long[producers];
+                long sequence = 0;
+                try {
+                    while (sequence < total) {
+                        long available = consumerBarrier.waitFor(sequence);
+                        for (; sequence <= available; sequence++) {
+                            EventEntry entry = consumerBarrier.getEntry(sequence);
+                            int producer = entry.getMagic();
+                            if (entry.getOffset() != expected[producer]) {
+                                failure.set(String.format("Producer %s event %s out of order, expected %s",
+                                                          producer,
+                                                          entry.getOffset(),
+                                                          expected[producer]));
+                                return;
+                            }
+                            expected[producer] = entry.getOffset() + 1;
+                        }
+                        gate.sequence.set(available);
+                    }
+                } catch (Exception e) {
+                    failure.set(e.toString());
+                }
+            }
+        }, "Consumer");
+        consumer.start();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(30000);
+        }
+        consumer.join(30000);
+        assertEquals(null, failure.get());
+        assertEquals(total - 1, barrier.getCursor());
+        assertEquals(total - 1, gate.getSequence());
+    }
+
+    @Test
+    public void testOutOfOrderCommit() {
+        RingBuffer<EventEntry> ring = Ingest.createRing(8,
+                                                        WaitStrategy.Option.YIELDING);
+        MultiProducerBarrier barrier = new MultiProducerBarrier(ring,
+                                                                new Gate());
+        EventEntry first = barrier.nextEntry();
+        EventEntry second = barrier.nextEntry();
+        SequenceBatch batch = barrier.nextEntries(new SequenceBatch(3));
+        EventEntry last = barrier.nextEntry();
+        assertEquals(0, first.getSequence());
+        assertEquals(1, second.getSequence());
+        assertEquals(2, batch.getStart());
+        assertEquals(5, last.getSequence());
+
+        // later commits are held until the earlier claims are committed
+        barrier.commit(batch);
+        barrier.commit(last);
+        assertEquals(RingBuffer.INITIAL_CURSOR_VALUE, barrier.getCursor());
+        barrier.commit(first);
+        assertEquals(0, barrier.getCursor());
+        barrier.commit(second);
+        assertEquals(5, barrier.getCursor());
+        assertEquals(5, ring.getCursor());
+    }
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.Test;
+
+import com.hellblazer.pinkie.CommunicationsHandler;
+import com.hellblazer.pinkie.SocketChannelHandler;
+import com.lmax.disruptor.Consumer;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.WaitStrategy;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestPipelines {
+    private static class Gate implements Consumer {
+        @Override
+        public long getSequence() {
+            return RingBuffer.INITIAL_CURSOR_VALUE;
+        }
+
+        @Override
+        public void halt() {
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+
+    @Test
+    public void testMisroutedEvent() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        FileBundle[] bundles = new FileBundle[2];
+        File[] roots = new File[2];
+        @SuppressWarnings("unchecked")
+        RingBuffer<EventEntry>[] rings = new RingBuffer[2];
+        for (int i = 0; i < 2; i++) {
+            roots[i] = File.createTempFile("pipeline-" + i, ".dir");
+            roots[i].delete();
+            roots[i].mkdirs();
+            roots[i].deleteOnExit();
+            bundles[i] = new FileBundle(roots[i], 4);
+            rings[i] = Ingest.createRing(64, WaitStrategy.Option.YIELDING);
+        }
+        // the first pipeline batches, the second streams
+        Pipelines pipelines = new Pipelines(
+                                            new Ingest(bundles[0], rings[0],
+                                                       scheduler, 1024, 8,
+                                                       false, null, new Gate()),
+                                            new Ingest(bundles[1], rings[1],
+                                                       scheduler, false, null,
+                                                       new Gate()));
+
+        UUID[] tags = new UUID[2];
+        while (tags[0] == null || tags[1] == null) {
+            UUID tag = UUID.randomUUID();
+            tags[Pipelines.partition(tag, 2)] = tag;
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        for (int c = 0; c < 2; c++) {
+            SocketChannel outbound = SocketChannel.open();
+            outbound.configureBlocking(true);
+            outbound.connect(server.socket().getLocalSocketAddress());
+            final SocketChannel inbound = server.accept();
+            inbound.configureBlocking(false);
+            final CommunicationsHandler handler = pipelines.createCommunicationsHandler();
+            SocketChannelHandler socketHandler = mock(SocketChannelHandler.class);
+            handler.handleAccept(inbound, socketHandler);
+
+            // the second event belongs to the other pipeline
+            ByteBuffer stream = ByteBuffer.allocate(16 * 1024);
+            for (int i = 0; i < 2; i++) {
+                byte[] payload = ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+                EventHeader header = new EventHeader(payload.length, i,
+                                                     tags[i == 0 ? c : 1 - c],
+                                                     Event.crc32(payload));
+                header.rewind();
+                stream.put(header.bytes);
+                stream.put(payload);
+            }
+            stream.flip();
+            while (stream.hasRemaining()) {
+                outbound.write(stream);
+            }
+
+            final RingBuffer<EventEntry> ring = rings[c];
+            Util.waitFor("Event has not been committed", new Util.Condition() {
+                @Override
+                public boolean value() {
+                    handler.handleRead(inbound);
+                    return ring.getCursor() == 0;
+                }
+            }, 2000, 10);
+            for (int i = 0; i < 3; i++) {
+                handler.handleRead(inbound);
+            }
+
+            // the connection is closed without appending the misrouted event
+            verify(socketHandler).close();
+            assertEquals(0L, ring.getCursor());
+            assertEquals(tags[c], ring.getEntry(0).getTag());
+            assertTrue(new File(roots[c], tags[c].toString()).exists());
+            assertFalse(new File(roots[c], tags[1 - c].toString()).exists());
+
+            handler.closing(inbound);
+            outbound.close();
+            inbound.close();
+        }
+        server.close();
+        scheduler.shutdownNow();
+        for (FileBundle bundle : bundles) {
+            bundle.close();
+        }
+    }
+
+    @Test
+    public void testPartition() {
+        int partitions = 4;
+        int[] counts = new int[partitions];
+        for (int i = 0; i < 4000; i++) {
+            UUID tag = UUID.randomUUID();
+            int partition = Pipelines.partition(tag, partitions);
+            assertTrue(partition >= 0 && partition < partitions);
+            assertEquals(partition, Pipelines.partition(tag, partitions));
+            counts[partition]++;
+        }
+        for (int count : counts) {
+            assertTrue(String.format("Uneven partitions: %s", count),
+                       count > 800);
+        }
+        // sequential tags are spread as well
+        int[] sequential = new int[partitions];
+        for (long i = 0; i < 4000; i++) {
+            sequential[Pipelines.partition(0, i, partitions)]++;
+        }
+        for (int count : sequential) {
+            assertTrue(String.format("Uneven partitions: %s", count),
+                       count > 800);
+        }
+    }
+
+    @Test
+    public void testSteering() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        FileBundle[] bundles = new FileBundle[2];
+        File[] roots = new File[2];
+        @SuppressWarnings("unchecked")
+        RingBuffer<EventEntry>[] rings = new RingBuffer[2];
+        for (int i = 0; i < 2; i++) {
+            roots[i] = File.createTempFile("pipeline-" + i, ".dir");
+            roots[i].delete();
+            roots[i].mkdirs();
+            roots[i].deleteOnExit();
+            bundles[i] = new FileBundle(roots[i], 4);
+            rings[i] = Ingest.createRing(64, WaitStrategy.Option.YIELDING);
+        }
+        // the first pipeline batches, the second streams
+        Pipelines pipelines = new Pipelines(
+                                            new Ingest(bundles[0], rings[0],
+                                                       scheduler, 1024, 8,
+                                                       false, null, new Gate()),
+                                            new Ingest(bundles[1], rings[1],
+                                                       scheduler, false, null,
+                                                       new Gate()));
+        assertEquals(2, pipelines.getPipelines());
+
+        UUID[] tags = new UUID[2];
+        while (tags[0] == null || tags[1] == null) {
+            UUID tag = UUID.randomUUID();
+            tags[Pipelines.partition(tag, 2)] = tag;
+        }
+        for (int i = 0; i < 2; i++) {
+            assertEquals(pipelines.getPipeline(i),
+                         pipelines.pipelineFor(new EventChannel(tags[i])));
+        }
+
+        final int eventCount = 20;
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        SocketChannel[] outbound = new SocketChannel[2];
+        SocketChannel[] inbound = new SocketChannel[2];
+        CommunicationsHandler[] handlers = new CommunicationsHandler[2];
+        for (int c = 0; c < 2; c++) {
+            outbound[c] = SocketChannel.open();
+            outbound[c].configureBlocking(true);
+            outbound[c].connect(server.socket().getLocalSocketAddress());
+            inbound[c] = server.accept();
+            inbound[c].configureBlocking(false);
+            handlers[c] = pipelines.createCommunicationsHandler();
+            handlers[c].handleAccept(inbound[c],
+                                     mock(SocketChannelHandler.class));
+
+            ByteBuffer stream = ByteBuffer.allocate(16 * 1024);
+            for (int i = 0; i < eventCount; i++) {
+                byte[] payload = ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+                EventHeader header = new EventHeader(payload.length, i,
+                                                     tags[c],
+                                                     Event.crc32(payload));
+                header.rewind();
+                stream.put(header.bytes);
+                stream.put(payload);
+            }
+            stream.flip();
+            // the header of the first event arrives in pieces
+            ByteBuffer piece = stream.duplicate();
+            piece.limit(10);
+            outbound[c].write(piece);
+            handlers[c].handleRead(inbound[c]);
+            stream.position(10);
+            while (stream.hasRemaining()) {
+                outbound[c].write(stream);
+            }
+        }
+
+        for (int c = 0; c < 2; c++) {
+            final CommunicationsHandler handler = handlers[c];
+            final SocketChannel channel = inbound[c];
+            final RingBuffer<EventEntry> ring = rings[c];
+            Util.waitFor("Events have not been committed",
+                         new Util.Condition() {
+                             @Override
+                             public boolean value() {
+                                 handler.handleRead(channel);
+                                 return ring.getCursor() == eventCount - 1;
+                             }
+                         }, 2000, 10);
+        }
+
+        // each pipeline holds only the channel it owns
+        for (int c = 0; c < 2; c++) {
+            assertEquals(1, pipelines.getSteered(c));
+            for (long s = 0; s < eventCount; s++) {
+                EventEntry entry = rings[c].getEntry(s);
+                assertEquals(tags[c], entry.getTag());
+                assertEquals(s, entry.getMagic());
+            }
+            assertTrue(new File(roots[c], tags[c].toString()).exists());
+            assertFalse(new File(roots[c], tags[1 - c].toString()).exists());
+        }
+
+        for (int c = 0; c < 2; c++) {
+            handlers[c].closing(inbound[c]);
+            outbound[c].close();
+            inbound[c].close();
+        }
+        server.close();
+        scheduler.shutdownNow();
+        for (FileBundle bundle : bundles) {
+            bundle.close();
+        }
+    }
+}
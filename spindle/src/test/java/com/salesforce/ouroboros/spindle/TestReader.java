@@ -0,0 +1,220 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.hellblazer.pinkie.SocketChannelHandler;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestReader {
+
+    private static ByteBuffer request(UUID tag, long offset, int maximumBytes) {
+        ByteBuffer request = ByteBuffer.allocate(Reader.REQUEST_SIZE);
+        request.putLong(tag.getMostSignificantBits());
+        request.putLong(tag.getLeastSignificantBits());
+        request.putLong(offset);
+        request.putInt(maximumBytes);
+        request.flip();
+        return request;
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        File root = File.createTempFile("reader", ".dir");
+        root.delete();
+        root.mkdirs();
+        root.deleteOnExit();
+        FileBundle bundle = new FileBundle(root, 4);
+        UUID tag = UUID.randomUUID();
+        Event[] events = new Event[4];
+        Segment segment = bundle.segmentFor(new EventHeader(0, 0, tag, 0));
+        FileChannel channel = segment.getChannel();
+        for (int i = 0; i < events.length; i++) {
+            byte[] payload = ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+            events[i] = new Event(i, tag, ByteBuffer.wrap(payload));
+            events[i].rewind();
+            long position = channel.position();
+            events[i].write(channel);
+            // the last event is appended, but not yet indexed
+            if (i < events.length - 1) {
+                segment.getIndex().append(position,
+                                          events[i].size()
+                                                  + EventHeader.HEADER_BYTE_SIZE);
+            }
+        }
+        // a partially appended event
+        channel.write(ByteBuffer.allocate(EventHeader.HEADER_BYTE_SIZE + 4));
+        bundle.release(segment);
+        int eventSize = events[0].size() + EventHeader.HEADER_BYTE_SIZE;
+
+        final SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        final Reader reader = new Reader(bundle);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        outbound.configureBlocking(false);
+        final SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+
+        reader.handleAccept(inbound, handler);
+        assertEquals(Reader.State.ACCEPTED, reader.getState());
+
+        // the maximum bytes admit two events
+        ByteBuffer response = exchange(reader, inbound, outbound,
+                                       request(tag, 0, eventSize * 2 + 1));
+        assertEquals(eventSize * 2, response.remaining());
+        assertEquals(0, new Event(response.slice()).getMagic());
+        response.position(eventSize);
+        assertEquals(1, new Event(response.slice()).getMagic());
+
+        // the first event is always sent, regardless of the maximum bytes
+        response = exchange(reader, inbound, outbound,
+                            request(tag, eventSize * 2, 1));
+        assertEquals(eventSize, response.remaining());
+        Event read = new Event(response.slice());
+        assertEquals(2, read.getMagic());
+        assertEquals(tag, read.getTag());
+        assertTrue(read.validate());
+
+        // no indexed events remain
+        response = exchange(reader, inbound, outbound,
+                            request(tag, eventSize * 3, 1024));
+        assertEquals(0, response.remaining());
+
+        // negative offsets and maximum bytes, and offsets beyond the indexed
+        // events, are invalid
+        ByteBuffer invalid = request(tag, -1, 1024);
+        while (invalid.hasRemaining()) {
+            outbound.write(invalid);
+        }
+        assertEquals(Reader.INVALID_REQUEST,
+                     readLength(reader, inbound, outbound));
+        assertEquals(Reader.State.ACCEPTED, reader.getState());
+        invalid = request(tag, 0, -1);
+        while (invalid.hasRemaining()) {
+            outbound.write(invalid);
+        }
+        assertEquals(Reader.INVALID_REQUEST,
+                     readLength(reader, inbound, outbound));
+        invalid = request(tag, eventSize * 3 + 1, 1024);
+        while (invalid.hasRemaining()) {
+            outbound.write(invalid);
+        }
+        assertEquals(Reader.INVALID_REQUEST,
+                     readLength(reader, inbound, outbound));
+        assertEquals(Reader.State.ACCEPTED, reader.getState());
+
+        // reading a channel which does not exist does not create it
+        UUID unknown = UUID.randomUUID();
+        invalid = request(unknown, 0, 1024);
+        while (invalid.hasRemaining()) {
+            outbound.write(invalid);
+        }
+        assertEquals(Reader.INVALID_OFFSET,
+                     readLength(reader, inbound, outbound));
+        assertFalse(new File(root, unknown.toString()).exists());
+
+        // the reader closes once the consumer closes its end
+        outbound.close();
+        Util.waitFor("Reader never closed", new Util.Condition() {
+            @Override
+            public boolean value() {
+                reader.handleRead(inbound);
+                return reader.getState() == Reader.State.CLOSED;
+            }
+        }, 1000L, 10L);
+        reader.closing(inbound);
+        inbound.close();
+        server.close();
+        bundle.close();
+    }
+
+    /**
+     * Drive the reader through a single step of its protocol
+     */
+    private void drive(Reader reader, SocketChannel inbound) {
+        switch (reader.getState()) {
+            case ACCEPTED:
+            case READ_REQUEST: {
+                reader.handleRead(inbound);
+                break;
+            }
+            default: {
+                reader.handleWrite(inbound);
+            }
+        }
+    }
+
+    /**
+     * Send the request and answer the events of the response
+     */
+    private ByteBuffer exchange(Reader reader, SocketChannel inbound,
+                                SocketChannel outbound, ByteBuffer request)
+                                                                           throws Exception {
+        while (request.hasRemaining()) {
+            outbound.write(request);
+        }
+        int length = readLength(reader, inbound, outbound);
+        ByteBuffer events = ByteBuffer.allocate(length);
+        while (events.hasRemaining()) {
+            drive(reader, inbound);
+            outbound.read(events);
+        }
+        events.flip();
+        return events;
+    }
+
+    private int readLength(Reader reader, SocketChannel inbound,
+                           SocketChannel outbound) throws Exception {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (length.hasRemaining()) {
+            drive(reader, inbound);
+            outbound.read(length);
+        }
+        return length.getInt(0);
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestRecovery {
+
+    /**
+     * Append the valid events to the segment of the channel
+     * 
+     * @return the size of each event
+     */
+    private static long append(FileBundle bundle, UUID tag, int first,
+                               int count) throws Exception {
+        EventHeader header = new EventHeader(0, 0, tag, 0);
+        Segment segment = bundle.segmentFor(header);
+        FileChannel channel = segment.getChannel();
+        long eventSize = 0;
+        for (int i = first; i < first + count; i++) {
+            byte[] payload = ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+            Event event = new Event(i, tag, ByteBuffer.wrap(payload));
+            event.rewind();
+            channel.position(channel.size());
+            event.write(channel);
+            eventSize = event.size() + EventHeader.HEADER_BYTE_SIZE;
+        }
+        bundle.release(segment);
+        return eventSize;
+    }
+
+    private static File tempDirectory() throws Exception {
+        File directory = File.createTempFile("recovery", ".dir");
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    @Test
+    public void testCorruptSegment() throws Exception {
+        File root = tempDirectory();
+        FileBundle bundle = new FileBundle(root, 4);
+        UUID tag = UUID.randomUUID();
+        long eventSize = append(bundle, tag, 0, 4);
+
+        // the payload of an event followed by valid events is damaged
+        Segment segment = bundle.segmentFor(new EventHeader(0, 0, tag, 0));
+        segment.getChannel().write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }),
+                                   eventSize + EventHeader.HEADER_BYTE_SIZE);
+        try {
+            Recovery.validate(segment.getChannel(), 0);
+            fail("Corrupt segment was validated");
+        } catch (IOException e) {
+            // expected
+        }
+        bundle.release(segment);
+        List<File> segments = bundle.getSegmentFiles();
+        bundle.close();
+
+        // the valid events following the damaged event are not truncated
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Recovery recovery = new Recovery(root, executor);
+        try {
+            recovery.recover(segments);
+            fail("Corrupt segment was recovered");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, recovery.getTruncated());
+        assertEquals(4 * eventSize, new File(root, tag.toString()).length());
+        assertFalse(recovery.getCheckpoint().exists());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        File root = tempDirectory();
+        FileBundle bundle = new FileBundle(root, 4);
+        UUID torn = UUID.randomUUID();
+        UUID corrupt = UUID.randomUUID();
+        UUID intact = UUID.randomUUID();
+        long eventSize = append(bundle, torn, 0, 3);
+        append(bundle, corrupt, 0, 3);
+        append(bundle, intact, 0, 3);
+
+        // an append interrupted part way through its payload
+        Segment segment = bundle.segmentFor(new EventHeader(0, 0, torn, 0));
+        EventHeader header = new EventHeader(100, 3, torn, 0);
+        header.rewind();
+        header.write(segment.getChannel().size(), segment.getChannel());
+        segment.getChannel().write(ByteBuffer.allocate(10),
+                                   segment.getChannel().size());
+        bundle.release(segment);
+
+        // an append which never wrote its payload
+        segment = bundle.segmentFor(new EventHeader(0, 0, corrupt, 0));
+        segment.getChannel().write(ByteBuffer.allocate((int) eventSize),
+                                   segment.getChannel().size());
+        segment.getChannel().write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }),
+                                   2 * eventSize
+                                           + EventHeader.HEADER_BYTE_SIZE);
+        bundle.release(segment);
+        List<File> segments = bundle.getSegmentFiles();
+        assertEquals(3, segments.size());
+        bundle.close();
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        Recovery recovery = new Recovery(root, executor);
+        long tornBytes = EventHeader.HEADER_BYTE_SIZE + 10;
+        assertEquals(tornBytes + 2 * eventSize, recovery.recover(segments));
+        assertEquals(8 * eventSize, recovery.getValidated());
+        assertTrue(recovery.getCheckpoint().exists());
+        assertEquals(3 * eventSize, new File(root, torn.toString()).length());
+        assertEquals(2 * eventSize,
+                     new File(root, corrupt.toString()).length());
+        assertEquals(3 * eventSize, new File(root, intact.toString()).length());
+
+        // the segments are appended to once more, and the validated prefix of
+        // the intact segment is damaged, which the checkpoint skips
+        bundle = new FileBundle(root, 4);
+        append(bundle, torn, 3, 2);
+        segment = bundle.segmentFor(new EventHeader(0, 0, intact, 0));
+        segment.getChannel().write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }),
+                                   EventHeader.HEADER_BYTE_SIZE);
+        bundle.release(segment);
+        bundle.close();
+
+        recovery = new Recovery(root, executor);
+        assertEquals(0, recovery.recover(segments));
+        assertEquals(2 * eventSize, recovery.getValidated());
+        assertEquals(5 * eventSize, new File(root, torn.toString()).length());
+
+        // the recovered segments are readable, and resume their indexes
+        bundle = new FileBundle(root, 4);
+        assertEquals(4 * eventSize, bundle.offsetOf(torn, 4));
+        assertEquals(-1, bundle.offsetOf(corrupt, 2));
+        bundle.close();
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRecoverFileBundle() throws Exception {
+        File root = tempDirectory();
+        FileBundle bundle = new FileBundle(root, 4);
+        UUID tag = UUID.randomUUID();
+        long eventSize = append(bundle, tag, 0, 3);
+        Segment segment = bundle.segmentFor(new EventHeader(0, 0, tag, 0));
+        segment.getChannel().write(ByteBuffer.allocate(10),
+                                   segment.getChannel().size());
+        bundle.release(segment);
+        bundle.close();
+
+        // the torn event is truncated before the bundle opens the segment
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        bundle = FileBundle.recover(root, 4, SegmentIndex.DEFAULT_INTERVAL,
+                                    executor);
+        assertTrue(new File(root, Recovery.CHECKPOINT_FILE).exists());
+        segment = bundle.segmentFor(new EventHeader(0, 0, tag, 0));
+        assertEquals(3 * eventSize, segment.getChannel().size());
+        bundle.release(segment);
+        assertEquals(2 * eventSize, bundle.offsetOf(tag, 2));
+        bundle.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRecoverRollingBundle() throws Exception {
+        File root = tempDirectory();
+        RollingBundle bundle = new RollingBundle(root, 4, 1024, 1,
+                                                 TimeUnit.HOURS);
+        UUID tag = UUID.randomUUID();
+        EventHeader header = new EventHeader(0, 0, tag, 0);
+        Segment segment = bundle.segmentFor(header);
+        byte[] payload = "Give me Slack, or give me Food, or Kill me".getBytes();
+        Event event = new Event(0, tag, ByteBuffer.wrap(payload));
+        event.rewind();
+        event.write(segment.getChannel());
+        int eventSize = event.size() + EventHeader.HEADER_BYTE_SIZE;
+        segment.getIndex().append(0, eventSize);
+        segment.getChannel().write(ByteBuffer.allocate(10), eventSize);
+        bundle.release(segment);
+        bundle.close();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        bundle = RollingBundle.recover(root, 4, 1024, 1, TimeUnit.HOURS,
+                                       SegmentIndex.DEFAULT_INTERVAL, executor);
+        segment = bundle.segmentFor(header);
+        assertEquals(eventSize, segment.getChannel().size());
+        bundle.release(segment);
+        assertEquals(0, bundle.offsetOf(tag, 0));
+        bundle.close();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testValidate() throws Exception {
+        File root = tempDirectory();
+        FileBundle bundle = new FileBundle(root, 4);
+        UUID tag = UUID.randomUUID();
+        long eventSize = append(bundle, tag, 0, 4);
+        Segment segment = bundle.segmentFor(new EventHeader(0, 0, tag, 0));
+        FileChannel channel = segment.getChannel();
+        assertEquals(4 * eventSize, Recovery.validate(channel, 0));
+        assertEquals(4 * eventSize, Recovery.validate(channel, 2 * eventSize));
+
+        // a size smaller than a header
+        channel.write(ByteBuffer.allocate(EventHeader.HEADER_BYTE_SIZE),
+                      channel.size());
+        assertEquals(4 * eventSize, Recovery.validate(channel, 0));
+        bundle.release(segment);
+        bundle.close();
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.hellblazer.pinkie.SocketChannelHandler;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestReplica {
+
+    /**
+     * Answer a replicated batch of the events, starting at the offset within
+     * the segment
+     */
+    private static ByteBuffer batch(UUID tag, long segment, long offset,
+                                    Event... events) {
+        int length = 0;
+        for (Event event : events) {
+            length += event.size() + EventHeader.HEADER_BYTE_SIZE;
+        }
+        ByteBuffer batch = ByteBuffer.allocate(Replicator.BATCH_HEADER_SIZE
+                                               + length);
+        batch.putLong(tag.getMostSignificantBits());
+        batch.putLong(tag.getLeastSignificantBits());
+        batch.putLong(segment);
+        batch.putLong(offset);
+        batch.putLong(length);
+        batch.putInt(events.length);
+        for (Event event : events) {
+            event.rewind();
+            batch.put(event.bytes);
+        }
+        batch.flip();
+        return batch;
+    }
+
+    private static Event event(UUID tag, int i) {
+        byte[] payload = ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+        return new Event(i, tag, ByteBuffer.wrap(payload));
+    }
+
+    @Test
+    public void testAcknowledgeOnceForced() throws Exception {
+        File root = File.createTempFile("replica", ".dir");
+        root.delete();
+        root.mkdirs();
+        root.deleteOnExit();
+        FileBundle bundle = new FileBundle(root, 4);
+        UUID tag = UUID.randomUUID();
+        Event[] events = new Event[] { event(tag, 0), event(tag, 1) };
+        long eventSize = events[0].size() + EventHeader.HEADER_BYTE_SIZE;
+
+        // the group is only forced when the flusher terminates
+        Flusher flusher = new Flusher(bundle, 1000, 1, TimeUnit.HOURS, false);
+        flusher.start();
+        SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        Replica replica = new Replica(bundle, flusher);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+
+        replica.handleAccept(inbound, handler);
+        write(outbound, batch(tag, 0, 0, events));
+        ingest(replica, inbound, Replica.State.READ_BATCH_HEADER);
+
+        // appended, but neither durable nor acknowledged
+        assertEquals(2, flusher.getPendingEvents());
+        assertEquals(0, replica.getHighWaterMark(tag));
+
+        flusher.terminate();
+        assertEquals(1, flusher.getFlushes());
+        assertEquals(2 * eventSize, replica.getHighWaterMark(tag));
+        assertAcknowledged(outbound, tag, 0, 2 * eventSize);
+
+        outbound.close();
+        inbound.close();
+        server.close();
+        bundle.close();
+    }
+
+    @Test
+    public void testIngest() throws Exception {
+        File root = File.createTempFile("replica", ".dir");
+        root.delete();
+        root.mkdirs();
+        root.deleteOnExit();
+        FileBundle bundle = new FileBundle(root, 4, 1);
+        final UUID tag = UUID.randomUUID();
+        Event[] events = new Event[9];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = event(tag, i);
+        }
+        final long eventSize = events[0].size() + EventHeader.HEADER_BYTE_SIZE;
+
+        SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        final Replica replica = new Replica(bundle);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        final SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+
+        replica.handleAccept(inbound, handler);
+        assertEquals(Replica.State.READ_BATCH_HEADER, replica.getState());
+
+        // the first batch is sent in two pieces
+        ByteBuffer batch = batch(tag, 0, 0, events[0], events[1], events[2]);
+        int limit = batch.limit();
+        batch.limit(Replicator.BATCH_HEADER_SIZE + 10);
+        write(outbound, batch);
+        ingest(replica, inbound, Replica.State.READ_EVENT_HEADER);
+        batch.limit(limit);
+        write(outbound, batch);
+        ingest(replica, inbound, Replica.State.READ_BATCH_HEADER);
+        assertEquals(3 * eventSize, replica.getHighWaterMark(tag));
+        assertAcknowledged(outbound, tag, 0, 3 * eventSize);
+
+        // a batch replicated again is discarded, and acknowledged
+        write(outbound, batch(tag, 0, eventSize, events[1], events[2]));
+        ingest(replica, inbound, Replica.State.READ_BATCH_HEADER);
+        assertEquals(3 * eventSize, replica.getHighWaterMark(tag));
+        assertAcknowledged(outbound, tag, 0, 3 * eventSize);
+
+        write(outbound, batch(tag, 0, 3 * eventSize, events[3], events[4]));
+        ingest(replica, inbound, Replica.State.READ_BATCH_HEADER);
+        assertEquals(5 * eventSize, replica.getHighWaterMark(tag));
+        assertAcknowledged(outbound, tag, 0, 5 * eventSize);
+
+        // the replicated events are stored and indexed
+        Segment segment = bundle.segmentFor(tag, 0);
+        assertEquals(5 * eventSize, segment.getChannel().size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i * eventSize, bundle.offsetOf(tag, i));
+            segment.getChannel().position(i * eventSize);
+            Event stored = new Event(segment.getChannel());
+            assertEquals(i, stored.getMagic());
+            assertTrue(stored.validate());
+        }
+        bundle.release(segment);
+
+        // the leading events already stored are skipped
+        write(outbound, batch(tag, 0, 3 * eventSize, events[3], events[4],
+                              events[5]));
+        ingest(replica, inbound, Replica.State.READ_BATCH_HEADER);
+        assertEquals(6 * eventSize, replica.getHighWaterMark(tag));
+        assertAcknowledged(outbound, tag, 0, 6 * eventSize);
+        assertEquals(5 * eventSize, bundle.offsetOf(tag, 5));
+
+        // the batches which do not follow the replicated events are discarded,
+        // and the end of the channel is reported once, until the leader
+        // replicates again from the reported end
+        write(outbound, batch(tag, 0, 7 * eventSize, events[7]));
+        write(outbound, batch(tag, 0, 8 * eventSize, events[8]));
+        write(outbound, batch(tag, 0, 6 * eventSize, events[6]));
+        Util.waitFor("Never replicated from the reported end",
+                     new Util.Condition() {
+                         @Override
+                         public boolean value() {
+                             replica.handleRead(inbound);
+                             return replica.getHighWaterMark(tag) == 7 * eventSize;
+                         }
+                     }, 1000L, 10L);
+        assertAcknowledged(outbound, tag, Replicator.END_REPORT,
+                           6 * eventSize);
+        assertAcknowledged(outbound, tag, 0, 7 * eventSize);
+        segment = bundle.segmentFor(tag, 0);
+        assertEquals(7 * eventSize, segment.getChannel().size());
+        bundle.release(segment);
+
+        outbound.close();
+        inbound.close();
+        server.close();
+        bundle.close();
+    }
+
+    private void assertAcknowledged(SocketChannel outbound, UUID tag,
+                                    long segment, long offset)
+                                                              throws Exception {
+        ByteBuffer acknowledgement = ByteBuffer.allocate(Replicator.ACKNOWLEDGEMENT_SIZE);
+        while (acknowledgement.hasRemaining()) {
+            outbound.read(acknowledgement);
+        }
+        assertEquals(tag.getMostSignificantBits(), acknowledgement.getLong(0));
+        assertEquals(tag.getLeastSignificantBits(), acknowledgement.getLong(8));
+        assertEquals(segment, acknowledgement.getLong(16));
+        assertEquals(offset, acknowledgement.getLong(24));
+    }
+
+    /**
+     * Drive the replica until it reaches the state
+     */
+    private void ingest(final Replica replica, final SocketChannel inbound,
+                        final Replica.State state) throws Exception {
+        Util.waitFor("Never reached state: " + state, new Util.Condition() {
+            @Override
+            public boolean value() {
+                replica.handleRead(inbound);
+                return replica.getState() == state;
+            }
+        }, 1000L, 10L);
+    }
+
+    private void write(SocketChannel outbound, ByteBuffer buffer)
+                                                                 throws Exception {
+        while (buffer.hasRemaining()) {
+            outbound.write(buffer);
+        }
+    }
+}
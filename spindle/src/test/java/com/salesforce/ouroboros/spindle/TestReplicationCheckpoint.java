@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestReplicationCheckpoint {
+
+    private static File tempFile() throws Exception {
+        File file = File.createTempFile("replication", ".checkpoint");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        File file = tempFile();
+        ReplicationCheckpoint checkpoint = new ReplicationCheckpoint(file, 4);
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        for (int i = 1; i <= 4; i++) {
+            checkpoint.record(first.getMostSignificantBits(),
+                              first.getLeastSignificantBits(), 0, i * 10);
+            checkpoint.record(second.getMostSignificantBits(),
+                              second.getLeastSignificantBits(), 1000, i);
+            assertEquals(i * 10L, checkpoint.getPosition(first));
+            assertEquals(1000L + i, checkpoint.getPosition(second));
+        }
+        // compacted to one record per channel once the records exceed one per
+        // channel by 4, and appended to since
+        assertEquals(4, checkpoint.getRecords());
+        assertEquals(4 * ReplicationCheckpoint.RECORD_SIZE, file.length());
+        checkpoint.close();
+
+        checkpoint = new ReplicationCheckpoint(file, 4);
+        assertEquals(2, checkpoint.getPositions().size());
+        assertEquals(40L, checkpoint.getPosition(first));
+        assertEquals(1004L, checkpoint.getPosition(second));
+        checkpoint.close();
+    }
+
+    @Test
+    public void testFailedCompaction() throws Exception {
+        File file = tempFile();
+        ReplicationCheckpoint checkpoint = new ReplicationCheckpoint(file, 4);
+        UUID tag = UUID.randomUUID();
+        checkpoint.record(tag.getMostSignificantBits(),
+                          tag.getLeastSignificantBits(), 0, 10);
+
+        // the compacted log cannot be written
+        File next = new File(file.getPath() + ".tmp");
+        assertTrue(next.mkdir());
+        next.deleteOnExit();
+        try {
+            checkpoint.compact();
+            fail("Compaction should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // the log is intact, and still appended to
+        checkpoint.record(tag.getMostSignificantBits(),
+                          tag.getLeastSignificantBits(), 0, 20);
+        assertEquals(2, checkpoint.getRecords());
+        checkpoint.close();
+        assertTrue(next.delete());
+
+        checkpoint = new ReplicationCheckpoint(file, 4);
+        assertEquals(20L, checkpoint.getPosition(tag));
+        checkpoint.compact();
+        assertEquals(ReplicationCheckpoint.RECORD_SIZE, file.length());
+        assertFalse(next.exists());
+        checkpoint.record(tag.getMostSignificantBits(),
+                          tag.getLeastSignificantBits(), 0, 30);
+        checkpoint.close();
+        checkpoint = new ReplicationCheckpoint(file, 4);
+        assertEquals(30L, checkpoint.getPosition(tag));
+        assertEquals(2, checkpoint.getRecords());
+        checkpoint.close();
+    }
+
+    @Test
+    public void testRecord() throws Exception {
+        File file = tempFile();
+        ReplicationCheckpoint checkpoint = new ReplicationCheckpoint(file);
+        UUID tag = UUID.randomUUID();
+        assertEquals(-1L, checkpoint.getPosition(tag));
+        checkpoint.record(tag.getMostSignificantBits(),
+                          tag.getLeastSignificantBits(), 100, 20);
+        checkpoint.record(tag.getMostSignificantBits(),
+                          tag.getLeastSignificantBits(), 100, 40);
+        checkpoint.force();
+        checkpoint.close();
+
+        checkpoint = new ReplicationCheckpoint(file);
+        assertEquals(140L, checkpoint.getPosition(tag));
+        assertEquals(2, checkpoint.getRecords());
+        checkpoint.close();
+
+        // a torn record, and a record whose CRC does not match, are truncated
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(ReplicationCheckpoint.RECORD_SIZE + 20);
+        raf.writeLong(666);
+        raf.seek(raf.length());
+        raf.write(new byte[10]);
+        raf.close();
+        checkpoint = new ReplicationCheckpoint(file);
+        assertEquals(120L, checkpoint.getPosition(tag));
+        assertEquals(1, checkpoint.getRecords());
+        assertEquals(ReplicationCheckpoint.RECORD_SIZE, file.length());
+
+        checkpoint.record(tag.getMostSignificantBits(),
+                          tag.getLeastSignificantBits(), 100, 60);
+        checkpoint.close();
+        checkpoint = new ReplicationCheckpoint(file);
+        assertEquals(160L, checkpoint.getPosition(tag));
+        checkpoint.close();
+    }
+}
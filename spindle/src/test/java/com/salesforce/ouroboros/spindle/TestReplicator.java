@@ -27,8 +27,12 @@ package com.salesforce.ouroboros.spindle;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
@@ -40,7 +44,9 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
@@ -57,6 +63,415 @@ import com.salesforce.ouroboros.spindle.Replicator.State;
  */
 public class TestReplicator {
 
+    /**
+     * Send the follower's acknowledgement of the batch ending at the offset
+     */
+    private static void acknowledge(SocketChannel inbound, UUID tag,
+                                    long segment, long offset)
+                                                              throws IOException {
+        ByteBuffer acknowledgement = ByteBuffer.allocate(Replicator.ACKNOWLEDGEMENT_SIZE);
+        acknowledgement.putLong(tag.getMostSignificantBits());
+        acknowledgement.putLong(tag.getLeastSignificantBits());
+        acknowledgement.putLong(segment);
+        acknowledgement.putLong(offset);
+        acknowledgement.flip();
+        while (acknowledgement.hasRemaining()) {
+            inbound.write(acknowledgement);
+        }
+    }
+
+    /**
+     * @return the leader and follower ends of a connection
+     */
+    private static SocketChannel[] connect() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        outbound.configureBlocking(false);
+        SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+        server.close();
+        return new SocketChannel[] { outbound, inbound };
+    }
+
+    /**
+     * Halt the replicator, and wait for its fanout to return the leases of
+     * the batches it has planned
+     */
+    private static void halt(Replicator replicator, ExecutorService executor)
+                                                                             throws InterruptedException {
+        replicator.halt();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Drive the replicator until the follower's acknowledgement of the
+     * sequence has been read
+     */
+    private static void readAcknowledgement(final Replicator replicator,
+                                            final SocketChannel outbound,
+                                            final long sequence)
+                                                                throws InterruptedException {
+        Util.waitFor("Never read the acknowledgement", new Util.Condition() {
+            @Override
+            public boolean value() {
+                replicator.handleRead(outbound);
+                return replicator.getAcknowledged() == sequence;
+            }
+        }, 1000L, 10L);
+    }
+
+    /**
+     * Read the next batch replicated to the follower
+     * 
+     * @return the batch header
+     */
+    private static ByteBuffer readBatch(SocketChannel inbound)
+                                                              throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Replicator.BATCH_HEADER_SIZE);
+        while (header.hasRemaining()) {
+            inbound.read(header);
+        }
+        ByteBuffer events = ByteBuffer.allocate((int) header.getLong(32));
+        while (events.hasRemaining()) {
+            inbound.read(events);
+        }
+        return header;
+    }
+
+    /**
+     * Drive the replicator until the unacknowledged events have been written
+     * and the replicator is waiting
+     */
+    private static void replicate(final Replicator replicator,
+                                  final SocketChannel outbound,
+                                  final int unacknowledged)
+                                                           throws InterruptedException {
+        Util.waitFor("Never replicated the window", new Util.Condition() {
+            @Override
+            public boolean value() {
+                if (State.WRITE_BATCH == replicator.getState()) {
+                    replicator.handleWrite(outbound);
+                }
+                return State.WAITING == replicator.getState()
+                       && replicator.getUnacknowledged() == unacknowledged;
+            }
+        }, 1000L, 10L);
+    }
+
+    /**
+     * Drive the replicator and the replica until the follower has stored the
+     * channel's events up to the offset, and acknowledged them
+     */
+    private static void synchronize(final Replicator replicator,
+                                    final SocketChannel outbound,
+                                    final Replica replica,
+                                    final SocketChannel inbound,
+                                    final FileBundle follower, final UUID tag,
+                                    final long offset)
+                                                      throws InterruptedException {
+        Util.waitFor("Never synchronized", new Util.Condition() {
+            @Override
+            public boolean value() {
+                if (State.WRITE_BATCH == replicator.getState()) {
+                    replicator.handleWrite(outbound);
+                }
+                replica.handleRead(inbound);
+                replicator.handleRead(outbound);
+                Segment segment;
+                try {
+                    segment = follower.segmentFor(tag, 0);
+                } catch (IllegalArgumentException e) {
+                    // nothing has been replicated to the channel yet
+                    return false;
+                }
+                try {
+                    return segment.getChannel().size() == offset
+                           && replicator.getUnacknowledged() == 0;
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    follower.release(segment);
+                }
+            }
+        }, 4000L, 10L);
+    }
+
+    private static File tempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, ".dir");
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    @Test
+    public void testAcknowledgedWindow() throws Exception {
+        File root = File.createTempFile("acknowledged-window", ".dir");
+        root.delete();
+        root.mkdirs();
+        root.deleteOnExit();
+        FileBundle bundle = new FileBundle(root, 8);
+
+        // each event is in its own channel, and so is replicated in its own
+        // batch
+        UUID[] tags = new UUID[4];
+        EventEntry[] entries = new EventEntry[tags.length];
+        long[] ends = new long[tags.length];
+        for (int i = 0; i < entries.length; i++) {
+            tags[i] = UUID.randomUUID();
+            byte[] payload = ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+            EventHeader header = new EventHeader(payload.length, i, tags[i],
+                                                 Event.crc32(payload));
+            Segment segment = bundle.segmentFor(header);
+            header.rewind();
+            header.write(segment.getChannel());
+            segment.getChannel().write(ByteBuffer.wrap(payload));
+            bundle.release(segment);
+            entries[i] = new EventEntry();
+            entries[i].set(header, 0, 0);
+            ends[i] = entries[i].nextOffset();
+        }
+        CBarrier consumerBarrier = new CBarrier(entries);
+        SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        Replicator replicator = new Replicator(bundle, consumerBarrier,
+                                               executor, 2);
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        outbound.configureBlocking(false);
+        SocketChannel inbound = server.accept();
+        inbound.configureBlocking(true);
+
+        replicator.handleConnect(outbound, handler);
+        consumerBarrier.publish(3);
+
+        // the window admits two unacknowledged batches
+        replicate(replicator, outbound, 2);
+        Thread.sleep(100);
+        assertEquals(State.WAITING, replicator.getState());
+        assertEquals(2, replicator.getUnacknowledged());
+        assertEquals(-1L, replicator.getAcknowledged());
+        for (int i = 0; i < 2; i++) {
+            ByteBuffer header = readBatch(inbound);
+            assertEquals(tags[i].getMostSignificantBits(), header.getLong(0));
+            assertEquals(tags[i].getLeastSignificantBits(), header.getLong(8));
+        }
+
+        // acknowledging the first batch opens the window for the third
+        acknowledge(inbound, tags[0], 0, ends[0]);
+        readAcknowledgement(replicator, outbound, 0);
+        replicate(replicator, outbound, 2);
+        assertEquals(tags[2].getMostSignificantBits(),
+                     readBatch(inbound).getLong(0));
+
+        // the high water mark of the third batch acknowledges the second
+        acknowledge(inbound, tags[2], 0, ends[2]);
+        readAcknowledgement(replicator, outbound, 2);
+        replicate(replicator, outbound, 1);
+        assertEquals(tags[3].getMostSignificantBits(),
+                     readBatch(inbound).getLong(0));
+
+        acknowledge(inbound, tags[3], 0, ends[3]);
+        readAcknowledgement(replicator, outbound, 3);
+        assertEquals(0, replicator.getUnacknowledged());
+
+        halt(replicator, executor);
+        outbound.close();
+        inbound.close();
+        server.close();
+        bundle.close();
+    }
+
+    @Test
+    public void testCatchUp() throws Exception {
+        File leaderRoot = tempDirectory("catch-up-leader");
+        File followerRoot = tempDirectory("catch-up-follower");
+        FileBundle leader = new FileBundle(leaderRoot, 4);
+        FileBundle follower = new FileBundle(followerRoot, 4);
+        UUID tag = UUID.randomUUID();
+        EventEntry[] entries = new EventEntry[8];
+        for (int i = 0; i < entries.length; i++) {
+            byte[] payload = ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+            EventHeader header = new EventHeader(payload.length, i, tag,
+                                                 Event.crc32(payload));
+            Segment segment = leader.segmentFor(header);
+            long offset = segment.getChannel().size();
+            header.rewind();
+            header.write(offset, segment.getChannel());
+            segment.getChannel().write(ByteBuffer.wrap(payload),
+                                       offset + EventHeader.HEADER_BYTE_SIZE);
+            leader.release(segment);
+            entries[i] = new EventEntry();
+            entries[i].set(header, 0, offset);
+        }
+        long eventSize = entries[0].nextOffset();
+        CBarrier consumerBarrier = new CBarrier(entries);
+        SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        final Replicator replicator = new Replicator(leader, consumerBarrier,
+                                                     executor, 1024, 2);
+
+        // the replicator lags the ring, and catches up from the segment
+        SocketChannel[] connection = connect();
+        Replica replica = new Replica(follower);
+        replica.handleAccept(connection[1], handler);
+        replicator.handleConnect(connection[0], handler);
+        consumerBarrier.publish(5);
+        synchronize(replicator, connection[0], replica, connection[1],
+                    follower, tag, 6 * eventSize);
+        assertEquals(5L, replicator.getSequence());
+        assertEquals(5 * eventSize, follower.offsetOf(tag, 5));
+
+        // the follower disconnects before the next events are acknowledged
+        consumerBarrier.publish(7);
+        Util.waitFor("Never replicated", new Util.Condition() {
+            @Override
+            public boolean value() {
+                return replicator.getUnacknowledged() == 2;
+            }
+        }, 1000L, 10L);
+        replicator.closing(connection[0]);
+        replica.closing(connection[1]);
+        connection[0].close();
+        connection[1].close();
+
+        // the unacknowledged events are replicated again on reconnection
+        connection = connect();
+        replica = new Replica(follower);
+        replica.handleAccept(connection[1], handler);
+        replicator.handleConnect(connection[0], handler);
+        synchronize(replicator, connection[0], replica, connection[1],
+                    follower, tag, 8 * eventSize);
+        assertEquals(7 * eventSize, follower.offsetOf(tag, 7));
+        Segment segment = follower.segmentFor(tag, 0);
+        for (int i = 0; i < entries.length; i++) {
+            segment.getChannel().position(i * eventSize);
+            Event replicated = new Event(segment.getChannel());
+            assertEquals(i, replicated.getMagic());
+            assertTrue(replicated.validate());
+        }
+        follower.release(segment);
+
+        halt(replicator, executor);
+        connection[0].close();
+        connection[1].close();
+        leader.close();
+        follower.close();
+    }
+
+    @Test
+    public void testContiguousReplication() throws Exception {
+        File tmpFile = File.createTempFile("contiguous-replication", ".tst");
+        tmpFile.deleteOnExit();
+
+        RandomAccessFile ra = new RandomAccessFile(tmpFile, "rw");
+        FileChannel segment = ra.getChannel();
+
+        UUID tag = UUID.randomUUID();
+        EventEntry[] entries = new EventEntry[4];
+        final byte[][] payloads = new byte[entries.length][];
+        long offset = 0;
+        int contiguousBytes = 0;
+        for (int i = 0; i < entries.length; i++) {
+            payloads[i] = ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+            // the last event is adjacent, but in a different channel
+            EventHeader event = new EventHeader(payloads[i].length, i,
+                                                i == 3 ? UUID.randomUUID()
+                                                      : tag,
+                                                Event.crc32(payloads[i]));
+            event.rewind();
+            event.write(segment);
+            segment.write(ByteBuffer.wrap(payloads[i]));
+            entries[i] = new EventEntry();
+            entries[i].set(event, 0, offset);
+            offset += EventHeader.HEADER_BYTE_SIZE + payloads[i].length;
+            if (i < 3) {
+                contiguousBytes = (int) offset;
+            }
+        }
+        segment.force(false);
+
+        Bundle bundle = mock(Bundle.class);
+        @SuppressWarnings("unchecked")
+        ConsumerBarrier<EventEntry> consumerBarrier = mock(ConsumerBarrier.class);
+        SocketChannelHandler handler = mock(SocketChannelHandler.class);
+
+        Segment leased = new Segment(segment, 0);
+        when(bundle.segmentFor(isA(EventEntry.class))).thenReturn(leased);
+        when(consumerBarrier.waitFor(eq(0L), anyLong(), isA(TimeUnit.class))).thenReturn(3L);
+        for (int i = 0; i < entries.length; i++) {
+            when(consumerBarrier.getEntry(i)).thenReturn(entries[i]);
+        }
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        final Replicator replicator = new Replicator(bundle, consumerBarrier,
+                                                     executor);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        final SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        final SocketChannel inbound = server.accept();
+        inbound.configureBlocking(true);
+
+        replicator.handleConnect(outbound, handler);
+        Util.waitFor("Never achieved WRITE_BATCH state", new Util.Condition() {
+            @Override
+            public boolean value() {
+                return State.WRITE_BATCH == replicator.getState();
+            }
+        }, 1000L, 100L);
+        replicator.halt();
+        Util.waitFor("Never achieved WAITING state", new Util.Condition() {
+            @Override
+            public boolean value() {
+                replicator.handleWrite(outbound);
+                return State.WAITING == replicator.getState();
+            }
+        }, 1000L, 100L);
+        outbound.close();
+
+        ByteBuffer replicated = ByteBuffer.allocate(Replicator.BATCH_HEADER_SIZE
+                                                    + (int) offset + 1);
+        while (inbound.read(replicated) >= 0) {
+        }
+        replicated.flip();
+        assertEquals(Replicator.BATCH_HEADER_SIZE + contiguousBytes,
+                     replicated.remaining());
+        assertEquals(tag.getMostSignificantBits(), replicated.getLong());
+        assertEquals(tag.getLeastSignificantBits(), replicated.getLong());
+        assertEquals(0L, replicated.getLong());
+        assertEquals(0L, replicated.getLong());
+        assertEquals(contiguousBytes, replicated.getLong());
+        assertEquals(3, replicated.getInt());
+        for (int i = 0; i < 3; i++) {
+            int size = replicated.getInt(replicated.position());
+            ByteBuffer eventBytes = replicated.slice();
+            eventBytes.limit(size);
+            replicated.position(replicated.position() + size);
+            Event event = new Event(eventBytes);
+            assertEquals(i, event.getMagic());
+            assertEquals(tag, event.getTag());
+            assertEquals(payloads[i].length, event.size());
+        }
+        halt(replicator, executor);
+        // the fanout planned the contiguous events, and the last event, as
+        // two batches
+        verify(bundle, times(2)).segmentFor(isA(EventEntry.class));
+        verify(bundle, times(2)).release(leased);
+    }
+
     @Test
     public void testEventReplication() throws Exception {
         File tmpFile = File.createTempFile("event-replication", ".tst");
@@ -77,23 +492,23 @@ public class TestReplicator {
         segment.force(false);
 
         EventEntry entry = new EventEntry();
-        entry.setHeader(event);
-        entry.setOffset(0);
+        entry.set(event, 0, 0);
 
         Bundle bundle = mock(Bundle.class);
         @SuppressWarnings("unchecked")
         ConsumerBarrier<EventEntry> consumerBarrier = mock(ConsumerBarrier.class);
         SocketChannelHandler handler = mock(SocketChannelHandler.class);
 
-        when(bundle.segmentFor(isA(EventHeader.class))).thenReturn(segment,
-                                                                   segment);
-        when(consumerBarrier.waitFor(0)).thenReturn(0L).thenThrow(AlertException.ALERT_EXCEPTION);
+        when(bundle.segmentFor(isA(EventEntry.class))).thenReturn(new Segment(
+                                                                              segment,
+                                                                              0));
+        when(consumerBarrier.waitFor(eq(0L), anyLong(), isA(TimeUnit.class))).thenReturn(0L).thenThrow(AlertException.ALERT_EXCEPTION);
         when(consumerBarrier.getEntry(0)).thenReturn(entry);
 
         final Replicator replicator = new Replicator(
                                                      bundle,
                                                      consumerBarrier,
-                                                     Executors.newSingleThreadExecutor());
+                                                     Executors.newCachedThreadPool());
         assertEquals(State.WAITING, replicator.getState());
         SocketOptions options = new SocketOptions();
         options.setTimeout(100);
@@ -111,15 +526,16 @@ public class TestReplicator {
         assertTrue(inbound.isConnected());
         outbound.configureBlocking(true);
         inbound.configureBlocking(true);
-        final ByteBuffer replicated = ByteBuffer.allocate(EventHeader.HEADER_BYTE_SIZE
-                                                          + payload.length);
+        final int replicatedSize = Replicator.BATCH_HEADER_SIZE
+                                   + EventHeader.HEADER_BYTE_SIZE
+                                   + payload.length;
+        final ByteBuffer replicated = ByteBuffer.allocate(replicatedSize);
         Thread inboundRead = new Thread(new Runnable() {
             @Override
             public void run() {
                 try {
                     int read = 0;
-                    for (read += inbound.read(replicated); read < EventHeader.HEADER_BYTE_SIZE
-                                                                  + payload.length; read += inbound.read(replicated)) {
+                    for (read += inbound.read(replicated); read < replicatedSize; read += inbound.read(replicated)) {
                         System.out.println("read: " + read);
                         try {
                             Thread.sleep(10);
@@ -135,22 +551,14 @@ public class TestReplicator {
         }, "Inbound read thread");
         inboundRead.start();
         replicator.handleConnect(outbound, handler);
-        Util.waitFor("Never achieved WRITE_HEADER state", new Util.Condition() {
+        Util.waitFor("Never achieved WRITE_BATCH state", new Util.Condition() {
 
             @Override
             public boolean value() {
-                return State.WRITE_HEADER == replicator.getState();
+                return State.WRITE_BATCH == replicator.getState();
             }
         }, 1000L, 100L);
         replicator.halt();
-        Util.waitFor("Never achieved WRITE_PAYLOAD state",
-                     new Util.Condition() {
-                         @Override
-                         public boolean value() {
-                             replicator.handleWrite(outbound);
-                             return State.WRITE_PAYLOAD == replicator.getState();
-                         }
-                     }, 1000L, 100L);
         Util.waitFor("Never achieved WAITING state", new Util.Condition() {
             @Override
             public boolean value() {
@@ -161,8 +569,11 @@ public class TestReplicator {
         inboundRead.join(4000);
         replicated.flip();
         assertTrue(replicated.hasRemaining());
+        assertEquals(EventHeader.HEADER_BYTE_SIZE + payload.length,
+                     replicated.getLong(Replicator.BATCH_HEADER_SIZE - 12));
+        replicated.position(Replicator.BATCH_HEADER_SIZE);
 
-        Event replicatedEvent = new Event(replicated);
+        Event replicatedEvent = new Event(replicated.slice());
         assertEquals(event.size(), replicatedEvent.size());
         assertEquals(event.getMagic(), replicatedEvent.getMagic());
         assertEquals(event.getCrc32(), replicatedEvent.getCrc32());
@@ -0,0 +1,294 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestRollingBundle {
+
+    private static void append(Segment segment, int bytes) throws Exception {
+        segment.getChannel().write(ByteBuffer.allocate(bytes),
+                                   segment.getChannel().size());
+    }
+
+    /**
+     * Append an event with a payload of the size at the position of the
+     * segment
+     */
+    private static void append(Segment segment, int size, long position)
+                                                                         throws Exception {
+        EventHeader header = new EventHeader(size, 0, UUID.randomUUID(), 0);
+        header.rewind();
+        header.write(position, segment.getChannel());
+        segment.getChannel().write(ByteBuffer.allocate(size),
+                                   position + EventHeader.HEADER_BYTE_SIZE);
+    }
+
+    private static File tempDirectory() throws Exception {
+        File directory = File.createTempFile("rolling-bundle", ".dir");
+        directory.delete();
+        directory.mkdirs();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    @Test
+    public void testAgeRoll() throws Exception {
+        RollingBundle bundle = new RollingBundle(tempDirectory(), 4, 1024, 50,
+                                                 TimeUnit.MILLISECONDS);
+        EventHeader header = new EventHeader(0, 0, UUID.randomUUID(), 0);
+        Segment first = bundle.segmentFor(header);
+        append(first, 10);
+        bundle.release(first);
+
+        Thread.sleep(100);
+        Segment second = bundle.segmentFor(header);
+        assertNotSame(first, second);
+        assertEquals(10, second.getBaseOffset());
+        bundle.release(second);
+
+        // empty segments are never rolled
+        Thread.sleep(100);
+        assertSame(second, bundle.segmentFor(header));
+        bundle.release(second);
+        bundle.close();
+    }
+
+    @Test
+    public void testLeaseOfEvictedSegment() throws Exception {
+        RollingBundle bundle = new RollingBundle(tempDirectory(), 1, 1024, 1,
+                                                 TimeUnit.HOURS);
+        Metrics metrics = new Metrics();
+        bundle.register(metrics, "bundle");
+        EventHeader a = new EventHeader(0, 0, UUID.randomUUID(), 0);
+        EventHeader b = new EventHeader(0, 0, UUID.randomUUID(), 0);
+
+        // a is evicted while leased
+        Segment segmentA = bundle.segmentFor(a);
+        Segment segmentB = bundle.segmentFor(b);
+        bundle.release(segmentB);
+
+        // leasing a again reinstates the open segment, rather than opening a
+        // second channel and index over the same files
+        assertSame(segmentA, bundle.segmentFor(a));
+        assertEquals(Long.valueOf(2),
+                     metrics.snapshot().get("bundle.segments.opened"));
+        bundle.release(segmentA);
+        bundle.release(segmentA);
+        assertTrue(segmentA.getChannel().isOpen());
+        assertFalse(segmentB.getChannel().isOpen());
+        assertEquals(1, bundle.getOpenSegments());
+        bundle.close();
+        assertFalse(segmentA.getChannel().isOpen());
+    }
+
+    @Test
+    public void testOffsetOf() throws Exception {
+        File root = tempDirectory();
+        UUID tag = UUID.randomUUID();
+        EventHeader header = new EventHeader(0, 0, tag, 0);
+        RollingBundle bundle = new RollingBundle(root, 4, 200, 1,
+                                                 TimeUnit.HOURS, 64);
+        long[] offsets = new long[20];
+        for (int i = 0; i < offsets.length; i++) {
+            Segment segment = bundle.segmentFor(header);
+            long position = segment.getChannel().size();
+            offsets[i] = segment.getBaseOffset() + position;
+            append(segment, EventHeader.HEADER_BYTE_SIZE, position);
+            segment.getIndex().append(position,
+                                      2 * EventHeader.HEADER_BYTE_SIZE);
+            bundle.release(segment);
+        }
+        assertTrue(bundle.getBaseOffsets(tag).size() > 1);
+        for (int i = 0; i < offsets.length; i++) {
+            assertEquals(offsets[i], bundle.offsetOf(tag, i));
+        }
+        assertEquals(-1, bundle.offsetOf(tag, offsets.length));
+        bundle.close();
+
+        bundle = new RollingBundle(root, 4, 200, 1, TimeUnit.HOURS, 64);
+        for (int i = 0; i < offsets.length; i++) {
+            assertEquals(offsets[i], bundle.offsetOf(tag, i));
+        }
+        bundle.close();
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        File root = tempDirectory();
+        UUID tag = UUID.randomUUID();
+        EventHeader header = new EventHeader(0, 0, tag, 0);
+        RollingBundle bundle = new RollingBundle(root, 4, 100, 1,
+                                                 TimeUnit.HOURS);
+        for (int i = 0; i < 3; i++) {
+            Segment segment = bundle.segmentFor(header);
+            append(segment, 100);
+            bundle.release(segment);
+        }
+        bundle.close();
+        assertTrue(new File(new File(root, tag.toString()),
+                            RollingBundle.segmentName(200)).exists());
+
+        bundle = new RollingBundle(root, 4, 100, 1, TimeUnit.HOURS);
+        assertEquals(Arrays.asList(0L, 100L, 200L), bundle.getBaseOffsets(tag));
+        Segment segment = bundle.segmentFor(header);
+        assertEquals(300, segment.getBaseOffset());
+        bundle.release(segment);
+        bundle.close();
+    }
+
+    @Test
+    public void testReloadAge() throws Exception {
+        File root = tempDirectory();
+        UUID tag = UUID.randomUUID();
+        EventHeader header = new EventHeader(0, 0, tag, 0);
+        RollingBundle bundle = new RollingBundle(root, 4, 1024, 1,
+                                                 TimeUnit.HOURS);
+        Segment segment = bundle.segmentFor(header);
+        append(segment, 10);
+        bundle.release(segment);
+        bundle.close();
+
+        // a recently appended segment keeps its age across the reload
+        bundle = new RollingBundle(root, 4, 1024, 1, TimeUnit.HOURS);
+        segment = bundle.segmentFor(header);
+        assertEquals(0, segment.getBaseOffset());
+        bundle.release(segment);
+        bundle.close();
+
+        // a segment older than the maximum age rolls on the first append
+        // after the reload
+        File file = new File(new File(root, tag.toString()),
+                             RollingBundle.segmentName(0));
+        assertTrue(file.setLastModified(System.currentTimeMillis()
+                                        - TimeUnit.HOURS.toMillis(2)));
+        bundle = new RollingBundle(root, 4, 1024, 1, TimeUnit.HOURS);
+        segment = bundle.segmentFor(header);
+        assertEquals(10, segment.getBaseOffset());
+        bundle.release(segment);
+        bundle.close();
+    }
+
+    @Test
+    public void testResolveOffset() throws Exception {
+        RollingBundle bundle = new RollingBundle(tempDirectory(), 4, 100, 1,
+                                                 TimeUnit.HOURS);
+        UUID tag = UUID.randomUUID();
+        EventHeader header = new EventHeader(0, 0, tag, 0);
+        Segment first = bundle.segmentFor(header);
+        append(first, 120);
+        bundle.release(first);
+        Segment second = bundle.segmentFor(header);
+        append(second, 30);
+        bundle.release(second);
+
+        Segment resolved = bundle.segmentFor(tag, 0);
+        assertSame(first, resolved);
+        bundle.release(resolved);
+        resolved = bundle.segmentFor(tag, 119);
+        assertSame(first, resolved);
+        bundle.release(resolved);
+        resolved = bundle.segmentFor(tag, 135);
+        assertSame(second, resolved);
+        bundle.release(resolved);
+
+        EventEntry entry = new EventEntry();
+        entry.set(header, 120, 15);
+        assertEquals(135, entry.getChannelOffset());
+        resolved = bundle.segmentFor(entry);
+        assertSame(second, resolved);
+        bundle.release(resolved);
+        bundle.close();
+    }
+
+    @Test
+    public void testSubMillisecondAgeRoll() throws Exception {
+        RollingBundle bundle = new RollingBundle(tempDirectory(), 4, 1024,
+                                                 900, TimeUnit.MICROSECONDS);
+        EventHeader header = new EventHeader(0, 0, UUID.randomUUID(), 0);
+
+        // an age below a millisecond does not roll on every lease, although a
+        // slow lease may exceed the age, so any one of a few attempts will do
+        Segment first = null;
+        boolean reused = false;
+        for (int i = 0; i < 10 && !reused; i++) {
+            first = bundle.segmentFor(header);
+            append(first, 10);
+            bundle.release(first);
+            Segment again = bundle.segmentFor(header);
+            bundle.release(again);
+            reused = first == again;
+        }
+        assertTrue(reused);
+
+        Thread.sleep(10);
+        Segment second = bundle.segmentFor(header);
+        assertNotSame(first, second);
+        assertEquals(first.getBaseOffset() + 10, second.getBaseOffset());
+        bundle.release(second);
+        bundle.close();
+    }
+
+    @Test
+    public void testSizeRoll() throws Exception {
+        RollingBundle bundle = new RollingBundle(tempDirectory(), 1, 100, 1,
+                                                 TimeUnit.HOURS);
+        UUID tag = UUID.randomUUID();
+        EventHeader header = new EventHeader(0, 0, tag, 0);
+        Segment first = bundle.segmentFor(header);
+        assertEquals(0, first.getBaseOffset());
+        append(first, 60);
+        bundle.release(first);
+
+        assertSame(first, bundle.segmentFor(header));
+        append(first, 60);
+        bundle.release(first);
+
+        Segment second = bundle.segmentFor(header);
+        assertEquals(120, second.getBaseOffset());
+        bundle.release(second);
+        assertEquals(Arrays.asList(0L, 120L), bundle.getBaseOffsets(tag));
+        assertEquals(1, bundle.getOpenSegments());
+        bundle.close();
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestSegmentIndex {
+
+    /**
+     * Append an event with a payload of the size to the segment
+     * 
+     * @return the position of the event
+     */
+    private static long append(FileChannel segment, int size) throws Exception {
+        long position = segment.size();
+        byte[] payload = new byte[size];
+        EventHeader header = new EventHeader(size, 0, UUID.randomUUID(),
+                                             Event.crc32(payload));
+        header.rewind();
+        header.write(position, segment);
+        segment.write(ByteBuffer.wrap(payload),
+                      position + EventHeader.HEADER_BYTE_SIZE);
+        return position;
+    }
+
+    private static File tempFile(String suffix) throws Exception {
+        File file = File.createTempFile("segment-index", suffix);
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testLocate() throws Exception {
+        FileChannel segment = new RandomAccessFile(tempFile(".segment"), "rw").getChannel();
+        SegmentIndex index = SegmentIndex.open(tempFile(".index"), segment,
+                                               100, 256);
+        long[] positions = new long[100];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = append(segment, i);
+            index.append(positions[i], EventHeader.HEADER_BYTE_SIZE + i);
+        }
+        assertEquals(100, index.getBaseOrdinal());
+        assertEquals(200, index.getNextOrdinal());
+        // every event spans less than the interval
+        assertTrue(index.getEntries() < positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            assertEquals(positions[i], index.locate(100 + i));
+        }
+        assertEquals(-1, index.locate(99));
+        assertEquals(-1, index.locate(200));
+        index.close();
+        segment.close();
+    }
+
+    @Test
+    public void testConcurrentLocate() throws Exception {
+        final FileChannel segment = new RandomAccessFile(
+                                                         tempFile(".segment"),
+                                                         "rw").getChannel();
+        final SegmentIndex index = SegmentIndex.open(tempFile(".index"),
+                                                     segment, 0, 1);
+        final int events = 2000;
+        final int eventSize = EventHeader.HEADER_BYTE_SIZE + 1;
+        Thread appender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < events; i++) {
+                        index.append(append(segment, 1), eventSize);
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        appender.start();
+
+        // every event below the next ordinal is located, while the index is
+        // appended to and grown
+        long next = 0;
+        while (next < events) {
+            next = index.getNextOrdinal();
+            if (next > 0) {
+                assertEquals((next - 1) * eventSize, index.locate(next - 1));
+            }
+        }
+        appender.join();
+        index.close();
+        segment.close();
+    }
+
+    @Test
+    public void testGrowth() throws Exception {
+        FileChannel segment = new RandomAccessFile(tempFile(".segment"), "rw").getChannel();
+        SegmentIndex index = SegmentIndex.open(tempFile(".index"), segment, 0,
+                                               1);
+        long[] positions = new long[1000];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = append(segment, 1);
+            index.append(positions[i], EventHeader.HEADER_BYTE_SIZE + 1);
+        }
+        assertEquals(positions.length, index.getEntries());
+        for (int i = 0; i < positions.length; i++) {
+            assertEquals(positions[i], index.locate(i));
+        }
+        index.close();
+        segment.close();
+    }
+
+    @Test
+    public void testLocateTruncated() throws Exception {
+        FileChannel segment = new RandomAccessFile(tempFile(".segment"), "rw").getChannel();
+        SegmentIndex index = SegmentIndex.open(tempFile(".index"), segment, 0,
+                                               4096);
+        long[] positions = new long[10];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = append(segment, 20);
+            index.append(positions[i], EventHeader.HEADER_BYTE_SIZE + 20);
+        }
+        assertEquals(1, index.getEntries());
+
+        // events truncated from the segment are not located
+        segment.truncate(positions[5]);
+        assertEquals(positions[4], index.locate(4));
+        assertEquals(-1, index.locate(8));
+        index.close();
+        segment.close();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        File segmentFile = tempFile(".segment");
+        File indexFile = tempFile(".index");
+        FileChannel segment = new RandomAccessFile(segmentFile, "rw").getChannel();
+        SegmentIndex index = SegmentIndex.open(indexFile, segment, 10, 128);
+        long[] positions = new long[50];
+        for (int i = 0; i < 40; i++) {
+            positions[i] = append(segment, 20);
+            index.append(positions[i], EventHeader.HEADER_BYTE_SIZE + 20);
+        }
+        index.close();
+        // events appended but never indexed, followed by a partial event
+        for (int i = 40; i < 50; i++) {
+            positions[i] = append(segment, 20);
+        }
+        segment.write(ByteBuffer.allocate(10), segment.size());
+        assertEquals(10, SegmentIndex.readBaseOrdinal(indexFile));
+
+        index = SegmentIndex.open(indexFile, segment, 0, 128);
+        assertEquals(10, index.getBaseOrdinal());
+        assertEquals(60, index.getNextOrdinal());
+        assertEquals(positions[49] + EventHeader.HEADER_BYTE_SIZE + 20,
+                     index.getLimit());
+        for (int i = 0; i < positions.length; i++) {
+            assertEquals(positions[i], index.locate(10 + i));
+        }
+        index.close();
+
+        // entries beyond the end of the truncated segment are discarded
+        segment.truncate(positions[25] + 5);
+        index = SegmentIndex.open(indexFile, segment, 0, 128);
+        assertEquals(35, index.getNextOrdinal());
+        assertEquals(positions[24], index.locate(34));
+        index.append(positions[25], EventHeader.HEADER_BYTE_SIZE + 20);
+        assertEquals(positions[25], index.locate(35));
+        index.close();
+        segment.close();
+    }
+}
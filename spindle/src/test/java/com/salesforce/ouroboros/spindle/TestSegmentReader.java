@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestSegmentReader {
+
+    private static FileChannel segment() throws Exception {
+        File file = File.createTempFile("segment-reader", ".segment");
+        file.deleteOnExit();
+        return new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    private static Event write(FileChannel segment, int magic, UUID tag,
+                               int size) throws Exception {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) (magic + i);
+        }
+        Event event = new Event(magic, tag, ByteBuffer.wrap(payload));
+        event.rewind();
+        segment.position(segment.size());
+        event.write(segment);
+        return event;
+    }
+
+    @Test
+    public void testActiveSegment() throws Exception {
+        FileChannel segment = segment();
+        UUID tag = UUID.randomUUID();
+        SegmentReader reader = new SegmentReader(segment, 1024);
+        assertNull(reader.next());
+
+        Event event = write(segment, 1, tag, 100);
+        int eventSize = event.size() + EventHeader.HEADER_BYTE_SIZE;
+        // a partially appended event is not answered
+        write(segment, 2, tag, 100);
+        segment.truncate(eventSize + EventHeader.HEADER_BYTE_SIZE + 10);
+
+        Event read = reader.next();
+        assertEquals(1, read.getMagic());
+        assertTrue(read.validate());
+        assertNull(reader.next());
+        assertEquals(eventSize, reader.getPosition());
+
+        // complete the event, and append more than the window holds
+        segment.truncate(eventSize);
+        for (int i = 2; i < 20; i++) {
+            write(segment, i, tag, 100);
+        }
+        for (int i = 2; i < 20; i++) {
+            read = reader.next();
+            assertEquals(i, read.getMagic());
+            assertEquals(tag, read.getTag());
+            assertTrue(read.validate());
+        }
+        assertNull(reader.next());
+        assertEquals(19 * eventSize, reader.getPosition());
+        segment.close();
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        FileChannel segment = segment();
+        UUID tag = UUID.randomUUID();
+        int[] sizes = { 0, 10, 500, 3000, 7, 64 };
+        long[] positions = new long[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            positions[i] = segment.size();
+            write(segment, i, tag, sizes[i]);
+        }
+
+        // events larger than the window are mapped individually
+        SegmentReader reader = new SegmentReader(segment, 1024);
+        for (int i = 0; i < sizes.length; i++) {
+            assertEquals(positions[i], reader.getPosition());
+            Event event = reader.next();
+            assertEquals(i, event.getMagic());
+            assertEquals(tag, event.getTag());
+            assertEquals(sizes[i], event.size());
+            assertTrue(event.validate());
+            ByteBuffer payload = event.getPayload();
+            assertEquals(sizes[i], payload.remaining());
+            for (int j = 0; j < sizes[i]; j++) {
+                assertEquals((byte) (i + j), payload.get());
+            }
+            Event copy = event.clone();
+            assertEquals(i, copy.getMagic());
+            assertEquals(sizes[i], copy.size());
+            assertTrue(copy.validate());
+        }
+        assertNull(reader.next());
+
+        reader.seek(positions[3]);
+        assertEquals(3, reader.next().getMagic());
+        assertEquals(4, reader.next().getMagic());
+        reader.release();
+        reader.seek(positions[1]);
+        assertEquals(1, reader.next().getMagic());
+        segment.close();
+    }
+}
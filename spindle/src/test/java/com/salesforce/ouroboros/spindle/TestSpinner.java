@@ -26,6 +26,8 @@
 package com.salesforce.ouroboros.spindle;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.fail;
 import static junit.framework.Assert.assertTrue;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
@@ -37,14 +39,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.UUID;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 import org.mockito.internal.verification.Times;
@@ -55,6 +62,7 @@ import com.hellblazer.pinkie.ServerSocketChannelHandler;
 import com.hellblazer.pinkie.SocketChannelHandler;
 import com.hellblazer.pinkie.SocketOptions;
 import com.lmax.disruptor.ProducerBarrier;
+import com.lmax.disruptor.SequenceBatch;
 import com.salesforce.ouroboros.spindle.Spinner.State;
 
 /**
@@ -73,7 +81,7 @@ public class TestSpinner {
         File tmpFile = File.createTempFile("append", ".tst");
         tmpFile.deleteOnExit();
         FileOutputStream fos = new FileOutputStream(tmpFile);
-        final FileChannel writeSegment = fos.getChannel();
+        final Segment writeSegment = new Segment(fos.getChannel(), 0);
         when(bundle.segmentFor(isA(EventHeader.class))).thenReturn(writeSegment);
         EventEntry entry = new EventEntry();
         when(producerBarrier.nextEntry()).thenReturn(entry);
@@ -134,27 +142,319 @@ public class TestSpinner {
             assertEquals(b, writtenPayload.get());
         }
 
+        assertEquals(magic, entry.getMagic());
+        assertEquals(tag, entry.getTag());
+        assertEquals(payload.length, entry.getSize());
+        assertEquals(Event.crc32(payload), entry.getCrc32());
+        assertEquals(0, entry.getOffset());
+        assertEquals(0, entry.getSegment());
+
         verify(handler, new Times(3)).selectForRead();
         verify(bundle).segmentFor(isA(EventHeader.class));
+        verify(bundle).release(writeSegment);
         verify(producerBarrier).nextEntry();
         verify(producerBarrier).commit(entry);
         verifyNoMoreInteractions(handler, bundle, producerBarrier);
     }
 
+    @Test
+    public void testBatchAppend() throws Exception {
+        final SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        File root = File.createTempFile("batch-append", ".dir");
+        root.delete();
+        root.mkdirs();
+        root.deleteOnExit();
+        FileBundle bundle = new FileBundle(root, 4);
+        final AtomicInteger committed = new AtomicInteger();
+        ProducerBarrier<EventEntry> barrier = new PBarrier() {
+            @Override
+            public void commit(EventEntry entry) {
+                committed.incrementAndGet();
+            }
+
+            @Override
+            public void commit(SequenceBatch sequenceBatch) {
+                committed.addAndGet(sequenceBatch.getSize());
+            }
+        };
+        Latency latency = new Latency();
+        SpinnerOptions options = new SpinnerOptions();
+        options.setBufferSize(1024);
+        options.setMaximumBatchSize(16);
+        options.setLatency(latency);
+        final Spinner spinner = new Spinner(bundle, barrier, options);
+        assertTrue(spinner.isBatching());
+        assertSame(latency, spinner.getLatency());
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        final SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+
+        spinner.handleAccept(inbound, handler);
+        assertEquals(Spinner.State.ACCEPTED, spinner.getState());
+
+        UUID[] tags = new UUID[] { UUID.randomUUID(), UUID.randomUUID() };
+        final int eventCount = 101;
+        byte[][] payload = new byte[eventCount][];
+        ByteBuffer stream = ByteBuffer.allocate(64 * 1024);
+        long[] offsets = new long[eventCount];
+        long[] channelSizes = new long[tags.length];
+        for (int i = 0; i < eventCount; i++) {
+            if (i == 50) {
+                // larger than the spinner's buffer
+                payload[i] = new byte[4096];
+                Arrays.fill(payload[i], (byte) i);
+            } else {
+                payload[i] = ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+            }
+            UUID tag = tags[(i / 3) % 2];
+            offsets[i] = channelSizes[(i / 3) % 2];
+            channelSizes[(i / 3) % 2] += EventHeader.HEADER_BYTE_SIZE
+                                         + payload[i].length;
+            EventHeader header = new EventHeader(payload[i].length, i, tag,
+                                                 Event.crc32(payload[i]));
+            header.rewind();
+            stream.put(header.bytes);
+            stream.put(payload[i]);
+        }
+        stream.flip();
+        while (stream.hasRemaining()) {
+            outbound.write(stream);
+        }
+
+        Util.waitFor("Events have not been committed", new Util.Condition() {
+            @Override
+            public boolean value() {
+                spinner.handleRead(inbound);
+                return committed.get() == eventCount;
+            }
+        }, 2000, 10);
+        assertEquals(Spinner.State.ACCEPTED, spinner.getState());
+        assertEquals(eventCount,
+                     latency.snapshot(Latency.Stage.APPEND).getCount());
+        assertEquals(0, latency.snapshot(Latency.Stage.REPLICATE).getCount());
+
+        // the appended events are indexed by their ordinal within the channel
+        for (int i = 0; i < eventCount; i++) {
+            int ordinal = (i / 6) * 3 + i % 3;
+            assertEquals(offsets[i], bundle.offsetOf(tags[(i / 3) % 2], ordinal));
+        }
+
+        outbound.close();
+        inbound.close();
+        server.close();
+        bundle.close();
+
+        FileChannel[] segments = new FileChannel[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+            segments[i] = new FileInputStream(new File(root,
+                                                       tags[i].toString())).getChannel();
+        }
+        for (int i = 0; i < eventCount; i++) {
+            UUID tag = tags[(i / 3) % 2];
+            Event event = new Event(segments[(i / 3) % 2]);
+            assertEquals(i, event.getMagic());
+            assertEquals(tag, event.getTag());
+            assertEquals(payload[i].length, event.size());
+            ByteBuffer writtenPayload = event.getPayload();
+            for (byte b : payload[i]) {
+                assertEquals(b, writtenPayload.get());
+            }
+        }
+        for (FileChannel segment : segments) {
+            assertEquals(segment.size(), segment.position());
+            segment.close();
+        }
+    }
+
+    @Test
+    public void testClosingMidEvent() throws Exception {
+        final SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        File root = File.createTempFile("closing-mid-event", ".dir");
+        root.delete();
+        root.mkdirs();
+        root.deleteOnExit();
+        FileBundle bundle = new FileBundle(root, 1);
+        Spinner spinner = new Spinner(bundle, new PBarrier());
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+
+        spinner.handleAccept(inbound, handler);
+        UUID tag = UUID.randomUUID();
+        byte[] payload = "Give me Slack, or give me Food, or Kill me".getBytes();
+        EventHeader header = new EventHeader(payload.length, 0, tag,
+                                             Event.crc32(payload));
+        header.rewind();
+        while (header.bytes.hasRemaining()) {
+            outbound.write(header.bytes);
+        }
+        outbound.write(ByteBuffer.wrap(payload, 0, 10));
+        final File segmentFile = new File(root, tag.toString());
+        final Spinner appending = spinner;
+        final SocketChannel connection = inbound;
+        Util.waitFor("Partial event has not been appended",
+                     new Util.Condition() {
+                         @Override
+                         public boolean value() {
+                             appending.handleRead(connection);
+                             return segmentFile.length() == EventHeader.HEADER_BYTE_SIZE + 10;
+                         }
+                     }, 2000, 10);
+        assertEquals(State.APPEND, spinner.getState());
+
+        // the torn event is truncated, and its segment's lease released
+        spinner.closing(inbound);
+        assertEquals(0, segmentFile.length());
+        Segment other = bundle.segmentFor(new EventHeader(0, 0,
+                                                          UUID.randomUUID(), 0));
+        bundle.release(other);
+        assertEquals(1, bundle.getOpenSegments());
+
+        outbound.close();
+        inbound.close();
+        server.close();
+        bundle.close();
+    }
+
+    @Test
+    public void testDurableBatchAppend() throws Exception {
+        final SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        File root = File.createTempFile("durable-append", ".dir");
+        root.delete();
+        root.mkdirs();
+        root.deleteOnExit();
+        FileBundle bundle = new FileBundle(root, 4);
+        final AtomicInteger committed = new AtomicInteger();
+        ProducerBarrier<EventEntry> barrier = new PBarrier() {
+            @Override
+            public void commit(EventEntry entry) {
+                committed.incrementAndGet();
+            }
+
+            @Override
+            public void commit(SequenceBatch sequenceBatch) {
+                fail("Strict durability must not publish from the spinner");
+            }
+        };
+        Flusher flusher = new Flusher(bundle, 16, 5, TimeUnit.MILLISECONDS,
+                                      true);
+        flusher.start();
+        SpinnerOptions options = new SpinnerOptions();
+        options.setBufferSize(1024);
+        options.setMaximumBatchSize(16);
+        options.setFlusher(flusher);
+        final Spinner spinner = new Spinner(bundle, barrier, options);
+        assertSame(flusher, spinner.getFlusher());
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        final SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+
+        spinner.handleAccept(inbound, handler);
+
+        UUID[] tags = new UUID[] { UUID.randomUUID(), UUID.randomUUID() };
+        final int eventCount = 41;
+        ByteBuffer stream = ByteBuffer.allocate(64 * 1024);
+        for (int i = 0; i < eventCount; i++) {
+            // event 20 is larger than the spinner's buffer
+            byte[] payload = i == 20 ? new byte[4096]
+                                    : ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+            EventHeader header = new EventHeader(payload.length, i,
+                                                 tags[(i / 3) % 2],
+                                                 Event.crc32(payload));
+            header.rewind();
+            stream.put(header.bytes);
+            stream.put(payload);
+        }
+        stream.flip();
+        while (stream.hasRemaining()) {
+            outbound.write(stream);
+        }
+
+        Util.waitFor("Events have not been committed", new Util.Condition() {
+            @Override
+            public boolean value() {
+                spinner.handleRead(inbound);
+                return committed.get() == eventCount;
+            }
+        }, 2000, 10);
+        flusher.terminate();
+        assertTrue(flusher.getFlushes() > 0);
+        assertEquals(0, flusher.getPendingEvents());
+
+        outbound.close();
+        inbound.close();
+        server.close();
+        bundle.close();
+    }
+
+    @Test
+    public void testInvalidBatchEventSize() throws Exception {
+        invalidEventSize(true, 0);
+    }
+
+    @Test
+    public void testInvalidEventSize() throws Exception {
+        invalidEventSize(false, -5);
+    }
+
     @Test
     public void testMultiAppend() throws Exception {
         final File tmpFile = File.createTempFile("multi-append", ".tst");
         tmpFile.deleteOnExit();
         Bundle bundle = new Bundle() {
             @Override
-            public FileChannel segmentFor(EventHeader header) {
+            public long endOf(UUID channel) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public long offsetOf(UUID channel, long ordinal) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void release(Segment segment) {
+                try {
+                    segment.getChannel().close();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            public Segment segmentFor(EventEntry entry) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Segment segmentFor(EventHeader header) {
                 FileOutputStream fos;
                 try {
                     fos = new FileOutputStream(tmpFile, true);
                 } catch (FileNotFoundException e) {
                     throw new IllegalStateException();
                 }
-                return fos.getChannel();
+                return new Segment(fos.getChannel(), 0);
+            }
+
+            @Override
+            public Segment segmentFor(UUID channel, long offset) {
+                throw new UnsupportedOperationException();
             }
         };
         ProducerBarrier<EventEntry> barrier = new PBarrier();
@@ -217,4 +517,388 @@ public class TestSpinner {
         }
         readSegment.close();
     };
+
+    @Test
+    public void testResumeFailure() throws Exception {
+        final SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        File root = File.createTempFile("resume-failure", ".dir");
+        root.delete();
+        root.mkdirs();
+        root.deleteOnExit();
+        FileBundle bundle = new FileBundle(root, 4);
+        final AtomicInteger committed = new AtomicInteger();
+        ProducerBarrier<EventEntry> barrier = new PBarrier() {
+            @Override
+            public void commit(SequenceBatch sequenceBatch) {
+                if (committed.get() == 8) {
+                    throw new IllegalStateException("Commit failure");
+                }
+                committed.addAndGet(sequenceBatch.getSize());
+            }
+        };
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        TestThrottle.Sequence consumer = new TestThrottle.Sequence();
+        final Throttle throttle = new Throttle(8, scheduler, consumer);
+        SpinnerOptions options = new SpinnerOptions();
+        options.setBufferSize(4096);
+        options.setMaximumBatchSize(4);
+        options.setThrottle(throttle);
+        final Spinner spinner = new Spinner(bundle, barrier, options);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        final SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+        spinner.handleAccept(inbound, handler);
+
+        UUID tag = UUID.randomUUID();
+        ByteBuffer stream = ByteBuffer.allocate(4096);
+        for (int i = 0; i < 12; i++) {
+            byte[] payload = ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+            EventHeader header = new EventHeader(payload.length, i, tag,
+                                                 Event.crc32(payload));
+            header.rewind();
+            stream.put(header.bytes);
+            stream.put(payload);
+        }
+        stream.flip();
+        while (stream.hasRemaining()) {
+            outbound.write(stream);
+        }
+        Util.waitFor("Spinner was never throttled", new Util.Condition() {
+            @Override
+            public boolean value() {
+                spinner.handleRead(inbound);
+                return spinner.getState() == State.THROTTLED;
+            }
+        }, 2000, 10);
+
+        // the resumed spinner fails to publish, and is closed rather than
+        // left parked, or resumed without ever selecting for reads again
+        consumer.sequence.set(Long.MAX_VALUE / 2);
+        Util.waitFor("Spinner was never closed", new Util.Condition() {
+            @Override
+            public boolean value() {
+                // the woken spinner is selected for writes
+                spinner.handleWrite(inbound);
+                return spinner.getState() == State.CLOSED;
+            }
+        }, 2000, 10);
+        assertEquals(0, throttle.getParked());
+        assertEquals(8, committed.get());
+        spinner.closing(inbound);
+
+        outbound.close();
+        inbound.close();
+        server.close();
+        bundle.close();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testThrottledBatchAppend() throws Exception {
+        final SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        File root = File.createTempFile("throttled-batch-append", ".dir");
+        root.delete();
+        root.mkdirs();
+        root.deleteOnExit();
+        FileBundle bundle = new FileBundle(root, 4);
+        final AtomicInteger committed = new AtomicInteger();
+        ProducerBarrier<EventEntry> barrier = new PBarrier() {
+            @Override
+            public void commit(SequenceBatch sequenceBatch) {
+                committed.addAndGet(sequenceBatch.getSize());
+            }
+        };
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        TestThrottle.Sequence consumer = new TestThrottle.Sequence();
+        final Throttle throttle = new Throttle(8, scheduler, consumer);
+        SpinnerOptions options = new SpinnerOptions();
+        options.setBufferSize(4096);
+        options.setMaximumBatchSize(4);
+        options.setThrottle(throttle);
+        final Spinner spinner = new Spinner(bundle, barrier, options);
+        Metrics metrics = new Metrics();
+        spinner.register(metrics, "spinner");
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        final SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+        spinner.handleAccept(inbound, handler);
+
+        final int eventCount = 20;
+        UUID tag = UUID.randomUUID();
+        ByteBuffer stream = ByteBuffer.allocate(4096);
+        long streamed = 0;
+        long published = 0;
+        for (int i = 0; i < eventCount; i++) {
+            byte[] payload = ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+            EventHeader header = new EventHeader(payload.length, i, tag,
+                                                 Event.crc32(payload));
+            header.rewind();
+            stream.put(header.bytes);
+            stream.put(payload);
+            streamed += EventHeader.HEADER_BYTE_SIZE + payload.length;
+            if (i < 8) {
+                published += EventHeader.HEADER_BYTE_SIZE + payload.length;
+            }
+        }
+        stream.flip();
+        while (stream.hasRemaining()) {
+            outbound.write(stream);
+        }
+
+        // the ring has capacity for two batches, and the spinner parks
+        Util.waitFor("Spinner was never throttled", new Util.Condition() {
+            @Override
+            public boolean value() {
+                spinner.handleRead(inbound);
+                return spinner.getState() == State.THROTTLED;
+            }
+        }, 2000, 10);
+        assertEquals(8, committed.get());
+        assertEquals(1L, spinner.getThrottled());
+        assertEquals(1, throttle.getParked());
+        Thread.sleep(10);
+        assertEquals(8, committed.get());
+        // the throttled batch has not been appended to the segment
+        assertEquals(published, bundle.getSegmentFiles().get(0).length());
+
+        // the consumer frees the ring, and the spinner is woken
+        consumer.sequence.set(Long.MAX_VALUE / 2);
+        Util.waitFor("Spinner was never woken", new Util.Condition() {
+            @Override
+            public boolean value() {
+                return throttle.getParked() == 0;
+            }
+        }, 2000, 10);
+        // the throttle leaves publishing to the spinner's IO thread
+        Thread.sleep(10);
+        assertEquals(8, committed.get());
+        assertEquals(State.THROTTLED, spinner.getState());
+
+        // the woken spinner is selected for writes, and resumes
+        spinner.handleWrite(inbound);
+        Util.waitFor("Events have not been committed", new Util.Condition() {
+            @Override
+            public boolean value() {
+                spinner.handleRead(inbound);
+                return committed.get() == eventCount;
+            }
+        }, 2000, 10);
+        assertEquals(State.ACCEPTED, spinner.getState());
+        assertEquals(streamed, bundle.getSegmentFiles().get(0).length());
+        assertTrue(spinner.getThrottledNanos() > 0);
+        assertEquals(spinner.getThrottledNanos(), throttle.getThrottledNanos());
+        assertTrue(spinner.getStateNanos(State.THROTTLED) > 0);
+        assertEquals(Long.valueOf(eventCount),
+                     metrics.snapshot().get("spinner.events"));
+        assertEquals(Long.valueOf(streamed),
+                     metrics.snapshot().get("spinner.bytes"));
+        assertEquals(Long.valueOf(1),
+                     metrics.snapshot().get("spinner.throttled"));
+        spinner.closing(inbound);
+        assertTrue(metrics.snapshot().isEmpty());
+
+        outbound.close();
+        inbound.close();
+        server.close();
+        bundle.close();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testVerifiedAppend() throws Exception {
+        verifiedAppend(false);
+    }
+
+    @Test
+    public void testVerifiedBatchAppend() throws Exception {
+        verifiedAppend(true);
+    }
+
+    /**
+     * An event whose size is smaller than its header closes the connection,
+     * once the events preceding it have been published
+     */
+    private void invalidEventSize(boolean batching, int eventSize)
+                                                                  throws Exception {
+        final SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        File root = File.createTempFile("invalid-size", ".dir");
+        root.delete();
+        root.mkdirs();
+        root.deleteOnExit();
+        FileBundle bundle = new FileBundle(root, 4);
+        final AtomicInteger committed = new AtomicInteger();
+        ProducerBarrier<EventEntry> barrier = new PBarrier() {
+            @Override
+            public void commit(EventEntry entry) {
+                committed.incrementAndGet();
+            }
+
+            @Override
+            public void commit(SequenceBatch sequenceBatch) {
+                committed.addAndGet(sequenceBatch.getSize());
+            }
+        };
+        SpinnerOptions options = new SpinnerOptions();
+        if (batching) {
+            options.setBufferSize(1024);
+            options.setMaximumBatchSize(16);
+        }
+        final Spinner spinner = new Spinner(bundle, barrier, options);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        final SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+        spinner.handleAccept(inbound, handler);
+
+        UUID tag = UUID.randomUUID();
+        byte[] payload = "Give me Slack, or give me Food, or Kill me".getBytes();
+        ByteBuffer stream = ByteBuffer.allocate(1024);
+        EventHeader header = new EventHeader(payload.length, 0, tag,
+                                             Event.crc32(payload));
+        header.rewind();
+        stream.put(header.bytes);
+        stream.put(payload);
+        EventHeader invalid = new EventHeader(payload.length, 1, tag,
+                                              Event.crc32(payload));
+        invalid.bytes.putInt(0, eventSize);
+        invalid.rewind();
+        stream.put(invalid.bytes);
+        stream.put(payload);
+        stream.flip();
+        while (stream.hasRemaining()) {
+            outbound.write(stream);
+        }
+
+        Util.waitFor("Connection has not been closed", new Util.Condition() {
+            @Override
+            public boolean value() {
+                spinner.handleRead(inbound);
+                return spinner.getState() == State.CLOSED;
+            }
+        }, 2000, 10);
+        assertEquals(1, committed.get());
+        verify(handler).close();
+
+        // further reads are ignored
+        spinner.handleRead(inbound);
+        assertEquals(State.CLOSED, spinner.getState());
+        assertEquals(1, committed.get());
+
+        spinner.closing(inbound);
+        outbound.close();
+        inbound.close();
+        server.close();
+        bundle.close();
+    }
+
+    private void verifiedAppend(boolean batching) throws Exception {
+        final SocketChannelHandler handler = mock(SocketChannelHandler.class);
+        File root = File.createTempFile("verified-append", ".dir");
+        root.delete();
+        root.mkdirs();
+        root.deleteOnExit();
+        FileBundle bundle = new FileBundle(root, 4);
+        final AtomicInteger committed = new AtomicInteger();
+        ProducerBarrier<EventEntry> barrier = new PBarrier() {
+            @Override
+            public void commit(EventEntry entry) {
+                committed.incrementAndGet();
+            }
+
+            @Override
+            public void commit(SequenceBatch sequenceBatch) {
+                committed.addAndGet(sequenceBatch.getSize());
+            }
+        };
+        SpinnerOptions options = new SpinnerOptions();
+        if (batching) {
+            options.setBufferSize(1024);
+            options.setMaximumBatchSize(16);
+        }
+        options.setVerify(true);
+        final Spinner spinner = new Spinner(bundle, barrier, options);
+        assertTrue(spinner.isVerifying());
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(true);
+        server.socket().bind(new InetSocketAddress(0));
+        SocketChannel outbound = SocketChannel.open();
+        outbound.configureBlocking(true);
+        outbound.connect(server.socket().getLocalSocketAddress());
+        final SocketChannel inbound = server.accept();
+        inbound.configureBlocking(false);
+        spinner.handleAccept(inbound, handler);
+
+        UUID tag = UUID.randomUUID();
+        int eventCount = 50;
+        byte[][] payload = new byte[eventCount][];
+        ByteBuffer stream = ByteBuffer.allocate(64 * 1024);
+        for (int i = 0; i < eventCount; i++) {
+            if (i == 20 || i == 21) {
+                // larger than the spinner's buffer
+                payload[i] = new byte[4096];
+                Arrays.fill(payload[i], (byte) i);
+            } else {
+                payload[i] = ("Give me Slack, or give me Food, or Kill me #" + i).getBytes();
+            }
+            int crc32 = Event.crc32(payload[i]);
+            if (i % 7 == 0) {
+                crc32++;
+            }
+            EventHeader header = new EventHeader(payload[i].length, i, tag,
+                                                 crc32);
+            header.rewind();
+            stream.put(header.bytes);
+            stream.put(payload[i]);
+        }
+        stream.flip();
+        while (stream.hasRemaining()) {
+            outbound.write(stream);
+        }
+
+        final int invalid = (eventCount + 6) / 7;
+        final int valid = eventCount - invalid;
+        Util.waitFor("Events have not been processed", new Util.Condition() {
+            @Override
+            public boolean value() {
+                spinner.handleRead(inbound);
+                return committed.get() + spinner.getRejected() == valid
+                                                                  + invalid;
+            }
+        }, 2000, 10);
+        assertEquals(valid, committed.get());
+        assertEquals(invalid, spinner.getRejected());
+
+        outbound.close();
+        inbound.close();
+        server.close();
+        bundle.close();
+
+        FileChannel segment = new FileInputStream(new File(root,
+                                                           tag.toString())).getChannel();
+        for (int i = 0; i < eventCount; i++) {
+            if (i % 7 == 0) {
+                continue;
+            }
+            Event event = new Event(segment);
+            assertTrue(event.validate());
+            assertEquals(i, event.getMagic());
+            assertEquals(payload[i].length, event.size());
+        }
+        assertEquals(segment.size(), segment.position());
+        segment.close();
+    }
 }
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2011, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.ouroboros.spindle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.lmax.disruptor.Consumer;
+
+/**
+ * 
+ * @author hhildebrand
+ * 
+ */
+public class TestThrottle {
+    /**
+     * A consumer of the ring whose sequence is advanced by the test
+     */
+    static class Sequence implements Consumer {
+        final AtomicLong sequence = new AtomicLong(-1);
+
+        @Override
+        public long getSequence() {
+            return sequence.get();
+        }
+
+        @Override
+        public void halt() {
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+
+    @Test
+    public void testClaim() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        Sequence fast = new Sequence();
+        Sequence slow = new Sequence();
+        Throttle throttle = new Throttle(4, scheduler, fast, slow);
+        assertEquals(4L, throttle.getAvailable());
+
+        assertTrue(throttle.tryClaim(3));
+        assertFalse(throttle.tryClaim(2));
+        assertTrue(throttle.tryClaim(1));
+        assertFalse(throttle.tryClaim(1));
+        assertEquals(0L, throttle.getAvailable());
+
+        // the slowest consumer gates the claims
+        fast.sequence.set(3);
+        assertFalse(throttle.tryClaim(1));
+        slow.sequence.set(1);
+        assertEquals(2L, throttle.getAvailable());
+        assertTrue(throttle.tryClaim(2));
+        assertFalse(throttle.tryClaim(1));
+        scheduler.shutdown();
+    }
+}